@@ -0,0 +1,128 @@
+package org.thoughtcrime.securesms.backup;
+
+import android.app.Application;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.signal.core.util.StreamUtil;
+import org.thoughtcrime.securesms.attachments.Attachment;
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesms.attachments.UriAttachment;
+import org.thoughtcrime.securesms.crypto.AttachmentSecret;
+import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
+import org.thoughtcrime.securesms.database.AttachmentDatabase;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MessageDatabase;
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.mms.IncomingMediaMessage;
+import org.thoughtcrime.securesms.providers.BlobProvider;
+import org.thoughtcrime.securesms.recipients.Recipient;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+import org.thoughtcrime.securesms.util.MediaUtil;
+import org.whispersystems.libsignal.util.guava.Optional;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Exports the database with a message that has two attachments of the same data, imports it back
+ * and checks that both attachments can still be read, and that deleting one leaves the other.
+ */
+public final class FullBackupRoundTripTest {
+
+  private static final String PASSPHRASE = "000000000000000000000000000000";
+  private static final int    SIZE       = 64 * 1024;
+
+  private Application      application;
+  private AttachmentSecret attachmentSecret;
+  private File             backupFile;
+  private Uri              blob;
+  private long             threadId;
+
+  @Before
+  public void setUp() throws IOException {
+    application      = ApplicationDependencies.getApplication();
+    attachmentSecret = AttachmentSecretProvider.getInstance(application).getOrCreateAttachmentSecret();
+    backupFile       = File.createTempFile("backup", ".tmp", application.getCacheDir());
+  }
+
+  @After
+  public void tearDown() {
+    if (threadId > 0) {
+      DatabaseFactory.getThreadDatabase(application).deleteConversation(threadId);
+    }
+
+    if (blob != null) {
+      BlobProvider.getInstance().delete(application, blob);
+    }
+
+    //noinspection ResultOfMethodCallIgnored
+    backupFile.delete();
+  }
+
+  @Test
+  public void exportThenImport_keepsAttachments() throws Exception {
+    byte[] data = new byte[SIZE];
+    new Random(7).nextBytes(data);
+
+    RecipientId sender = DatabaseFactory.getRecipientDatabase(application).getOrInsertFromE164("+15555550199");
+
+    blob     = BlobProvider.getInstance().forData(data).createForSingleSessionInMemory();
+    threadId = DatabaseFactory.getThreadDatabase(application).getThreadIdFor(Recipient.resolved(sender));
+
+    IncomingMediaMessage message = new IncomingMediaMessage(sender, Optional.absent(), null, System.currentTimeMillis(), System.currentTimeMillis(),
+                                                            Arrays.asList(createAttachment(blob), createAttachment(blob)),
+                                                            1, 0, false, false, false, Optional.absent());
+
+    MessageDatabase.InsertResult result = DatabaseFactory.getMmsDatabase(application).insertSecureDecryptedMessageInbox(message, threadId).get();
+    long                         mmsId  = result.getMessageId();
+
+    SQLiteDatabase database = DatabaseFactory.getBackupDatabase(application);
+
+    FullBackupExporter.export(application, attachmentSecret, database, backupFile, PASSPHRASE, () -> false);
+
+    try (InputStream inputStream = new FileInputStream(backupFile)) {
+      FullBackupImporter.importFile(application, attachmentSecret, database, inputStream, PASSPHRASE);
+    }
+
+    DatabaseFactory.upgradeRestored(application, database);
+
+    AttachmentDatabase       attachmentDatabase = DatabaseFactory.getAttachmentDatabase(application);
+    List<DatabaseAttachment> attachments        = attachmentDatabase.getAttachmentsForMessage(mmsId);
+
+    assertEquals(2, attachments.size());
+
+    for (DatabaseAttachment attachment : attachments) {
+      assertArrayEquals(data, read(attachmentDatabase, attachment));
+    }
+
+    attachmentDatabase.deleteAttachment(attachments.get(0).getAttachmentId());
+
+    assertArrayEquals(data, read(attachmentDatabase, attachments.get(1)));
+  }
+
+  private static @NonNull Attachment createAttachment(@NonNull Uri uri) {
+    return new UriAttachment(uri, MediaUtil.VIDEO_UNSPECIFIED, AttachmentDatabase.TRANSFER_PROGRESS_DONE, SIZE,
+                             0, 0, null, null, false, false, false, false, null, null, null, null, null);
+  }
+
+  private static @NonNull byte[] read(@NonNull AttachmentDatabase database, @NonNull DatabaseAttachment attachment) throws IOException {
+    try (InputStream inputStream = database.getAttachmentStream(attachment.getAttachmentId(), 0)) {
+      return StreamUtil.readFully(inputStream);
+    }
+  }
+}
@@ -0,0 +1,214 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+import android.database.Cursor;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.thoughtcrime.securesms.attachments.Attachment;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesms.attachments.UriAttachment;
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.mms.MmsException;
+import org.thoughtcrime.securesms.mms.PartAuthority;
+import org.thoughtcrime.securesms.providers.BlobProvider;
+import org.thoughtcrime.securesms.util.MediaUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that forwarded attachments share the data file of their source, that the reference count
+ * keeps a shared file alive until its last strong reference is gone, and that replacing the data of
+ * an attachment moves the right rows and cleans up the file they leave behind.
+ */
+public final class AttachmentDeduplicationTest {
+
+  private static final int  SIZE   = 64 * 1024;
+  private static final long MMS_ID = Long.MAX_VALUE - 60;
+
+  private Application        application;
+  private AttachmentDatabase attachments;
+  private SQLiteDatabase     database;
+  private Random             random;
+  private List<AttachmentId> inserted;
+  private List<Uri>          blobs;
+
+  @Before
+  public void setUp() {
+    application = ApplicationDependencies.getApplication();
+    attachments = DatabaseFactory.getAttachmentDatabase(application);
+    database    = DatabaseFactory.getInstance(application).getRawDatabase();
+    random      = new Random(42);
+    inserted    = new ArrayList<>();
+    blobs       = new ArrayList<>();
+  }
+
+  @After
+  public void tearDown() {
+    for (AttachmentId id : inserted) {
+      attachments.deleteAttachment(id);
+    }
+
+    for (Uri blob : blobs) {
+      BlobProvider.getInstance().delete(application, blob);
+    }
+  }
+
+  @Test
+  public void forwardFromPart_sharesTheSourceFile() throws Exception {
+    AttachmentId source  = insert(MMS_ID, newBlob());
+    AttachmentId forward = insert(MMS_ID - 1, PartAuthority.getAttachmentDataUri(source));
+
+    String data = getData(source);
+
+    assertNotNull(data);
+    assertEquals(data, getData(forward));
+    assertEquals(2, getReferenceCount(data));
+  }
+
+  @Test
+  public void deleteAttachment_keepsSharedFileUntilLastStrongReferenceIsGone() throws Exception {
+    AttachmentId source  = insert(MMS_ID, newBlob());
+    AttachmentId forward = insert(MMS_ID - 1, PartAuthority.getAttachmentDataUri(source));
+    String       data    = getData(source);
+
+    delete(source);
+
+    assertTrue(new File(data).exists());
+    assertEquals(1, getReferenceCount(data));
+    assertNotNull(attachments.getAttachment(forward).getUri());
+
+    delete(forward);
+
+    assertFalse(new File(data).exists());
+    assertEquals(0, getReferenceCount(data));
+  }
+
+  @Test
+  public void deleteAttachment_quotesDoNotKeepFileAlive() throws Exception {
+    AttachmentId source = insert(MMS_ID, newBlob());
+    String       data   = getData(source);
+
+    Attachment                    quote    = newAttachment(PartAuthority.getAttachmentDataUri(source));
+    Map<Attachment, AttachmentId> quoteIds = attachments.insertAttachmentsForMessage(MMS_ID - 1, Collections.emptyList(), Collections.singletonList(quote));
+    AttachmentId                  quoteId  = quoteIds.get(quote);
+
+    inserted.add(quoteId);
+
+    assertEquals(data, getData(quoteId));
+    assertEquals(1, getReferenceCount(data));
+
+    delete(source);
+
+    assertFalse(new File(data).exists());
+    assertNull(getData(quoteId));
+  }
+
+  @Test
+  public void updateAttachmentData_fromWriter_movesEverySharerAndDeletesTheOldFile() throws Exception {
+    AttachmentId source  = insert(MMS_ID, newBlob());
+    AttachmentId forward = insert(MMS_ID - 1, PartAuthority.getAttachmentDataUri(source));
+    String       oldData = getData(source);
+
+    updateFromWriter(source, false);
+
+    String newData = getData(source);
+
+    assertNotEquals(oldData, newData);
+    assertEquals(newData, getData(forward));
+    assertEquals(2, getReferenceCount(newData));
+    assertEquals(0, getReferenceCount(oldData));
+    assertFalse(new File(oldData).exists());
+  }
+
+  @Test
+  public void updateAttachmentData_fromWriter_onlyThisAttachment_keepsTheSharedFile() throws Exception {
+    AttachmentId source  = insert(MMS_ID, newBlob());
+    AttachmentId forward = insert(MMS_ID - 1, PartAuthority.getAttachmentDataUri(source));
+    String       oldData = getData(source);
+
+    updateFromWriter(source, true);
+
+    String newData = getData(source);
+
+    assertNotEquals(oldData, newData);
+    assertEquals(oldData, getData(forward));
+    assertEquals(1, getReferenceCount(newData));
+    assertEquals(1, getReferenceCount(oldData));
+    assertTrue(new File(oldData).exists());
+  }
+
+  private @NonNull Uri newBlob() {
+    byte[] data = new byte[SIZE];
+    random.nextBytes(data);
+
+    Uri blob = BlobProvider.getInstance().forData(data).createForSingleSessionInMemory();
+    blobs.add(blob);
+
+    return blob;
+  }
+
+  private @NonNull Attachment newAttachment(@NonNull Uri uri) {
+    return new UriAttachment(uri, MediaUtil.VIDEO_UNSPECIFIED, AttachmentDatabase.TRANSFER_PROGRESS_DONE, SIZE,
+                             0, 0, null, null, false, false, false, false, null, null, null, null, null);
+  }
+
+  private @NonNull AttachmentId insert(long mmsId, @NonNull Uri uri) throws MmsException {
+    Attachment   attachment = newAttachment(uri);
+    AttachmentId id         = attachments.insertAttachmentsForMessage(mmsId, Collections.singletonList(attachment), Collections.emptyList()).get(attachment);
+
+    inserted.add(id);
+
+    return id;
+  }
+
+  private void delete(@NonNull AttachmentId id) {
+    attachments.deleteAttachment(id);
+    inserted.remove(id);
+  }
+
+  private void updateFromWriter(@NonNull AttachmentId id, boolean onlyModifyThisAttachment) throws Exception {
+    DatabaseAttachment attachment = attachments.getAttachment(id);
+    byte[]             data       = new byte[SIZE];
+
+    random.nextBytes(data);
+
+    try (AttachmentDatabase.DataWriter writer = attachments.openDataWriter()) {
+      writer.getOutputStream().write(data);
+      attachments.updateAttachmentData(attachment, writer, MediaUtil.VIDEO_UNSPECIFIED, onlyModifyThisAttachment);
+    }
+  }
+
+  private @Nullable String getData(@NonNull AttachmentId id) {
+    try (Cursor cursor = database.query(AttachmentDatabase.TABLE_NAME, new String[] { AttachmentDatabase.DATA }, AttachmentDatabase.ROW_ID + " = ?", new String[] { String.valueOf(id.getRowId()) }, null, null, null)) {
+      assertTrue(cursor.moveToFirst());
+      return cursor.getString(0);
+    }
+  }
+
+  private int getReferenceCount(@NonNull String data) {
+    try (Cursor cursor = database.query(AttachmentDatabase.REFERENCE_TABLE_NAME, new String[] { AttachmentDatabase.REFERENCE_COUNT }, AttachmentDatabase.DATA + " = ?", new String[] { data }, null, null, null)) {
+      return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+import android.database.Cursor;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.thoughtcrime.securesms.database.model.ThreadRecord;
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.groups.GroupId;
+import org.thoughtcrime.securesms.recipients.Recipient;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+import org.thoughtcrime.securesms.sms.IncomingEncryptedMessage;
+import org.thoughtcrime.securesms.sms.IncomingIdentityUpdateMessage;
+import org.thoughtcrime.securesms.sms.IncomingTextMessage;
+import org.whispersystems.libsignal.util.guava.Optional;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link MessageDatabase#insertMessagesInbox(List)} leaves the messages and their threads
+ * the same as inserting each message with {@link SmsDatabase#insertMessageInbox(IncomingTextMessage)}.
+ */
+public final class BulkMessageInsertTest {
+
+  private Application     application;
+  private MessageDatabase smsDatabase;
+  private ThreadDatabase  threadDatabase;
+  private RecipientId     alice;
+  private RecipientId     bob;
+  private List<Long>      threadIds;
+
+  @Before
+  public void setUp() {
+    application    = ApplicationDependencies.getApplication();
+    smsDatabase    = DatabaseFactory.getSmsDatabase(application);
+    threadDatabase = DatabaseFactory.getThreadDatabase(application);
+    alice          = DatabaseFactory.getRecipientDatabase(application).getOrInsertFromE164("+15555550171");
+    bob            = DatabaseFactory.getRecipientDatabase(application).getOrInsertFromE164("+15555550172");
+    threadIds      = new ArrayList<>();
+  }
+
+  @After
+  public void tearDown() {
+    for (long threadId : threadIds) {
+      threadDatabase.deleteConversation(threadId);
+    }
+  }
+
+  @Test
+  public void bulkInsert_matchesSingleInserts() {
+    GroupId single = createGroup();
+    GroupId bulk   = createGroup();
+
+    for (IncomingTextMessage message : createMessages(single)) {
+      smsDatabase.insertMessageInbox(message);
+    }
+
+    List<MessageDatabase.InsertResult> results = smsDatabase.insertMessagesInbox(createMessages(bulk));
+
+    long singleThreadId = getThreadId(single);
+    long bulkThreadId   = getThreadId(bulk);
+
+    assertEquals(4, results.size());
+
+    for (MessageDatabase.InsertResult result : results) {
+      assertEquals(bulkThreadId, result.getThreadId());
+    }
+
+    assertEquals(getMessages(singleThreadId), getMessages(bulkThreadId));
+
+    ThreadRecord singleThread = threadDatabase.getThreadRecordFor(getGroupRecipient(single));
+    ThreadRecord bulkThread   = threadDatabase.getThreadRecordFor(getGroupRecipient(bulk));
+
+    assertEquals(singleThread.getCount(), bulkThread.getCount());
+    assertEquals(singleThread.getUnreadCount(), bulkThread.getUnreadCount());
+    assertEquals(3, bulkThread.getUnreadCount());
+  }
+
+  @Test
+  public void bulkInsert_returnsResultsInOrder() {
+    GroupId                   group    = createGroup();
+    List<IncomingTextMessage> messages = createMessages(group);
+
+    List<MessageDatabase.InsertResult> results = smsDatabase.insertMessagesInbox(messages);
+
+    for (int i = 1; i < results.size(); i++) {
+      assertTrue(results.get(i).getMessageId() > results.get(i - 1).getMessageId());
+    }
+
+    assertEquals(Arrays.asList("One", "Two", "", "Three"), getBodies(results));
+  }
+
+  @Test
+  public void bulkInsert_skipsDuplicates() {
+    GroupId group = createGroup();
+
+    smsDatabase.insertMessageInbox(message(alice, group, 1000, "One"));
+
+    List<MessageDatabase.InsertResult> results = smsDatabase.insertMessagesInbox(Arrays.asList(message(alice, group, 1000, "One"),
+                                                                                              message(bob, group, 1000, "Two"),
+                                                                                              message(bob, group, 1000, "Two")));
+
+    assertEquals(1, results.size());
+    assertEquals(Collections.singletonList("Two"), getBodies(results));
+    assertEquals(2, threadDatabase.getTotalMessageCount(getThreadId(group)));
+  }
+
+  @Test
+  public void bulkInsert_empty() {
+    assertTrue(smsDatabase.insertMessagesInbox(Collections.emptyList()).isEmpty());
+  }
+
+  private @NonNull GroupId createGroup() {
+    GroupId groupId = GroupId.createV1(new SecureRandom());
+
+    threadIds.add(getThreadId(groupId));
+
+    return groupId;
+  }
+
+  private @NonNull Recipient getGroupRecipient(@NonNull GroupId groupId) {
+    return Recipient.resolved(DatabaseFactory.getRecipientDatabase(application).getOrInsertFromGroupId(groupId));
+  }
+
+  private long getThreadId(@NonNull GroupId groupId) {
+    return threadDatabase.getThreadIdFor(getGroupRecipient(groupId));
+  }
+
+  /**
+   * Messages from two senders, with a silent one in between, in the order they'd arrive.
+   */
+  private @NonNull List<IncomingTextMessage> createMessages(@NonNull GroupId groupId) {
+    return Arrays.asList(message(alice, groupId, 1000, "One"),
+                         message(bob, groupId, 2000, "Two"),
+                         new IncomingIdentityUpdateMessage(new IncomingTextMessage(alice, 1, 2500, 2500, "", Optional.of(groupId), 0, false, null)),
+                         message(alice, groupId, 3000, "Three"));
+  }
+
+  private static @NonNull IncomingTextMessage message(@NonNull RecipientId sender, @NonNull GroupId groupId, long timestamp, @NonNull String body) {
+    IncomingTextMessage message = new IncomingTextMessage(sender, 1, timestamp, timestamp, body, Optional.of(groupId), 0, false, null);
+
+    return new IncomingEncryptedMessage(message, message.getMessageBody());
+  }
+
+  /**
+   * @return Everything about each message in the thread that doesn't depend on when or where it was inserted.
+   */
+  private @NonNull List<String> getMessages(long threadId) {
+    List<String> messages = new ArrayList<>();
+    String[]     columns  = { SmsDatabase.RECIPIENT_ID, SmsDatabase.DATE_SENT, SmsDatabase.TYPE, SmsDatabase.READ, SmsDatabase.BODY };
+
+    try (Cursor cursor = DatabaseFactory.getInstance(application).getRawDatabase().query(SmsDatabase.TABLE_NAME, columns, SmsDatabase.THREAD_ID + " = ?", new String[] { String.valueOf(threadId) }, null, null, SmsDatabase.ID)) {
+      while (cursor.moveToNext()) {
+        messages.add(cursor.getLong(0) + "|" + cursor.getLong(1) + "|" + cursor.getLong(2) + "|" + cursor.getInt(3) + "|" + cursor.getString(4));
+      }
+    }
+
+    return messages;
+  }
+
+  private @NonNull List<String> getBodies(@NonNull List<MessageDatabase.InsertResult> results) {
+    List<String> bodies = new ArrayList<>(results.size());
+
+    for (MessageDatabase.InsertResult result : results) {
+      try {
+        bodies.add(smsDatabase.getMessageRecord(result.getMessageId()).getBody());
+      } catch (NoSuchMessageException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    return bodies;
+  }
+}
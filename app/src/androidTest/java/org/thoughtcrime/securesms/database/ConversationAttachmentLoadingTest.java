@@ -0,0 +1,170 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+import android.database.Cursor;
+
+import androidx.annotation.NonNull;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.thoughtcrime.securesms.attachments.Attachment;
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesms.database.model.MessageRecord;
+import org.thoughtcrime.securesms.database.model.MmsMessageRecord;
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that conversation pages are read without the attachment aggregate and get their
+ * attachments from the one query per page instead, with the same result.
+ */
+public final class ConversationAttachmentLoadingTest {
+
+  private static final long THREAD_ID = Long.MAX_VALUE - 43;
+  private static final int  MESSAGES  = 40;
+  private static final int  PAGE_SIZE = 10;
+
+  private Application    application;
+  private SQLiteDatabase database;
+  private Set<Long>      withAttachments;
+  private Set<Long>      withoutAttachments;
+
+  @Before
+  public void setUp() {
+    application        = ApplicationDependencies.getApplication();
+    database           = DatabaseFactory.getInstance(application).getRawDatabase();
+    withAttachments    = new HashSet<>();
+    withoutAttachments = new HashSet<>();
+
+    RecipientId     recipientId = DatabaseFactory.getRecipientDatabase(application).getOrInsertFromE164("+15555550143");
+    SQLiteStatement sms         = database.compileStatement("INSERT INTO " + SmsDatabase.TABLE_NAME + " (" + SmsDatabase.THREAD_ID + ", " + SmsDatabase.RECIPIENT_ID + ", " + SmsDatabase.DATE_RECEIVED + ", " + SmsDatabase.DATE_SENT + ", " + SmsDatabase.BODY + ") VALUES (?, ?, ?, ?, ?)");
+    SQLiteStatement mms         = database.compileStatement("INSERT INTO " + MmsDatabase.TABLE_NAME + " (" + MmsDatabase.THREAD_ID + ", " + MmsDatabase.RECIPIENT_ID + ", " + MmsDatabase.DATE_RECEIVED + ", " + MmsDatabase.DATE_SENT + ", " + MmsDatabase.BODY + ") VALUES (?, ?, ?, ?, ?)");
+    SQLiteStatement part        = database.compileStatement("INSERT INTO " + AttachmentDatabase.TABLE_NAME + " (" + AttachmentDatabase.MMS_ID + ", " + AttachmentDatabase.CONTENT_TYPE + ", " + AttachmentDatabase.TRANSFER_STATE + ", " + AttachmentDatabase.UNIQUE_ID + ", " + AttachmentDatabase.DISPLAY_ORDER + ") VALUES (?, ?, ?, ?, ?)");
+
+    database.beginTransaction();
+    try {
+      for (int i = 0; i < MESSAGES; i++) {
+        SQLiteStatement statement = i % 2 == 0 ? mms : sms;
+
+        statement.bindLong(1, THREAD_ID);
+        statement.bindLong(2, recipientId.toLong());
+        statement.bindLong(3, i);
+        statement.bindLong(4, i);
+        statement.bindString(5, "Message " + i);
+
+        long messageId = statement.executeInsert();
+
+        if (i % 4 == 0) {
+          for (int order = 0; order < 2; order++) {
+            part.bindLong(1, messageId);
+            part.bindString(2, "image/jpeg");
+            part.bindLong(3, AttachmentDatabase.TRANSFER_PROGRESS_PENDING);
+            part.bindLong(4, i * 2 + order);
+            part.bindLong(5, order);
+            part.executeInsert();
+          }
+
+          withAttachments.add(messageId);
+        } else if (statement == mms) {
+          withoutAttachments.add(messageId);
+        }
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+      sms.close();
+      mms.close();
+      part.close();
+    }
+  }
+
+  @After
+  public void tearDown() {
+    database.delete(AttachmentDatabase.TABLE_NAME, AttachmentDatabase.MMS_ID + " IN (SELECT " + MmsDatabase.ID + " FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsDatabase.THREAD_ID + " = ?)", new String[] { String.valueOf(THREAD_ID) });
+    database.delete(SmsDatabase.TABLE_NAME, SmsDatabase.THREAD_ID + " = ?", new String[] { String.valueOf(THREAD_ID) });
+    database.delete(MmsDatabase.TABLE_NAME, MmsDatabase.THREAD_ID + " = ?", new String[] { String.valueOf(THREAD_ID) });
+  }
+
+  @Test
+  public void conversationPage_isQueriedWithoutAttachments() {
+    try (Cursor cursor = DatabaseFactory.getMmsSmsDatabase(application).getConversation(THREAD_ID, 0, MESSAGES)) {
+      assertEquals(MESSAGES, cursor.getCount());
+
+      while (cursor.moveToNext()) {
+        assertTrue(cursor.isNull(cursor.getColumnIndexOrThrow(AttachmentDatabase.ATTACHMENT_JSON_ALIAS)));
+      }
+    }
+  }
+
+  @Test
+  public void conversationPage_hasSameAttachmentsAsAggregate() {
+    MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(application);
+
+    for (int offset = 0; offset < MESSAGES; offset += PAGE_SIZE) {
+      List<List<Attachment>> batched;
+      List<List<Attachment>> aggregated;
+
+      try (MmsSmsDatabase.Reader reader = mmsSmsDatabase.readerWithAttachmentsFor(mmsSmsDatabase.getConversation(THREAD_ID, offset, PAGE_SIZE))) {
+        batched = readAttachments(reader);
+      }
+
+      try (MmsSmsDatabase.Reader reader = MmsSmsDatabase.readerFor(mmsSmsDatabase.getConversation(THREAD_ID, offset, PAGE_SIZE, true))) {
+        aggregated = readAttachments(reader);
+      }
+
+      assertEquals(PAGE_SIZE, batched.size());
+      assertEquals(aggregated, batched);
+    }
+  }
+
+  @Test
+  public void getAttachmentsForMessages_onlyHasMessagesWithAttachments() {
+    List<Long> mmsIds = new ArrayList<>(withAttachments);
+    mmsIds.addAll(withoutAttachments);
+
+    Map<Long, List<DatabaseAttachment>> attachments = DatabaseFactory.getAttachmentDatabase(application).getAttachmentsForMessages(mmsIds);
+
+    assertEquals(withAttachments, attachments.keySet());
+
+    for (Map.Entry<Long, List<DatabaseAttachment>> entry : attachments.entrySet()) {
+      assertEquals(DatabaseFactory.getAttachmentDatabase(application).getAttachmentsForMessage(entry.getKey()), entry.getValue());
+    }
+  }
+
+  @Test
+  public void getAttachmentsForMessages_empty() {
+    assertTrue(DatabaseFactory.getAttachmentDatabase(application).getAttachmentsForMessages(Collections.emptyList()).isEmpty());
+  }
+
+  /**
+   * @return The attachments of each message that was read, empty for sms.
+   */
+  private static @NonNull List<List<Attachment>> readAttachments(@NonNull MmsSmsDatabase.Reader reader) {
+    List<List<Attachment>> attachments = new ArrayList<>();
+    MessageRecord          record;
+
+    while ((record = reader.getNext()) != null) {
+      if (record.isMms()) {
+        attachments.add(((MmsMessageRecord) record).getSlideDeck().asAttachments());
+      } else {
+        attachments.add(Collections.emptyList());
+      }
+    }
+
+    return attachments;
+  }
+}
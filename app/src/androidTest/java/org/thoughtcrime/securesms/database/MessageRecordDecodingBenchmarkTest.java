@@ -0,0 +1,154 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+import android.database.Cursor;
+
+import androidx.annotation.NonNull;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.documents.NetworkFailure;
+import org.thoughtcrime.securesms.database.documents.NetworkFailureList;
+import org.thoughtcrime.securesms.database.model.MessageRecord;
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+import org.thoughtcrime.securesms.util.JsonUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Reports how many records per second are read from a conversation that mixes plain messages,
+ * media messages, quotes and messages that failed to send to some recipients, once without looking
+ * at the failures and once looking at the failures of every message.
+ */
+public final class MessageRecordDecodingBenchmarkTest {
+
+  private static final String TAG = Log.tag(MessageRecordDecodingBenchmarkTest.class);
+
+  private static final long THREAD_ID = Long.MAX_VALUE - 44;
+  private static final int  MESSAGES  = 4_000;
+  private static final int  PAGE_SIZE = 50;
+
+  private Application    application;
+  private SQLiteDatabase database;
+
+  @Before
+  public void setUp() throws IOException {
+    application = ApplicationDependencies.getApplication();
+    database    = DatabaseFactory.getInstance(application).getRawDatabase();
+
+    RecipientId     recipientId = DatabaseFactory.getRecipientDatabase(application).getOrInsertFromE164("+15555550144");
+    RecipientId     otherId     = DatabaseFactory.getRecipientDatabase(application).getOrInsertFromE164("+15555550145");
+    String          failures    = JsonUtils.toJson(new NetworkFailureList(Arrays.asList(new NetworkFailure(recipientId), new NetworkFailure(otherId))));
+    SQLiteStatement sms         = database.compileStatement("INSERT INTO " + SmsDatabase.TABLE_NAME + " (" + SmsDatabase.THREAD_ID + ", " + SmsDatabase.RECIPIENT_ID + ", " + SmsDatabase.DATE_RECEIVED + ", " + SmsDatabase.DATE_SENT + ", " + SmsDatabase.BODY + ") VALUES (?, ?, ?, ?, ?)");
+    SQLiteStatement mms         = database.compileStatement("INSERT INTO " + MmsDatabase.TABLE_NAME + " (" + MmsDatabase.THREAD_ID + ", " + MmsDatabase.RECIPIENT_ID + ", " + MmsDatabase.DATE_RECEIVED + ", " + MmsDatabase.DATE_SENT + ", " + MmsDatabase.BODY + ", " + MmsDatabase.QUOTE_ID + ", " + MmsDatabase.QUOTE_AUTHOR + ", " + MmsDatabase.QUOTE_BODY + ", " + MmsDatabase.NETWORK_FAILURE + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+
+    database.beginTransaction();
+    try {
+      for (int i = 1; i <= MESSAGES; i++) {
+        if (i % 2 == 0) {
+          sms.bindLong(1, THREAD_ID);
+          sms.bindLong(2, (i % 4 == 0 ? recipientId : otherId).toLong());
+          sms.bindLong(3, i);
+          sms.bindLong(4, i);
+          sms.bindString(5, "Message " + i);
+          sms.executeInsert();
+          continue;
+        }
+
+        mms.clearBindings();
+        mms.bindLong(1, THREAD_ID);
+        mms.bindLong(2, (i % 3 == 0 ? recipientId : otherId).toLong());
+        mms.bindLong(3, i);
+        mms.bindLong(4, i);
+        mms.bindString(5, "Message " + i);
+
+        if (i % 5 == 0) {
+          mms.bindLong(6, i - 1);
+          mms.bindLong(7, recipientId.toLong());
+          mms.bindString(8, "Message " + (i - 1));
+        }
+
+        if (i % 7 == 0) {
+          mms.bindString(9, failures);
+        }
+
+        mms.executeInsert();
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+      sms.close();
+      mms.close();
+    }
+  }
+
+  @After
+  public void tearDown() {
+    database.delete(SmsDatabase.TABLE_NAME, SmsDatabase.THREAD_ID + " = ?", new String[] { String.valueOf(THREAD_ID) });
+    database.delete(MmsDatabase.TABLE_NAME, MmsDatabase.THREAD_ID + " = ?", new String[] { String.valueOf(THREAD_ID) });
+  }
+
+  @Test
+  public void records_per_second() {
+    MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(application);
+
+    readAllPages(mmsSmsDatabase, false);
+
+    long start = System.nanoTime();
+    readAllPages(mmsSmsDatabase, false);
+    double recordsPerSecond = MESSAGES / ((System.nanoTime() - start) / 1_000_000_000.0);
+
+    start = System.nanoTime();
+    int failures = readAllPages(mmsSmsDatabase, true);
+    double recordsWithFailuresPerSecond = MESSAGES / ((System.nanoTime() - start) / 1_000_000_000.0);
+
+    int failedMessages = 0;
+    for (int i = 1; i <= MESSAGES; i++) {
+      if (i % 2 != 0 && i % 7 == 0) {
+        failedMessages++;
+      }
+    }
+
+    assertEquals(failedMessages * 2, failures);
+
+    Log.i(TAG, String.format(Locale.US, "Records: %.0f/s", recordsPerSecond));
+    Log.i(TAG, String.format(Locale.US, "Records, reading failures: %.0f/s", recordsWithFailuresPerSecond));
+  }
+
+  /**
+   * @return The number of network failures on all of the messages that were read, if they were read.
+   */
+  private static int readAllPages(@NonNull MmsSmsDatabase database, boolean readFailures) {
+    int failures = 0;
+    int records  = 0;
+
+    for (int offset = 0; offset < MESSAGES; offset += PAGE_SIZE) {
+      Cursor cursor = database.getConversation(THREAD_ID, offset, PAGE_SIZE);
+
+      try (MmsSmsDatabase.Reader reader = database.readerWithAttachmentsFor(cursor)) {
+        MessageRecord record;
+        while ((record = reader.getNext()) != null) {
+          records++;
+
+          if (readFailures) {
+            failures += record.getNetworkFailures().size();
+          }
+        }
+      }
+    }
+
+    assertEquals(MESSAGES, records);
+
+    return failures;
+  }
+}
@@ -0,0 +1,126 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.MessageDatabase.SyncMessageId;
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.groups.GroupId;
+import org.thoughtcrime.securesms.messages.ReceiptAggregator;
+import org.thoughtcrime.securesms.recipients.Recipient;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Reports how many delivery receipts per second are applied to messages in a large group, once
+ * with each receipt applied on its own, as they were when each envelope was processed, and once
+ * through the {@link ReceiptAggregator}. Every receipt has to have been applied either way.
+ */
+public final class ReceiptAggregatorBenchmarkTest {
+
+  private static final String TAG = Log.tag(ReceiptAggregatorBenchmarkTest.class);
+
+  private static final int MEMBERS  = 200;
+  private static final int MESSAGES = 20;
+
+  private Application       application;
+  private List<RecipientId> members;
+  private List<Long>        messageIds;
+  private long              threadId;
+
+  @Before
+  public void setUp() {
+    application = ApplicationDependencies.getApplication();
+    members     = new ArrayList<>(MEMBERS);
+    messageIds  = new ArrayList<>(MESSAGES);
+
+    RecipientDatabase recipientDatabase = DatabaseFactory.getRecipientDatabase(application);
+    RecipientId       groupId           = recipientDatabase.getOrInsertFromGroupId(GroupId.createV1(new SecureRandom()));
+
+    threadId = DatabaseFactory.getThreadDatabase(application).getThreadIdFor(Recipient.resolved(groupId));
+
+    for (int i = 0; i < MEMBERS; i++) {
+      members.add(recipientDatabase.getOrInsertFromE164(String.format(Locale.US, "+1555556%04d", i)));
+    }
+
+    SQLiteDatabase  database  = DatabaseFactory.getInstance(application).getRawDatabase();
+    SQLiteStatement statement = database.compileStatement("INSERT INTO " + MmsDatabase.TABLE_NAME + " (" + MmsDatabase.THREAD_ID + ", " + MmsDatabase.RECIPIENT_ID + ", " + MmsDatabase.MESSAGE_BOX + ", " + MmsDatabase.DATE_RECEIVED + ", " + MmsDatabase.DATE_SENT + ", " + MmsDatabase.BODY + ") VALUES (?, ?, ?, ?, ?, ?)");
+
+    database.beginTransaction();
+    try {
+      for (int i = 1; i <= MESSAGES; i++) {
+        statement.bindLong(1, threadId);
+        statement.bindLong(2, groupId.toLong());
+        statement.bindLong(3, MmsSmsColumns.Types.BASE_SENT_TYPE | MmsSmsColumns.Types.SECURE_MESSAGE_BIT | MmsSmsColumns.Types.PUSH_MESSAGE_BIT);
+        statement.bindLong(4, i);
+        statement.bindLong(5, i);
+        statement.bindString(6, "Message " + i);
+
+        long messageId = statement.executeInsert();
+
+        DatabaseFactory.getGroupReceiptDatabase(application).insert(members, messageId, GroupReceiptDatabase.STATUS_UNDELIVERED, i);
+        messageIds.add(messageId);
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+      statement.close();
+    }
+
+    DatabaseFactory.getThreadDatabase(application).update(threadId, false);
+  }
+
+  @After
+  public void tearDown() {
+    DatabaseFactory.getThreadDatabase(application).deleteConversation(threadId);
+  }
+
+  @Test
+  public void receipts_per_second() {
+    MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(application);
+    int            half           = MESSAGES / 2;
+
+    long start = System.nanoTime();
+    for (int i = 1; i <= half; i++) {
+      for (RecipientId member : members) {
+        mmsSmsDatabase.incrementDeliveryReceiptCount(new SyncMessageId(member, i), System.currentTimeMillis());
+      }
+    }
+    double singleReceiptsPerSecond = (half * MEMBERS) / ((System.nanoTime() - start) / 1_000_000_000.0);
+
+    List<Long> timestamps = new ArrayList<>(MESSAGES - half);
+    for (int i = half + 1; i <= MESSAGES; i++) {
+      timestamps.add((long) i);
+    }
+
+    ReceiptAggregator aggregator = new ReceiptAggregator(application);
+
+    start = System.nanoTime();
+    for (RecipientId member : members) {
+      aggregator.add(MessageDatabase.ReceiptType.DELIVERY, member, timestamps, System.currentTimeMillis(), null);
+    }
+    aggregator.flush();
+    double aggregatedReceiptsPerSecond = (timestamps.size() * MEMBERS) / ((System.nanoTime() - start) / 1_000_000_000.0);
+
+    for (long messageId : messageIds) {
+      for (GroupReceiptDatabase.GroupReceiptInfo info : DatabaseFactory.getGroupReceiptDatabase(application).getGroupReceiptInfo(messageId)) {
+        assertEquals(GroupReceiptDatabase.STATUS_DELIVERED, info.getStatus());
+      }
+    }
+
+    Log.i(TAG, String.format(Locale.US, "One at a time: %.0f receipts/s", singleReceiptsPerSecond));
+    Log.i(TAG, String.format(Locale.US, "Aggregated: %.0f receipts/s", aggregatedReceiptsPerSecond));
+  }
+}
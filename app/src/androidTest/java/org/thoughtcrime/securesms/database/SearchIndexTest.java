@@ -0,0 +1,185 @@
+package org.thoughtcrime.securesms.database;
+
+import androidx.annotation.NonNull;
+
+import net.sqlcipher.Cursor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link SearchDatabase#CREATE_TABLE} against minimal thread, sms and mms tables, and checks
+ * what the triggers and {@link SearchDatabase#indexOldMessages(SQLiteDatabase, int)} put in the
+ * index.
+ */
+public final class SearchIndexTest {
+
+  private net.sqlcipher.database.SQLiteDatabase rawDatabase;
+  private SQLiteDatabase                        db;
+
+  @Before
+  public void setUp() {
+    rawDatabase = net.sqlcipher.database.SQLiteDatabase.create(null, "");
+    db          = new SQLiteDatabase(rawDatabase);
+
+    db.execSQL("CREATE TABLE thread (_id INTEGER PRIMARY KEY, recipient_id INTEGER)");
+    db.execSQL("CREATE TABLE sms (_id INTEGER PRIMARY KEY, body TEXT, thread_id INTEGER, recipient_id INTEGER, date_received INTEGER)");
+    db.execSQL("CREATE TABLE mms (_id INTEGER PRIMARY KEY, body TEXT, thread_id INTEGER, recipient_id INTEGER, date_received INTEGER)");
+
+    for (String statement : SearchDatabase.CREATE_TABLE) {
+      db.execSQL(statement);
+    }
+
+    db.execSQL("INSERT INTO thread VALUES (1, 10)");
+  }
+
+  @After
+  public void tearDown() {
+    rawDatabase.close();
+  }
+
+  @Test
+  public void insert_isIndexed() {
+    insertSms(1, "apple pie");
+    insertMms(1, "apple tart");
+
+    assertEquals(Arrays.asList("mms:1", "sms:1"), search("apple"));
+    assertEquals(Collections.singletonList("sms:1"), search("pie"));
+  }
+
+  @Test
+  public void delete_isRemovedFromIndex() {
+    insertSms(1, "apple");
+    insertMms(1, "apple");
+
+    db.execSQL("DELETE FROM sms WHERE _id = 1");
+    db.execSQL("DELETE FROM mms WHERE _id = 1");
+
+    assertEquals(Collections.emptyList(), search("apple"));
+  }
+
+  @Test
+  public void bodyUpdate_isReindexed() {
+    insertSms(1, "apple");
+    insertMms(1, "apple");
+
+    db.execSQL("UPDATE sms SET body = 'banana' WHERE _id = 1");
+    db.execSQL("UPDATE mms SET body = 'banana' WHERE _id = 1");
+
+    assertEquals(Collections.emptyList(), search("apple"));
+    assertEquals(Arrays.asList("mms:1", "sms:1"), search("banana"));
+  }
+
+  @Test
+  public void otherUpdates_leaveIndexAlone() {
+    insertSms(1, "apple");
+    insertMms(1, "apple");
+
+    assertEquals(1, changesMadeBy("UPDATE sms SET date_received = 5, thread_id = 2 WHERE _id = 1"));
+    assertEquals(1, changesMadeBy("UPDATE mms SET date_received = 5, thread_id = 2 WHERE _id = 1"));
+    assertEquals(1, changesMadeBy("UPDATE sms SET body = 'apple' WHERE _id = 1"));
+    assertEquals(1, changesMadeBy("UPDATE mms SET body = 'apple' WHERE _id = 1"));
+
+    assertTrue(changesMadeBy("UPDATE sms SET body = 'banana' WHERE _id = 1") > 1);
+  }
+
+  @Test
+  public void messagesUpToIndexedAfter_areLeftForTheJob() {
+    insertSms(1, "old apple");
+    insertSms(2, "old apple");
+    insertMms(1, "old apple");
+
+    db.execSQL("INSERT INTO " + SearchDatabase.MESSAGE_FTS_TABLE_NAME + " (" + SearchDatabase.MESSAGE_FTS_TABLE_NAME + ") VALUES ('delete-all')");
+    db.execSQL("INSERT INTO " + SearchDatabase.INDEX_PROGRESS_TABLE_NAME + " VALUES (2, 1)");
+
+    insertSms(3, "new apple");
+    insertMms(2, "new apple");
+    db.execSQL("UPDATE sms SET body = 'old apple changed' WHERE _id = 2");
+    db.execSQL("DELETE FROM sms WHERE _id = 1");
+
+    assertEquals(Arrays.asList("mms:2", "sms:3"), search("apple"));
+  }
+
+  @Test
+  public void indexOldMessages_indexesNewestFirstInBatches() {
+    for (int i = 1; i <= 5; i++) {
+      insertSms(i, "apple " + i);
+    }
+    for (int i = 1; i <= 2; i++) {
+      insertMms(i, "apple " + i);
+    }
+
+    db.execSQL("INSERT INTO " + SearchDatabase.MESSAGE_FTS_TABLE_NAME + " (" + SearchDatabase.MESSAGE_FTS_TABLE_NAME + ") VALUES ('delete-all')");
+    db.execSQL("INSERT INTO " + SearchDatabase.INDEX_PROGRESS_TABLE_NAME + " VALUES (5, 2)");
+
+    assertEquals(4, SearchDatabase.indexOldMessages(db, 2));
+    assertEquals(Arrays.asList("mms:1", "mms:2", "sms:4", "sms:5"), search("apple"));
+    assertTrue(hasProgress());
+
+    assertEquals(2, SearchDatabase.indexOldMessages(db, 2));
+    assertEquals(Arrays.asList("mms:1", "mms:2", "sms:2", "sms:3", "sms:4", "sms:5"), search("apple"));
+
+    assertEquals(1, SearchDatabase.indexOldMessages(db, 2));
+    assertFalse(hasProgress());
+
+    assertEquals(0, SearchDatabase.indexOldMessages(db, 2));
+    assertEquals(7, search("apple").size());
+
+    insertSms(6, "apple 6");
+    assertEquals(8, search("apple").size());
+  }
+
+  private void insertSms(long id, @NonNull String body) {
+    db.execSQL("INSERT INTO sms (_id, body, thread_id, recipient_id, date_received) VALUES (?, ?, 1, 20, ?)", new Object[] { id, body, id });
+  }
+
+  private void insertMms(long id, @NonNull String body) {
+    db.execSQL("INSERT INTO mms (_id, body, thread_id, recipient_id, date_received) VALUES (?, ?, 1, 20, ?)", new Object[] { id, body, id });
+  }
+
+  private int changesMadeBy(@NonNull String sql) {
+    int before = totalChanges();
+    db.execSQL(sql);
+    return totalChanges() - before;
+  }
+
+  private int totalChanges() {
+    try (Cursor cursor = db.rawQuery("SELECT total_changes()", (String[]) null)) {
+      cursor.moveToFirst();
+      return cursor.getInt(0);
+    }
+  }
+
+  private boolean hasProgress() {
+    try (Cursor cursor = db.rawQuery("SELECT 1 FROM " + SearchDatabase.INDEX_PROGRESS_TABLE_NAME, (String[]) null)) {
+      return cursor.moveToFirst();
+    }
+  }
+
+  /**
+   * @return The matching messages as "sms:id" or "mms:id", sorted.
+   */
+  private @NonNull List<String> search(@NonNull String term) {
+    List<String> results = new ArrayList<>();
+
+    try (Cursor cursor = db.rawQuery("SELECT rowid FROM " + SearchDatabase.MESSAGE_FTS_TABLE_NAME + " WHERE " + SearchDatabase.MESSAGE_FTS_TABLE_NAME + " MATCH ?", new String[] { term })) {
+      while (cursor.moveToNext()) {
+        long key = cursor.getLong(0);
+        results.add(((key & 1) == 1 ? "mms:" : "sms:") + (key >> 1));
+      }
+    }
+
+    Collections.sort(results);
+    return results;
+  }
+}
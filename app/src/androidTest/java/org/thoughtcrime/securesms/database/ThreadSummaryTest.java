@@ -0,0 +1,154 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+import android.content.ContentValues;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.thoughtcrime.securesms.database.MessageDatabase.SyncMessageId;
+import org.thoughtcrime.securesms.database.model.ThreadRecord;
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.recipients.Recipient;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the incremental thread summary updates on insert, delete and receipts end up where a
+ * full {@link ThreadDatabase#update(long, boolean)} would.
+ */
+public final class ThreadSummaryTest {
+
+  private static final long SENT     = MmsSmsColumns.Types.BASE_SENT_TYPE | MmsSmsColumns.Types.SECURE_MESSAGE_BIT | MmsSmsColumns.Types.PUSH_MESSAGE_BIT;
+  private static final long IDENTITY = MmsSmsColumns.Types.BASE_INBOX_TYPE | MmsSmsColumns.Types.KEY_EXCHANGE_IDENTITY_UPDATE_BIT;
+
+  private Application     application;
+  private ThreadDatabase  threadDatabase;
+  private MessageDatabase smsDatabase;
+  private RecipientId     recipientId;
+  private long            threadId;
+
+  @Before
+  public void setUp() {
+    application    = ApplicationDependencies.getApplication();
+    threadDatabase = DatabaseFactory.getThreadDatabase(application);
+    smsDatabase    = DatabaseFactory.getSmsDatabase(application);
+    recipientId    = DatabaseFactory.getRecipientDatabase(application).getOrInsertFromE164("+15555550142");
+    threadId       = threadDatabase.getThreadIdFor(Recipient.resolved(recipientId));
+  }
+
+  @After
+  public void tearDown() {
+    long existing = threadDatabase.getThreadIdIfExistsFor(recipientId);
+
+    if (existing > 0) {
+      threadDatabase.deleteConversation(existing);
+    }
+  }
+
+  @Test
+  public void insert_newerMessageBecomesSnippet() {
+    insert(SENT, 1000, "First");
+    threadDatabase.update(threadId, false);
+
+    long second = insert(SENT, 2000, "Second");
+    threadDatabase.updateForInsert(threadId, second, false, false);
+
+    assertSummary("Second", 2);
+  }
+
+  @Test
+  public void insert_olderMessageKeepsSnippet() {
+    insert(SENT, 2000, "Newest");
+    threadDatabase.update(threadId, false);
+
+    long older = insert(SENT, 1000, "Older");
+    threadDatabase.updateForInsert(threadId, older, false, false);
+
+    assertSummary("Newest", 2);
+  }
+
+  @Test
+  public void silentInsert_isPickedUpByNextInsert() {
+    insert(SENT, 1000, "First");
+    threadDatabase.update(threadId, false);
+
+    insert(IDENTITY, 3000, "Identity");
+    threadDatabase.updateForSilentInsert(threadId);
+
+    long second = insert(SENT, 2000, "Second");
+    threadDatabase.updateForInsert(threadId, second, false, false);
+
+    assertSummary("Identity", 2);
+  }
+
+  @Test
+  public void delete_nonSnippetMessage_keepsSnippet() {
+    long first = insert(SENT, 1000, "First");
+    insert(SENT, 2000, "Second");
+    threadDatabase.update(threadId, false);
+
+    assertFalse(smsDatabase.deleteMessage(first));
+
+    assertSummary("Second", 1);
+  }
+
+  @Test
+  public void delete_snippetMessage_recomputesSnippet() {
+    insert(SENT, 1000, "First");
+    long second = insert(SENT, 2000, "Second");
+    threadDatabase.update(threadId, false);
+
+    assertFalse(smsDatabase.deleteMessage(second));
+
+    assertSummary("First", 1);
+  }
+
+  @Test
+  public void delete_lastMeaningfulMessage_deletesThread() {
+    long first = insert(SENT, 1000, "First");
+    insert(IDENTITY, 2000, "Identity");
+    threadDatabase.update(threadId, false);
+
+    assertTrue(smsDatabase.deleteMessage(first));
+
+    assertEquals(-1, threadDatabase.getThreadIdIfExistsFor(recipientId));
+  }
+
+  @Test
+  public void receipt_forSnippetMessage_marksThreadDelivered() {
+    insert(SENT, 1000, "First");
+    insert(SENT, 2000, "Second");
+    threadDatabase.update(threadId, false);
+
+    DatabaseFactory.getMmsSmsDatabase(application).incrementDeliveryReceiptCounts(Collections.singletonList(new SyncMessageId(recipientId, 1000)), System.currentTimeMillis());
+    assertFalse(threadDatabase.getThreadRecordFor(Recipient.resolved(recipientId)).isDelivered());
+
+    DatabaseFactory.getMmsSmsDatabase(application).incrementDeliveryReceiptCounts(Collections.singletonList(new SyncMessageId(recipientId, 2000)), System.currentTimeMillis());
+    assertTrue(threadDatabase.getThreadRecordFor(Recipient.resolved(recipientId)).isDelivered());
+  }
+
+  private long insert(long type, long date, String body) {
+    ContentValues values = new ContentValues();
+    values.put(SmsDatabase.THREAD_ID, threadId);
+    values.put(SmsDatabase.RECIPIENT_ID, recipientId.serialize());
+    values.put(SmsDatabase.TYPE, type);
+    values.put(SmsDatabase.DATE_RECEIVED, date);
+    values.put(SmsDatabase.DATE_SENT, date);
+    values.put(SmsDatabase.BODY, body);
+
+    return DatabaseFactory.getInstance(application).getRawDatabase().insert(SmsDatabase.TABLE_NAME, null, values);
+  }
+
+  private void assertSummary(String snippet, long count) {
+    ThreadRecord record = threadDatabase.getThreadRecordFor(Recipient.resolved(recipientId));
+
+    assertEquals(snippet, record.getBody());
+    assertEquals(count, record.getCount());
+  }
+}
@@ -137,64 +137,22 @@ public class APNGDecoder extends FrameSeqDecoder<APNGReader, APNGWriter> {
             return;
         }
         try {
-            Bitmap bitmap = obtainBitmap(fullRect.width() / sampleSize, fullRect.height() / sampleSize);
-            Canvas canvas = cachedCanvas.get(bitmap);
-            if (canvas == null) {
-                canvas = new Canvas(bitmap);
-                cachedCanvas.put(bitmap, canvas);
+            byte[] cachedFrame = getCachedFrame(this.frameIndex);
+            if (cachedFrame != null) {
+                renderCachedFrame(frame, cachedFrame);
+                return;
             }
-            if (frame instanceof APNGFrame) {
-                // 从缓存中恢复当前帧
-                frameBuffer.rewind();
-                bitmap.copyPixelsFromBuffer(frameBuffer);
-                // 开始绘制前，处理快照中的设定
-                if (this.frameIndex == 0) {
-                    canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-                } else {
-                    canvas.save();
-                    canvas.clipRect(snapShot.dstRect);
-                    switch (snapShot.dispose_op) {
-                        // 从快照中恢复上一帧之前的显示内容
-                        case FCTLChunk.APNG_DISPOSE_OP_PREVIOUS:
-                            snapShot.byteBuffer.rewind();
-                            bitmap.copyPixelsFromBuffer(snapShot.byteBuffer);
-                            break;
-                        // 清空上一帧所画区域
-                        case FCTLChunk.APNG_DISPOSE_OP_BACKGROUND:
-                            canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-                            break;
-                        // 什么都不做
-                        case FCTLChunk.APNG_DISPOSE_OP_NON:
-                        default:
-                            break;
-                    }
-                    canvas.restore();
-                }
 
-                // 然后根据dispose设定传递到快照信息中
-                if (((APNGFrame) frame).dispose_op == FCTLChunk.APNG_DISPOSE_OP_PREVIOUS) {
-                    if (snapShot.dispose_op != FCTLChunk.APNG_DISPOSE_OP_PREVIOUS) {
-                        snapShot.byteBuffer.rewind();
-                        bitmap.copyPixelsToBuffer(snapShot.byteBuffer);
-                    }
-                }
+            Bitmap bitmap = obtainBitmap(fullRect.width() / sampleSize, fullRect.height() / sampleSize);
+            Canvas canvas = obtainCanvas(bitmap);
+            if (frame instanceof APNGFrame) {
+                disposePreviousFrame(bitmap, canvas, (APNGFrame) frame);
 
-                snapShot.dispose_op = ((APNGFrame) frame).dispose_op;
                 canvas.save();
                 if (((APNGFrame) frame).blend_op == FCTLChunk.APNG_BLEND_OP_SOURCE) {
-                    canvas.clipRect(
-                            frame.frameX / sampleSize,
-                            frame.frameY / sampleSize,
-                            (frame.frameX + frame.frameWidth) / sampleSize,
-                            (frame.frameY + frame.frameHeight) / sampleSize);
+                    canvas.clipRect(snapShot.dstRect);
                     canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
                 }
-
-
-                snapShot.dstRect.set(frame.frameX / sampleSize,
-                        frame.frameY / sampleSize,
-                        (frame.frameX + frame.frameWidth) / sampleSize,
-                        (frame.frameY + frame.frameHeight) / sampleSize);
                 canvas.restore();
             }
             //开始真正绘制当前帧的内容
@@ -204,8 +162,89 @@ public class APNGDecoder extends FrameSeqDecoder<APNGReader, APNGWriter> {
             frameBuffer.rewind();
             bitmap.copyPixelsToBuffer(frameBuffer);
             recycleBitmap(bitmap);
+            cacheFrame(this.frameIndex);
         } catch (Throwable t) {
             Log.e(TAG, "Failed to render!", t);
         }
     }
+
+    /**
+     * The cached frame is already composited, only the snapshot has to be kept in step so that a
+     * following frame that is not cached is composited onto the right content.
+     */
+    private void renderCachedFrame(Frame frame, byte[] cachedFrame) {
+        if (frame instanceof APNGFrame) {
+            APNGFrame apngFrame = (APNGFrame) frame;
+            if (apngFrame.dispose_op == FCTLChunk.APNG_DISPOSE_OP_PREVIOUS && snapShot.dispose_op != FCTLChunk.APNG_DISPOSE_OP_PREVIOUS) {
+                Bitmap bitmap = obtainBitmap(fullRect.width() / sampleSize, fullRect.height() / sampleSize);
+                disposePreviousFrame(bitmap, obtainCanvas(bitmap), apngFrame);
+                recycleBitmap(bitmap);
+            } else {
+                snapShot.dispose_op = apngFrame.dispose_op;
+                setFrameRect(snapShot.dstRect, apngFrame);
+            }
+        }
+        frameBuffer.rewind();
+        frameBuffer.put(cachedFrame);
+    }
+
+    /**
+     * Restores the previous frame from the frame buffer into {@code bitmap}, applies its dispose op and
+     * records the snapshot for {@code frame}.
+     */
+    private void disposePreviousFrame(Bitmap bitmap, Canvas canvas, APNGFrame frame) {
+        // 从缓存中恢复当前帧
+        frameBuffer.rewind();
+        bitmap.copyPixelsFromBuffer(frameBuffer);
+        // 开始绘制前，处理快照中的设定
+        if (this.frameIndex == 0) {
+            canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        } else {
+            canvas.save();
+            canvas.clipRect(snapShot.dstRect);
+            switch (snapShot.dispose_op) {
+                // 从快照中恢复上一帧之前的显示内容
+                case FCTLChunk.APNG_DISPOSE_OP_PREVIOUS:
+                    snapShot.byteBuffer.rewind();
+                    bitmap.copyPixelsFromBuffer(snapShot.byteBuffer);
+                    break;
+                // 清空上一帧所画区域
+                case FCTLChunk.APNG_DISPOSE_OP_BACKGROUND:
+                    canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+                    break;
+                // 什么都不做
+                case FCTLChunk.APNG_DISPOSE_OP_NON:
+                default:
+                    break;
+            }
+            canvas.restore();
+        }
+
+        // 然后根据dispose设定传递到快照信息中
+        if (frame.dispose_op == FCTLChunk.APNG_DISPOSE_OP_PREVIOUS) {
+            if (snapShot.dispose_op != FCTLChunk.APNG_DISPOSE_OP_PREVIOUS) {
+                snapShot.byteBuffer.rewind();
+                bitmap.copyPixelsToBuffer(snapShot.byteBuffer);
+            }
+        }
+
+        snapShot.dispose_op = frame.dispose_op;
+        setFrameRect(snapShot.dstRect, frame);
+    }
+
+    private void setFrameRect(Rect rect, Frame frame) {
+        rect.set(frame.frameX / sampleSize,
+                frame.frameY / sampleSize,
+                (frame.frameX + frame.frameWidth) / sampleSize,
+                (frame.frameY + frame.frameHeight) / sampleSize);
+    }
+
+    private Canvas obtainCanvas(Bitmap bitmap) {
+        Canvas canvas = cachedCanvas.get(bitmap);
+        if (canvas == null) {
+            canvas = new Canvas(bitmap);
+            cachedCanvas.put(bitmap, canvas);
+        }
+        return canvas;
+    }
 }
@@ -0,0 +1,82 @@
+package org.signal.glide.common.decode;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.logging.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Pool of reusable ARGB_8888 bitmaps, bucketed by allocation size.
+ * <p>
+ * A request is served from the bucket of exactly the requested size when possible, otherwise from the
+ * smallest larger bucket, so reuse does not depend on how many bitmaps are pooled. Not thread safe, a
+ * pool belongs to the worker thread of a single decoder.
+ */
+final class BitmapPool {
+
+  private static final String TAG = Log.tag(BitmapPool.class);
+
+  private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets = new TreeMap<>();
+  private final Set<Bitmap>                          pooled  = new HashSet<>();
+
+  @Nullable Bitmap obtain(int width, int height) {
+    int size = width * height * 4;
+
+    Map.Entry<Integer, ArrayDeque<Bitmap>> bucket = buckets.ceilingEntry(size);
+    while (bucket != null) {
+      Bitmap bitmap = bucket.getValue().pollLast();
+      if (bucket.getValue().isEmpty()) {
+        buckets.remove(bucket.getKey());
+      }
+      if (bitmap != null) {
+        pooled.remove(bitmap);
+        if (!bitmap.isRecycled()) {
+          if (bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+          }
+          bitmap.eraseColor(0);
+          return bitmap;
+        }
+      }
+      bucket = buckets.ceilingEntry(size);
+    }
+
+    try {
+      return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    } catch (OutOfMemoryError e) {
+      Log.w(TAG, "Failed to allocate a bitmap", e);
+      return null;
+    }
+  }
+
+  void recycle(@Nullable Bitmap bitmap) {
+    if (bitmap == null || bitmap.isRecycled() || !pooled.add(bitmap)) {
+      return;
+    }
+
+    int                size   = bitmap.getAllocationByteCount();
+    ArrayDeque<Bitmap> bucket = buckets.get(size);
+    if (bucket == null) {
+      bucket = new ArrayDeque<>();
+      buckets.put(size, bucket);
+    }
+    bucket.addLast(bitmap);
+  }
+
+  void clear() {
+    for (Bitmap bitmap : pooled) {
+      if (!bitmap.isRecycled()) {
+        bitmap.recycle();
+      }
+    }
+    pooled.clear();
+    buckets.clear();
+  }
+}
@@ -0,0 +1,112 @@
+package org.signal.glide.common.decode;
+
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+/**
+ * Process wide, size bounded cache of composited animation frames, shared by every decoder.
+ * <p>
+ * Entries are keyed by the content key of the animation, the sample size and the frame index, and hold
+ * the ARGB pixels exactly as they end up in the decoder's frame buffer, so a hit replaces decoding and
+ * compositing a frame with a single copy. An optional {@link DiskStore} keeps frames across process
+ * restarts and memory evictions. It's never read on the decoding thread: a memory miss asks the store
+ * to load the frame in the background, so it's in memory by the time the animation loops around.
+ */
+public final class FrameCache {
+
+  private static final long MAX_MEMORY_BYTES = 32 * 1024 * 1024;
+
+  private static final FrameCache INSTANCE = new FrameCache((int) Math.min(Runtime.getRuntime().maxMemory() / 8, MAX_MEMORY_BYTES));
+
+  private final LruCache<String, byte[]> memoryCache;
+  private final int                      maxEntrySize;
+
+  private volatile DiskStore diskStore;
+
+  public static @NonNull FrameCache getInstance() {
+    return INSTANCE;
+  }
+
+  FrameCache(int maxSize) {
+    this.maxEntrySize = maxSize / 4;
+    this.memoryCache  = new LruCache<String, byte[]>(maxSize) {
+      @Override
+      protected int sizeOf(String key, byte[] value) {
+        return value.length;
+      }
+    };
+  }
+
+  public void setDiskStore(@Nullable DiskStore diskStore) {
+    this.diskStore = diskStore;
+  }
+
+  /**
+   * @return The cached pixels of the frame, or null if it is not in memory with exactly the expected length.
+   */
+  @WorkerThread
+  @Nullable byte[] get(@NonNull String animationKey, int sampleSize, int frameIndex, int length) {
+    String key    = key(animationKey, sampleSize, frameIndex);
+    byte[] pixels = memoryCache.get(key);
+
+    if (pixels == null) {
+      DiskStore store = diskStore;
+      if (store != null && length <= maxEntrySize) {
+        store.read(key, length, frame -> memoryCache.put(key, frame));
+      }
+    }
+
+    return pixels != null && pixels.length == length ? pixels : null;
+  }
+
+  /**
+   * Caches a copy of the first {@code length} bytes of {@code pixels}, unless the frame is already cached.
+   */
+  @WorkerThread
+  void put(@NonNull String animationKey, int sampleSize, int frameIndex, @NonNull byte[] pixels, int length) {
+    if (length > maxEntrySize) {
+      return;
+    }
+
+    String key = key(animationKey, sampleSize, frameIndex);
+    if (memoryCache.get(key) != null) {
+      return;
+    }
+
+    byte[] copy = new byte[length];
+    System.arraycopy(pixels, 0, copy, 0, length);
+    memoryCache.put(key, copy);
+
+    DiskStore store = diskStore;
+    if (store != null) {
+      store.write(key, copy);
+    }
+  }
+
+  private static @NonNull String key(@NonNull String animationKey, int sampleSize, int frameIndex) {
+    return animationKey + "_" + sampleSize + "_" + frameIndex;
+  }
+
+  /**
+   * Persistent second level of the cache. Keys are safe to use as file names.
+   */
+  public interface DiskStore {
+    /**
+     * Loads the frame in the background and passes it to the callback, unless there is none of exactly
+     * {@code length} bytes.
+     */
+    void read(@NonNull String key, int length, @NonNull Callback callback);
+
+    /**
+     * Stores the frame. The array is not modified after this call, so it may be written asynchronously.
+     */
+    void write(@NonNull String key, @NonNull byte[] pixels);
+
+    interface Callback {
+      void onRead(@NonNull byte[] pixels);
+    }
+  }
+}
@@ -8,7 +8,6 @@ package org.signal.glide.common.decode;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Rect;
-import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 
@@ -25,7 +24,6 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -72,7 +70,8 @@ public abstract class FrameSeqDecoder<R extends Reader, W extends Writer> {
     };
     protected int sampleSize = 1;
 
-    private Set<Bitmap> cacheBitmaps = new HashSet<>();
+    private final BitmapPool bitmapPool = new BitmapPool();
+    private volatile String frameCacheKey;
     protected Map<Bitmap, Canvas> cachedCanvas = new WeakHashMap<>();
     protected ByteBuffer frameBuffer;
     protected volatile Rect fullRect;
@@ -102,45 +101,44 @@ public abstract class FrameSeqDecoder<R extends Reader, W extends Writer> {
     protected abstract R getReader(Reader reader);
 
     protected Bitmap obtainBitmap(int width, int height) {
-        Bitmap ret = null;
-        Iterator<Bitmap> iterator = cacheBitmaps.iterator();
-        while (iterator.hasNext()) {
-            int reuseSize = width * height * 4;
-            ret = iterator.next();
-
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-                if (ret != null && ret.getAllocationByteCount() >= reuseSize) {
-                    iterator.remove();
-                    if (ret.getWidth() != width || ret.getHeight() != height) {
-                        ret.reconfigure(width, height, Bitmap.Config.ARGB_8888);
-                    }
-                    ret.eraseColor(0);
-                    return ret;
-                }
-            } else {
-                if (ret != null && ret.getByteCount() >= reuseSize) {
-                    if (ret.getWidth() == width && ret.getHeight() == height) {
-                        iterator.remove();
-                        ret.eraseColor(0);
-                    }
-                    return ret;
-                }
-            }
-        }
+        return bitmapPool.obtain(width, height);
+    }
 
-        try {
-            Bitmap.Config config = Bitmap.Config.ARGB_8888;
-            ret = Bitmap.createBitmap(width, height, config);
-        } catch (OutOfMemoryError e) {
-            e.printStackTrace();
+    protected void recycleBitmap(Bitmap bitmap) {
+        bitmapPool.recycle(bitmap);
+    }
+
+    /**
+     * Enables the shared {@link FrameCache} for this decoder.
+     *
+     * @param frameCacheKey Identifies the content of the animation, safe to use as a file name.
+     */
+    public void setFrameCacheKey(@Nullable String frameCacheKey) {
+        this.frameCacheKey = frameCacheKey;
+    }
+
+    /**
+     * @return The composited pixels of the frame at {@code index} if cached, sized to fit {@link #frameBuffer}.
+     */
+    @WorkerThread
+    protected @Nullable byte[] getCachedFrame(int index) {
+        String key = frameCacheKey;
+        if (key == null || frameBuffer == null) {
+            return null;
         }
-        return ret;
+        return FrameCache.getInstance().get(key, sampleSize, index, frameBuffer.capacity());
     }
 
-    protected void recycleBitmap(Bitmap bitmap) {
-        if (bitmap != null && !cacheBitmaps.contains(bitmap)) {
-            cacheBitmaps.add(bitmap);
+    /**
+     * Caches the current content of {@link #frameBuffer} as the composited frame at {@code index}.
+     */
+    @WorkerThread
+    protected void cacheFrame(int index) {
+        String key = frameCacheKey;
+        if (key == null || frameBuffer == null || !frameBuffer.hasArray()) {
+            return;
         }
+        FrameCache.getInstance().put(key, sampleSize, index, frameBuffer.array(), frameBuffer.capacity());
     }
 
     /**
@@ -317,12 +315,7 @@ public abstract class FrameSeqDecoder<R extends Reader, W extends Writer> {
     private void innerStop() {
         workerHandler.removeCallbacks(renderTask);
         frames.clear();
-        for (Bitmap bitmap : cacheBitmaps) {
-            if (bitmap != null && !bitmap.isRecycled()) {
-                bitmap.recycle();
-            }
-        }
-        cacheBitmaps.clear();
+        bitmapPool.clear();
         if (frameBuffer != null) {
             frameBuffer = null;
         }
@@ -50,6 +50,7 @@ import org.thoughtcrime.securesms.jobs.MultiDeviceContactUpdateJob;
 import org.thoughtcrime.securesms.jobs.PushNotificationReceiveJob;
 import org.thoughtcrime.securesms.jobs.RefreshPreKeysJob;
 import org.thoughtcrime.securesms.jobs.RetrieveProfileJob;
+import org.thoughtcrime.securesms.jobs.SearchIndexJob;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.thoughtcrime.securesms.logging.CustomSignalProtocolLogger;
 import org.thoughtcrime.securesms.logging.LogSecretProvider;
@@ -179,12 +180,17 @@ public class ApplicationContext extends MultiDexApplication implements AppForegr
       ApplicationDependencies.getRecipientCache().warmUp();
       RetrieveProfileJob.enqueueRoutineFetchIfNecessary(this);
       GroupV1MigrationJob.enqueueRoutineMigrationsIfNecessary(this);
+      SearchIndexJob.enqueueIfNecessary(this);
       executePendingContactSync();
       KeyCachingService.onAppForegrounded(this);
       ApplicationDependencies.getShakeToReport().enable();
       checkBuildExpiration();
     });
 
+    if (FeatureFlags.connectionWarmUp() && TextSecurePreferences.isPushRegistered(this)) {
+      SignalExecutors.UNBOUNDED.execute(() -> ApplicationDependencies.getSignalServiceMessageReceiver().warmUpConnections());
+    }
+
     Log.d(TAG, "onStart() took " + (System.currentTimeMillis() - startTime) + " ms");
   }
 
@@ -74,8 +74,11 @@ public class FullBackupExporter extends FullBackupBase {
     SignedPreKeyDatabase.TABLE_NAME,
     OneTimePreKeyDatabase.TABLE_NAME,
     SessionDatabase.TABLE_NAME,
+    AttachmentDatabase.REFERENCE_TABLE_NAME,
     SearchDatabase.SMS_FTS_TABLE_NAME,
-    SearchDatabase.MMS_FTS_TABLE_NAME
+    SearchDatabase.MMS_FTS_TABLE_NAME,
+    SearchDatabase.MESSAGE_FTS_TABLE_NAME,
+    SearchDatabase.INDEX_PROGRESS_TABLE_NAME
   );
 
   public static void export(@NonNull Context context,
@@ -211,10 +214,11 @@ public class FullBackupExporter extends FullBackupBase {
 
         if (sql != null) {
 
-          boolean isSmsFtsSecretTable = name != null && !name.equals(SearchDatabase.SMS_FTS_TABLE_NAME) && name.startsWith(SearchDatabase.SMS_FTS_TABLE_NAME);
-          boolean isMmsFtsSecretTable = name != null && !name.equals(SearchDatabase.MMS_FTS_TABLE_NAME) && name.startsWith(SearchDatabase.MMS_FTS_TABLE_NAME);
+          boolean isSmsFtsSecretTable     = name != null && !name.equals(SearchDatabase.SMS_FTS_TABLE_NAME) && name.startsWith(SearchDatabase.SMS_FTS_TABLE_NAME);
+          boolean isMmsFtsSecretTable     = name != null && !name.equals(SearchDatabase.MMS_FTS_TABLE_NAME) && name.startsWith(SearchDatabase.MMS_FTS_TABLE_NAME);
+          boolean isMessageFtsSecretTable = name != null && !name.equals(SearchDatabase.MESSAGE_FTS_TABLE_NAME) && name.startsWith(SearchDatabase.MESSAGE_FTS_TABLE_NAME);
 
-          if (!isSmsFtsSecretTable && !isMmsFtsSecretTable) {
+          if (!isSmsFtsSecretTable && !isMmsFtsSecretTable && !isMessageFtsSecretTable) {
             if ("table".equals(type)) {
               tables.add(name);
             }
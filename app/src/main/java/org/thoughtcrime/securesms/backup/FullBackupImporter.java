@@ -29,6 +29,7 @@ import org.thoughtcrime.securesms.database.AttachmentDatabase;
 import org.thoughtcrime.securesms.database.KeyValueDatabase;
 import org.thoughtcrime.securesms.database.SearchDatabase;
 import org.thoughtcrime.securesms.database.StickerDatabase;
+import org.thoughtcrime.securesms.database.ThreadDatabase;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.keyvalue.KeyValueDataSet;
 import org.thoughtcrime.securesms.profiles.AvatarHelper;
@@ -80,7 +81,8 @@ public class FullBackupImporter extends FullBackupBase {
                                 @NonNull SQLiteDatabase db, @NonNull InputStream is, @NonNull String passphrase)
       throws IOException
   {
-    int count = 0;
+    int                count            = 0;
+    List<SqlStatement> deferredTriggers = new LinkedList<>();
 
     SQLiteDatabase keyValueDatabase = KeyValueDatabase.getInstance(ApplicationDependencies.getApplication()).getSqlCipherDatabase();
     try {
@@ -98,6 +100,7 @@ public class FullBackupImporter extends FullBackupBase {
         count++;
 
         if      (frame.hasVersion())    processVersion(db, frame.getVersion());
+        else if (isCountTrigger(frame)) deferredTriggers.add(frame.getStatement());
         else if (frame.hasStatement())  processStatement(db, frame.getStatement());
         else if (frame.hasPreference()) processPreference(context, frame.getPreference());
         else if (frame.hasAttachment()) processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream);
@@ -107,6 +110,10 @@ public class FullBackupImporter extends FullBackupBase {
         else                            count--;
       }
 
+      for (SqlStatement trigger : deferredTriggers) {
+        processStatement(db, trigger);
+      }
+
       db.setTransactionSuccessful();
       keyValueDatabase.setTransactionSuccessful();
     } finally {
@@ -133,12 +140,22 @@ public class FullBackupImporter extends FullBackupBase {
     db.setVersion(version.getVersion());
   }
 
+  /**
+   * The thread count triggers would count every imported message on top of the counts the imported
+   * threads already carry, depending on which of the tables comes first. They're created after the
+   * data instead, and the counts are redone once the restored database is upgraded.
+   */
+  private static boolean isCountTrigger(@NonNull BackupFrame frame) {
+    return frame.hasStatement() && ThreadDatabase.isCountTrigger(frame.getStatement().getStatement());
+  }
+
   private static void processStatement(@NonNull SQLiteDatabase db, SqlStatement statement) {
-    boolean isForSmsFtsSecretTable = statement.getStatement().contains(SearchDatabase.SMS_FTS_TABLE_NAME + "_");
-    boolean isForMmsFtsSecretTable = statement.getStatement().contains(SearchDatabase.MMS_FTS_TABLE_NAME + "_");
-    boolean isForSqliteSecretTable = statement.getStatement().toLowerCase().startsWith("create table sqlite_");
+    boolean isForSmsFtsSecretTable     = statement.getStatement().contains(SearchDatabase.SMS_FTS_TABLE_NAME + "_");
+    boolean isForMmsFtsSecretTable     = statement.getStatement().contains(SearchDatabase.MMS_FTS_TABLE_NAME + "_");
+    boolean isForMessageFtsSecretTable = statement.getStatement().contains(SearchDatabase.MESSAGE_FTS_TABLE_NAME + "_");
+    boolean isForSqliteSecretTable     = statement.getStatement().toLowerCase().startsWith("create table sqlite_");
 
-    if (isForSmsFtsSecretTable || isForMmsFtsSecretTable || isForSqliteSecretTable) {
+    if (isForSmsFtsSecretTable || isForMmsFtsSecretTable || isForMessageFtsSecretTable || isForSqliteSecretTable) {
       Log.i(TAG, "Ignoring import for statement: " + statement.getStatement());
       return;
     }
@@ -266,6 +283,8 @@ public class FullBackupImporter extends FullBackupBase {
 
         if ("table".equals(type) && !name.startsWith("sqlite_")) {
           db.execSQL("DROP TABLE IF EXISTS " + name);
+        } else if ("view".equals(type)) {
+          db.execSQL("DROP VIEW IF EXISTS " + name);
         }
       }
     }
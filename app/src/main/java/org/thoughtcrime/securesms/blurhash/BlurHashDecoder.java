@@ -21,7 +21,6 @@
 package org.thoughtcrime.securesms.blurhash;
 
 import android.graphics.Bitmap;
-import android.graphics.Color;
 
 import androidx.annotation.Nullable;
 
@@ -31,11 +30,31 @@ import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.signPow;
 
 class BlurHashDecoder {
 
+  private static final int    FIXED_SHIFT      = 14;
+  private static final int    FIXED_ONE        = 1 << FIXED_SHIFT;
+
+  /** Linear values in [0, 1] at 2^-12 resolution, which keeps the result within one level of the exact curve. */
+  private static final int    SRGB_TABLE_SHIFT = 12;
+  private static final byte[] SRGB_TABLE       = createSRGBTable();
+
   static @Nullable Bitmap decode(@Nullable String blurHash, int width, int height) {
     return decode(blurHash, width, height, 1f);
   }
 
   static @Nullable Bitmap decode(@Nullable String blurHash, int width, int height, double punch) {
+    int[] pixels = decodePixels(blurHash, width, height, punch);
+
+    if (pixels == null) {
+      return null;
+    }
+
+    return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+  }
+
+  /**
+   * @return The ARGB pixels of the decoded image, row by row.
+   */
+  static @Nullable int[] decodePixels(@Nullable String blurHash, int width, int height, double punch) {
 
     if (blurHash == null || blurHash.length() < 6) {
       return null;
@@ -63,7 +82,7 @@ class BlurHashDecoder {
       }
     }
 
-    return composeBitmap(width, height, numCompX, numCompY, colors);
+    return composePixels(width, height, numCompX, numCompY, colors);
   }
 
   private static double[] decodeDc(int colorEnc) {
@@ -86,28 +105,100 @@ class BlurHashDecoder {
     };
   }
 
-  private static Bitmap composeBitmap(int width, int height, int numCompX, int numCompY, double[][] colors) {
-    Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-    for (int y = 0; y < height; y++) {
-      for (int x = 0; x < width; x++) {
+  /**
+   * Sums the cosine basis in fixed point. The basis is separable, so each row first collapses the
+   * vertical components with a precomputed cosine table, leaving numCompX multiply-adds per channel for
+   * every pixel. The linear result indexes a table of sRGB values instead of going through Math.pow.
+   */
+  private static int[] composePixels(int width, int height, int numCompX, int numCompY, double[][] colors) {
+    int[] cosX = cosineTable(width, numCompX);
+    int[] cosY = cosineTable(height, numCompY);
+
+    int[] colorR = new int[colors.length];
+    int[] colorG = new int[colors.length];
+    int[] colorB = new int[colors.length];
+    for (int i = 0; i < colors.length; i++) {
+      colorR[i] = toFixed(colors[i][0]);
+      colorG[i] = toFixed(colors[i][1]);
+      colorB[i] = toFixed(colors[i][2]);
+    }
 
-        double r = 0f;
-        double g = 0f;
-        double b = 0f;
+    int[] rowR   = new int[numCompX];
+    int[] rowG   = new int[numCompX];
+    int[] rowB   = new int[numCompX];
+    int[] pixels = new int[width * height];
 
+    for (int y = 0; y < height; y++) {
+      for (int i = 0; i < numCompX; i++) {
+        long r = 0;
+        long g = 0;
+        long b = 0;
         for (int j = 0; j < numCompY; j++) {
-          for (int i = 0; i < numCompX; i++) {
-            double basis = (Math.cos(Math.PI * x * i / width) * Math.cos(Math.PI * y * j / height));
-            double[] color = colors[j * numCompX + i];
-            r += color[0] * basis;
-            g += color[1] * basis;
-            b += color[2] * basis;
-          }
+          int basis = cosY[j * height + y];
+          int color = j * numCompX + i;
+          r += (long) colorR[color] * basis;
+          g += (long) colorG[color] * basis;
+          b += (long) colorB[color] * basis;
         }
-        bitmap.setPixel(x, y, Color.rgb((int) linearTosRGB(r), (int) linearTosRGB(g), (int) linearTosRGB(b)));
+        rowR[i] = (int) (r >> FIXED_SHIFT);
+        rowG[i] = (int) (g >> FIXED_SHIFT);
+        rowB[i] = (int) (b >> FIXED_SHIFT);
       }
+
+      int offset = y * width;
+      for (int x = 0; x < width; x++) {
+        long r = 0;
+        long g = 0;
+        long b = 0;
+        for (int i = 0; i < numCompX; i++) {
+          int basis = cosX[i * width + x];
+          r += (long) rowR[i] * basis;
+          g += (long) rowG[i] * basis;
+          b += (long) rowB[i] * basis;
+        }
+        pixels[offset + x] = 0xFF000000 | (toSRGB(r) << 16) | (toSRGB(g) << 8) | toSRGB(b);
+      }
+    }
+
+    return pixels;
+  }
+
+  private static byte[] createSRGBTable() {
+    byte[] table = new byte[(1 << SRGB_TABLE_SHIFT) + 1];
+    for (int i = 0; i < table.length; i++) {
+      table[i] = (byte) linearTosRGB(i / (double) (1 << SRGB_TABLE_SHIFT));
+    }
+    return table;
+  }
+
+  private static int toFixed(double value) {
+    return (int) Math.round(value * FIXED_ONE);
+  }
+
+  /**
+   * @param value A linear channel value with 2 * FIXED_SHIFT fractional bits.
+   */
+  private static int toSRGB(long value) {
+    long index = (value + (1L << (2 * FIXED_SHIFT - SRGB_TABLE_SHIFT - 1))) >> (2 * FIXED_SHIFT - SRGB_TABLE_SHIFT);
+    if (index <= 0) {
+      return SRGB_TABLE[0] & 0xFF;
+    } else if (index >= SRGB_TABLE.length - 1) {
+      return SRGB_TABLE[SRGB_TABLE.length - 1] & 0xFF;
+    } else {
+      return SRGB_TABLE[(int) index] & 0xFF;
     }
+  }
 
-    return bitmap;
+  /**
+   * @return cos(PI * position * component / size) in fixed point, indexed by component * size + position.
+   */
+  private static int[] cosineTable(int size, int components) {
+    int[] table = new int[size * components];
+    for (int component = 0; component < components; component++) {
+      for (int position = 0; position < size; position++) {
+        table[component * size + position] = toFixed(Math.cos(Math.PI * position * component / size));
+      }
+    }
+    return table;
   }
 }
@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.blurhash;
 
 import android.graphics.Bitmap;
+import android.util.LruCache;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -14,7 +15,19 @@ import java.io.IOException;
 
 public class BlurHashResourceDecoder implements ResourceDecoder<BlurHash, Bitmap> {
 
-  private static final int MAX_DIMEN = 20;
+  private static final int MAX_DIMEN        = 20;
+  private static final int CACHE_SIZE_BYTES = 1024 * 1024;
+
+  /**
+   * Decoded placeholders are tiny and immutable, so they are kept and shared between requests rather
+   * than decoded again every time a gallery item is bound.
+   */
+  private final LruCache<String, Bitmap> cache = new LruCache<String, Bitmap>(CACHE_SIZE_BYTES) {
+    @Override
+    protected int sizeOf(String key, Bitmap value) {
+      return value.getByteCount();
+    }
+  };
 
   @Override
   public boolean handles(@NonNull BlurHash source, @NonNull Options options) throws IOException {
@@ -34,6 +47,17 @@ public class BlurHashResourceDecoder implements ResourceDecoder<BlurHash, Bitmap
       finalWidth  = (int) (finalHeight * width / (float) height);
     }
 
-    return new SimpleResource<>(BlurHashDecoder.decode(source.getHash(), finalWidth, finalHeight));
+    String key    = source.getHash() + "_" + finalWidth + "x" + finalHeight;
+    Bitmap bitmap = cache.get(key);
+
+    if (bitmap == null) {
+      bitmap = BlurHashDecoder.decode(source.getHash(), finalWidth, finalHeight);
+
+      if (bitmap != null) {
+        cache.put(key, bitmap);
+      }
+    }
+
+    return new SimpleResource<>(bitmap);
   }
 }
\ No newline at end of file
@@ -25,6 +25,7 @@ import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.blurhash.BlurHash;
 import org.thoughtcrime.securesms.database.AttachmentDatabase;
+import org.thoughtcrime.securesms.glide.cache.ApngOptions;
 import org.thoughtcrime.securesms.mms.DecryptableStreamUriLoader.DecryptableUri;
 import org.thoughtcrime.securesms.mms.GlideRequest;
 import org.thoughtcrime.securesms.mms.GlideRequests;
@@ -419,6 +420,7 @@ public class ThumbnailView extends FrameLayout {
   private GlideRequest buildThumbnailGlideRequest(@NonNull GlideRequests glideRequests, @NonNull Slide slide) {
     GlideRequest request = applySizing(glideRequests.load(new DecryptableUri(slide.getUri()))
                                           .diskCacheStrategy(DiskCacheStrategy.RESOURCE)
+                                          .set(ApngOptions.FRAME_CACHE_KEY, slide.getUri().toString())
                                           .transition(withCrossFade()), fit);
 
     if (slide.isInProgress()) return request;
@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.conversation;
 
 import android.content.Context;
+import android.database.Cursor;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -8,11 +9,12 @@ import androidx.annotation.Nullable;
 import com.annimon.stream.Stream;
 
 import org.signal.core.util.logging.Log;
-import org.signal.paging.PagedDataSource;
+import org.signal.paging.KeysetPagedDataSource;
 import org.thoughtcrime.securesms.conversation.ConversationData.MessageRequestData;
 import org.thoughtcrime.securesms.conversation.ConversationMessage.ConversationMessageFactory;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.ConversationAnchor;
 import org.thoughtcrime.securesms.database.model.InMemoryMessageRecord;
 import org.thoughtcrime.securesms.database.model.Mention;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
@@ -27,8 +29,11 @@ import java.util.Map;
 
 /**
  * Core data source for loading an individual conversation.
+ *
+ * Pages after the first are loaded after the last message of an earlier page rather than at an
+ * offset, see {@link MmsSmsDatabase#getConversation(long, ConversationAnchor, long, long)}.
  */
-class ConversationDataSource implements PagedDataSource<ConversationMessage> {
+class ConversationDataSource implements KeysetPagedDataSource<ConversationAnchor, ConversationMessage> {
 
   private static final String TAG = Log.tag(ConversationDataSource.class);
 
@@ -58,12 +63,36 @@ class ConversationDataSource implements PagedDataSource<ConversationMessage> {
 
   @Override
   public @NonNull List<ConversationMessage> load(int start, int length, @NonNull CancellationSignal cancellationSignal) {
-    Stopwatch           stopwatch     = new Stopwatch("load(" + start + ", " + length + "), thread " + threadId);
-    MmsSmsDatabase      db            = DatabaseFactory.getMmsSmsDatabase(context);
+    Stopwatch      stopwatch = new Stopwatch("load(" + start + ", " + length + "), thread " + threadId);
+    MmsSmsDatabase db        = DatabaseFactory.getMmsSmsDatabase(context);
+
+    return load(db.getConversation(threadId, start, length), length, stopwatch, cancellationSignal);
+  }
+
+  @Override
+  public @NonNull List<ConversationMessage> load(@NonNull ConversationAnchor after, int skip, int length, @NonNull CancellationSignal cancellationSignal) {
+    Stopwatch      stopwatch = new Stopwatch("load(after, " + skip + ", " + length + "), thread " + threadId);
+    MmsSmsDatabase db        = DatabaseFactory.getMmsSmsDatabase(context);
+
+    return load(db.getConversation(threadId, after, skip, length), length, stopwatch, cancellationSignal);
+  }
+
+  @Override
+  public @Nullable ConversationAnchor getKey(@NonNull ConversationMessage message) {
+    MessageRecord record = message.getMessageRecord();
+
+    if (record instanceof InMemoryMessageRecord) {
+      return null;
+    }
+
+    return ConversationAnchor.forRecord(record);
+  }
+
+  private @NonNull List<ConversationMessage> load(@NonNull Cursor cursor, int length, @NonNull Stopwatch stopwatch, @NonNull CancellationSignal cancellationSignal) {
     List<MessageRecord> records       = new ArrayList<>(length);
     MentionHelper       mentionHelper = new MentionHelper();
 
-    try (MmsSmsDatabase.Reader reader = MmsSmsDatabase.readerFor(db.getConversation(threadId, start, length))) {
+    try (MmsSmsDatabase.Reader reader = DatabaseFactory.getMmsSmsDatabase(context).readerWithAttachmentsFor(cursor)) {
       MessageRecord record;
       while ((record = reader.getNext()) != null && !cancellationSignal.isCanceled()) {
         records.add(record);
@@ -71,7 +100,7 @@ class ConversationDataSource implements PagedDataSource<ConversationMessage> {
       }
     }
 
-    if (messageRequestData.includeWarningUpdateMessage() && (start + length >= size())) {
+    if (messageRequestData.includeWarningUpdateMessage() && records.size() < length && !cancellationSignal.isCanceled()) {
       records.add(new InMemoryMessageRecord.NoGroupsInCommon(threadId, messageRequestData.isGroup()));
     }
 
@@ -569,6 +569,7 @@ public class ConversationListFragment extends MainFragment implements ActionMode
     viewModel = ViewModelProviders.of(this, new ConversationListViewModel.Factory(isArchived())).get(ConversationListViewModel.class);
 
     viewModel.getSearchResult().observe(getViewLifecycleOwner(), this::onSearchResultChanged);
+    viewModel.getMessageSearchPagingController().observe(getViewLifecycleOwner(), controller -> searchAdapter.setMessagePagingController(controller));
     viewModel.getMegaphone().observe(getViewLifecycleOwner(), this::onMegaphoneChanged);
     viewModel.getConversationList().observe(getViewLifecycleOwner(), this::onSubmitList);
     viewModel.hasNoConversations().observe(getViewLifecycleOwner(), this::updateEmptyState);
@@ -9,6 +9,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.recyclerview.widget.RecyclerView;
 
+import org.signal.paging.PagingController;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.conversationlist.model.MessageResult;
 import org.thoughtcrime.securesms.conversationlist.model.SearchResult;
@@ -34,6 +35,9 @@ class ConversationListSearchAdapter extends    RecyclerView.Adapter<Conversation
   @NonNull
   private SearchResult searchResult = SearchResult.EMPTY;
 
+  @Nullable
+  private PagingController messagePagingController;
+
   ConversationListSearchAdapter(@NonNull GlideRequests glideRequests,
                                 @NonNull EventListener eventListener,
                                 @NonNull Locale        locale)
@@ -65,10 +69,16 @@ class ConversationListSearchAdapter extends    RecyclerView.Adapter<Conversation
       return;
     }
 
+    if (messagePagingController != null && position >= getFirstMessageIndex()) {
+      messagePagingController.onDataNeededAroundIndex(position - getFirstMessageIndex());
+    }
+
     MessageResult messageResult = getMessageResult(position);
 
     if (messageResult != null) {
       holder.bind(messageResult, glideRequests, eventListener, locale, searchResult.getQuery());
+    } else {
+      holder.bindPlaceholder();
     }
   }
 
@@ -104,6 +114,14 @@ class ConversationListSearchAdapter extends    RecyclerView.Adapter<Conversation
     viewHolder.bind((int) getHeaderId(position));
   }
 
+  /**
+   * @param messagePagingController Controls the paging of the messages in the results, which may
+   *                                contain nulls for the ones that haven't been loaded yet.
+   */
+  void setMessagePagingController(@Nullable PagingController messagePagingController) {
+    this.messagePagingController = messagePagingController;
+  }
+
   void updateResults(@NonNull SearchResult result) {
     this.searchResult = result;
     notifyDataSetChanged();
@@ -162,6 +180,7 @@ class ConversationListSearchAdapter extends    RecyclerView.Adapter<Conversation
               @NonNull  Locale        locale,
               @Nullable String        query)
     {
+      root.setVisibility(View.VISIBLE);
       root.bind(conversationResult, glideRequests, locale, Collections.emptySet(), Collections.emptySet(), false, query);
       root.setOnClickListener(view -> eventListener.onConversationClicked(conversationResult));
     }
@@ -172,6 +191,7 @@ class ConversationListSearchAdapter extends    RecyclerView.Adapter<Conversation
               @NonNull  Locale        locale,
               @Nullable String        query)
     {
+      root.setVisibility(View.VISIBLE);
       root.bind(contactResult, glideRequests, locale, query);
       root.setOnClickListener(view -> eventListener.onContactClicked(contactResult));
     }
@@ -182,10 +202,16 @@ class ConversationListSearchAdapter extends    RecyclerView.Adapter<Conversation
               @NonNull  Locale        locale,
               @Nullable String        query)
     {
+      root.setVisibility(View.VISIBLE);
       root.bind(messageResult, glideRequests, locale, query);
       root.setOnClickListener(view -> eventListener.onMessageClicked(messageResult));
     }
 
+    void bindPlaceholder() {
+      recycle();
+      root.setVisibility(View.INVISIBLE);
+    }
+
     void recycle() {
       root.unbind();
       root.setOnClickListener(null);
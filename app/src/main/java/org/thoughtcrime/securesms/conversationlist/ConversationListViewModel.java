@@ -5,7 +5,9 @@ import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
 import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MediatorLiveData;
 import androidx.lifecycle.MutableLiveData;
+import androidx.lifecycle.Transformations;
 import androidx.lifecycle.ViewModel;
 import androidx.lifecycle.ViewModelProvider;
 
@@ -15,17 +17,20 @@ import org.signal.paging.PagedData;
 import org.signal.paging.PagingConfig;
 import org.signal.paging.PagingController;
 import org.thoughtcrime.securesms.conversationlist.model.Conversation;
+import org.thoughtcrime.securesms.conversationlist.model.MessageResult;
 import org.thoughtcrime.securesms.conversationlist.model.SearchResult;
 import org.thoughtcrime.securesms.conversationlist.model.UnreadPayments;
 import org.thoughtcrime.securesms.conversationlist.model.UnreadPaymentsLiveData;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.DatabaseObserver;
+import org.thoughtcrime.securesms.database.SearchDatabase.MessageOrder;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.megaphone.Megaphone;
 import org.thoughtcrime.securesms.megaphone.MegaphoneRepository;
 import org.thoughtcrime.securesms.megaphone.Megaphones;
 import org.thoughtcrime.securesms.net.PipeConnectivityListener;
 import org.thoughtcrime.securesms.payments.UnreadPaymentsRepository;
+import org.thoughtcrime.securesms.search.MessageSearchDataSource;
 import org.thoughtcrime.securesms.search.SearchRepository;
 import org.thoughtcrime.securesms.util.Debouncer;
 import org.thoughtcrime.securesms.util.ThrottledDebouncer;
@@ -41,25 +46,32 @@ class ConversationListViewModel extends ViewModel {
 
   private static boolean coldStart = true;
 
-  private final MutableLiveData<Megaphone>    megaphone;
-  private final MutableLiveData<SearchResult> searchResult;
-  private final PagedData<Conversation>       pagedData;
-  private final LiveData<Boolean>             hasNoConversations;
-  private final SearchRepository              searchRepository;
-  private final MegaphoneRepository           megaphoneRepository;
-  private final Debouncer                     searchDebouncer;
-  private final ThrottledDebouncer            updateDebouncer;
-  private final DatabaseObserver.Observer     observer;
-  private final Invalidator                   invalidator;
-  private final UnreadPaymentsLiveData        unreadPaymentsLiveData;
-  private final UnreadPaymentsRepository      unreadPaymentsRepository;
-
-  private String lastQuery;
-  private int    pinnedCount;
+  private final MutableLiveData<Megaphone>                megaphone;
+  private final MediatorLiveData<SearchResult>            searchResult;
+  private final MutableLiveData<PagedData<MessageResult>> messageSearch;
+  private final LiveData<PagingController>                messageSearchController;
+  private final PagedData<Conversation>                   pagedData;
+  private final LiveData<Boolean>                         hasNoConversations;
+  private final SearchRepository                          searchRepository;
+  private final MegaphoneRepository                       megaphoneRepository;
+  private final Debouncer                                 searchDebouncer;
+  private final ThrottledDebouncer                        updateDebouncer;
+  private final DatabaseObserver.Observer                 observer;
+  private final Invalidator                               invalidator;
+  private final UnreadPaymentsLiveData                    unreadPaymentsLiveData;
+  private final UnreadPaymentsRepository                  unreadPaymentsRepository;
+
+  private          String                  lastQuery;
+  private          int                     pinnedCount;
+  private volatile MessageSearchDataSource messageSearchDataSource;
+  private          SearchResult            partialSearchResult;
+  private          List<MessageResult>     messageSearchResults;
 
   private ConversationListViewModel(@NonNull Application application, @NonNull SearchRepository searchRepository, boolean isArchived) {
     this.megaphone                = new MutableLiveData<>();
-    this.searchResult             = new MutableLiveData<>();
+    this.searchResult             = new MediatorLiveData<>();
+    this.messageSearch            = new MutableLiveData<>();
+    this.messageSearchController  = Transformations.map(messageSearch, PagedData::getController);
     this.searchRepository         = searchRepository;
     this.megaphoneRepository      = ApplicationDependencies.getMegaphoneRepository();
     this.unreadPaymentsRepository = new UnreadPaymentsRepository();
@@ -73,9 +85,15 @@ class ConversationListViewModel extends ViewModel {
                                                          .build());
     this.unreadPaymentsLiveData   = new UnreadPaymentsLiveData();
     this.observer                 = () -> {
+      MessageSearchDataSource currentSearch = messageSearchDataSource;
+
+      if (currentSearch != null) {
+        currentSearch.invalidateMatches();
+      }
+
       updateDebouncer.publish(() -> {
         if (!TextUtils.isEmpty(getLastQuery())) {
-          searchRepository.query(getLastQuery(), searchResult::postValue);
+          search(getLastQuery());
         }
         pagedData.getController().onDataInvalidated();
       });
@@ -91,6 +109,11 @@ class ConversationListViewModel extends ViewModel {
       }
     });
 
+    this.searchResult.addSource(Transformations.switchMap(messageSearch, PagedData::getData), messages -> {
+      messageSearchResults = messages;
+      publishSearchResult();
+    });
+
     ApplicationDependencies.getDatabaseObserver().registerConversationListObserver(observer);
   }
 
@@ -102,6 +125,10 @@ class ConversationListViewModel extends ViewModel {
     return searchResult;
   }
 
+  @NonNull LiveData<PagingController> getMessageSearchPagingController() {
+    return messageSearchController;
+  }
+
   @NonNull LiveData<Megaphone> getMegaphone() {
     return megaphone;
   }
@@ -156,13 +183,45 @@ class ConversationListViewModel extends ViewModel {
 
   void updateQuery(String query) {
     lastQuery = query;
-    searchDebouncer.publish(() -> searchRepository.query(query, result -> {
+    searchDebouncer.publish(() -> search(query));
+  }
+
+  /**
+   * Starts a new search, replacing the one in progress. The previous results stay up until both
+   * the contacts and conversations and the first page of messages are in for the new one.
+   *
+   * The new search is only narrowed down from the previous one's matches if no messages have
+   * changed since, which the observer tracks as soon as it's notified rather than after the
+   * debounce.
+   */
+  private void search(@NonNull String query) {
+    messageSearchDataSource = searchRepository.createMessageSearch(query, MessageOrder.DATE, messageSearchDataSource);
+    partialSearchResult     = null;
+    messageSearchResults    = null;
+
+    messageSearch.setValue(PagedData.create(messageSearchDataSource,
+                                            new PagingConfig.Builder()
+                                                .setPageSize(20)
+                                                .setBufferPages(1)
+                                                .build()));
+
+    searchRepository.query(query, result -> {
       ThreadUtil.runOnMain(() -> {
         if (query.equals(lastQuery)) {
-          searchResult.setValue(result);
+          partialSearchResult = result;
+          publishSearchResult();
         }
       });
-    }));
+    });
+  }
+
+  private void publishSearchResult() {
+    if (partialSearchResult != null && messageSearchResults != null) {
+      searchResult.setValue(new SearchResult(partialSearchResult.getQuery(),
+                                             partialSearchResult.getContacts(),
+                                             partialSearchResult.getConversations(),
+                                             messageSearchResults));
+    }
   }
 
   private @NonNull String getLastQuery() {
@@ -171,6 +230,10 @@ class ConversationListViewModel extends ViewModel {
 
   @Override
   protected void onCleared() {
+    if (messageSearchDataSource != null) {
+      messageSearchDataSource.cancel();
+    }
+
     invalidator.invalidate();
     searchDebouncer.clear();
     updateDebouncer.clear();
@@ -0,0 +1,178 @@
+package org.thoughtcrime.securesms.crypto;
+
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.Conversions;
+import org.thoughtcrime.securesms.util.LRUCache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Random access counterpart of {@link ModernDecryptingPartInputStream}.
+ * <p>
+ * The key is derived and the file opened once. Each read positions the AES-CTR counter directly at
+ * the block that holds the requested offset, and the most recently decrypted blocks are kept so the
+ * many small, overlapping reads a media extractor issues do not decrypt the same bytes over and over.
+ */
+public final class ModernDecryptingPartFile implements Closeable {
+
+  private static final int RANDOM_LENGTH = 32;
+  private static final int BLOCK_SIZE    = 16 * 1024;
+  private static final int BLOCK_COUNT   = 8;
+
+  private final FileChannel            channel;
+  private final SecretKeySpec          key;
+  private final Cipher                 cipher;
+  private final long                   dataOffset;
+  private final long                   length;
+  private final byte[]                 iv;
+  private final ByteBuffer             ciphertext;
+  private final LRUCache<Long, byte[]> blocks;
+
+  /**
+   * @param random The random part of the key, or null if it is stored at the start of the file.
+   * @param length The length of the plaintext.
+   */
+  public static @NonNull ModernDecryptingPartFile createFor(@NonNull AttachmentSecret attachmentSecret, @Nullable byte[] random, @NonNull File file, long length)
+      throws IOException
+  {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+
+    try {
+      long dataOffset = 0;
+
+      if (random == null) {
+        random = new byte[RANDOM_LENGTH];
+        randomAccessFile.readFully(random);
+        dataOffset = RANDOM_LENGTH;
+      }
+
+      return new ModernDecryptingPartFile(attachmentSecret, random, randomAccessFile.getChannel(), dataOffset, length);
+    } catch (IOException e) {
+      randomAccessFile.close();
+      throw e;
+    }
+  }
+
+  private ModernDecryptingPartFile(@NonNull AttachmentSecret attachmentSecret, @NonNull byte[] random, @NonNull FileChannel channel, long dataOffset, long length) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+
+      this.key        = new SecretKeySpec(mac.doFinal(random), "AES");
+      this.cipher     = Cipher.getInstance("AES/CTR/NoPadding");
+      this.channel    = channel;
+      this.dataOffset = dataOffset;
+      this.length     = length;
+      this.iv         = new byte[16];
+      this.ciphertext = ByteBuffer.allocate(BLOCK_SIZE);
+      this.blocks     = new LRUCache<>(BLOCK_COUNT);
+    } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * Reads up to {@code length} bytes of plaintext starting at {@code position}.
+   *
+   * @return The number of bytes read, which is only less than requested at the end of the file, or -1
+   *         if {@code position} is at or past the end.
+   */
+  public synchronized int readAt(long position, @NonNull byte[] buffer, int offset, int length) throws IOException {
+    if (position >= this.length) {
+      return -1;
+    }
+
+    int totalRead = 0;
+
+    while (length > 0 && position < this.length) {
+      byte[] block       = getBlock(position / BLOCK_SIZE);
+      int    blockOffset = (int) (position % BLOCK_SIZE);
+      int    read        = Math.min(length, block.length - blockOffset);
+
+      if (read <= 0) {
+        break;
+      }
+
+      System.arraycopy(block, blockOffset, buffer, offset, read);
+
+      position  += read;
+      offset    += read;
+      length    -= read;
+      totalRead += read;
+    }
+
+    return totalRead == 0 ? -1 : totalRead;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    blocks.clear();
+    channel.close();
+  }
+
+  private @NonNull byte[] getBlock(long index) throws IOException {
+    byte[] block = blocks.get(index);
+
+    if (block == null) {
+      block = decryptBlock(index);
+      blocks.put(index, block);
+    }
+
+    return block;
+  }
+
+  private @NonNull byte[] decryptBlock(long index) throws IOException {
+    long start     = index * BLOCK_SIZE;
+    int  remaining = (int) Math.min(BLOCK_SIZE, length - start);
+
+    ciphertext.clear();
+    ciphertext.limit(remaining);
+
+    while (ciphertext.hasRemaining()) {
+      int read = channel.read(ciphertext, dataOffset + start + ciphertext.position());
+      if (read == -1) break;
+    }
+
+    int    available = ciphertext.position();
+    byte[] plaintext = new byte[available];
+
+    if (available == 0) {
+      return plaintext;
+    }
+
+    Conversions.longTo4ByteArray(iv, 12, start / 16);
+
+    try {
+      cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+      cipher.doFinal(ciphertext.array(), 0, available, plaintext, 0);
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException | ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+      throw new AssertionError(e);
+    }
+
+    return plaintext;
+  }
+}
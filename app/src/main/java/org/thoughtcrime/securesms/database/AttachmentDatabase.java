@@ -60,18 +60,23 @@ import org.thoughtcrime.securesms.util.FileUtils;
 import org.thoughtcrime.securesms.util.JsonUtils;
 import org.thoughtcrime.securesms.util.MediaUtil;
 import org.thoughtcrime.securesms.util.SetUtil;
+import org.thoughtcrime.securesms.util.SqlUtil;
 import org.thoughtcrime.securesms.util.StorageUtil;
 import org.thoughtcrime.securesms.video.EncryptedMediaDataSource;
 import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.SignalServiceMessageReceiver;
 import org.whispersystems.signalservice.internal.util.JsonUtil;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -123,6 +128,9 @@ public class AttachmentDatabase extends Database {
 
   public  static final String DIRECTORY              = "parts";
 
+  public  static final String REFERENCE_TABLE_NAME = "part_data_reference";
+          static final String REFERENCE_COUNT      = "reference_count";
+
   public static final int TRANSFER_PROGRESS_DONE    = 0;
   public static final int TRANSFER_PROGRESS_STARTED = 1;
   public static final int TRANSFER_PROGRESS_PENDING = 2;
@@ -188,7 +196,32 @@ public class AttachmentDatabase extends Database {
     "CREATE INDEX IF NOT EXISTS pending_push_index ON " + TABLE_NAME + " (" + TRANSFER_STATE + ");",
     "CREATE INDEX IF NOT EXISTS part_sticker_pack_id_index ON " + TABLE_NAME + " (" + STICKER_PACK_ID + ");",
     "CREATE INDEX IF NOT EXISTS part_data_hash_index ON " + TABLE_NAME + " (" + DATA_HASH + ");",
-    "CREATE INDEX IF NOT EXISTS part_data_index ON " + TABLE_NAME + " (" + DATA + ");"
+    "CREATE INDEX IF NOT EXISTS part_data_index ON " + TABLE_NAME + " (" + DATA + ");",
+    "CREATE INDEX IF NOT EXISTS part_digest_index ON " + TABLE_NAME + " (" + DIGEST + ");"
+  };
+
+  /**
+   * Counts the strong references to every data file, so that deleting an attachment knows whether
+   * its file is still needed without looking at the other attachments. Quotes are weak references
+   * and aren't counted. The triggers keep the counts in step with every change to {@link #DATA}.
+   */
+  public static final String[] CREATE_REFERENCE_TABLE = {
+    "CREATE TABLE " + REFERENCE_TABLE_NAME + " (" + DATA + " TEXT PRIMARY KEY, " + REFERENCE_COUNT + " INTEGER DEFAULT 0);",
+
+    "CREATE TRIGGER part_data_reference_ai AFTER INSERT ON " + TABLE_NAME + " WHEN new." + QUOTE + " = 0 BEGIN\n" +
+    "  INSERT OR IGNORE INTO " + REFERENCE_TABLE_NAME + " (" + DATA + ") SELECT new." + DATA + " WHERE new." + DATA + " NOT NULL;\n" +
+    "  UPDATE " + REFERENCE_TABLE_NAME + " SET " + REFERENCE_COUNT + " = " + REFERENCE_COUNT + " + 1 WHERE " + DATA + " = new." + DATA + ";\n" +
+    "END;",
+
+    "CREATE TRIGGER part_data_reference_ad AFTER DELETE ON " + TABLE_NAME + " WHEN old." + QUOTE + " = 0 BEGIN\n" +
+    "  UPDATE " + REFERENCE_TABLE_NAME + " SET " + REFERENCE_COUNT + " = " + REFERENCE_COUNT + " - 1 WHERE " + DATA + " = old." + DATA + ";\n" +
+    "END;",
+
+    "CREATE TRIGGER part_data_reference_au AFTER UPDATE OF " + DATA + " ON " + TABLE_NAME + " WHEN new." + QUOTE + " = 0 AND old." + DATA + " IS NOT new." + DATA + " BEGIN\n" +
+    "  UPDATE " + REFERENCE_TABLE_NAME + " SET " + REFERENCE_COUNT + " = " + REFERENCE_COUNT + " - 1 WHERE " + DATA + " = old." + DATA + ";\n" +
+    "  INSERT OR IGNORE INTO " + REFERENCE_TABLE_NAME + " (" + DATA + ") SELECT new." + DATA + " WHERE new." + DATA + " NOT NULL;\n" +
+    "  UPDATE " + REFERENCE_TABLE_NAME + " SET " + REFERENCE_COUNT + " = " + REFERENCE_COUNT + " + 1 WHERE " + DATA + " = new." + DATA + ";\n" +
+    "END;"
   };
 
   private final AttachmentSecret attachmentSecret;
@@ -250,6 +283,40 @@ public class AttachmentDatabase extends Database {
     }
   }
 
+  /**
+   * Loads the attachments of several messages with one query, decoding them straight from the
+   * attachment columns rather than from the JSON aggregate that message queries can join in.
+   *
+   * @return The attachments by message id. Messages without attachments aren't in the map.
+   */
+  public @NonNull Map<Long, List<DatabaseAttachment>> getAttachmentsForMessages(@NonNull Collection<Long> mmsIds) {
+    Map<Long, List<DatabaseAttachment>> results = new HashMap<>();
+
+    if (mmsIds.isEmpty()) {
+      return results;
+    }
+
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    SqlUtil.Query  query    = SqlUtil.buildCollectionQuery(MMS_ID, mmsIds);
+
+    try (Cursor cursor = database.query(TABLE_NAME, PROJECTION, query.getWhere(), query.getWhereArgs(), null, null, UNIQUE_ID + " ASC, " + ROW_ID + " ASC")) {
+      while (cursor.moveToNext()) {
+        for (DatabaseAttachment attachment : getAttachment(cursor)) {
+          List<DatabaseAttachment> attachments = results.get(attachment.getMmsId());
+
+          if (attachments == null) {
+            attachments = new ArrayList<>(1);
+            results.put(attachment.getMmsId(), attachments);
+          }
+
+          attachments.add(attachment);
+        }
+      }
+    }
+
+    return results;
+  }
+
   public @NonNull List<DatabaseAttachment> getAttachmentsForMessage(long mmsId) {
     SQLiteDatabase           database = databaseHelper.getReadableDatabase();
     List<DatabaseAttachment> results  = new LinkedList<>();
@@ -321,14 +388,18 @@ public class AttachmentDatabase extends Database {
     Cursor cursor           = null;
 
     try {
-      cursor = database.query(TABLE_NAME, new String[] {DATA, CONTENT_TYPE, ROW_ID, UNIQUE_ID}, MMS_ID + " = ?",
+      cursor = database.query(TABLE_NAME, new String[] {DATA, CONTENT_TYPE, ROW_ID, UNIQUE_ID, TRANSFER_FILE}, MMS_ID + " = ?",
                               new String[] {mmsId+""}, null, null, null);
 
       while (cursor != null && cursor.moveToNext()) {
+        AttachmentId attachmentId = new AttachmentId(CursorUtil.requireLong(cursor, ROW_ID),
+                                                     CursorUtil.requireLong(cursor, UNIQUE_ID));
+
+        database.delete(TABLE_NAME, PART_ID_WHERE, attachmentId.toStrings());
         deleteAttachmentOnDisk(CursorUtil.requireString(cursor, DATA),
                                CursorUtil.requireString(cursor, CONTENT_TYPE),
-                               new AttachmentId(CursorUtil.requireLong(cursor, ROW_ID),
-                                                CursorUtil.requireLong(cursor, UNIQUE_ID)));
+                               attachmentId);
+        deleteTransferFile(CursorUtil.requireString(cursor, TRANSFER_FILE));
       }
     } finally {
       if (cursor != null)
@@ -372,15 +443,23 @@ public class AttachmentDatabase extends Database {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     Cursor cursor           = null;
 
+    ContentValues clearedData = new ContentValues();
+    clearedData.put(DATA, (String) null);
+    clearedData.put(DATA_RANDOM, (byte[]) null);
+    clearedData.put(DATA_HASH, (String) null);
+
     try {
       cursor = database.query(TABLE_NAME, new String[] {DATA, CONTENT_TYPE, ROW_ID, UNIQUE_ID}, MMS_ID + " = ?",
           new String[] {mmsId+""}, null, null, null);
 
       while (cursor != null && cursor.moveToNext()) {
+        AttachmentId attachmentId = new AttachmentId(CursorUtil.requireLong(cursor, ROW_ID),
+                                                     CursorUtil.requireLong(cursor, UNIQUE_ID));
+
+        database.update(TABLE_NAME, clearedData, PART_ID_WHERE, attachmentId.toStrings());
         deleteAttachmentOnDisk(CursorUtil.requireString(cursor, DATA),
                                CursorUtil.requireString(cursor, CONTENT_TYPE),
-                               new AttachmentId(CursorUtil.requireLong(cursor, ROW_ID),
-                                                CursorUtil.requireLong(cursor, UNIQUE_ID)));
+                               attachmentId);
       }
     } finally {
       if (cursor != null)
@@ -415,7 +494,7 @@ public class AttachmentDatabase extends Database {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
 
     try (Cursor cursor = database.query(TABLE_NAME,
-                                        new String[]{DATA, CONTENT_TYPE},
+                                        new String[]{DATA, CONTENT_TYPE, TRANSFER_FILE},
                                         PART_ID_WHERE,
                                         id.toStrings(),
                                         null,
@@ -426,11 +505,13 @@ public class AttachmentDatabase extends Database {
         Log.w(TAG, "Tried to delete an attachment, but it didn't exist.");
         return;
       }
-      String data        = CursorUtil.requireString(cursor, DATA);
-      String contentType = CursorUtil.requireString(cursor, CONTENT_TYPE);
+      String data         = CursorUtil.requireString(cursor, DATA);
+      String contentType  = CursorUtil.requireString(cursor, CONTENT_TYPE);
+      String transferFile = CursorUtil.requireString(cursor, TRANSFER_FILE);
 
       database.delete(TABLE_NAME, PART_ID_WHERE, id.toStrings());
       deleteAttachmentOnDisk(data, contentType, id);
+      deleteTransferFile(transferFile);
       notifyAttachmentListeners();
     }
   }
@@ -444,9 +525,14 @@ public class AttachmentDatabase extends Database {
     db.delete(TABLE_NAME, where, null);
   }
 
+  /**
+   * Deletes files that no attachment refers to. Transfer files of downloads that can still be
+   * resumed are kept, along with the download state stored next to them.
+   */
   public void deleteAbandonedAttachmentFiles() {
-    Set<String> filesOnDisk = new HashSet<>();
-    Set<String> filesInDb   = new HashSet<>();
+    Set<String> filesOnDisk   = new HashSet<>();
+    Set<String> filesInDb     = new HashSet<>();
+    Set<String> transferFiles = new HashSet<>();
 
     File attachmentDirectory = context.getDir(DIRECTORY, Context.MODE_PRIVATE);
     for (File file : attachmentDirectory.listFiles()) {
@@ -459,33 +545,64 @@ public class AttachmentDatabase extends Database {
       }
     }
 
+    try (Cursor cursor = databaseHelper.getReadableDatabase().query(true, TABLE_NAME, new String[] { TRANSFER_FILE }, TRANSFER_FILE + " NOT NULL", null, null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        transferFiles.add(CursorUtil.requireString(cursor, TRANSFER_FILE));
+      }
+    }
+
     filesInDb.addAll(DatabaseFactory.getStickerDatabase(context).getAllStickerFiles());
 
     Set<String> onDiskButNotInDatabase = SetUtil.difference(filesOnDisk, filesInDb);
 
     for (String filePath : onDiskButNotInDatabase) {
+      if (isTransferFileOrState(filePath, transferFiles)) {
+        continue;
+      }
+
       //noinspection ResultOfMethodCallIgnored
       new File(filePath).delete();
     }
+
+    databaseHelper.getWritableDatabase().delete(REFERENCE_TABLE_NAME, REFERENCE_COUNT + " <= 0", null);
+  }
+
+  private static boolean isTransferFileOrState(@NonNull String filePath, @NonNull Set<String> transferFiles) {
+    for (String transferFile : transferFiles) {
+      if (filePath.startsWith(transferFile)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void deleteTransferFile(@Nullable String transferFile) {
+    if (transferFile != null) {
+      SignalServiceMessageReceiver.deleteAttachmentDownload(new File(transferFile));
+    }
   }
 
   @SuppressWarnings("ResultOfMethodCallIgnored")
   void deleteAllAttachments() {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, null, null);
+    database.delete(REFERENCE_TABLE_NAME, null, null);
 
     FileUtils.deleteDirectoryContents(context.getDir(DIRECTORY, Context.MODE_PRIVATE));
 
     notifyAttachmentListeners();
   }
 
+  /**
+   * Deletes the file once no attachment strongly references it anymore. Must be called after the
+   * attachment's own row has been deleted or had its data cleared. Quotes only weakly reference a
+   * file, so they lose their data along with it.
+   */
   private void deleteAttachmentOnDisk(@Nullable String data,
                                       @Nullable String contentType,
                                       @NonNull AttachmentId attachmentId)
   {
-    DataUsageResult dataUsage = getAttachmentFileUsages(data, attachmentId);
-
-    if (dataUsage.hasStrongReference()) {
+    if (data != null && getStrongReferenceCount(data) > 0) {
       Log.i(TAG, "[deleteAttachmentOnDisk] Attachment in use. Skipping deletion. " + data + " " + attachmentId);
       return;
     }
@@ -496,33 +613,18 @@ public class AttachmentDatabase extends Database {
       if (new File(data).delete()) {
         Log.i(TAG, "[deleteAttachmentOnDisk] Deleted attachment file. " + data + " " + attachmentId);
 
-        List<AttachmentId> removableWeakReferences = dataUsage.getRemovableWeakReferences();
-
-        if (removableWeakReferences.size() > 0) {
-          Log.i(TAG, String.format(Locale.US, "[deleteAttachmentOnDisk] Deleting %d weak references for %s", removableWeakReferences.size(), data));
-          SQLiteDatabase database     = databaseHelper.getWritableDatabase();
-          int            deletedCount = 0;
-          database.beginTransaction();
-          try {
-            for (AttachmentId weakReference : removableWeakReferences) {
-              Log.i(TAG, String.format("[deleteAttachmentOnDisk] Clearing weak reference for %s %s", data, weakReference));
-              ContentValues values = new ContentValues();
-              values.putNull(DATA);
-              values.putNull(DATA_RANDOM);
-              values.putNull(DATA_HASH);
-              deletedCount += database.update(TABLE_NAME, values, PART_ID_WHERE, weakReference.toStrings());
-            }
-            database.setTransactionSuccessful();
-          } finally {
-            database.endTransaction();
-          }
-          String logMessage = String.format(Locale.US, "[deleteAttachmentOnDisk] Cleared %d/%d weak references for %s", deletedCount, removableWeakReferences.size(), data);
-          if (deletedCount != removableWeakReferences.size()) {
-            Log.w(TAG, logMessage);
-          } else {
-            Log.i(TAG, logMessage);
-          }
+        SQLiteDatabase database = databaseHelper.getWritableDatabase();
+        ContentValues  values   = new ContentValues();
+        values.putNull(DATA);
+        values.putNull(DATA_RANDOM);
+        values.putNull(DATA_HASH);
+
+        int clearedCount = database.update(TABLE_NAME, values, DATA + " = ?", new String[] { data });
+        if (clearedCount > 0) {
+          Log.i(TAG, String.format(Locale.US, "[deleteAttachmentOnDisk] Cleared %d weak references for %s", clearedCount, data));
         }
+
+        database.delete(REFERENCE_TABLE_NAME, DATA + " = ?", new String[] { data });
       } else {
         Log.w(TAG, "[deleteAttachmentOnDisk] Failed to delete attachment. " + data + " " + attachmentId);
       }
@@ -533,36 +635,79 @@ public class AttachmentDatabase extends Database {
     }
   }
 
-  private @NonNull DataUsageResult getAttachmentFileUsages(@Nullable String data, @NonNull AttachmentId attachmentId) {
-    if (data == null) return DataUsageResult.NOT_IN_USE;
-
-    SQLiteDatabase     database  = databaseHelper.getReadableDatabase();
-    String             selection = DATA + " = ? AND " + UNIQUE_ID + " != ? AND " + ROW_ID + " != ?";
-    String[]           args      = {data, Long.toString(attachmentId.getUniqueId()), Long.toString(attachmentId.getRowId())};
-    List<AttachmentId> quoteRows = new LinkedList<>();
+  private int getStrongReferenceCount(@NonNull String data) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
 
-    try (Cursor cursor = database.query(TABLE_NAME, new String[]{ROW_ID, UNIQUE_ID, QUOTE}, selection, args, null, null, null, null)) {
-      while (cursor.moveToNext()) {
-        boolean isQuote = cursor.getInt(cursor.getColumnIndexOrThrow(QUOTE)) == 1;
-        if (isQuote) {
-          quoteRows.add(new AttachmentId(cursor.getLong(cursor.getColumnIndexOrThrow(ROW_ID)), cursor.getLong(cursor.getColumnIndexOrThrow(UNIQUE_ID))));
-        } else {
-          return DataUsageResult.IN_USE;
-        }
+    try (Cursor cursor = database.query(REFERENCE_TABLE_NAME, new String[]{REFERENCE_COUNT}, DATA + " = ?", new String[]{data}, null, null, null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return CursorUtil.requireInt(cursor, REFERENCE_COUNT);
       }
     }
 
-    return new DataUsageResult(quoteRows);
+    return 0;
   }
 
   public void insertAttachmentsForPlaceholder(long mmsId, @NonNull AttachmentId attachmentId, @NonNull InputStream inputStream)
       throws MmsException
+  {
+    insertAttachmentDataForPlaceholder(mmsId, attachmentId, setAttachmentData(inputStream, attachmentId));
+  }
+
+  /**
+   * Completes the placeholder with the data file of an attachment that has already been downloaded
+   * with the same digest and key, which is what the same file forwarded into several conversations
+   * looks like. Nothing needs to be downloaded or written then.
+   *
+   * @return True if a matching attachment was found and the placeholder is done.
+   */
+  public boolean insertAttachmentsForPlaceholderFromMatchingDigest(long mmsId, @NonNull AttachmentId attachmentId, @Nullable byte[] digest, @Nullable String key)
+      throws MmsException
+  {
+    if (digest == null || key == null) {
+      return false;
+    }
+
+    String   query = "SELECT " + DATA + ", " + SIZE + ", " + DATA_RANDOM + ", " + DATA_HASH + " FROM " + TABLE_NAME +
+                     " WHERE " + DIGEST + " = ? AND " + CONTENT_DISPOSITION + " = ? AND " + TRANSFER_STATE + " = ? AND " +
+                     DATA + " NOT NULL AND " + DATA_HASH + " NOT NULL AND NOT (" + PART_ID_WHERE + ") LIMIT 1";
+    Object[] args  = new Object[] { digest, key, TRANSFER_PROGRESS_DONE, attachmentId.getRowId(), attachmentId.getUniqueId() };
+
+    DataInfo dataInfo;
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, args)) {
+      if (cursor == null || !cursor.moveToFirst()) {
+        return false;
+      }
+
+      dataInfo = new DataInfo(new File(CursorUtil.requireString(cursor, DATA)),
+                              CursorUtil.requireLong(cursor, SIZE),
+                              CursorUtil.requireBlob(cursor, DATA_RANDOM),
+                              CursorUtil.requireString(cursor, DATA_HASH));
+    }
+
+    Log.i(TAG, "[insertAttachmentsForPlaceholderFromMatchingDigest] Referencing an existing data file. " + dataInfo.file.getAbsolutePath());
+    insertAttachmentDataForPlaceholder(mmsId, attachmentId, dataInfo);
+
+    return true;
+  }
+
+  /**
+   * Commits the data streamed into {@code writer} as the content of the placeholder. The writer must
+   * only be committed once its data has been verified, see {@link #openDataWriter()}.
+   */
+  public void insertAttachmentsForPlaceholder(long mmsId, @NonNull AttachmentId attachmentId, @NonNull DataWriter writer)
+      throws MmsException
+  {
+    insertAttachmentDataForPlaceholder(mmsId, attachmentId, writer.commit(attachmentId));
+  }
+
+  private void insertAttachmentDataForPlaceholder(long mmsId, @NonNull AttachmentId attachmentId, @NonNull DataInfo dataInfo)
+      throws MmsException
   {
     DatabaseAttachment placeholder  = getAttachment(attachmentId);
     SQLiteDatabase     database     = databaseHelper.getWritableDatabase();
     ContentValues      values       = new ContentValues();
     DataInfo           oldInfo      = getAttachmentDataFileInfo(attachmentId, DATA);
-    DataInfo           dataInfo     = setAttachmentData(inputStream, attachmentId);
     File               transferFile = getTransferFile(databaseHelper.getReadableDatabase(), attachmentId);
 
     if (oldInfo != null) {
@@ -585,16 +730,17 @@ public class AttachmentDatabase extends Database {
     values.put(TRANSFORM_PROPERTIES, TransformProperties.forSkipTransform().serialize());
 
     if (database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings()) == 0) {
-      //noinspection ResultOfMethodCallIgnored
-      dataInfo.file.delete();
+      if (getStrongReferenceCount(dataInfo.file.getAbsolutePath()) == 0) {
+        //noinspection ResultOfMethodCallIgnored
+        dataInfo.file.delete();
+      }
     } else {
       notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(mmsId));
       notifyConversationListListeners();
     }
 
     if (transferFile != null) {
-      //noinspection ResultOfMethodCallIgnored
-      transferFile.delete();
+      SignalServiceMessageReceiver.deleteAttachmentDownload(transferFile);
     }
   }
 
@@ -793,6 +939,53 @@ public class AttachmentDatabase extends Database {
     Log.i(TAG, "[updateAttachmentData] Updated " + updateCount + " rows.");
   }
 
+  /**
+   * Like {@link #updateAttachmentData(DatabaseAttachment, MediaStream, boolean)}, for data that has
+   * already been streamed into a writer from {@link #openDataWriter()}, so it doesn't have to be
+   * copied into the attachment's file afterwards. Unless only this attachment is modified, every
+   * attachment that shares the previous file moves to the new one. The previous file is deleted once
+   * its strong reference count drops to zero.
+   */
+  public void updateAttachmentData(@NonNull DatabaseAttachment databaseAttachment,
+                                   @NonNull DataWriter writer,
+                                   @NonNull String mimeType,
+                                   boolean onlyModifyThisAttachment)
+      throws MmsException
+  {
+    SQLiteDatabase database    = databaseHelper.getWritableDatabase();
+    DataInfo       oldDataInfo = getAttachmentDataFileInfo(databaseAttachment.getAttachmentId(), DATA);
+
+    if (oldDataInfo == null) {
+      throw new MmsException("No attachment data found!");
+    }
+
+    DataInfo dataInfo = writer.commit(databaseAttachment.getAttachmentId());
+
+    ContentValues contentValues = new ContentValues();
+    contentValues.put(SIZE, dataInfo.length);
+    contentValues.put(CONTENT_TYPE, mimeType);
+    contentValues.put(WIDTH, 0);
+    contentValues.put(HEIGHT, 0);
+    contentValues.put(DATA, dataInfo.file.getAbsolutePath());
+    contentValues.put(DATA_RANDOM, dataInfo.random);
+    contentValues.put(DATA_HASH, dataInfo.hash);
+
+    String oldData = oldDataInfo.file.getAbsolutePath();
+    int    updateCount;
+
+    if (onlyModifyThisAttachment) {
+      updateCount = database.update(TABLE_NAME, contentValues, PART_ID_WHERE, databaseAttachment.getAttachmentId().toStrings());
+    } else {
+      updateCount = database.update(TABLE_NAME, contentValues, DATA + " = ?", new String[] { oldData });
+    }
+
+    Log.i(TAG, "[updateAttachmentData] Updated " + updateCount + " rows from a writer.");
+
+    if (!oldDataInfo.file.equals(dataInfo.file)) {
+      deleteAttachmentOnDisk(oldData, databaseAttachment.getContentType(), databaseAttachment.getAttachmentId());
+    }
+  }
+
   /**
    * Returns true if the file referenced by two or more attachments.
    * Returns false if the file is referenced by zero or one attachments.
@@ -1013,6 +1206,15 @@ public class AttachmentDatabase extends Database {
                                               @Nullable AttachmentId attachmentId)
       throws MmsException
   {
+    if (PartAuthority.isAttachmentUri(uri)) {
+      DataInfo sourceDataInfo = getAttachmentDataFileInfo(PartAuthority.requireAttachmentId(uri), DATA);
+
+      if (sourceDataInfo != null && sourceDataInfo.hash != null) {
+        Log.i(TAG, "[setAttachmentData] Referencing the data file of the source attachment. " + sourceDataInfo.file.getAbsolutePath());
+        return sourceDataInfo;
+      }
+    }
+
     try {
       InputStream inputStream = PartAuthority.getAttachmentStream(context, uri);
       return setAttachmentData(inputStream, attachmentId);
@@ -1050,20 +1252,43 @@ public class AttachmentDatabase extends Database {
       long                       length            = StreamUtil.copy(digestInputStream, out.second);
       String                     hash              = Base64.encodeBytes(digestInputStream.getMessageDigest().digest());
 
-      SQLiteDatabase     database       = databaseHelper.getWritableDatabase();
-      Optional<DataInfo> sharedDataInfo = findDuplicateDataFileInfo(database, hash, attachmentId);
-      if (sharedDataInfo.isPresent()) {
-        Log.i(TAG, "[setAttachmentData] Duplicate data file found! " + sharedDataInfo.get().file.getAbsolutePath());
-        if (!destination.equals(sharedDataInfo.get().file) && destination.delete()) {
-          Log.i(TAG, "[setAttachmentData] Deleted original file. " + destination);
-        }
-        return sharedDataInfo.get();
-      } else {
-        Log.i(TAG, "[setAttachmentData] No matching attachment data found. " + destination.getAbsolutePath());
+      return deduplicateAttachmentData(new DataInfo(destination, length, out.first, hash), attachmentId);
+    } catch (IOException | NoSuchAlgorithmException e) {
+      throw new MmsException(e);
+    }
+  }
+
+  private @NonNull DataInfo deduplicateAttachmentData(@NonNull DataInfo dataInfo, @Nullable AttachmentId attachmentId) {
+    File               destination    = dataInfo.file;
+    SQLiteDatabase     database       = databaseHelper.getWritableDatabase();
+    Optional<DataInfo> sharedDataInfo = findDuplicateDataFileInfo(database, dataInfo.hash, attachmentId);
+    if (sharedDataInfo.isPresent()) {
+      Log.i(TAG, "[setAttachmentData] Duplicate data file found! " + sharedDataInfo.get().file.getAbsolutePath());
+      if (!destination.equals(sharedDataInfo.get().file) && destination.delete()) {
+        Log.i(TAG, "[setAttachmentData] Deleted original file. " + destination);
       }
+      return sharedDataInfo.get();
+    } else {
+      Log.i(TAG, "[setAttachmentData] No matching attachment data found. " + destination.getAbsolutePath());
+    }
 
-      return new DataInfo(destination, length, out.first, hash);
-    } catch (IOException | NoSuchAlgorithmException e) {
+    return dataInfo;
+  }
+
+  /**
+   * Opens a new part file that attachment data can be streamed into while it is being produced, e.g.
+   * decrypted from the network. The data is encrypted with the local key and hashed on the way in.
+   * The writer must either be committed with {@link #insertAttachmentsForPlaceholder(long, AttachmentId, DataWriter)}
+   * or {@link #updateAttachmentData(DatabaseAttachment, DataWriter, String, boolean)}, or closed,
+   * which deletes the file.
+   */
+  public @NonNull DataWriter openDataWriter() throws MmsException {
+    try {
+      File                       destination = newFile();
+      Pair<byte[], OutputStream> out         = ModernEncryptingPartOutputStream.createFor(attachmentSecret, destination, false);
+
+      return new DataWriter(destination, out.first, out.second);
+    } catch (IOException e) {
       throw new MmsException(e);
     }
   }
@@ -1345,50 +1570,87 @@ public class AttachmentDatabase extends Database {
     return EncryptedMediaDataSource.createFor(attachmentSecret, dataInfo.file, dataInfo.random, dataInfo.length);
   }
 
-  private static class DataInfo {
-    private final File   file;
-    private final long   length;
-    private final byte[] random;
-    private final String hash;
+  public final class DataWriter implements Closeable {
+    private final File               file;
+    private final byte[]             random;
+    private final DigestOutputStream outputStream;
+
+    private long    length;
+    private boolean committed;
+
+    private DataWriter(@NonNull File file, @NonNull byte[] random, @NonNull OutputStream outputStream) {
+      this.file         = file;
+      this.random       = random;
+      this.outputStream = new DigestOutputStream(outputStream, getSha256()) {
+        @Override
+        public void write(int b) throws IOException {
+          super.write(b);
+          length++;
+        }
 
-    private DataInfo(File file, long length, byte[] random, String hash) {
-      this.file   = file;
-      this.length = length;
-      this.random = random;
-      this.hash   = hash;
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+          super.write(buffer, offset, count);
+          length += count;
+        }
+      };
+    }
+
+    public @NonNull OutputStream getOutputStream() {
+      return outputStream;
     }
-  }
 
-  private static final class DataUsageResult {
-    private final boolean            hasStrongReference;
-    private final List<AttachmentId> removableWeakReferences;
+    private @NonNull DataInfo commit(@NonNull AttachmentId attachmentId) throws MmsException {
+      try {
+        outputStream.close();
+      } catch (IOException e) {
+        throw new MmsException(e);
+      }
 
-    private static final DataUsageResult IN_USE     = new DataUsageResult(true, Collections.emptyList());
-    private static final DataUsageResult NOT_IN_USE = new DataUsageResult(false, Collections.emptyList());
+      committed = true;
 
-    DataUsageResult(@NonNull List<AttachmentId> removableWeakReferences) {
-      this(false, removableWeakReferences);
+      String hash = Base64.encodeBytes(outputStream.getMessageDigest().digest());
+      return deduplicateAttachmentData(new DataInfo(file, length, random, hash), attachmentId);
     }
 
-    private DataUsageResult(boolean hasStrongReference, @NonNull List<AttachmentId> removableWeakReferences) {
-      if (hasStrongReference && removableWeakReferences.size() > 0) {
-        throw new AssertionError();
+    /**
+     * Discards the data unless it has been committed.
+     */
+    @Override
+    public void close() {
+      if (!committed) {
+        try {
+          outputStream.close();
+        } catch (IOException e) {
+          Log.w(TAG, e);
+        }
+
+        if (!file.delete()) {
+          Log.w(TAG, "Failed to delete uncommitted data file " + file);
+        }
       }
-      this.hasStrongReference      = hasStrongReference;
-      this.removableWeakReferences = removableWeakReferences;
     }
 
-    boolean hasStrongReference() {
-      return hasStrongReference;
+    private MessageDigest getSha256() {
+      try {
+        return MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
     }
+  }
 
-    /**
-     * Entries in here can be removed from the database.
-     * <p>
-     * Only possible to be non-empty when {@link #hasStrongReference} is false.
-     */
-    @NonNull List<AttachmentId> getRemovableWeakReferences() {
-      return removableWeakReferences;
+  private static class DataInfo {
+    private final File   file;
+    private final long   length;
+    private final byte[] random;
+    private final String hash;
+
+    private DataInfo(File file, long length, byte[] random, String hash) {
+      this.file   = file;
+      this.length = length;
+      this.random = random;
+      this.hash   = hash;
     }
   }
 
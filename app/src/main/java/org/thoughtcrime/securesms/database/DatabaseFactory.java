@@ -179,6 +179,7 @@ public class DatabaseFactory {
       getInstance(context).databaseHelper.onUpgrade(database, database.getVersion(), -1);
       getInstance(context).databaseHelper.markCurrent(database);
       getInstance(context).mms.trimEntriesForExpiredMessages();
+      getInstance(context).thread.recountMessages();
       getInstance(context).getRawDatabase().rawExecSQL("DROP TABLE IF EXISTS key_value");
       getInstance(context).getRawDatabase().rawExecSQL("DROP TABLE IF EXISTS megaphone");
       getInstance(context).getRawDatabase().rawExecSQL("DROP TABLE IF EXISTS job_spec");
@@ -73,6 +73,32 @@ public class GroupReceiptDatabase extends Database {
               new String[] {String.valueOf(mmsId), recipientId.serialize(), String.valueOf(status)});
   }
 
+  /**
+   * Applies the receipts for a single message in one transaction.
+   *
+   * @param receipts The recipients the receipts are from, paired with the time of each receipt.
+   */
+  public void update(long mmsId, int status, @NonNull Collection<Pair<RecipientId, Long>> receipts) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+    try {
+      String query = MMS_ID + " = ? AND " + RECIPIENT_ID + " = ? AND " + STATUS + " < ?";
+
+      for (Pair<RecipientId, Long> receipt : receipts) {
+        ContentValues values = new ContentValues(2);
+        values.put(STATUS, status);
+        values.put(TIMESTAMP, receipt.second());
+
+        db.update(TABLE_NAME, values, query, new String[] {String.valueOf(mmsId), receipt.first().serialize(), String.valueOf(status)});
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
   public void setUnidentified(Collection<Pair<RecipientId, Boolean>> results, long mmsId) {
     SQLiteDatabase db  = databaseHelper.getWritableDatabase();
 
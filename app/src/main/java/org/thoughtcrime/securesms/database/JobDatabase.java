@@ -5,6 +5,7 @@ import android.content.ContentValues;
 import android.database.Cursor;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.annimon.stream.Stream;
 
@@ -14,12 +15,16 @@ import net.sqlcipher.database.SQLiteDatabase;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.crypto.DatabaseSecret;
 import org.thoughtcrime.securesms.crypto.DatabaseSecretProvider;
+import org.thoughtcrime.securesms.jobmanager.BinaryDataSerializer;
+import org.thoughtcrime.securesms.jobmanager.Data;
+import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer;
 import org.thoughtcrime.securesms.jobmanager.persistence.ConstraintSpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.DependencySpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
 import org.thoughtcrime.securesms.util.CursorUtil;
 
+import java.nio.charset.StandardCharsets;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -27,7 +32,8 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabase {
 
   private static final String TAG = Log.tag(JobDatabase.class);
 
-  private static final int    DATABASE_VERSION = 1;
+  private static final int    BINARY_JOB_DATA  = 2;
+  private static final int    DATABASE_VERSION = 2;
   private static final String DATABASE_NAME    = "signal-jobmanager.db";
 
   private static final class Jobs {
@@ -54,8 +60,8 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabase {
                                                                                     RUN_ATTEMPT           + " INTEGER, " +
                                                                                     MAX_ATTEMPTS          + " INTEGER, " +
                                                                                     LIFESPAN              + " INTEGER, " +
-                                                                                    SERIALIZED_DATA       + " TEXT, " +
-                                                                                    SERIALIZED_INPUT_DATA + " TEXT DEFAULT NULL, " +
+                                                                                    SERIALIZED_DATA       + " BLOB, " +
+                                                                                    SERIALIZED_INPUT_DATA + " BLOB DEFAULT NULL, " +
                                                                                     IS_RUNNING            + " INTEGER)";
   }
 
@@ -115,9 +121,11 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabase {
     db.execSQL(Constraints.CREATE_TABLE);
     db.execSQL(Dependencies.CREATE_TABLE);
 
+    List<String> droppedJobSpecIds = new LinkedList<>();
+
     if (DatabaseFactory.getInstance(application).hasTable("job_spec")) {
       Log.i(TAG, "Found old job_spec table. Migrating data.");
-      migrateJobSpecsFromPreviousDatabase(DatabaseFactory.getInstance(application).getRawDatabase(), db);
+      droppedJobSpecIds = migrateJobSpecsFromPreviousDatabase(DatabaseFactory.getInstance(application).getRawDatabase(), db);
     }
 
     if (DatabaseFactory.getInstance(application).hasTable("constraint_spec")) {
@@ -129,11 +137,19 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabase {
       Log.i(TAG, "Found old dependency_spec table. Migrating data.");
       migrateDependencySpecsFromPreviousDatabase(DatabaseFactory.getInstance(application).getRawDatabase(), db);
     }
+
+    for (String jobSpecId : droppedJobSpecIds) {
+      deleteJobReferences(db, jobSpecId);
+    }
   }
 
   @Override
   public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
     Log.i(TAG, "onUpgrade(" + oldVersion + ", " + newVersion + ")");
+
+    if (oldVersion < BINARY_JOB_DATA) {
+      migrateToBinaryJobData(db);
+    }
   }
 
   @Override
@@ -189,7 +205,7 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabase {
     getWritableDatabase().update(Jobs.TABLE_NAME, contentValues, query, args);
   }
 
-  public synchronized void updateJobAfterRetry(@NonNull String id, boolean isRunning, int runAttempt, long nextRunAttemptTime, @NonNull String serializedData) {
+  public synchronized void updateJobAfterRetry(@NonNull String id, boolean isRunning, int runAttempt, long nextRunAttemptTime, @NonNull byte[] serializedData) {
     ContentValues contentValues = new ContentValues();
     contentValues.put(Jobs.IS_RUNNING, isRunning ? 1 : 0);
     contentValues.put(Jobs.RUN_ATTEMPT, runAttempt);
@@ -344,8 +360,8 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabase {
                        cursor.getInt(cursor.getColumnIndexOrThrow(Jobs.RUN_ATTEMPT)),
                        cursor.getInt(cursor.getColumnIndexOrThrow(Jobs.MAX_ATTEMPTS)),
                        cursor.getLong(cursor.getColumnIndexOrThrow(Jobs.LIFESPAN)),
-                       cursor.getString(cursor.getColumnIndexOrThrow(Jobs.SERIALIZED_DATA)),
-                       cursor.getString(cursor.getColumnIndexOrThrow(Jobs.SERIALIZED_INPUT_DATA)),
+                       cursor.getBlob(cursor.getColumnIndexOrThrow(Jobs.SERIALIZED_DATA)),
+                       cursor.getBlob(cursor.getColumnIndexOrThrow(Jobs.SERIALIZED_INPUT_DATA)),
                        cursor.getInt(cursor.getColumnIndexOrThrow(Jobs.IS_RUNNING)) == 1,
                        false);
   }
@@ -382,12 +398,28 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabase {
     }
   }
 
-  private static void migrateJobSpecsFromPreviousDatabase(@NonNull SQLiteDatabase oldDb, @NonNull SQLiteDatabase newDb) {
+  /**
+   * @return The IDs of jobs whose data could not be read. They are not copied over, and their
+   *         constraints and dependencies should be removed once those have been migrated.
+   */
+  private static @NonNull List<String> migrateJobSpecsFromPreviousDatabase(@NonNull SQLiteDatabase oldDb, @NonNull SQLiteDatabase newDb) {
+    List<String> dropped = new LinkedList<>();
+
     try (Cursor cursor = oldDb.rawQuery("SELECT * FROM job_spec", null)) {
       while (cursor.moveToNext()) {
-        ContentValues values = new ContentValues();
+        String        jobSpecId = CursorUtil.requireString(cursor, "job_spec_id");
+        ContentValues values    = new ContentValues();
+
+        try {
+          values.put(Jobs.SERIALIZED_DATA, jsonToBinary(CursorUtil.requireString(cursor, "serialized_data")));
+          values.put(Jobs.SERIALIZED_INPUT_DATA, jsonToBinary(CursorUtil.requireString(cursor, "serialized_input_data")));
+        } catch (AssertionError | RuntimeException e) {
+          Log.w(TAG, "Failed to read the data of job " + jobSpecId + ". Dropping it.", e);
+          dropped.add(jobSpecId);
+          continue;
+        }
 
-        values.put(Jobs.JOB_SPEC_ID, CursorUtil.requireString(cursor, "job_spec_id"));
+        values.put(Jobs.JOB_SPEC_ID, jobSpecId);
         values.put(Jobs.FACTORY_KEY, CursorUtil.requireString(cursor, "factory_key"));
         values.put(Jobs.QUEUE_KEY, CursorUtil.requireString(cursor, "queue_key"));
         values.put(Jobs.CREATE_TIME, CursorUtil.requireLong(cursor, "create_time"));
@@ -395,13 +427,78 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabase {
         values.put(Jobs.RUN_ATTEMPT, CursorUtil.requireInt(cursor, "run_attempt"));
         values.put(Jobs.MAX_ATTEMPTS, CursorUtil.requireInt(cursor, "max_attempts"));
         values.put(Jobs.LIFESPAN, CursorUtil.requireLong(cursor, "lifespan"));
-        values.put(Jobs.SERIALIZED_DATA, CursorUtil.requireString(cursor, "serialized_data"));
-        values.put(Jobs.SERIALIZED_INPUT_DATA, CursorUtil.requireString(cursor, "serialized_input_data"));
         values.put(Jobs.IS_RUNNING, CursorUtil.requireInt(cursor, "is_running"));
 
         newDb.insert(Jobs.TABLE_NAME, null, values);
       }
     }
+
+    return dropped;
+  }
+
+  /**
+   * Job data used to be stored as JSON text. Rebuilds the table with BLOB columns and rewrites the
+   * data of every job with the {@link BinaryDataSerializer}. Jobs whose data can't be read are
+   * dropped, along with their constraints and dependencies, rather than failing the upgrade.
+   */
+  private static void migrateToBinaryJobData(@NonNull SQLiteDatabase db) {
+    db.execSQL("ALTER TABLE " + Jobs.TABLE_NAME + " RENAME TO " + Jobs.TABLE_NAME + "_json");
+    db.execSQL(Jobs.CREATE_TABLE);
+
+    int count   = 0;
+    int dropped = 0;
+
+    try (Cursor cursor = db.rawQuery("SELECT * FROM " + Jobs.TABLE_NAME + "_json", null)) {
+      while (cursor.moveToNext()) {
+        String        jobSpecId = CursorUtil.requireString(cursor, Jobs.JOB_SPEC_ID);
+        ContentValues values    = new ContentValues();
+
+        try {
+          values.put(Jobs.SERIALIZED_DATA, jsonToBinary(CursorUtil.requireString(cursor, Jobs.SERIALIZED_DATA)));
+          values.put(Jobs.SERIALIZED_INPUT_DATA, jsonToBinary(CursorUtil.requireString(cursor, Jobs.SERIALIZED_INPUT_DATA)));
+        } catch (AssertionError | RuntimeException e) {
+          Log.w(TAG, "Failed to read the data of job " + jobSpecId + ". Dropping it.", e);
+          deleteJobReferences(db, jobSpecId);
+          dropped++;
+          continue;
+        }
+
+        values.put(Jobs.ID, CursorUtil.requireLong(cursor, Jobs.ID));
+        values.put(Jobs.JOB_SPEC_ID, jobSpecId);
+        values.put(Jobs.FACTORY_KEY, CursorUtil.requireString(cursor, Jobs.FACTORY_KEY));
+        values.put(Jobs.QUEUE_KEY, CursorUtil.requireString(cursor, Jobs.QUEUE_KEY));
+        values.put(Jobs.CREATE_TIME, CursorUtil.requireLong(cursor, Jobs.CREATE_TIME));
+        values.put(Jobs.NEXT_RUN_ATTEMPT_TIME, CursorUtil.requireLong(cursor, Jobs.NEXT_RUN_ATTEMPT_TIME));
+        values.put(Jobs.RUN_ATTEMPT, CursorUtil.requireInt(cursor, Jobs.RUN_ATTEMPT));
+        values.put(Jobs.MAX_ATTEMPTS, CursorUtil.requireInt(cursor, Jobs.MAX_ATTEMPTS));
+        values.put(Jobs.LIFESPAN, CursorUtil.requireLong(cursor, Jobs.LIFESPAN));
+        values.put(Jobs.IS_RUNNING, CursorUtil.requireInt(cursor, Jobs.IS_RUNNING));
+
+        db.insert(Jobs.TABLE_NAME, null, values);
+        count++;
+      }
+    }
+
+    db.execSQL("DROP TABLE " + Jobs.TABLE_NAME + "_json");
+
+    Log.i(TAG, "Migrated " + count + " job(s) to binary data. Dropped " + dropped + " unreadable job(s).");
+  }
+
+  private static void deleteJobReferences(@NonNull SQLiteDatabase db, @NonNull String jobSpecId) {
+    String[] arg = new String[]{jobSpecId};
+
+    db.delete(Constraints.TABLE_NAME, Constraints.JOB_SPEC_ID + " = ?", arg);
+    db.delete(Dependencies.TABLE_NAME, Dependencies.JOB_SPEC_ID + " = ?", arg);
+    db.delete(Dependencies.TABLE_NAME, Dependencies.DEPENDS_ON_JOB_SPEC_ID + " = ?", arg);
+  }
+
+  private static @Nullable byte[] jsonToBinary(@Nullable String json) {
+    if (json == null) {
+      return null;
+    }
+
+    Data data = new JsonDataSerializer().deserialize(json.getBytes(StandardCharsets.UTF_8));
+    return new BinaryDataSerializer().serialize(data);
   }
 
   private static void migrateConstraintSpecsFromPreviousDatabase(@NonNull SQLiteDatabase oldDb, @NonNull SQLiteDatabase newDb) {
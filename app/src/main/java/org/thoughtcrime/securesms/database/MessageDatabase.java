@@ -47,7 +47,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -76,7 +78,6 @@ public abstract class MessageDatabase extends Database implements MmsSmsColumns
   public abstract long getThreadIdForMessage(long id);
   public abstract int getMessageCountForThread(long threadId);
   public abstract int getMessageCountForThread(long threadId, long beforeTime);
-  abstract int getMessageCountForThreadSummary(long threadId);
   public abstract boolean hasMeaningfulMessage(long threadId);
   public abstract Optional<MmsNotificationInfo> getNotification(long messageId);
 
@@ -125,7 +126,8 @@ public abstract class MessageDatabase extends Database implements MmsSmsColumns
   public abstract void markDownloadState(long messageId, long state);
   public abstract void markIncomingNotificationReceived(long threadId);
 
-  public abstract Set<ThreadUpdate> incrementReceiptCount(SyncMessageId messageId, long timestamp, @NonNull ReceiptType receiptType);
+  public abstract ReceiptUpdates incrementReceiptCounts(@NonNull List<Pair<SyncMessageId, Long>> receipts, @NonNull ReceiptType receiptType);
+  abstract void addEarlyDeliveryReceipt(@NonNull SyncMessageId receipt);
   public abstract List<Pair<Long, Long>> setTimestampRead(SyncMessageId messageId, long proposedExpireStarted, @NonNull Map<Long, Long> threadToLatestRead);
   public abstract List<MarkedMessageInfo> setEntireThreadRead(long threadId);
   public abstract List<MarkedMessageInfo> setMessagesReadSince(long threadId, long timestamp);
@@ -155,6 +157,7 @@ public abstract class MessageDatabase extends Database implements MmsSmsColumns
 
   public abstract Optional<InsertResult> insertMessageInbox(IncomingTextMessage message, long type);
   public abstract Optional<InsertResult> insertMessageInbox(IncomingTextMessage message);
+  public abstract @NonNull List<InsertResult> insertMessagesInbox(@NonNull List<IncomingTextMessage> messages);
   public abstract Optional<InsertResult> insertMessageInbox(IncomingMediaMessage retrieved, String contentLocation, long threadId) throws MmsException;
   public abstract Pair<Long, Long> insertMessageInbox(@NonNull NotificationInd notification, int subscriptionId);
   public abstract Optional<InsertResult> insertSecureDecryptedMessageInbox(IncomingMediaMessage retrieved, long threadId) throws MmsException;
@@ -604,7 +607,7 @@ public abstract class MessageDatabase extends Database implements MmsSmsColumns
     return -1;
   }
 
-  protected enum ReceiptType {
+  public enum ReceiptType {
     READ(READ_RECEIPT_COUNT, GroupReceiptDatabase.STATUS_READ),
     DELIVERY(DELIVERY_RECEIPT_COUNT, GroupReceiptDatabase.STATUS_DELIVERED),
     VIEWED(VIEWED_RECEIPT_COUNT, GroupReceiptDatabase.STATUS_VIEWED);
@@ -749,6 +752,47 @@ public abstract class MessageDatabase extends Database implements MmsSmsColumns
     }
   }
 
+  /**
+   * Groups receipts by the sent timestamp of the message they're for.
+   */
+  static @NonNull Map<Long, List<Pair<SyncMessageId, Long>>> groupBySentTimestamp(@NonNull List<Pair<SyncMessageId, Long>> receipts) {
+    Map<Long, List<Pair<SyncMessageId, Long>>> grouped = new HashMap<>();
+
+    for (Pair<SyncMessageId, Long> receipt : receipts) {
+      List<Pair<SyncMessageId, Long>> forMessage = grouped.get(receipt.first().getTimetamp());
+
+      if (forMessage == null) {
+        forMessage = new LinkedList<>();
+        grouped.put(receipt.first().getTimetamp(), forMessage);
+      }
+
+      forMessage.add(receipt);
+    }
+
+    return grouped;
+  }
+
+  static class ReceiptUpdates {
+    private final Set<ThreadUpdate>  threadUpdates;
+    private final Set<SyncMessageId> matched;
+
+    ReceiptUpdates(@NonNull Set<ThreadUpdate> threadUpdates, @NonNull Set<SyncMessageId> matched) {
+      this.threadUpdates = threadUpdates;
+      this.matched       = matched;
+    }
+
+    public @NonNull Set<ThreadUpdate> getThreadUpdates() {
+      return threadUpdates;
+    }
+
+    /**
+     * @return The receipts that matched at least one message.
+     */
+    public @NonNull Set<SyncMessageId> getMatched() {
+      return matched;
+    }
+  }
+
   static class ThreadUpdate {
     private final long    threadId;
     private final boolean verbose;
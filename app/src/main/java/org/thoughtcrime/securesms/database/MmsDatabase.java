@@ -42,6 +42,7 @@ import org.thoughtcrime.securesms.attachments.MmsNotificationAttachment;
 import org.thoughtcrime.securesms.contactshare.Contact;
 import org.thoughtcrime.securesms.database.documents.IdentityKeyMismatch;
 import org.thoughtcrime.securesms.database.documents.IdentityKeyMismatchList;
+import org.thoughtcrime.securesms.database.documents.LazyDocumentList;
 import org.thoughtcrime.securesms.database.documents.NetworkFailure;
 import org.thoughtcrime.securesms.database.documents.NetworkFailureList;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
@@ -280,11 +281,6 @@ public class MmsDatabase extends MessageDatabase {
     throw new UnsupportedOperationException();
   }
 
-  @Override
-  int getMessageCountForThreadSummary(long threadId) {
-    return getMessageCountForThread(threadId);
-  }
-
   @Override
   public Cursor getExpirationStartedMessages() {
     String where = EXPIRE_STARTED + " > 0";
@@ -515,6 +511,11 @@ public class MmsDatabase extends MessageDatabase {
     throw new UnsupportedOperationException();
   }
 
+  @Override
+  public @NonNull List<InsertResult> insertMessagesInbox(@NonNull List<IncomingTextMessage> messages) {
+    throw new UnsupportedOperationException();
+  }
+
   @Override
   public long insertMessageOutbox(long threadId, OutgoingTextMessage message, boolean forceSms, long date, InsertListener insertListener) {
     throw new UnsupportedOperationException();
@@ -652,43 +653,62 @@ public class MmsDatabase extends MessageDatabase {
   }
 
   @Override
-  public Set<ThreadUpdate> incrementReceiptCount(SyncMessageId messageId, long timestamp, @NonNull ReceiptType receiptType) {
-    SQLiteDatabase    database      = databaseHelper.getWritableDatabase();
-    Set<ThreadUpdate> threadUpdates = new HashSet<>();
+  public @NonNull ReceiptUpdates incrementReceiptCounts(@NonNull List<Pair<SyncMessageId, Long>> receipts, @NonNull ReceiptType receiptType) {
+    if (receipts.isEmpty()) {
+      return new ReceiptUpdates(Collections.emptySet(), Collections.emptySet());
+    }
 
-    try (Cursor cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, MESSAGE_BOX, RECIPIENT_ID, receiptType.getColumnName()},
-                                        DATE_SENT + " = ?", new String[] {String.valueOf(messageId.getTimetamp())},
-                                        null, null, null, null))
+    SQLiteDatabase                             database           = databaseHelper.getWritableDatabase();
+    Map<Long, List<Pair<SyncMessageId, Long>>> receiptsBySentTime = groupBySentTimestamp(receipts);
+    String                                     query              = DATE_SENT + " IN (" + TextUtils.join(",", receiptsBySentTime.keySet()) + ")";
+    String                                     columnName         = receiptType.getColumnName();
+    Set<ThreadUpdate>                          threadUpdates      = new HashSet<>();
+    Set<SyncMessageId>                         matched            = new HashSet<>();
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, MESSAGE_BOX, RECIPIENT_ID, DATE_SENT, columnName},
+                                        query, null, null, null, null))
     {
       while (cursor.moveToNext()) {
-        if (Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(MESSAGE_BOX)))) {
-          RecipientId theirRecipientId = RecipientId.from(cursor.getLong(cursor.getColumnIndexOrThrow(RECIPIENT_ID)));
-          RecipientId ourRecipientId   = messageId.getRecipientId();
-          String      columnName       = receiptType.getColumnName();
-
-          if (ourRecipientId.equals(theirRecipientId) || Recipient.resolved(theirRecipientId).isGroup()) {
-            long    id               = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-            long    threadId         = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
-            int     status           = receiptType.getGroupStatus();
-            boolean isFirstIncrement = cursor.getLong(cursor.getColumnIndexOrThrow(columnName)) == 0;
+        if (!Types.isOutgoingMessageType(CursorUtil.requireLong(cursor, MESSAGE_BOX))) {
+          continue;
+        }
 
-            database.execSQL("UPDATE " + TABLE_NAME + " SET " +
-                             columnName + " = " + columnName + " + 1 WHERE " + ID + " = ?",
-                             new String[] {String.valueOf(id)});
+        RecipientId                   theirRecipientId = RecipientId.from(CursorUtil.requireLong(cursor, RECIPIENT_ID));
+        boolean                       isGroup          = Recipient.resolved(theirRecipientId).isGroup();
+        List<Pair<RecipientId, Long>> groupReceipts    = new LinkedList<>();
 
-            DatabaseFactory.getGroupReceiptDatabase(context).update(ourRecipientId, id, status, timestamp);
+        for (Pair<SyncMessageId, Long> receipt : receiptsBySentTime.get(CursorUtil.requireLong(cursor, DATE_SENT))) {
+          RecipientId ourRecipientId = receipt.first().getRecipientId();
 
-            threadUpdates.add(new ThreadUpdate(threadId, !isFirstIncrement));
+          if (ourRecipientId.equals(theirRecipientId) || isGroup) {
+            matched.add(receipt.first());
+            groupReceipts.add(new Pair<>(ourRecipientId, receipt.second()));
           }
         }
-      }
 
-      if (threadUpdates.size() > 0 && receiptType == ReceiptType.DELIVERY) {
-        earlyDeliveryReceiptCache.increment(messageId.getTimetamp(), messageId.getRecipientId());
-      }
+        if (groupReceipts.size() > 0) {
+          long    id               = CursorUtil.requireLong(cursor, ID);
+          long    threadId         = CursorUtil.requireLong(cursor, THREAD_ID);
+          boolean isFirstIncrement = CursorUtil.requireLong(cursor, columnName) == 0;
+
+          database.execSQL("UPDATE " + TABLE_NAME + " SET " +
+                           columnName + " = " + columnName + " + ? WHERE " + ID + " = ?",
+                           new Object[] {groupReceipts.size(), id});
+
+          DatabaseFactory.getGroupReceiptDatabase(context).update(id, receiptType.getGroupStatus(), groupReceipts);
+          DatabaseFactory.getThreadDatabase(context).incrementSnippetReceiptCount(threadId, id, true, receiptType, groupReceipts.size());
 
-      return threadUpdates;
+          threadUpdates.add(new ThreadUpdate(threadId, !isFirstIncrement));
+        }
+      }
     }
+
+    return new ReceiptUpdates(threadUpdates, matched);
+  }
+
+  @Override
+  void addEarlyDeliveryReceipt(@NonNull SyncMessageId receipt) {
+    earlyDeliveryReceiptCache.increment(receipt.getTimetamp(), receipt.getRecipientId());
   }
 
   @Override
@@ -1362,7 +1382,6 @@ public class MmsDatabase extends MessageDatabase {
 
     if (!Types.isExpirationTimerUpdate(mailbox)) {
       DatabaseFactory.getThreadDatabase(context).incrementUnread(threadId, 1);
-      DatabaseFactory.getThreadDatabase(context).update(threadId, true);
     }
 
     notifyConversationListeners(threadId);
@@ -1590,9 +1609,11 @@ public class MmsDatabase extends MessageDatabase {
     contentValues.put(PART_COUNT, allAttachments.size());
     contentValues.put(MENTIONS_SELF, mentionsSelf ? 1 : 0);
 
+    long messageId = -1;
+
     db.beginTransaction();
     try {
-      long messageId = db.insert(TABLE_NAME, null, contentValues);
+      messageId = db.insert(TABLE_NAME, null, contentValues);
 
       mentionDatabase.insert(threadId, messageId, mentions);
 
@@ -1634,7 +1655,12 @@ public class MmsDatabase extends MessageDatabase {
       }
 
       notifyConversationListeners(contentValues.getAsLong(THREAD_ID));
-      DatabaseFactory.getThreadDatabase(context).update(contentValues.getAsLong(THREAD_ID), true);
+
+      if (messageId > 0) {
+        DatabaseFactory.getThreadDatabase(context).updateForInsert(contentValues.getAsLong(THREAD_ID), messageId, true, true);
+      } else {
+        DatabaseFactory.getThreadDatabase(context).update(contentValues.getAsLong(THREAD_ID), true);
+      }
     }
   }
 
@@ -1654,7 +1680,7 @@ public class MmsDatabase extends MessageDatabase {
 
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).updateForDelete(threadId, messageId, true);
     notifyConversationListeners(threadId);
     notifyStickerListeners();
     notifyStickerPackListeners();
@@ -1973,12 +1999,24 @@ public class MmsDatabase extends MessageDatabase {
 
   public static class Reader implements MessageDatabase.Reader {
 
-    private final Cursor  cursor;
-    private final Context context;
+    private final Cursor                              cursor;
+    private final Context                             context;
+    private final Map<Long, List<DatabaseAttachment>> attachments;
+    private final Map<Long, Recipient>                recipients;
 
     public Reader(Cursor cursor) {
-      this.cursor  = cursor;
-      this.context = ApplicationDependencies.getApplication();
+      this(cursor, null);
+    }
+
+    /**
+     * @param attachments The attachments of the cursor's messages by message id, if they were loaded
+     *                    separately instead of being aggregated into the cursor.
+     */
+    Reader(Cursor cursor, @Nullable Map<Long, List<DatabaseAttachment>> attachments) {
+      this.cursor      = cursor;
+      this.context     = ApplicationDependencies.getApplication();
+      this.attachments = attachments;
+      this.recipients  = new HashMap<>();
     }
 
     @Override
@@ -2008,7 +2046,7 @@ public class MmsDatabase extends MessageDatabase {
       long      mailbox              = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.MESSAGE_BOX));
       long      recipientId          = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.RECIPIENT_ID));
       int       addressDeviceId      = cursor.getInt(cursor.getColumnIndexOrThrow(MmsDatabase.ADDRESS_DEVICE_ID));
-      Recipient recipient            = Recipient.live(RecipientId.from(recipientId)).get();
+      Recipient recipient            = getRecipient(recipientId);
 
       String    contentLocation      = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.CONTENT_LOCATION));
       String    transactionId        = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.TRANSACTION_ID));
@@ -2074,16 +2112,16 @@ public class MmsDatabase extends MessageDatabase {
         viewedReceiptCount = 0;
       }
 
-      Recipient                 recipient          = Recipient.live(RecipientId.from(recipientId)).get();
-      List<IdentityKeyMismatch> mismatches         = getMismatchedIdentities(mismatchDocument);
-      List<NetworkFailure>      networkFailures    = getFailures(networkDocument);
-      List<DatabaseAttachment>  attachments        = DatabaseFactory.getAttachmentDatabase(context).getAttachment(cursor);
+      Recipient                 recipient          = getRecipient(recipientId);
+      List<IdentityKeyMismatch> mismatches         = new LazyDocumentList<>(mismatchDocument, IdentityKeyMismatchList.class);
+      List<NetworkFailure>      networkFailures    = new LazyDocumentList<>(networkDocument, NetworkFailureList.class);
+      List<DatabaseAttachment>  attachments        = getAttachments(cursor);
       List<Contact>             contacts           = getSharedContacts(cursor, attachments);
       Set<Attachment>           contactAttachments = Stream.of(contacts).map(Contact::getAvatarAttachment).withoutNulls().collect(Collectors.toSet());
       List<LinkPreview>         previews           = getLinkPreviews(cursor, attachments);
       Set<Attachment>           previewAttachments = Stream.of(previews).filter(lp -> lp.getThumbnail().isPresent()).map(lp -> lp.getThumbnail().get()).collect(Collectors.toSet());
       SlideDeck                 slideDeck          = getSlideDeck(Stream.of(attachments).filterNot(contactAttachments::contains).filterNot(previewAttachments::contains).toList());
-      Quote                     quote              = getQuote(cursor);
+      Quote                     quote              = getQuote(cursor, attachments);
 
       return new MediaMmsMessageRecord(id, recipient, recipient,
                                        addressDeviceId, dateSent, dateReceived, dateServer, deliveryReceiptCount,
@@ -2093,28 +2131,18 @@ public class MmsDatabase extends MessageDatabase {
                                        remoteDelete, mentionsSelf, notifiedTimestamp, viewedReceiptCount);
     }
 
-    private List<IdentityKeyMismatch> getMismatchedIdentities(String document) {
-      if (!TextUtils.isEmpty(document)) {
-        try {
-          return JsonUtils.fromJson(document, IdentityKeyMismatchList.class).getList();
-        } catch (IOException e) {
-          Log.w(TAG, e);
-        }
-      }
+    /**
+     * Messages on a page mostly share a few recipients, so each one is only looked up once.
+     */
+    private @NonNull Recipient getRecipient(long recipientId) {
+      Recipient recipient = recipients.get(recipientId);
 
-      return new LinkedList<>();
-    }
-
-    private List<NetworkFailure> getFailures(String document) {
-      if (!TextUtils.isEmpty(document)) {
-        try {
-          return JsonUtils.fromJson(document, NetworkFailureList.class).getList();
-        } catch (IOException ioe) {
-          Log.w(TAG, ioe);
-        }
+      if (recipient == null) {
+        recipient = Recipient.live(RecipientId.from(recipientId)).get();
+        recipients.put(recipientId, recipient);
       }
 
-      return new LinkedList<>();
+      return recipient;
     }
 
     private SlideDeck getSlideDeck(@NonNull List<DatabaseAttachment> attachments) {
@@ -2125,17 +2153,27 @@ public class MmsDatabase extends MessageDatabase {
       return new SlideDeck(context, messageAttachments);
     }
 
-    private @Nullable Quote getQuote(@NonNull Cursor cursor) {
-      long                       quoteId          = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.QUOTE_ID));
-      long                       quoteAuthor      = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.QUOTE_AUTHOR));
-      CharSequence               quoteText        = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.QUOTE_BODY));
-      boolean                    quoteMissing     = cursor.getInt(cursor.getColumnIndexOrThrow(MmsDatabase.QUOTE_MISSING)) == 1;
-      List<Mention>              quoteMentions    = parseQuoteMentions(context, cursor);
-      List<DatabaseAttachment>   attachments      = DatabaseFactory.getAttachmentDatabase(context).getAttachment(cursor);
-      List<? extends Attachment> quoteAttachments = Stream.of(attachments).filter(Attachment::isQuote).toList();
-      SlideDeck                  quoteDeck        = new SlideDeck(context, quoteAttachments);
+    private @NonNull List<DatabaseAttachment> getAttachments(@NonNull Cursor cursor) {
+      if (attachments == null) {
+        return DatabaseFactory.getAttachmentDatabase(context).getAttachment(cursor);
+      }
+
+      List<DatabaseAttachment> messageAttachments = attachments.get(CursorUtil.requireLong(cursor, MmsDatabase.ID));
+
+      return messageAttachments != null ? messageAttachments : Collections.emptyList();
+    }
+
+    private @Nullable Quote getQuote(@NonNull Cursor cursor, @NonNull List<DatabaseAttachment> attachments) {
+      long quoteId     = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.QUOTE_ID));
+      long quoteAuthor = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.QUOTE_AUTHOR));
 
       if (quoteId > 0 && quoteAuthor > 0) {
+        CharSequence               quoteText        = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.QUOTE_BODY));
+        boolean                    quoteMissing     = cursor.getInt(cursor.getColumnIndexOrThrow(MmsDatabase.QUOTE_MISSING)) == 1;
+        List<Mention>              quoteMentions    = parseQuoteMentions(context, cursor);
+        List<? extends Attachment> quoteAttachments = Stream.of(attachments).filter(Attachment::isQuote).toList();
+        SlideDeck                  quoteDeck        = new SlideDeck(context, quoteAttachments);
+
         if (quoteText != null && !quoteMentions.isEmpty()) {
           MentionUtil.UpdatedBodyAndMentions updated = MentionUtil.updateBodyAndMentionsWithDisplayNames(context, quoteText, quoteMentions);
 
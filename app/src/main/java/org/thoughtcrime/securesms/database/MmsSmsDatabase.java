@@ -21,12 +21,14 @@ import android.database.Cursor;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import com.annimon.stream.Stream;
 
 import net.sqlcipher.database.SQLiteQueryBuilder;
 
 import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
 import org.thoughtcrime.securesms.database.MessageDatabase.SyncMessageId;
 import org.thoughtcrime.securesms.database.MessageDatabase.ThreadUpdate;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
@@ -41,8 +43,10 @@ import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -105,6 +109,8 @@ public class MmsSmsDatabase extends Database {
                                               MmsSmsColumns.NOTIFIED_TIMESTAMP,
                                               MmsSmsColumns.VIEWED_RECEIPT_COUNT};
 
+  private static final String CONVERSATION_ORDER = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + TRANSPORT + " DESC, " + MmsSmsColumns.ID + " DESC";
+
   public MmsSmsDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -182,12 +188,43 @@ public class MmsSmsDatabase extends Database {
   }
 
 
+  /**
+   * The messages are selected without their attachments, so read the cursor with
+   * {@link #readerWithAttachmentsFor(Cursor)}.
+   */
   public Cursor getConversation(long threadId, long offset, long limit) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
+    return getConversation(threadId, offset, limit, false);
+  }
+
+  Cursor getConversation(long threadId, long offset, long limit, boolean includeAttachments) {
     String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
     String limitStr  = limit > 0 || offset > 0 ? offset + ", " + limit : null;
 
-    Cursor cursor = queryTables(PROJECTION, selection, order, limitStr);
+    Cursor cursor = queryTables(PROJECTION, selection, selection, includeAttachments, CONVERSATION_ORDER, limitStr);
+    setNotifyConversationListeners(cursor, threadId);
+
+    return cursor;
+  }
+
+  /**
+   * Same order as {@link #getConversation(long, long, long)}, but the page starts {@code skip}
+   * messages after the message at {@code anchor} instead of at an offset from the newest message.
+   *
+   * Each table seeks to the anchor on its (thread_id, date_received) index and only hands its
+   * first {@code skip + limit} messages to the union, so a page deep in a long conversation costs
+   * about the same as the first one.
+   *
+   * Like {@link #getConversation(long, long, long)}, the messages are selected without their
+   * attachments.
+   */
+  public Cursor getConversation(long threadId, @NonNull ConversationAnchor anchor, long skip, long limit) {
+    long   count        = skip + limit;
+    String smsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " +
+                          SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " IN (" + anchor.buildPageQuery(SmsDatabase.TABLE_NAME, SmsDatabase.DATE_RECEIVED, false, threadId, count) + ")";
+    String mmsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " +
+                          MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " IN (" + anchor.buildPageQuery(MmsDatabase.TABLE_NAME, MmsDatabase.DATE_RECEIVED, true, threadId, count) + ")";
+
+    Cursor cursor = queryTables(PROJECTION, smsSelection, mmsSelection, false, CONVERSATION_ORDER, skip + ", " + limit);
     setNotifyConversationListeners(cursor, threadId);
 
     return cursor;
@@ -222,6 +259,22 @@ public class MmsSmsDatabase extends Database {
   }
 
   public Cursor getMessagesForNotificationState(Collection<MessageNotifierV2.StickyThread> stickyThreads) {
+    String order = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+
+    return queryTables(PROJECTION, getNotificationStateSelection(stickyThreads), order, null);
+  }
+
+  /**
+   * Like {@link #getMessagesForNotificationState(Collection)}, but only for the messages in a single thread.
+   */
+  public Cursor getMessagesForNotificationState(Collection<MessageNotifierV2.StickyThread> stickyThreads, long threadId) {
+    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + getNotificationStateSelection(stickyThreads);
+
+    return queryTables(PROJECTION, selection, order, null);
+  }
+
+  private static @NonNull String getNotificationStateSelection(Collection<MessageNotifierV2.StickyThread> stickyThreads) {
     StringBuilder stickyQuery = new StringBuilder();
     for (MessageNotifierV2.StickyThread stickyThread : stickyThreads) {
       if (stickyQuery.length() > 0) {
@@ -237,10 +290,7 @@ public class MmsSmsDatabase extends Database {
                  .append(")");
     }
 
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
-    String selection = MmsSmsColumns.NOTIFIED + " = 0 AND (" + MmsSmsColumns.READ + " = 0 OR " + MmsSmsColumns.REACTIONS_UNREAD + " = 1" + (stickyQuery.length() > 0 ? " OR (" + stickyQuery.toString() + ")" : "") + ")";
-
-    return queryTables(PROJECTION, selection, order, null);
+    return MmsSmsColumns.NOTIFIED + " = 0 AND (" + MmsSmsColumns.READ + " = 0 OR " + MmsSmsColumns.REACTIONS_UNREAD + " = 1" + (stickyQuery.length() > 0 ? " OR (" + stickyQuery.toString() + ")" : "") + ")";
   }
 
   public int getUnreadCount(long threadId) {
@@ -285,9 +335,19 @@ public class MmsSmsDatabase extends Database {
     return count;
   }
 
+  /**
+   * Uses the count that's kept for the thread, see {@link ThreadDatabase#getTotalMessageCount(long)},
+   * and only counts the messages if there is no thread.
+   */
   public int getConversationCount(long threadId) {
-    int count = DatabaseFactory.getSmsDatabase(context).getMessageCountForThread(threadId);
-    count    += DatabaseFactory.getMmsDatabase(context).getMessageCountForThread(threadId);
+    int count = DatabaseFactory.getThreadDatabase(context).getTotalMessageCount(threadId);
+
+    if (count >= 0) {
+      return count;
+    }
+
+    count  = DatabaseFactory.getSmsDatabase(context).getMessageCountForThread(threadId);
+    count += DatabaseFactory.getMmsDatabase(context).getMessageCountForThread(threadId);
 
     return count;
   }
@@ -297,13 +357,6 @@ public class MmsSmsDatabase extends Database {
            DatabaseFactory.getMmsDatabase(context).getMessageCountForThread(threadId, beforeTime);
   }
 
-  public int getConversationCountForThreadSummary(long threadId) {
-    int count = DatabaseFactory.getSmsDatabase(context).getMessageCountForThreadSummary(threadId);
-    count    += DatabaseFactory.getMmsDatabase(context).getMessageCountForThreadSummary(threadId);
-
-    return count;
-  }
-
   public int getInsecureSentCount(long threadId) {
     int count  = DatabaseFactory.getSmsDatabase(context).getInsecureMessagesSentForThread(threadId);
     count     += DatabaseFactory.getMmsDatabase(context).getInsecureMessagesSentForThread(threadId);
@@ -361,24 +414,10 @@ public class MmsSmsDatabase extends Database {
     incrementReceiptCount(syncMessageId, timestamp, MessageDatabase.ReceiptType.DELIVERY);
   }
 
-  /**
-   * @return A list of ID's that were not updated.
-   */
-  public @NonNull Collection<SyncMessageId> incrementReadReceiptCounts(@NonNull List<SyncMessageId> syncMessageIds, long timestamp) {
-    return incrementReceiptCounts(syncMessageIds, timestamp, MessageDatabase.ReceiptType.READ);
-  }
-
   public boolean incrementReadReceiptCount(SyncMessageId syncMessageId, long timestamp) {
     return incrementReceiptCount(syncMessageId, timestamp, MessageDatabase.ReceiptType.READ);
   }
 
-  /**
-   * @return A list of ID's that were not updated.
-   */
-  public @NonNull Collection<SyncMessageId> incrementViewedReceiptCounts(@NonNull List<SyncMessageId> syncMessageIds, long timestamp) {
-    return incrementReceiptCounts(syncMessageIds, timestamp, MessageDatabase.ReceiptType.VIEWED);
-  }
-
   public boolean incrementViewedReceiptCount(SyncMessageId syncMessageId, long timestamp) {
     return incrementReceiptCount(syncMessageId, timestamp, MessageDatabase.ReceiptType.VIEWED);
   }
@@ -389,88 +428,93 @@ public class MmsSmsDatabase extends Database {
    * @return Whether or not some thread was updated.
    */
   private boolean incrementReceiptCount(SyncMessageId syncMessageId, long timestamp, @NonNull MessageDatabase.ReceiptType receiptType) {
-    SQLiteDatabase    db             = databaseHelper.getWritableDatabase();
-    ThreadDatabase    threadDatabase = DatabaseFactory.getThreadDatabase(context);
-    Set<ThreadUpdate> threadUpdates  = new HashSet<>();
-
-    db.beginTransaction();
-    try {
-      threadUpdates = incrementReceiptCountInternal(syncMessageId, timestamp, receiptType);
-
-      for (ThreadUpdate threadUpdate : threadUpdates) {
-        threadDatabase.update(threadUpdate.getThreadId(), false);
-      }
+    return incrementReceiptCounts(Collections.singletonList(syncMessageId), timestamp, receiptType).isEmpty();
+  }
 
-      db.setTransactionSuccessful();
-    } finally {
-      db.endTransaction();
+  /**
+   * Wraps multiple receipt updates in a transaction and triggers the proper updates.
+   *
+   * @return All of the messages that didn't result in updates.
+   */
+  private @NonNull Collection<SyncMessageId> incrementReceiptCounts(@NonNull List<SyncMessageId> syncMessageIds, long timestamp, @NonNull MessageDatabase.ReceiptType receiptType) {
+    List<Pair<SyncMessageId, Long>> receipts = new ArrayList<>(syncMessageIds.size());
 
-      for (ThreadUpdate threadUpdate : threadUpdates) {
-        if (threadUpdate.isVerbose()) {
-          notifyVerboseConversationListeners(threadUpdate.getThreadId());
-        } else {
-          notifyConversationListeners(threadUpdate.getThreadId());
-        }
-      }
+    for (SyncMessageId id : syncMessageIds) {
+      receipts.add(new Pair<>(id, timestamp));
     }
 
-    return threadUpdates.size() > 0;
+    return incrementReceiptCounts(receipts, receiptType);
   }
 
   /**
-   * Wraps multiple receipt updates in a transaction and triggers the proper updates.
+   * Applies receipts of a single type in one transaction, with one update per message they're for
+   * rather than one per receipt, and notifies each affected thread once afterwards.
+   *
+   * Delivery receipts that don't match a message are kept, so they can be applied if the message
+   * they're for is inserted shortly after (e.g. when it was sent from a linked device).
    *
+   * @param receipts The receipts, paired with the time each one was received.
    * @return All of the messages that didn't result in updates.
    */
-  private @NonNull Collection<SyncMessageId> incrementReceiptCounts(@NonNull List<SyncMessageId> syncMessageIds, long timestamp, @NonNull MessageDatabase.ReceiptType receiptType) {
-    SQLiteDatabase            db             = databaseHelper.getWritableDatabase();
-    ThreadDatabase            threadDatabase = DatabaseFactory.getThreadDatabase(context);
-    Set<ThreadUpdate>         threadUpdates  = new HashSet<>();
-    Collection<SyncMessageId> unhandled      = new HashSet<>();
+  public @NonNull Collection<SyncMessageId> incrementReceiptCounts(@NonNull List<Pair<SyncMessageId, Long>> receipts, @NonNull MessageDatabase.ReceiptType receiptType) {
+    if (receipts.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    SQLiteDatabase            db            = databaseHelper.getWritableDatabase();
+    MessageDatabase           smsDatabase   = DatabaseFactory.getSmsDatabase(context);
+    MessageDatabase           mmsDatabase   = DatabaseFactory.getMmsDatabase(context);
+    Map<Long, Boolean>        threadUpdates = new HashMap<>();
+    Collection<SyncMessageId> unhandled     = new HashSet<>();
 
     db.beginTransaction();
     try {
-      for (SyncMessageId id : syncMessageIds) {
-        Set<ThreadUpdate> updates = incrementReceiptCountInternal(id, timestamp, receiptType);
+      MessageDatabase.ReceiptUpdates smsUpdates = smsDatabase.incrementReceiptCounts(receipts, receiptType);
+      MessageDatabase.ReceiptUpdates mmsUpdates = mmsDatabase.incrementReceiptCounts(receipts, receiptType);
 
-        if (updates.size() > 0) {
-          threadUpdates.addAll(updates);
-        } else {
-          unhandled.add(id);
-        }
+      for (ThreadUpdate threadUpdate : smsUpdates.getThreadUpdates()) {
+        addThreadUpdate(threadUpdates, threadUpdate);
       }
 
-      for (ThreadUpdate update : threadUpdates) {
-        threadDatabase.update(update.getThreadId(), false);
+      for (ThreadUpdate threadUpdate : mmsUpdates.getThreadUpdates()) {
+        addThreadUpdate(threadUpdates, threadUpdate);
+      }
+
+      for (Pair<SyncMessageId, Long> receipt : receipts) {
+        if (!smsUpdates.getMatched().contains(receipt.first()) && !mmsUpdates.getMatched().contains(receipt.first())) {
+          unhandled.add(receipt.first());
+        }
       }
 
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
 
-      for (ThreadUpdate threadUpdate : threadUpdates) {
-        if (threadUpdate.isVerbose()) {
-          notifyVerboseConversationListeners(threadUpdate.getThreadId());
+      for (Map.Entry<Long, Boolean> threadUpdate : threadUpdates.entrySet()) {
+        if (threadUpdate.getValue()) {
+          notifyVerboseConversationListeners(threadUpdate.getKey());
         } else {
-          notifyConversationListeners(threadUpdate.getThreadId());
+          notifyConversationListeners(threadUpdate.getKey());
         }
       }
     }
 
+    if (receiptType == MessageDatabase.ReceiptType.DELIVERY) {
+      for (SyncMessageId id : unhandled) {
+        smsDatabase.addEarlyDeliveryReceipt(id);
+        mmsDatabase.addEarlyDeliveryReceipt(id);
+      }
+    }
+
     return unhandled;
   }
 
-
   /**
-   * Doesn't do any transactions or updates, so we can re-use the method safely.
+   * A thread only needs a verbose notification if every update to it was verbose.
    */
-  private @NonNull Set<ThreadUpdate> incrementReceiptCountInternal(SyncMessageId syncMessageId, long timestamp, MessageDatabase.ReceiptType receiptType) {
-    Set<ThreadUpdate> threadUpdates = new HashSet<>();
-
-    threadUpdates.addAll(DatabaseFactory.getSmsDatabase(context).incrementReceiptCount(syncMessageId, timestamp, receiptType));
-    threadUpdates.addAll(DatabaseFactory.getMmsDatabase(context).incrementReceiptCount(syncMessageId, timestamp, receiptType));
-
-    return threadUpdates;
+  private static void addThreadUpdate(@NonNull Map<Long, Boolean> threadUpdates, @NonNull ThreadUpdate threadUpdate) {
+    Boolean verbose = threadUpdates.get(threadUpdate.getThreadId());
+    threadUpdates.put(threadUpdate.getThreadId(), (verbose == null || verbose) && threadUpdate.isVerbose());
   }
 
   public int getQuotedMessagePosition(long threadId, long quoteId, @NonNull RecipientId recipientId) {
@@ -586,42 +630,55 @@ public class MmsSmsDatabase extends Database {
   }
 
   private Cursor queryTables(String[] projection, String selection, String order, String limit) {
+    return queryTables(projection, selection, selection, true, order, limit);
+  }
+
+  /**
+   * @param includeAttachments Whether to aggregate each mms message's attachments into the
+   *                           {@link AttachmentDatabase#ATTACHMENT_JSON_ALIAS} column. Without them
+   *                           the mms side doesn't need the join and GROUP BY, and the cursor should
+   *                           be read with {@link #readerWithAttachmentsFor(Cursor)}.
+   */
+  private Cursor queryTables(String[] projection, String smsSelection, String mmsSelection, boolean includeAttachments, String order, String limit) {
+    String attachmentJson = includeAttachments ? "json_group_array(json_object(" +
+                                                 "'" + AttachmentDatabase.ROW_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + ", " +
+                                                 "'" + AttachmentDatabase.UNIQUE_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.UNIQUE_ID + ", " +
+                                                 "'" + AttachmentDatabase.MMS_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + "," +
+                                                 "'" + AttachmentDatabase.SIZE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.SIZE + ", " +
+                                                 "'" + AttachmentDatabase.FILE_NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FILE_NAME + ", " +
+                                                 "'" + AttachmentDatabase.DATA + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.DATA + ", " +
+                                                 "'" + AttachmentDatabase.CONTENT_TYPE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_TYPE + ", " +
+                                                 "'" + AttachmentDatabase.CDN_NUMBER + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CDN_NUMBER + ", " +
+                                                 "'" + AttachmentDatabase.CONTENT_LOCATION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_LOCATION + ", " +
+                                                 "'" + AttachmentDatabase.FAST_PREFLIGHT_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FAST_PREFLIGHT_ID + ", " +
+                                                 "'" + AttachmentDatabase.VOICE_NOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.VOICE_NOTE + ", " +
+                                                 "'" + AttachmentDatabase.BORDERLESS + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.BORDERLESS + ", " +
+                                                 "'" + AttachmentDatabase.VIDEO_GIF + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.VIDEO_GIF + ", " +
+                                                 "'" + AttachmentDatabase.WIDTH + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.WIDTH + ", " +
+                                                 "'" + AttachmentDatabase.HEIGHT + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.HEIGHT + ", " +
+                                                 "'" + AttachmentDatabase.QUOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.QUOTE + ", " +
+                                                 "'" + AttachmentDatabase.CONTENT_DISPOSITION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_DISPOSITION + ", " +
+                                                 "'" + AttachmentDatabase.NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.NAME + ", " +
+                                                 "'" + AttachmentDatabase.TRANSFER_STATE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.TRANSFER_STATE + ", " +
+                                                 "'" + AttachmentDatabase.CAPTION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CAPTION + ", " +
+                                                 "'" + AttachmentDatabase.STICKER_PACK_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_PACK_ID + ", " +
+                                                 "'" + AttachmentDatabase.STICKER_PACK_KEY + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_PACK_KEY + ", " +
+                                                 "'" + AttachmentDatabase.STICKER_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_ID + ", " +
+                                                 "'" + AttachmentDatabase.STICKER_EMOJI + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_EMOJI + ", " +
+                                                 "'" + AttachmentDatabase.VISUAL_HASH + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.VISUAL_HASH + ", " +
+                                                 "'" + AttachmentDatabase.TRANSFORM_PROPERTIES + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.TRANSFORM_PROPERTIES + ", " +
+                                                 "'" + AttachmentDatabase.DISPLAY_ORDER + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.DISPLAY_ORDER + ", " +
+                                                 "'" + AttachmentDatabase.UPLOAD_TIMESTAMP + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.UPLOAD_TIMESTAMP +
+                                                 ")) AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS
+                                               : "NULL AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS;
+
     String[] mmsProjection = {MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
                               MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
                               MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AS " + MmsSmsColumns.ID,
                               "'MMS::' || " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID
                                   + " || '::' || " + MmsDatabase.DATE_SENT
                                   + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
-                              "json_group_array(json_object(" +
-                              "'" + AttachmentDatabase.ROW_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + ", " +
-                              "'" + AttachmentDatabase.UNIQUE_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.UNIQUE_ID + ", " +
-                              "'" + AttachmentDatabase.MMS_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + "," +
-                              "'" + AttachmentDatabase.SIZE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.SIZE + ", " +
-                              "'" + AttachmentDatabase.FILE_NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FILE_NAME + ", " +
-                              "'" + AttachmentDatabase.DATA + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.DATA + ", " +
-                              "'" + AttachmentDatabase.CONTENT_TYPE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_TYPE + ", " +
-                              "'" + AttachmentDatabase.CDN_NUMBER + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CDN_NUMBER + ", " +
-                              "'" + AttachmentDatabase.CONTENT_LOCATION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_LOCATION + ", " +
-                              "'" + AttachmentDatabase.FAST_PREFLIGHT_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FAST_PREFLIGHT_ID + ", " +
-                              "'" + AttachmentDatabase.VOICE_NOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.VOICE_NOTE + ", " +
-                              "'" + AttachmentDatabase.BORDERLESS + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.BORDERLESS + ", " +
-                              "'" + AttachmentDatabase.VIDEO_GIF + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.VIDEO_GIF + ", " +
-                              "'" + AttachmentDatabase.WIDTH + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.WIDTH + ", " +
-                              "'" + AttachmentDatabase.HEIGHT + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.HEIGHT + ", " +
-                              "'" + AttachmentDatabase.QUOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.QUOTE + ", " +
-                              "'" + AttachmentDatabase.CONTENT_DISPOSITION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_DISPOSITION + ", " +
-                              "'" + AttachmentDatabase.NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.NAME + ", " +
-                              "'" + AttachmentDatabase.TRANSFER_STATE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.TRANSFER_STATE + ", " +
-                              "'" + AttachmentDatabase.CAPTION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CAPTION + ", " +
-                              "'" + AttachmentDatabase.STICKER_PACK_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_PACK_ID + ", " +
-                              "'" + AttachmentDatabase.STICKER_PACK_KEY + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_PACK_KEY + ", " +
-                              "'" + AttachmentDatabase.STICKER_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_ID + ", " +
-                              "'" + AttachmentDatabase.STICKER_EMOJI + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_EMOJI + ", " +
-                              "'" + AttachmentDatabase.VISUAL_HASH + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.VISUAL_HASH + ", " +
-                              "'" + AttachmentDatabase.TRANSFORM_PROPERTIES + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.TRANSFORM_PROPERTIES + ", " +
-                              "'" + AttachmentDatabase.DISPLAY_ORDER + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.DISPLAY_ORDER + ", " +
-                              "'" + AttachmentDatabase.UPLOAD_TIMESTAMP + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.UPLOAD_TIMESTAMP +
-                              ")) AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS,
+                              attachmentJson,
                               SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
                               SmsDatabase.TYPE, SmsDatabase.RECIPIENT_ID, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
                               MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
@@ -694,9 +751,14 @@ public class MmsSmsDatabase extends Database {
     smsQueryBuilder.setDistinct(true);
 
     smsQueryBuilder.setTables(SmsDatabase.TABLE_NAME);
-    mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME + " LEFT OUTER JOIN " +
-                              AttachmentDatabase.TABLE_NAME +
-                              " ON " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID);
+
+    if (includeAttachments) {
+      mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME + " LEFT OUTER JOIN " +
+                                AttachmentDatabase.TABLE_NAME +
+                                " ON " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID);
+    } else {
+      mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME);
+    }
 
 
     Set<String> mmsColumnsPresent = new HashSet<>();
@@ -771,9 +833,9 @@ public class MmsSmsDatabase extends Database {
     smsColumnsPresent.add(MmsSmsColumns.NOTIFIED_TIMESTAMP);
 
     @SuppressWarnings("deprecation")
-    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 4, MMS_TRANSPORT, selection, null, MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID, null);
+    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 4, MMS_TRANSPORT, mmsSelection, null, includeAttachments ? MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID : null, null);
     @SuppressWarnings("deprecation")
-    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 4, SMS_TRANSPORT, selection, null, null, null);
+    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 4, SMS_TRANSPORT, smsSelection, null, null, null);
 
     SQLiteQueryBuilder unionQueryBuilder = new SQLiteQueryBuilder();
     String unionQuery = unionQueryBuilder.buildUnionQuery(new String[] {smsSubQuery, mmsSubQuery}, order, limit);
@@ -788,18 +850,86 @@ public class MmsSmsDatabase extends Database {
     return db.rawQuery(query, null);
   }
 
+  /**
+   * The position of a message in a conversation, which a page can be loaded after without
+   * counting the messages in front of it.
+   */
+  public static final class ConversationAnchor {
+
+    private final long    dateReceived;
+    private final boolean mms;
+    private final long    id;
+
+    public ConversationAnchor(long dateReceived, boolean mms, long id) {
+      this.dateReceived = dateReceived;
+      this.mms          = mms;
+      this.id           = id;
+    }
+
+    public static @NonNull ConversationAnchor forRecord(@NonNull MessageRecord record) {
+      return new ConversationAnchor(record.getDateReceived(), record.isMms(), record.getId());
+    }
+
+    /**
+     * Selects the ids of the first {@code count} messages of one table that come after this anchor
+     * in {@link #CONVERSATION_ORDER}, where sms sorts ahead of mms when messages were received at
+     * the same time.
+     */
+    @VisibleForTesting
+    @NonNull String buildPageQuery(@NonNull String table, @NonNull String dateReceivedColumn, boolean mmsTable, long threadId, long count) {
+      String tieBreak;
+
+      if (mmsTable == mms) {
+        tieBreak = MmsSmsColumns.ID + " < " + id;
+      } else {
+        tieBreak = mms ? "0" : "1";
+      }
+
+      return "SELECT " + MmsSmsColumns.ID + " FROM " + table +
+             " WHERE " + MmsSmsColumns.THREAD_ID + " = " + threadId +
+             " AND (" + dateReceivedColumn + " < " + dateReceived + " OR (" + dateReceivedColumn + " = " + dateReceived + " AND " + tieBreak + "))" +
+             " ORDER BY " + dateReceivedColumn + " DESC, " + MmsSmsColumns.ID + " DESC" +
+             " LIMIT " + count;
+    }
+  }
+
   public static Reader readerFor(@NonNull Cursor cursor) {
     return new Reader(cursor);
   }
 
+  /**
+   * For cursors that were queried without attachments. The attachments of all of the cursor's mms
+   * messages are loaded up front in a single query, see
+   * {@link AttachmentDatabase#getAttachmentsForMessages(Collection)}.
+   */
+  public @NonNull Reader readerWithAttachmentsFor(@NonNull Cursor cursor) {
+    List<Long> mmsIds = new ArrayList<>(cursor.getCount());
+
+    while (cursor.moveToNext()) {
+      if (MMS_TRANSPORT.equals(CursorUtil.requireString(cursor, TRANSPORT))) {
+        mmsIds.add(CursorUtil.requireLong(cursor, MmsSmsColumns.ID));
+      }
+    }
+
+    cursor.moveToPosition(-1);
+
+    return new Reader(cursor, DatabaseFactory.getAttachmentDatabase(context).getAttachmentsForMessages(mmsIds));
+  }
+
   public static class Reader implements Closeable {
 
-    private final Cursor                 cursor;
-    private       SmsDatabase.Reader     smsReader;
-    private       MmsDatabase.Reader     mmsReader;
+    private final Cursor                              cursor;
+    private final Map<Long, List<DatabaseAttachment>> attachments;
+    private       SmsDatabase.Reader                  smsReader;
+    private       MmsDatabase.Reader                  mmsReader;
 
     public Reader(Cursor cursor) {
-      this.cursor = cursor;
+      this(cursor, null);
+    }
+
+    private Reader(Cursor cursor, @Nullable Map<Long, List<DatabaseAttachment>> attachments) {
+      this.cursor      = cursor;
+      this.attachments = attachments;
     }
 
     private SmsDatabase.Reader getSmsReader() {
@@ -812,7 +942,7 @@ public class MmsSmsDatabase extends Database {
 
     private MmsDatabase.Reader getMmsReader() {
       if (mmsReader == null) {
-        mmsReader = MmsDatabase.readerFor(cursor);
+        mmsReader = new MmsDatabase.Reader(cursor, attachments);
       }
 
       return mmsReader;
@@ -4,21 +4,49 @@ import android.content.Context;
 import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import com.annimon.stream.Stream;
 
 import net.sqlcipher.Cursor;
 
+import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesms.util.CursorUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Contains all databases necessary for full-text search (FTS).
+ *
+ * SMS and MMS share one external-content index whose content is the {@link #CONTENT_VIEW_NAME}
+ * view over both tables. Rows are keyed by the message id shifted left by one, with the lowest bit
+ * set for MMS, and the view resolves those keys through expression indexes. Everything a result
+ * needs is read through the index, and since only the body is indexed, only changes to the body
+ * have to be written to it.
+ *
+ * Messages that were there before the index existed are indexed in the background, newest first.
+ * While that's happening, {@link #INDEX_PROGRESS_TABLE_NAME} has a row with, per table, the id
+ * below which messages haven't been indexed yet, and the triggers leave those messages alone.
  */
 public class SearchDatabase extends Database {
 
+  private static final String TAG = Log.tag(SearchDatabase.class);
+
+  /** Only kept to recognize the tables of old backups. */
   public static final String SMS_FTS_TABLE_NAME = "sms_fts";
   public static final String MMS_FTS_TABLE_NAME = "mms_fts";
 
+  public static final String MESSAGE_FTS_TABLE_NAME    = "message_fts";
+  public static final String CONTENT_VIEW_NAME         = "message_search";
+  public static final String INDEX_PROGRESS_TABLE_NAME = "search_index_progress";
+
   public static final String ID                     = "rowid";
   public static final String BODY                   = MmsSmsColumns.BODY;
   public static final String THREAD_ID              = MmsSmsColumns.THREAD_ID;
@@ -27,105 +55,92 @@ public class SearchDatabase extends Database {
   public static final String MESSAGE_RECIPIENT      = "message_recipient";
   public static final String IS_MMS                 = "is_mms";
   public static final String MESSAGE_ID             = "message_id";
+  public static final String SEARCH_RANK            = "search_rank";
+  public static final String MENTION_MATCH          = "mention_match";
+
+  private static final String SEARCH_KEY        = "search_key";
+  private static final String DATE_RECEIVED     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED;
+  private static final String SMS_INDEXED_AFTER = "sms_indexed_after";
+  private static final String MMS_INDEXED_AFTER = "mms_indexed_after";
 
   public static final String SNIPPET_WRAP = "...";
 
   public static final String[] CREATE_TABLE = {
-      "CREATE VIRTUAL TABLE " + SMS_FTS_TABLE_NAME + " USING fts5(" + BODY + ", " + THREAD_ID + " UNINDEXED, content=" + SmsDatabase.TABLE_NAME + ", content_rowid=" + SmsDatabase.ID + ");",
-
-      "CREATE TRIGGER sms_ai AFTER INSERT ON " + SmsDatabase.TABLE_NAME + " BEGIN\n" +
-          "  INSERT INTO " + SMS_FTS_TABLE_NAME + "(" + ID + ", " + BODY + ", " + THREAD_ID + ") VALUES (new." + SmsDatabase.ID + ", new." + SmsDatabase.BODY + ", new." + SmsDatabase.THREAD_ID + ");\n" +
-          "END;\n",
-      "CREATE TRIGGER sms_ad AFTER DELETE ON " + SmsDatabase.TABLE_NAME + " BEGIN\n" +
-          "  INSERT INTO " + SMS_FTS_TABLE_NAME + "(" + SMS_FTS_TABLE_NAME + ", " + ID + ", " + BODY + ", " + THREAD_ID + ") VALUES('delete', old." + SmsDatabase.ID + ", old." + SmsDatabase.BODY + ", old." + SmsDatabase.THREAD_ID + ");\n" +
-          "END;\n",
-      "CREATE TRIGGER sms_au AFTER UPDATE ON " + SmsDatabase.TABLE_NAME + " BEGIN\n" +
-          "  INSERT INTO " + SMS_FTS_TABLE_NAME + "(" + SMS_FTS_TABLE_NAME + ", " + ID + ", " + BODY + ", " + THREAD_ID + ") VALUES('delete', old." + SmsDatabase.ID + ", old." + SmsDatabase.BODY + ", old." + SmsDatabase.THREAD_ID + ");\n" +
-          "  INSERT INTO " + SMS_FTS_TABLE_NAME + "(" + ID + ", " + BODY + ", " + THREAD_ID + ") VALUES(new." + SmsDatabase.ID + ", new." + SmsDatabase.BODY + ", new." + SmsDatabase.THREAD_ID + ");\n" +
-          "END;",
-
-
-      "CREATE VIRTUAL TABLE " + MMS_FTS_TABLE_NAME + " USING fts5(" + BODY + ", " + THREAD_ID + " UNINDEXED, content=" + MmsDatabase.TABLE_NAME + ", content_rowid=" + MmsDatabase.ID + ");",
-
-      "CREATE TRIGGER mms_ai AFTER INSERT ON " + MmsDatabase.TABLE_NAME + " BEGIN\n" +
-          "  INSERT INTO " + MMS_FTS_TABLE_NAME + "(" + ID + ", " + BODY + ", " + THREAD_ID + ") VALUES (new." + MmsDatabase.ID + ", new." + MmsDatabase.BODY + ", new." + MmsDatabase.THREAD_ID + ");\n" +
-          "END;\n",
-      "CREATE TRIGGER mms_ad AFTER DELETE ON " + MmsDatabase.TABLE_NAME + " BEGIN\n" +
-          "  INSERT INTO " + MMS_FTS_TABLE_NAME + "(" + MMS_FTS_TABLE_NAME + ", " + ID + ", " + BODY + ", " + THREAD_ID + ") VALUES('delete', old." + MmsDatabase.ID + ", old." + MmsDatabase.BODY + ", old." + MmsDatabase.THREAD_ID + ");\n" +
-          "END;\n",
-      "CREATE TRIGGER mms_au AFTER UPDATE ON " + MmsDatabase.TABLE_NAME + " BEGIN\n" +
-          "  INSERT INTO " + MMS_FTS_TABLE_NAME + "(" + MMS_FTS_TABLE_NAME + ", " + ID + ", " + BODY + ", " + THREAD_ID + ") VALUES('delete', old." + MmsDatabase.ID + ", old." + MmsDatabase.BODY + ", old." + MmsDatabase.THREAD_ID + ");\n" +
-          "  INSERT INTO " + MMS_FTS_TABLE_NAME + "(" + ID + ", " + BODY + ", " + THREAD_ID + ") VALUES (new." + MmsDatabase.ID + ", new." + MmsDatabase.BODY + ", new." + MmsDatabase.THREAD_ID + ");\n" +
-          "END;"
-  };
+      "CREATE INDEX IF NOT EXISTS sms_search_key_index ON " + SmsDatabase.TABLE_NAME + " (" + SmsDatabase.ID + " * 2);",
+      "CREATE INDEX IF NOT EXISTS mms_search_key_index ON " + MmsDatabase.TABLE_NAME + " (" + MmsDatabase.ID + " * 2 + 1);",
 
-  private static final String MESSAGES_QUERY =
-      "SELECT " +
-        ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.RECIPIENT_ID + " AS " + CONVERSATION_RECIPIENT + ", " +
-        MmsSmsColumns.RECIPIENT_ID + " AS " + MESSAGE_RECIPIENT + ", " +
-        "snippet(" + SMS_FTS_TABLE_NAME + ", -1, '', '', '" + SNIPPET_WRAP + "', 7) AS " + SNIPPET + ", " +
-        SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-        SMS_FTS_TABLE_NAME + "." + THREAD_ID + ", " +
-        SMS_FTS_TABLE_NAME + "." + BODY + ", " +
-        SMS_FTS_TABLE_NAME + "." + ID + " AS " + MESSAGE_ID + ", " +
-        "0 AS " + IS_MMS + " " +
-      "FROM " + SmsDatabase.TABLE_NAME + " " +
-      "INNER JOIN " + SMS_FTS_TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + ID + " = " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " " +
-      "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-      "WHERE " + SMS_FTS_TABLE_NAME + " MATCH ? " +
-      "UNION ALL " +
-      "SELECT " +
-        ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.RECIPIENT_ID + " AS " + CONVERSATION_RECIPIENT + ", " +
-        MmsSmsColumns.RECIPIENT_ID + " AS " + MESSAGE_RECIPIENT + ", " +
-        "snippet(" + MMS_FTS_TABLE_NAME + ", -1, '', '', '" + SNIPPET_WRAP + "', 7) AS " + SNIPPET + ", " +
-        MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-        MMS_FTS_TABLE_NAME + "." + THREAD_ID + ", " +
-        MMS_FTS_TABLE_NAME + "." + BODY + ", " +
-        MMS_FTS_TABLE_NAME + "." + ID + " AS " + MESSAGE_ID + ", " +
-        "1 AS " + IS_MMS + " " +
-      "FROM " + MmsDatabase.TABLE_NAME + " " +
-      "INNER JOIN " + MMS_FTS_TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " " +
-      "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-      "WHERE " + MMS_FTS_TABLE_NAME + " MATCH ? " +
-      "ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC " +
-      "LIMIT 500";
+      "CREATE VIEW " + CONTENT_VIEW_NAME + " AS " +
+          "SELECT " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " * 2 AS " + SEARCH_KEY + ", " +
+                      SmsDatabase.TABLE_NAME + "." + SmsDatabase.BODY + " AS " + BODY + ", " +
+                      SmsDatabase.TABLE_NAME + "." + SmsDatabase.THREAD_ID + " AS " + THREAD_ID + ", " +
+                      "(SELECT " + ThreadDatabase.RECIPIENT_ID + " FROM " + ThreadDatabase.TABLE_NAME + " WHERE " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " = " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.THREAD_ID + ") AS " + CONVERSATION_RECIPIENT + ", " +
+                      SmsDatabase.TABLE_NAME + "." + SmsDatabase.RECIPIENT_ID + " AS " + MESSAGE_RECIPIENT + ", " +
+                      SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_RECEIVED + " AS " + DATE_RECEIVED + " " +
+          "FROM " + SmsDatabase.TABLE_NAME + " " +
+          "UNION ALL " +
+          "SELECT " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " * 2 + 1 AS " + SEARCH_KEY + ", " +
+                      MmsDatabase.TABLE_NAME + "." + MmsDatabase.BODY + " AS " + BODY + ", " +
+                      MmsDatabase.TABLE_NAME + "." + MmsDatabase.THREAD_ID + " AS " + THREAD_ID + ", " +
+                      "(SELECT " + ThreadDatabase.RECIPIENT_ID + " FROM " + ThreadDatabase.TABLE_NAME + " WHERE " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.THREAD_ID + ") AS " + CONVERSATION_RECIPIENT + ", " +
+                      MmsDatabase.TABLE_NAME + "." + MmsDatabase.RECIPIENT_ID + " AS " + MESSAGE_RECIPIENT + ", " +
+                      MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED + " AS " + DATE_RECEIVED + " " +
+          "FROM " + MmsDatabase.TABLE_NAME + ";",
+
+      "CREATE VIRTUAL TABLE " + MESSAGE_FTS_TABLE_NAME + " USING fts5(" + BODY + ", " + THREAD_ID + " UNINDEXED, " + CONVERSATION_RECIPIENT + " UNINDEXED, " + MESSAGE_RECIPIENT + " UNINDEXED, " + DATE_RECEIVED + " UNINDEXED, content=" + CONTENT_VIEW_NAME + ", content_rowid=" + SEARCH_KEY + ");",
+
+      "CREATE TABLE " + INDEX_PROGRESS_TABLE_NAME + " (" + SMS_INDEXED_AFTER + " INTEGER, " + MMS_INDEXED_AFTER + " INTEGER);",
+
+      buildTrigger("sms_search_insert", "INSERT", SmsDatabase.TABLE_NAME, SMS_INDEXED_AFTER, "new", "",
+                   "  INSERT INTO " + MESSAGE_FTS_TABLE_NAME + "(" + ID + ", " + BODY + ") VALUES (new." + SmsDatabase.ID + " * 2, new." + SmsDatabase.BODY + ");\n"),
+      buildTrigger("sms_search_delete", "DELETE", SmsDatabase.TABLE_NAME, SMS_INDEXED_AFTER, "old", "",
+                   "  INSERT INTO " + MESSAGE_FTS_TABLE_NAME + "(" + MESSAGE_FTS_TABLE_NAME + ", " + ID + ", " + BODY + ") VALUES ('delete', old." + SmsDatabase.ID + " * 2, old." + SmsDatabase.BODY + ");\n"),
+      buildTrigger("sms_search_update", "UPDATE OF " + SmsDatabase.BODY, SmsDatabase.TABLE_NAME, SMS_INDEXED_AFTER, "old", " AND old." + SmsDatabase.BODY + " IS NOT new." + SmsDatabase.BODY,
+                   "  INSERT INTO " + MESSAGE_FTS_TABLE_NAME + "(" + MESSAGE_FTS_TABLE_NAME + ", " + ID + ", " + BODY + ") VALUES ('delete', old." + SmsDatabase.ID + " * 2, old." + SmsDatabase.BODY + ");\n" +
+                   "  INSERT INTO " + MESSAGE_FTS_TABLE_NAME + "(" + ID + ", " + BODY + ") VALUES (new." + SmsDatabase.ID + " * 2, new." + SmsDatabase.BODY + ");\n"),
+
+      buildTrigger("mms_search_insert", "INSERT", MmsDatabase.TABLE_NAME, MMS_INDEXED_AFTER, "new", "",
+                   "  INSERT INTO " + MESSAGE_FTS_TABLE_NAME + "(" + ID + ", " + BODY + ") VALUES (new." + MmsDatabase.ID + " * 2 + 1, new." + MmsDatabase.BODY + ");\n"),
+      buildTrigger("mms_search_delete", "DELETE", MmsDatabase.TABLE_NAME, MMS_INDEXED_AFTER, "old", "",
+                   "  INSERT INTO " + MESSAGE_FTS_TABLE_NAME + "(" + MESSAGE_FTS_TABLE_NAME + ", " + ID + ", " + BODY + ") VALUES ('delete', old." + MmsDatabase.ID + " * 2 + 1, old." + MmsDatabase.BODY + ");\n"),
+      buildTrigger("mms_search_update", "UPDATE OF " + MmsDatabase.BODY, MmsDatabase.TABLE_NAME, MMS_INDEXED_AFTER, "old", " AND old." + MmsDatabase.BODY + " IS NOT new." + MmsDatabase.BODY,
+                   "  INSERT INTO " + MESSAGE_FTS_TABLE_NAME + "(" + MESSAGE_FTS_TABLE_NAME + ", " + ID + ", " + BODY + ") VALUES ('delete', old." + MmsDatabase.ID + " * 2 + 1, old." + MmsDatabase.BODY + ");\n" +
+                   "  INSERT INTO " + MESSAGE_FTS_TABLE_NAME + "(" + ID + ", " + BODY + ") VALUES (new." + MmsDatabase.ID + " * 2 + 1, new." + MmsDatabase.BODY + ");\n")
+  };
 
   private static final String MESSAGES_FOR_THREAD_QUERY =
       "SELECT " +
-          ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.RECIPIENT_ID + " AS " + CONVERSATION_RECIPIENT + ", " +
-          MmsSmsColumns.RECIPIENT_ID + " AS " + MESSAGE_RECIPIENT + ", " +
-          "snippet(" + SMS_FTS_TABLE_NAME + ", -1, '', '', '" + SNIPPET_WRAP + "', 7) AS " + SNIPPET + ", " +
-          SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-          SMS_FTS_TABLE_NAME + "." + THREAD_ID + ", " +
-          SMS_FTS_TABLE_NAME + "." + BODY + ", " +
-          SMS_FTS_TABLE_NAME + "." + ID + " AS " + MESSAGE_ID + ", " +
-          "0 AS " + IS_MMS + " " +
-        "FROM " + SmsDatabase.TABLE_NAME + " " +
-        "INNER JOIN " + SMS_FTS_TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + ID + " = " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " " +
-        "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-        "WHERE " + SMS_FTS_TABLE_NAME + " MATCH ? AND " + SmsDatabase.TABLE_NAME + "." + MmsSmsColumns.THREAD_ID + " = ? " +
-        "UNION ALL " +
-        "SELECT " +
-          ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.RECIPIENT_ID + " AS " + CONVERSATION_RECIPIENT + ", " +
-          MmsSmsColumns.RECIPIENT_ID + " AS " + MESSAGE_RECIPIENT + ", " +
-          "snippet(" + MMS_FTS_TABLE_NAME + ", -1, '', '', '" + SNIPPET_WRAP + "', 7) AS " + SNIPPET + ", " +
-          MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-          MMS_FTS_TABLE_NAME + "." + THREAD_ID + ", " +
-          MMS_FTS_TABLE_NAME + "." + BODY + ", " +
-          MMS_FTS_TABLE_NAME + "." + ID + " AS " + MESSAGE_ID + ", " +
-          "1 AS " + IS_MMS + " " +
-        "FROM " + MmsDatabase.TABLE_NAME + " " +
-        "INNER JOIN " + MMS_FTS_TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " " +
-        "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-        "WHERE " + MMS_FTS_TABLE_NAME + " MATCH ? AND " + MmsDatabase.TABLE_NAME + "." + MmsSmsColumns.THREAD_ID + " = ? " +
-        "ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC " +
-        "LIMIT 500";
+        CONVERSATION_RECIPIENT + ", " +
+        MESSAGE_RECIPIENT + ", " +
+        "snippet(" + MESSAGE_FTS_TABLE_NAME + ", -1, '', '', '" + SNIPPET_WRAP + "', 7) AS " + SNIPPET + ", " +
+        DATE_RECEIVED + ", " +
+        THREAD_ID + ", " +
+        BODY + ", " +
+        MESSAGE_FTS_TABLE_NAME + "." + ID + " >> 1 AS " + MESSAGE_ID + ", " +
+        MESSAGE_FTS_TABLE_NAME + "." + ID + " & 1 AS " + IS_MMS + " " +
+      "FROM " + MESSAGE_FTS_TABLE_NAME + " " +
+      "WHERE " + MESSAGE_FTS_TABLE_NAME + " MATCH ? AND " + THREAD_ID + " = ? " +
+      "ORDER BY " + DATE_RECEIVED + " DESC " +
+      "LIMIT 500";
 
   public SearchDatabase(@NonNull Context context, @NonNull SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
 
-  public Cursor queryMessages(@NonNull String query) {
+  /**
+   * Pages through the messages matching a query. Besides the messages whose body matches, this
+   * includes the media messages in {@code mentionMessageIds} whose body doesn't, which are flagged
+   * with {@link #MENTION_MATCH} and have their body in place of a snippet.
+   *
+   * @param candidates If not null, only these messages will be searched. Used to narrow down an
+   *                   earlier search whose query this one extends.
+   */
+  public @Nullable Cursor queryMessages(@NonNull String query,
+                                        @NonNull MessageOrder order,
+                                        @Nullable MessageIds candidates,
+                                        @NonNull Collection<Long> mentionMessageIds,
+                                        int offset,
+                                        int limit)
+  {
     SQLiteDatabase db                  = databaseHelper.getReadableDatabase();
     String         fullTextSearchQuery = createFullTextSearchQuery(query);
 
@@ -133,7 +148,61 @@ public class SearchDatabase extends Database {
       return null;
     }
 
-    return db.rawQuery(MESSAGES_QUERY, new String[] { fullTextSearchQuery, fullTextSearchQuery });
+    String sql = buildMessagesQuery(true, candidates, mentionMessageIds) + " " +
+                 "ORDER BY " + order.orderBy + ", " + MESSAGE_ID + " DESC, " + IS_MMS + " DESC " +
+                 "LIMIT " + limit + " OFFSET " + offset;
+
+    return db.rawQuery(sql, buildMessagesQueryArgs(fullTextSearchQuery, mentionMessageIds));
+  }
+
+  /**
+   * @return The number of results {@link #queryMessages(String, MessageOrder, MessageIds, Collection, int, int)}
+   *         has for the same arguments.
+   */
+  public int getMessageCount(@NonNull String query, @Nullable MessageIds candidates, @NonNull Collection<Long> mentionMessageIds) {
+    SQLiteDatabase db                  = databaseHelper.getReadableDatabase();
+    String         fullTextSearchQuery = createFullTextSearchQuery(query);
+
+    if (TextUtils.isEmpty(fullTextSearchQuery)) {
+      return 0;
+    }
+
+    String sql = "SELECT COUNT(*) FROM (" + buildMessagesQuery(false, candidates, mentionMessageIds) + ")";
+
+    try (Cursor cursor = db.rawQuery(sql, buildMessagesQueryArgs(fullTextSearchQuery, mentionMessageIds))) {
+      return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+    }
+  }
+
+  /**
+   * @return The ids of up to {@code limit} messages whose body matches the query, in no particular
+   *         order.
+   */
+  public @NonNull MessageIds getMatchingMessageIds(@NonNull String query, @Nullable MessageIds candidates, int limit) {
+    SQLiteDatabase db                  = databaseHelper.getReadableDatabase();
+    String         fullTextSearchQuery = createFullTextSearchQuery(query);
+    Set<Long>      smsIds              = new HashSet<>();
+    Set<Long>      mmsIds              = new HashSet<>();
+
+    if (TextUtils.isEmpty(fullTextSearchQuery)) {
+      return new MessageIds(smsIds, mmsIds);
+    }
+
+    String sql = buildMessagesQuery(false, candidates, Collections.emptyList()) + " LIMIT " + limit;
+
+    try (Cursor cursor = db.rawQuery(sql, new String[] { fullTextSearchQuery })) {
+      while (cursor.moveToNext()) {
+        long messageId = CursorUtil.requireLong(cursor, MESSAGE_ID);
+
+        if (CursorUtil.requireBoolean(cursor, IS_MMS)) {
+          mmsIds.add(messageId);
+        } else {
+          smsIds.add(messageId);
+        }
+      }
+    }
+
+    return new MessageIds(smsIds, mmsIds);
   }
 
   public Cursor queryMessages(@NonNull String query, long threadId) {
@@ -144,10 +213,215 @@ public class SearchDatabase extends Database {
       return null;
     }
 
-    return db.rawQuery(MESSAGES_FOR_THREAD_QUERY, new String[] { fullTextSearchQuery,
-                                                                 String.valueOf(threadId),
-                                                                 fullTextSearchQuery,
-                                                                 String.valueOf(threadId) });
+    return db.rawQuery(MESSAGES_FOR_THREAD_QUERY, new String[] { fullTextSearchQuery, String.valueOf(threadId) });
+  }
+
+  /**
+   * @return The number of messages that still have to be indexed by {@link #indexOldMessages(int)}.
+   */
+  public int getUnindexedMessageCount() {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+
+    String sql = "SELECT " +
+                   "(SELECT COUNT(*) FROM " + SmsDatabase.TABLE_NAME + " WHERE " + SmsDatabase.ID + " <= p." + SMS_INDEXED_AFTER + ") + " +
+                   "(SELECT COUNT(*) FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsDatabase.ID + " <= p." + MMS_INDEXED_AFTER + ") " +
+                 "FROM " + INDEX_PROGRESS_TABLE_NAME + " AS p";
+
+    try (Cursor cursor = db.rawQuery(sql, null)) {
+      return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+    }
+  }
+
+  /**
+   * @return True if there are messages that haven't been indexed yet.
+   */
+  public boolean hasUnindexedMessages() {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+
+    try (Cursor cursor = db.rawQuery("SELECT 1 FROM " + INDEX_PROGRESS_TABLE_NAME + " LIMIT 1", null)) {
+      return cursor.moveToFirst();
+    }
+  }
+
+  /**
+   * Indexes up to {@code batchSize} of the newest SMS and MMS messages that haven't been indexed yet
+   * in a single transaction, so it can be stopped between any two calls.
+   *
+   * @return The number of messages that were indexed, 0 once there are none left.
+   */
+  public int indexOldMessages(int batchSize) {
+    return indexOldMessages(databaseHelper.getWritableDatabase(), batchSize);
+  }
+
+  @VisibleForTesting
+  static int indexOldMessages(@NonNull SQLiteDatabase db, int batchSize) {
+    db.beginTransaction();
+    try {
+      long smsIndexedAfter;
+      long mmsIndexedAfter;
+
+      try (Cursor cursor = db.rawQuery("SELECT " + SMS_INDEXED_AFTER + ", " + MMS_INDEXED_AFTER + " FROM " + INDEX_PROGRESS_TABLE_NAME, null)) {
+        if (!cursor.moveToFirst()) {
+          db.setTransactionSuccessful();
+          return 0;
+        }
+
+        smsIndexedAfter = CursorUtil.requireLong(cursor, SMS_INDEXED_AFTER);
+        mmsIndexedAfter = CursorUtil.requireLong(cursor, MMS_INDEXED_AFTER);
+      }
+
+      Batch sms = indexBatch(db, SmsDatabase.TABLE_NAME, SmsDatabase.ID + " * 2", smsIndexedAfter, batchSize);
+      Batch mms = indexBatch(db, MmsDatabase.TABLE_NAME, MmsDatabase.ID + " * 2 + 1", mmsIndexedAfter, batchSize);
+
+      if (sms.indexedAfter == 0 && mms.indexedAfter == 0) {
+        db.delete(INDEX_PROGRESS_TABLE_NAME, null, null);
+        Log.i(TAG, "Finished indexing old messages.");
+      } else {
+        db.execSQL("UPDATE " + INDEX_PROGRESS_TABLE_NAME + " SET " + SMS_INDEXED_AFTER + " = ?, " + MMS_INDEXED_AFTER + " = ?", new Object[] { sms.indexedAfter, mms.indexedAfter });
+      }
+
+      db.setTransactionSuccessful();
+      return sms.count + mms.count;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Indexes the {@code batchSize} newest messages of a table with an id up to {@code indexedAfter}.
+   */
+  private static @NonNull Batch indexBatch(@NonNull SQLiteDatabase db, @NonNull String table, @NonNull String searchKey, long indexedAfter, int batchSize) {
+    if (indexedAfter <= 0) {
+      return Batch.DONE;
+    }
+
+    long batchStart;
+    int  count;
+
+    try (Cursor cursor = db.rawQuery("SELECT MIN(" + MmsSmsColumns.ID + "), COUNT(*) FROM (SELECT " + MmsSmsColumns.ID + " FROM " + table + " WHERE " + MmsSmsColumns.ID + " <= ? ORDER BY " + MmsSmsColumns.ID + " DESC LIMIT " + batchSize + ")",
+                                     new String[] { String.valueOf(indexedAfter) }))
+    {
+      if (!cursor.moveToFirst() || cursor.isNull(0)) {
+        return Batch.DONE;
+      }
+
+      batchStart = cursor.getLong(0);
+      count      = cursor.getInt(1);
+    }
+
+    db.execSQL("INSERT INTO " + MESSAGE_FTS_TABLE_NAME + " (" + ID + ", " + BODY + ") " +
+               "SELECT " + searchKey + ", " + MmsSmsColumns.BODY + " FROM " + table + " WHERE " + MmsSmsColumns.ID + " BETWEEN ? AND ?",
+               new Object[] { batchStart, indexedAfter });
+
+    return new Batch(batchStart - 1, count);
+  }
+
+  private static @NonNull String buildMessagesQuery(boolean withContent, @Nullable MessageIds candidates, @NonNull Collection<Long> mentionMessageIds) {
+    String query = buildMatchSelect(withContent, candidates);
+
+    if (!mentionMessageIds.isEmpty()) {
+      query += " UNION ALL " + buildMentionSelect(withContent, candidates, mentionMessageIds);
+    }
+
+    return query;
+  }
+
+  private static @NonNull String[] buildMessagesQueryArgs(@NonNull String fullTextSearchQuery, @NonNull Collection<Long> mentionMessageIds) {
+    if (mentionMessageIds.isEmpty()) {
+      return new String[] { fullTextSearchQuery };
+    } else {
+      return new String[] { fullTextSearchQuery, fullTextSearchQuery };
+    }
+  }
+
+  private static @NonNull String buildMatchSelect(boolean withContent, @Nullable MessageIds candidates) {
+    String columns;
+
+    if (withContent) {
+      columns = CONVERSATION_RECIPIENT + ", " +
+                MESSAGE_RECIPIENT + ", " +
+                "snippet(" + MESSAGE_FTS_TABLE_NAME + ", -1, '', '', '" + SNIPPET_WRAP + "', 7) AS " + SNIPPET + ", " +
+                DATE_RECEIVED + ", " +
+                THREAD_ID + ", " +
+                BODY + ", " +
+                MESSAGE_FTS_TABLE_NAME + "." + ID + " >> 1 AS " + MESSAGE_ID + ", " +
+                MESSAGE_FTS_TABLE_NAME + "." + ID + " & 1 AS " + IS_MMS + ", " +
+                "bm25(" + MESSAGE_FTS_TABLE_NAME + ") AS " + SEARCH_RANK + ", " +
+                "0 AS " + MENTION_MATCH;
+    } else {
+      columns = MESSAGE_FTS_TABLE_NAME + "." + ID + " >> 1 AS " + MESSAGE_ID + ", " +
+                MESSAGE_FTS_TABLE_NAME + "." + ID + " & 1 AS " + IS_MMS;
+    }
+
+    String select = "SELECT " + columns + " " +
+                    "FROM " + MESSAGE_FTS_TABLE_NAME + " " +
+                    "WHERE " + MESSAGE_FTS_TABLE_NAME + " MATCH ?";
+
+    if (candidates != null) {
+      List<Long> keys = new ArrayList<>(candidates.size());
+
+      for (long smsId : candidates.getSmsIds()) {
+        keys.add(smsId * 2);
+      }
+
+      for (long mmsId : candidates.getMmsIds()) {
+        keys.add(mmsId * 2 + 1);
+      }
+
+      select += " AND " + MESSAGE_FTS_TABLE_NAME + "." + ID + " IN (" + TextUtils.join(",", keys) + ")";
+    }
+
+    return select;
+  }
+
+  private static @NonNull String buildMentionSelect(boolean withContent, @Nullable MessageIds candidates, @NonNull Collection<Long> mentionMessageIds) {
+    String columns;
+
+    if (withContent) {
+      columns = ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.RECIPIENT_ID + " AS " + CONVERSATION_RECIPIENT + ", " +
+                MmsSmsColumns.RECIPIENT_ID + " AS " + MESSAGE_RECIPIENT + ", " +
+                MmsDatabase.TABLE_NAME + "." + MmsDatabase.BODY + " AS " + SNIPPET + ", " +
+                MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED + " AS " + DATE_RECEIVED + ", " +
+                MmsDatabase.TABLE_NAME + "." + MmsDatabase.THREAD_ID + ", " +
+                MmsDatabase.TABLE_NAME + "." + MmsDatabase.BODY + ", " +
+                MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AS " + MESSAGE_ID + ", " +
+                "1 AS " + IS_MMS + ", " +
+                "0 AS " + SEARCH_RANK + ", " +
+                "1 AS " + MENTION_MATCH;
+    } else {
+      columns = MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AS " + MESSAGE_ID + ", " +
+                "1 AS " + IS_MMS;
+    }
+
+    String select = "SELECT " + columns + " " +
+                    "FROM " + MmsDatabase.TABLE_NAME + " " +
+                    "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
+                    "WHERE " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " IN (" + TextUtils.join(",", mentionMessageIds) + ") AND " +
+                    MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " * 2 + 1 NOT IN (SELECT " + ID + " FROM " + MESSAGE_FTS_TABLE_NAME + " WHERE " + MESSAGE_FTS_TABLE_NAME + " MATCH ?)";
+
+    if (candidates != null) {
+      select += " AND " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " IN (" + TextUtils.join(",", candidates.getMmsIds()) + ")";
+    }
+
+    return select;
+  }
+
+  /**
+   * Triggers for messages that haven't been indexed yet do nothing, they'll be indexed as they
+   * are when their turn comes.
+   */
+  private static @NonNull String buildTrigger(@NonNull String name,
+                                              @NonNull String event,
+                                              @NonNull String table,
+                                              @NonNull String indexedAfterColumn,
+                                              @NonNull String row,
+                                              @NonNull String condition,
+                                              @NonNull String body)
+  {
+    return "CREATE TRIGGER " + name + " AFTER " + event + " ON " + table + " " +
+           "WHEN " + row + "." + MmsSmsColumns.ID + " > IFNULL((SELECT " + indexedAfterColumn + " FROM " + INDEX_PROGRESS_TABLE_NAME + "), 0)" + condition + " BEGIN\n" +
+           body +
+           "END;";
   }
 
   private static String createFullTextSearchQuery(@NonNull String query) {
@@ -162,5 +436,71 @@ public class SearchDatabase extends Database {
   private static String fullTextSearchEscape(String s) {
     return "\"" + s.replace("\"", "\"\"") + "\"";
   }
-}
 
+  public enum MessageOrder {
+    /** Newest first. */
+    DATE(MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC"),
+
+    /**
+     * Most relevant first, by bm25. Messages that only match by mention come last. All messages
+     * share one index, so their scores are comparable across SMS and MMS.
+     */
+    RANK(SEARCH_RANK + " ASC, " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC");
+
+    private final String orderBy;
+
+    MessageOrder(@NonNull String orderBy) {
+      this.orderBy = orderBy;
+    }
+  }
+
+  private static final class Batch {
+
+    static final Batch DONE = new Batch(0, 0);
+
+    /** The id the table is indexed after once the batch is done, 0 when all of it is. */
+    private final long indexedAfter;
+    private final int  count;
+
+    private Batch(long indexedAfter, int count) {
+      this.indexedAfter = indexedAfter;
+      this.count        = count;
+    }
+  }
+
+  /**
+   * The ids of a set of SMS and MMS messages.
+   */
+  public static final class MessageIds {
+
+    private final Set<Long> smsIds;
+    private final Set<Long> mmsIds;
+
+    MessageIds(@NonNull Set<Long> smsIds, @NonNull Set<Long> mmsIds) {
+      this.smsIds = smsIds;
+      this.mmsIds = mmsIds;
+    }
+
+    public @NonNull Set<Long> getSmsIds() {
+      return smsIds;
+    }
+
+    public @NonNull Set<Long> getMmsIds() {
+      return mmsIds;
+    }
+
+    public int size() {
+      return smsIds.size() + mmsIds.size();
+    }
+
+    /**
+     * @return These ids along with the given MMS ids.
+     */
+    public @NonNull MessageIds withMmsIds(@NonNull Collection<Long> ids) {
+      Set<Long> combined = new HashSet<>(mmsIds);
+      combined.addAll(ids);
+
+      return new MessageIds(smsIds, combined);
+    }
+  }
+}
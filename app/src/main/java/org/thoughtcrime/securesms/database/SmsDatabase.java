@@ -33,6 +33,7 @@ import net.sqlcipher.database.SQLiteStatement;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.database.documents.IdentityKeyMismatch;
 import org.thoughtcrime.securesms.database.documents.IdentityKeyMismatchList;
+import org.thoughtcrime.securesms.database.documents.LazyDocumentList;
 import org.thoughtcrime.securesms.database.documents.NetworkFailure;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.database.model.GroupCallUpdateDetailsUtil;
@@ -42,6 +43,7 @@ import org.thoughtcrime.securesms.database.model.SmsMessageRecord;
 import org.thoughtcrime.securesms.database.model.databaseprotos.GroupCallUpdateDetails;
 import org.thoughtcrime.securesms.database.model.databaseprotos.ProfileChangeDetails;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.groups.GroupId;
 import org.thoughtcrime.securesms.groups.GroupMigrationMembershipChange;
 import org.thoughtcrime.securesms.jobs.TrimThreadJob;
 import org.thoughtcrime.securesms.mms.IncomingMediaMessage;
@@ -55,7 +57,6 @@ import org.thoughtcrime.securesms.sms.IncomingTextMessage;
 import org.thoughtcrime.securesms.sms.OutgoingTextMessage;
 import org.thoughtcrime.securesms.util.Base64;
 import org.thoughtcrime.securesms.util.CursorUtil;
-import org.thoughtcrime.securesms.util.JsonUtils;
 import org.thoughtcrime.securesms.util.SqlUtil;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.thoughtcrime.securesms.util.Util;
@@ -63,12 +64,13 @@ import org.whispersystems.libsignal.util.Pair;
 import org.whispersystems.libsignal.util.guava.Optional;
 
 import java.io.Closeable;
-import java.io.IOException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -231,24 +233,6 @@ public class SmsDatabase extends MessageDatabase {
     }
   }
 
-  @Override
-  public int getMessageCountForThreadSummary(long threadId) {
-    SQLiteDatabase db    = databaseHelper.getReadableDatabase();
-    SqlUtil.Query  query = buildMeaningfulMessagesQuery(threadId);
-    String[]       cols  = { "COUNT(*)" };
-
-    try (Cursor cursor = db.query(TABLE_NAME, cols, query.getWhere(), query.getWhereArgs(), null, null, null)) {
-      if (cursor != null && cursor.moveToFirst()) {
-        int count = cursor.getInt(0);
-        if (count > 0) {
-          return getMessageCountForThread(threadId);
-        }
-      }
-    }
-
-    return 0;
-  }
-
   @Override
   public int getMessageCountForThread(long threadId) {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
@@ -505,44 +489,59 @@ public class SmsDatabase extends MessageDatabase {
   }
 
   @Override
-  public @NonNull Set<ThreadUpdate> incrementReceiptCount(SyncMessageId messageId, long timestamp, @NonNull ReceiptType receiptType) {
-    if (receiptType == ReceiptType.VIEWED) {
-      return Collections.emptySet();
+  public @NonNull ReceiptUpdates incrementReceiptCounts(@NonNull List<Pair<SyncMessageId, Long>> receipts, @NonNull ReceiptType receiptType) {
+    if (receiptType == ReceiptType.VIEWED || receipts.isEmpty()) {
+      return new ReceiptUpdates(Collections.emptySet(), Collections.emptySet());
     }
 
-    SQLiteDatabase    database      = databaseHelper.getWritableDatabase();
-    Set<ThreadUpdate> threadUpdates = new HashSet<>();
-
-    try (Cursor cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, RECIPIENT_ID, TYPE, DELIVERY_RECEIPT_COUNT, READ_RECEIPT_COUNT},
-                              DATE_SENT + " = ?", new String[] {String.valueOf(messageId.getTimetamp())},
-                              null, null, null, null)) {
+    SQLiteDatabase                             database           = databaseHelper.getWritableDatabase();
+    Map<Long, List<Pair<SyncMessageId, Long>>> receiptsBySentTime = groupBySentTimestamp(receipts);
+    String                                     query              = DATE_SENT + " IN (" + TextUtils.join(",", receiptsBySentTime.keySet()) + ")";
+    String                                     columnName         = receiptType.getColumnName();
+    Set<ThreadUpdate>                          threadUpdates      = new HashSet<>();
+    Set<SyncMessageId>                         matched            = new HashSet<>();
 
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, RECIPIENT_ID, TYPE, DATE_SENT, columnName},
+                                        query, null, null, null, null))
+    {
       while (cursor.moveToNext()) {
-        if (Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(TYPE)))) {
-          RecipientId theirRecipientId = messageId.getRecipientId();
-          RecipientId outRecipientId   = RecipientId.from(cursor.getLong(cursor.getColumnIndexOrThrow(RECIPIENT_ID)));
-
-          if (outRecipientId.equals(theirRecipientId)) {
-            long    threadId         = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
-            String  columnName       = receiptType.getColumnName();
-            boolean isFirstIncrement = cursor.getLong(cursor.getColumnIndexOrThrow(columnName)) == 0;
+        if (!Types.isOutgoingMessageType(CursorUtil.requireLong(cursor, TYPE))) {
+          continue;
+        }
 
-            database.execSQL("UPDATE " + TABLE_NAME +
-                             " SET " + columnName + " = " + columnName + " + 1 WHERE " +
-                             ID + " = ?",
-                             new String[] {String.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ID)))});
+        RecipientId outRecipientId = RecipientId.from(CursorUtil.requireLong(cursor, RECIPIENT_ID));
+        int         count          = 0;
 
-            threadUpdates.add(new ThreadUpdate(threadId, !isFirstIncrement));
+        for (Pair<SyncMessageId, Long> receipt : receiptsBySentTime.get(CursorUtil.requireLong(cursor, DATE_SENT))) {
+          if (outRecipientId.equals(receipt.first().getRecipientId())) {
+            matched.add(receipt.first());
+            count++;
           }
         }
-      }
 
-      if (threadUpdates.size() > 0 && receiptType == ReceiptType.DELIVERY) {
-        earlyDeliveryReceiptCache.increment(messageId.getTimetamp(), messageId.getRecipientId());
-      }
+        if (count > 0) {
+          long    threadId         = CursorUtil.requireLong(cursor, THREAD_ID);
+          long    id               = CursorUtil.requireLong(cursor, ID);
+          boolean isFirstIncrement = CursorUtil.requireLong(cursor, columnName) == 0;
+
+          database.execSQL("UPDATE " + TABLE_NAME +
+                           " SET " + columnName + " = " + columnName + " + ? WHERE " +
+                           ID + " = ?",
+                           new Object[] {count, id});
+
+          DatabaseFactory.getThreadDatabase(context).incrementSnippetReceiptCount(threadId, id, false, receiptType, count);
 
-      return threadUpdates;
+          threadUpdates.add(new ThreadUpdate(threadId, !isFirstIncrement));
+        }
+      }
     }
+
+    return new ReceiptUpdates(threadUpdates, matched);
+  }
+
+  @Override
+  void addEarlyDeliveryReceipt(@NonNull SyncMessageId receipt) {
+    earlyDeliveryReceiptCache.increment(receipt.getTimetamp(), receipt.getRecipientId());
   }
 
   @Override
@@ -910,7 +909,7 @@ public class SmsDatabase extends MessageDatabase {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     long messageId    = db.insert(TABLE_NAME, null, values);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, messageId, false, true);
     if (unread) {
       DatabaseFactory.getThreadDatabase(context).incrementUnread(threadId, 1);
     }
@@ -1047,6 +1046,168 @@ public class SmsDatabase extends MessageDatabase {
 
   @Override
   public Optional<InsertResult> insertMessageInbox(IncomingTextMessage message, long type) {
+    type = getInboxType(message, type);
+
+    Recipient recipient = Recipient.resolved(message.getSender());
+
+    Recipient groupRecipient;
+
+    if (message.getGroupId() == null) {
+      groupRecipient = null;
+    } else {
+      RecipientId id = DatabaseFactory.getRecipientDatabase(context).getOrInsertFromPossiblyMigratedGroupId(message.getGroupId());
+      groupRecipient = Recipient.resolved(id);
+    }
+
+    boolean silent = isSilent(message);
+    boolean unread = isUnread(message, silent);
+
+    long threadId;
+
+    if (groupRecipient == null) threadId = DatabaseFactory.getThreadDatabase(context).getThreadIdFor(recipient);
+    else                        threadId = DatabaseFactory.getThreadDatabase(context).getThreadIdFor(groupRecipient);
+
+    ContentValues values = getInboxValues(message, type, threadId, unread);
+
+    if (message.isPush() && isDuplicate(message, threadId)) {
+      Log.w(TAG, "Duplicate message (" + message.getSentTimestampMillis() + "), ignoring...");
+      return Optional.absent();
+    } else {
+      SQLiteDatabase db        = databaseHelper.getWritableDatabase();
+      long           messageId = db.insert(TABLE_NAME, null, values);
+
+      if (unread) {
+        DatabaseFactory.getThreadDatabase(context).incrementUnread(threadId, 1);
+      }
+
+      if (!silent) {
+        DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, messageId, false, true);
+      } else {
+        DatabaseFactory.getThreadDatabase(context).updateForSilentInsert(threadId);
+      }
+
+      if (message.getSubscriptionId() != -1) {
+        DatabaseFactory.getRecipientDatabase(context).setDefaultSubscriptionId(recipient.getId(), message.getSubscriptionId());
+      }
+
+      notifyConversationListeners(threadId);
+
+      if (!silent) {
+        ApplicationDependencies.getJobManager().add(new TrimThreadJob(threadId));
+      }
+
+      return Optional.of(new InsertResult(messageId, threadId));
+    }
+  }
+
+  @Override
+  public Optional<InsertResult> insertMessageInbox(IncomingTextMessage message) {
+    return insertMessageInbox(message, Types.BASE_INBOX_TYPE);
+  }
+
+  /**
+   * Inserts a batch of incoming messages, e.g. the group updates that were missed while offline,
+   * in a single transaction. Each thread that gets messages has its unread count, summary and
+   * listeners updated once for the whole batch rather than once per message.
+   *
+   * @return The results for the messages that were inserted, in order. Duplicates are left out.
+   */
+  @Override
+  public @NonNull List<InsertResult> insertMessagesInbox(@NonNull List<IncomingTextMessage> messages) {
+    if (messages.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    SQLiteDatabase         db                = databaseHelper.getWritableDatabase();
+    ThreadDatabase         threadDatabase    = DatabaseFactory.getThreadDatabase(context);
+    RecipientDatabase      recipientDatabase = DatabaseFactory.getRecipientDatabase(context);
+    Map<GroupId, Long>     groupThreadIds    = new HashMap<>();
+    Map<RecipientId, Long> threadIds         = new HashMap<>();
+    Map<Long, Integer>     unreadCounts      = new HashMap<>();
+    Set<Long>              insertedThreads   = new LinkedHashSet<>();
+    Set<Long>              updatedThreads    = new LinkedHashSet<>();
+    List<InsertResult>     results           = new ArrayList<>(messages.size());
+
+    db.beginTransaction();
+    try {
+      for (IncomingTextMessage message : messages) {
+        long    type   = getInboxType(message, Types.BASE_INBOX_TYPE);
+        boolean silent = isSilent(message);
+        boolean unread = isUnread(message, silent);
+        Long    threadId;
+
+        if (message.getGroupId() == null) {
+          threadId = threadIds.get(message.getSender());
+
+          if (threadId == null) {
+            threadId = threadDatabase.getThreadIdFor(Recipient.resolved(message.getSender()));
+            threadIds.put(message.getSender(), threadId);
+          }
+        } else {
+          threadId = groupThreadIds.get(message.getGroupId());
+
+          if (threadId == null) {
+            RecipientId groupRecipientId = recipientDatabase.getOrInsertFromPossiblyMigratedGroupId(message.getGroupId());
+            threadId = threadDatabase.getThreadIdFor(Recipient.resolved(groupRecipientId));
+            groupThreadIds.put(message.getGroupId(), threadId);
+          }
+        }
+
+        if (message.isPush() && isDuplicate(message, threadId)) {
+          Log.w(TAG, "Duplicate message (" + message.getSentTimestampMillis() + "), ignoring...");
+          continue;
+        }
+
+        long messageId = db.insert(TABLE_NAME, null, getInboxValues(message, type, threadId, unread));
+
+        if (unread) {
+          Integer count = unreadCounts.get(threadId);
+          unreadCounts.put(threadId, count == null ? 1 : count + 1);
+        }
+
+        if (!silent) {
+          updatedThreads.add(threadId);
+        }
+
+        if (message.getSubscriptionId() != -1) {
+          recipientDatabase.setDefaultSubscriptionId(message.getSender(), message.getSubscriptionId());
+        }
+
+        insertedThreads.add(threadId);
+        results.add(new InsertResult(messageId, threadId));
+      }
+
+      for (Map.Entry<Long, Integer> entry : unreadCounts.entrySet()) {
+        threadDatabase.incrementUnread(entry.getKey(), entry.getValue());
+      }
+
+      for (long threadId : insertedThreads) {
+        if (updatedThreads.contains(threadId)) {
+          threadDatabase.update(threadId, true);
+        } else {
+          threadDatabase.updateForSilentInsert(threadId);
+        }
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    Log.d(TAG, "Inserted " + results.size() + "/" + messages.size() + " messages into " + insertedThreads.size() + " thread(s).");
+
+    for (long threadId : insertedThreads) {
+      notifyConversationListeners(threadId);
+    }
+
+    for (long threadId : updatedThreads) {
+      ApplicationDependencies.getJobManager().add(new TrimThreadJob(threadId));
+    }
+
+    return results;
+  }
+
+  private static long getInboxType(@NonNull IncomingTextMessage message, long type) {
     if (message.isJoined()) {
       type = (type & (Types.TOTAL_MASK - Types.BASE_TYPE_MASK)) | Types.JOINED_TYPE;
     } else if (message.isPreKeyBundle()) {
@@ -1074,31 +1235,24 @@ public class SmsDatabase extends MessageDatabase {
     if      (message.isIdentityVerified())    type |= Types.KEY_EXCHANGE_IDENTITY_VERIFIED_BIT;
     else if (message.isIdentityDefault())     type |= Types.KEY_EXCHANGE_IDENTITY_DEFAULT_BIT;
 
-    Recipient recipient = Recipient.resolved(message.getSender());
-
-    Recipient groupRecipient;
-
-    if (message.getGroupId() == null) {
-      groupRecipient = null;
-    } else {
-      RecipientId id = DatabaseFactory.getRecipientDatabase(context).getOrInsertFromPossiblyMigratedGroupId(message.getGroupId());
-      groupRecipient = Recipient.resolved(id);
-    }
-
-    boolean silent = message.isIdentityUpdate()   ||
-                     message.isIdentityVerified() ||
-                     message.isIdentityDefault()  ||
-                     message.isJustAGroupLeave();
-    boolean unread = !silent && (Util.isDefaultSmsProvider(context) ||
-                                 message.isSecureMessage()          ||
-                                 message.isGroup()                  ||
-                                 message.isPreKeyBundle());
+    return type;
+  }
 
-    long       threadId;
+  private static boolean isSilent(@NonNull IncomingTextMessage message) {
+    return message.isIdentityUpdate()   ||
+           message.isIdentityVerified() ||
+           message.isIdentityDefault()  ||
+           message.isJustAGroupLeave();
+  }
 
-    if (groupRecipient == null) threadId = DatabaseFactory.getThreadDatabase(context).getThreadIdFor(recipient);
-    else                        threadId = DatabaseFactory.getThreadDatabase(context).getThreadIdFor(groupRecipient);
+  private boolean isUnread(@NonNull IncomingTextMessage message, boolean silent) {
+    return !silent && (Util.isDefaultSmsProvider(context) ||
+                       message.isSecureMessage()          ||
+                       message.isGroup()                  ||
+                       message.isPreKeyBundle());
+  }
 
+  private static @NonNull ContentValues getInboxValues(@NonNull IncomingTextMessage message, long type, long threadId, boolean unread) {
     ContentValues values = new ContentValues();
     values.put(RECIPIENT_ID, message.getSender().serialize());
     values.put(ADDRESS_DEVICE_ID,  message.getSenderDeviceId());
@@ -1121,38 +1275,7 @@ public class SmsDatabase extends MessageDatabase {
     values.put(THREAD_ID, threadId);
     values.put(SERVER_GUID, message.getServerGuid());
 
-    if (message.isPush() && isDuplicate(message, threadId)) {
-      Log.w(TAG, "Duplicate message (" + message.getSentTimestampMillis() + "), ignoring...");
-      return Optional.absent();
-    } else {
-      SQLiteDatabase db        = databaseHelper.getWritableDatabase();
-      long           messageId = db.insert(TABLE_NAME, null, values);
-
-      if (unread) {
-        DatabaseFactory.getThreadDatabase(context).incrementUnread(threadId, 1);
-      }
-
-      if (!silent) {
-        DatabaseFactory.getThreadDatabase(context).update(threadId, true);
-      }
-
-      if (message.getSubscriptionId() != -1) {
-        DatabaseFactory.getRecipientDatabase(context).setDefaultSubscriptionId(recipient.getId(), message.getSubscriptionId());
-      }
-
-      notifyConversationListeners(threadId);
-
-      if (!silent) {
-        ApplicationDependencies.getJobManager().add(new TrimThreadJob(threadId));
-      }
-
-      return Optional.of(new InsertResult(messageId, threadId));
-    }
-  }
-
-  @Override
-  public Optional<InsertResult> insertMessageInbox(IncomingTextMessage message) {
-    return insertMessageInbox(message, Types.BASE_INBOX_TYPE);
+    return values;
   }
 
   @Override
@@ -1176,7 +1299,7 @@ public class SmsDatabase extends MessageDatabase {
     long messageId = db.insert(TABLE_NAME, null, values);
 
     DatabaseFactory.getThreadDatabase(context).incrementUnread(threadId, 1);
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, messageId, false, true);
 
     notifyConversationListeners(threadId);
 
@@ -1222,8 +1345,10 @@ public class SmsDatabase extends MessageDatabase {
     }
 
     if (!message.isIdentityVerified() && !message.isIdentityDefault()) {
-      DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+      DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, messageId, false, true);
       DatabaseFactory.getThreadDatabase(context).setLastSeen(threadId);
+    } else {
+      DatabaseFactory.getThreadDatabase(context).updateForSilentInsert(threadId);
     }
 
     DatabaseFactory.getThreadDatabase(context).setHasSent(threadId, true);
@@ -1279,7 +1404,7 @@ public class SmsDatabase extends MessageDatabase {
 
     db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
 
-    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false, true);
+    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).updateForDelete(threadId, messageId, false);
 
     notifyConversationListeners(threadId);
     return threadDeleted;
@@ -1569,12 +1694,14 @@ public class SmsDatabase extends MessageDatabase {
 
   public static class Reader implements Closeable {
 
-    private final Cursor  cursor;
-    private final Context context;
+    private final Cursor               cursor;
+    private final Context              context;
+    private final Map<Long, Recipient> recipients;
 
     public Reader(Cursor cursor) {
-      this.cursor  = cursor;
-      this.context = ApplicationDependencies.getApplication();
+      this.cursor     = cursor;
+      this.context    = ApplicationDependencies.getApplication();
+      this.recipients = new HashMap<>();
     }
 
     public SmsMessageRecord getNext() {
@@ -1615,8 +1742,8 @@ public class SmsDatabase extends MessageDatabase {
         readReceiptCount = 0;
       }
 
-      List<IdentityKeyMismatch> mismatches = getMismatches(mismatchDocument);
-      Recipient                 recipient  = Recipient.live(RecipientId.from(recipientId)).get();
+      List<IdentityKeyMismatch> mismatches = new LazyDocumentList<>(mismatchDocument, IdentityKeyMismatchList.class);
+      Recipient                 recipient  = getRecipient(recipientId);
 
       return new SmsMessageRecord(messageId, body, recipient,
                                   recipient,
@@ -1628,16 +1755,18 @@ public class SmsDatabase extends MessageDatabase {
                                   notifiedTimestamp);
     }
 
-    private List<IdentityKeyMismatch> getMismatches(String document) {
-      try {
-        if (!TextUtils.isEmpty(document)) {
-          return JsonUtils.fromJson(document, IdentityKeyMismatchList.class).getList();
-        }
-      } catch (IOException e) {
-        Log.w(TAG, e);
+    /**
+     * Messages on a page mostly share a few recipients, so each one is only looked up once.
+     */
+    private @NonNull Recipient getRecipient(long recipientId) {
+      Recipient recipient = recipients.get(recipientId);
+
+      if (recipient == null) {
+        recipient = Recipient.live(RecipientId.from(recipientId)).get();
+        recipients.put(recipientId, recipient);
       }
 
-      return new LinkedList<>();
+      return recipient;
     }
 
     @Override
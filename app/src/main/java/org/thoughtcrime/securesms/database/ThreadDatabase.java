@@ -25,6 +25,7 @@ import android.net.Uri;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import com.annimon.stream.Collectors;
 import com.annimon.stream.Stream;
@@ -54,6 +55,7 @@ import org.thoughtcrime.securesms.storage.StorageSyncHelper;
 import org.thoughtcrime.securesms.util.ConversationUtil;
 import org.thoughtcrime.securesms.util.CursorUtil;
 import org.thoughtcrime.securesms.util.JsonUtils;
+import org.thoughtcrime.securesms.util.SetUtil;
 import org.thoughtcrime.securesms.util.SqlUtil;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.thoughtcrime.securesms.util.Util;
@@ -74,6 +76,7 @@ import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -109,6 +112,10 @@ public class ThreadDatabase extends Database {
   public  static final String HAS_SENT               = "has_sent";
   private static final String LAST_SCROLLED          = "last_scrolled";
           static final String PINNED                 = "pinned";
+  private static final String SNIPPET_MESSAGE_ID     = "snippet_message_id";
+  private static final String SNIPPET_MESSAGE_MMS    = "snippet_message_mms";
+  private static final String SNIPPET_DATE_RECEIVED  = "snippet_date_received";
+  private static final String TOTAL_MESSAGE_COUNT    = "total_message_count";
 
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID                     + " INTEGER PRIMARY KEY, " +
                                                                                   DATE                   + " INTEGER DEFAULT 0, " +
@@ -132,7 +139,11 @@ public class ThreadDatabase extends Database {
                                                                                   READ_RECEIPT_COUNT     + " INTEGER DEFAULT 0, " +
                                                                                   UNREAD_COUNT           + " INTEGER DEFAULT 0, " +
                                                                                   LAST_SCROLLED          + " INTEGER DEFAULT 0, " +
-                                                                                  PINNED                 + " INTEGER DEFAULT 0);";
+                                                                                  PINNED                 + " INTEGER DEFAULT 0, " +
+                                                                                  SNIPPET_MESSAGE_ID     + " INTEGER DEFAULT 0, " +
+                                                                                  SNIPPET_MESSAGE_MMS    + " INTEGER DEFAULT 0, " +
+                                                                                  SNIPPET_DATE_RECEIVED  + " INTEGER DEFAULT 0, " +
+                                                                                  TOTAL_MESSAGE_COUNT    + " INTEGER DEFAULT 0);";
 
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS thread_recipient_ids_index ON " + TABLE_NAME + " (" + RECIPIENT_ID + ");",
@@ -140,6 +151,44 @@ public class ThreadDatabase extends Database {
     "CREATE INDEX IF NOT EXISTS thread_pinned_index ON " + TABLE_NAME + " (" + PINNED + ");",
   };
 
+  /**
+   * Keep {@link #TOTAL_MESSAGE_COUNT} and {@link #MESSAGE_COUNT} in step with the messages in each
+   * thread, in the same transaction as whatever inserted, deleted, moved or retyped them. The total
+   * counts every message, while {@link #MESSAGE_COUNT} only counts the ones that keep a thread in
+   * the conversation list, see {@link #meaningfulSms(String)}.
+   */
+  public static final String[] CREATE_TRIGGERS = {
+    buildCountTrigger("sms_thread_count_insert", "INSERT", SmsDatabase.TABLE_NAME, "",
+                      buildCountUpdate("+", "new", SmsDatabase.THREAD_ID, meaningfulSms("new"))),
+    buildCountTrigger("sms_thread_count_delete", "DELETE", SmsDatabase.TABLE_NAME, "",
+                      buildCountUpdate("-", "old", SmsDatabase.THREAD_ID, meaningfulSms("old"))),
+    buildCountTrigger("sms_thread_count_update", "UPDATE OF " + SmsDatabase.THREAD_ID + ", " + SmsDatabase.TYPE, SmsDatabase.TABLE_NAME,
+                      "WHEN old." + SmsDatabase.THREAD_ID + " IS NOT new." + SmsDatabase.THREAD_ID + " OR old." + SmsDatabase.TYPE + " IS NOT new." + SmsDatabase.TYPE + " ",
+                      buildCountUpdate("-", "old", SmsDatabase.THREAD_ID, meaningfulSms("old")) +
+                      buildCountUpdate("+", "new", SmsDatabase.THREAD_ID, meaningfulSms("new"))),
+
+    buildCountTrigger("mms_thread_count_insert", "INSERT", MmsDatabase.TABLE_NAME, "",
+                      buildCountUpdate("+", "new", MmsDatabase.THREAD_ID, "1")),
+    buildCountTrigger("mms_thread_count_delete", "DELETE", MmsDatabase.TABLE_NAME, "",
+                      buildCountUpdate("-", "old", MmsDatabase.THREAD_ID, "1")),
+    buildCountTrigger("mms_thread_count_update", "UPDATE OF " + MmsDatabase.THREAD_ID, MmsDatabase.TABLE_NAME,
+                      "WHEN old." + MmsDatabase.THREAD_ID + " IS NOT new." + MmsDatabase.THREAD_ID + " ",
+                      buildCountUpdate("-", "old", MmsDatabase.THREAD_ID, "1") +
+                      buildCountUpdate("+", "new", MmsDatabase.THREAD_ID, "1"))
+  };
+
+  private static final Set<String> COUNT_TRIGGER_NAMES = SetUtil.newHashSet("sms_thread_count_insert", "sms_thread_count_delete", "sms_thread_count_update",
+                                                                            "mms_thread_count_insert", "mms_thread_count_delete", "mms_thread_count_update");
+
+  @VisibleForTesting
+  static final String RECOUNT_MESSAGES = "UPDATE " + TABLE_NAME + " SET " +
+                                         TOTAL_MESSAGE_COUNT + " = " +
+                                         "(SELECT COUNT(*) FROM " + SmsDatabase.TABLE_NAME + " WHERE " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.THREAD_ID + " = " + TABLE_NAME + "." + ID + ") + " +
+                                         "(SELECT COUNT(*) FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.THREAD_ID + " = " + TABLE_NAME + "." + ID + "), " +
+                                         MESSAGE_COUNT + " = " +
+                                         "(SELECT COUNT(*) FROM " + SmsDatabase.TABLE_NAME + " WHERE " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.THREAD_ID + " = " + TABLE_NAME + "." + ID + " AND " + meaningfulSms(SmsDatabase.TABLE_NAME) + ") + " +
+                                         "(SELECT COUNT(*) FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.THREAD_ID + " = " + TABLE_NAME + "." + ID + ")";
+
   private static final String[] THREAD_PROJECTION = {
       ID, DATE, MESSAGE_COUNT, RECIPIENT_ID, SNIPPET, SNIPPET_CHARSET, READ, UNREAD_COUNT, TYPE, ERROR, SNIPPET_TYPE,
       SNIPPET_URI, SNIPPET_CONTENT_TYPE, SNIPPET_EXTRAS, ARCHIVED, STATUS, DELIVERY_RECEIPT_COUNT, EXPIRES_IN, LAST_SEEN, READ_RECEIPT_COUNT, LAST_SCROLLED, PINNED
@@ -184,12 +233,11 @@ public class ThreadDatabase extends Database {
     return result;
   }
 
-  private void updateThread(long threadId, long count, String body, @Nullable Uri attachment,
-                            @Nullable String contentType, @Nullable Extra extra,
-                            long date, int status, int deliveryReceiptCount, long type, boolean unarchive,
-                            long expiresIn, int readReceiptCount)
-  {
+  private void updateThread(long threadId, @NonNull MessageRecord record, boolean unarchive, boolean resetLastScrolled) {
     String extraSerialized = null;
+    Extra  extra           = getExtrasFor(record);
+    Uri    attachment      = getAttachmentUriFor(record);
+    long   date            = record.getTimestamp();
 
     if (extra != null) {
       try {
@@ -201,22 +249,24 @@ public class ThreadDatabase extends Database {
 
     ContentValues contentValues = new ContentValues();
     contentValues.put(DATE, date - date % 1000);
-    contentValues.put(SNIPPET, body);
+    contentValues.put(SNIPPET, ThreadBodyUtil.getFormattedBodyFor(context, record));
     contentValues.put(SNIPPET_URI, attachment == null ? null : attachment.toString());
-    contentValues.put(SNIPPET_TYPE, type);
-    contentValues.put(SNIPPET_CONTENT_TYPE, contentType);
+    contentValues.put(SNIPPET_TYPE, record.getType());
+    contentValues.put(SNIPPET_CONTENT_TYPE, getContentTypeFor(record));
     contentValues.put(SNIPPET_EXTRAS, extraSerialized);
-    contentValues.put(MESSAGE_COUNT, count);
-    contentValues.put(STATUS, status);
-    contentValues.put(DELIVERY_RECEIPT_COUNT, deliveryReceiptCount);
-    contentValues.put(READ_RECEIPT_COUNT, readReceiptCount);
-    contentValues.put(EXPIRES_IN, expiresIn);
+    contentValues.put(SNIPPET_MESSAGE_ID, record.getId());
+    contentValues.put(SNIPPET_MESSAGE_MMS, record.isMms() ? 1 : 0);
+    contentValues.put(SNIPPET_DATE_RECEIVED, record.getDateReceived());
+    contentValues.put(STATUS, record.getDeliveryStatus());
+    contentValues.put(DELIVERY_RECEIPT_COUNT, record.getDeliveryReceiptCount());
+    contentValues.put(READ_RECEIPT_COUNT, record.getReadReceiptCount());
+    contentValues.put(EXPIRES_IN, record.getExpiresIn());
 
     if (unarchive) {
       contentValues.put(ARCHIVED, 0);
     }
 
-    if (count != getConversationMessageCount(threadId)) {
+    if (resetLastScrolled) {
       contentValues.put(LAST_SCROLLED, 0);
     }
 
@@ -225,6 +275,19 @@ public class ThreadDatabase extends Database {
     notifyConversationListListeners();
   }
 
+  private void resetLastScrolled(long threadId, boolean unarchive) {
+    ContentValues contentValues = new ContentValues();
+    contentValues.put(LAST_SCROLLED, 0);
+
+    if (unarchive) {
+      contentValues.put(ARCHIVED, 0);
+    }
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.update(TABLE_NAME, contentValues, ID + " = ?", new String[] {threadId + ""});
+    notifyConversationListListeners();
+  }
+
   public void updateSnippet(long threadId, String snippet, @Nullable Uri attachment, long date, long type, boolean unarchive) {
     if (isSilentType(type)) {
       return;
@@ -235,6 +298,7 @@ public class ThreadDatabase extends Database {
     contentValues.put(SNIPPET, snippet);
     contentValues.put(SNIPPET_TYPE, type);
     contentValues.put(SNIPPET_URI, attachment == null ? null : attachment.toString());
+    contentValues.put(SNIPPET_MESSAGE_ID, 0);
 
     if (unarchive) {
       contentValues.put(ARCHIVED, 0);
@@ -892,6 +956,45 @@ public class ThreadDatabase extends Database {
     }
   }
 
+  /**
+   * @return The number of messages in the thread, including the ones that don't count towards the
+   *         thread's summary, or -1 if there's no such thread.
+   */
+  public int getTotalMessageCount(long threadId) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+
+    try (Cursor cursor = db.query(TABLE_NAME, new String[]{TOTAL_MESSAGE_COUNT}, ID_WHERE, SqlUtil.buildArgs(threadId), null, null, null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return CursorUtil.requireInt(cursor, TOTAL_MESSAGE_COUNT);
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Whether a schema statement creates one of the {@link #CREATE_TRIGGERS}. A backup restore holds
+   * these back until every message is in and then recounts with {@link #recountMessages()}, so the
+   * counts it ends up with don't depend on whether the thread table was imported before or after
+   * the messages.
+   */
+  public static boolean isCountTrigger(@NonNull String statement) {
+    String[] parts = statement.trim().split("\\s+", 4);
+
+    return parts.length >= 3                    &&
+           "create".equalsIgnoreCase(parts[0])  &&
+           "trigger".equalsIgnoreCase(parts[1]) &&
+           COUNT_TRIGGER_NAMES.contains(parts[2].toLowerCase(Locale.US));
+  }
+
+  /**
+   * Counts the messages in every thread again, for when the counts can't be trusted, e.g. after
+   * restoring a backup, which leaves out expiring messages.
+   */
+  void recountMessages() {
+    databaseHelper.getWritableDatabase().execSQL(RECOUNT_MESSAGES);
+  }
+
   public int getConversationMessageCount(long threadId) {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
 
@@ -1206,11 +1309,21 @@ public class ThreadDatabase extends Database {
     return update(threadId, unarchive, true);
   }
 
+  /**
+   * Recomputes the thread's snippet from its newest message. Whether the thread is empty comes from
+   * {@link #MESSAGE_COUNT}, which the triggers keep current.
+   *
+   * @return True if the thread is gone or empty, otherwise false.
+   */
   public boolean update(long threadId, boolean unarchive, boolean allowDeletion) {
     MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
-    long count                    = mmsSmsDatabase.getConversationCountForThreadSummary(threadId);
+    SnippetMessage snippet        = getSnippetMessage(threadId);
 
-    if (count == 0) {
+    if (snippet == null) {
+      return true;
+    }
+
+    if (snippet.messageCount == 0) {
       if (allowDeletion) {
         deleteConversation(threadId);
       }
@@ -1224,11 +1337,7 @@ public class ThreadDatabase extends Database {
       MessageRecord record;
 
       if (reader != null && (record = reader.getNext()) != null) {
-        updateThread(threadId, count, ThreadBodyUtil.getFormattedBodyFor(context, record), getAttachmentUriFor(record),
-                     getContentTypeFor(record), getExtrasFor(record),
-                     record.getTimestamp(), record.getDeliveryStatus(), record.getDeliveryReceiptCount(),
-                     record.getType(), unarchive, record.getExpiresIn(), record.getReadReceiptCount());
-        notifyConversationListListeners();
+        updateThread(threadId, record, unarchive, !snippet.is(record.getId(), record.isMms()));
         return false;
       } else {
         deleteConversation(threadId);
@@ -1240,6 +1349,160 @@ public class ThreadDatabase extends Database {
     }
   }
 
+  /**
+   * Updates the summary for a message that was just inserted into the thread. The triggers have
+   * already counted it, so it can only replace the snippet if it's the newest, and there's no need
+   * to re-read the thread like {@link #update(long, boolean)} does. Runs in a transaction so that
+   * two inserts can't both compare against the same old snippet.
+   */
+  public void updateForInsert(long threadId, long messageId, boolean mms, boolean unarchive) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+    try {
+      SnippetMessage snippet = getSnippetMessage(threadId);
+
+      if (snippet == null || !snippet.isKnown()) {
+        update(threadId, unarchive);
+        db.setTransactionSuccessful();
+        return;
+      }
+
+      MessageRecord record;
+
+      try {
+        record = (mms ? DatabaseFactory.getMmsDatabase(context) : DatabaseFactory.getSmsDatabase(context)).getMessageRecord(messageId);
+      } catch (NoSuchMessageException e) {
+        Log.w(TAG, "Inserted message is gone, recomputing thread " + threadId, e);
+        update(threadId, unarchive);
+        db.setTransactionSuccessful();
+        return;
+      }
+
+      if (canBeSnippet(record) && record.getDateReceived() >= snippet.dateReceived) {
+        updateThread(threadId, record, unarchive, true);
+      } else {
+        resetLastScrolled(threadId, unarchive);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * For a message that was inserted without touching the summary, like an identity change. The
+   * message could still be the one {@link #update(long, boolean)} picks as the snippet, so the
+   * snippet is forgotten and the next change to the thread recomputes it.
+   */
+  void updateForSilentInsert(long threadId) {
+    ContentValues contentValues = new ContentValues(1);
+    contentValues.put(SNIPPET_MESSAGE_ID, 0);
+
+    databaseHelper.getWritableDatabase().update(TABLE_NAME, contentValues, ID_WHERE, SqlUtil.buildArgs(threadId));
+  }
+
+  /**
+   * Updates the summary for a message that was just deleted from the thread. The triggers have
+   * already uncounted it, so the thread only needs to be recomputed if that left it without
+   * messages that keep it in the list, or the snippet message itself was deleted.
+   *
+   * @return True if the thread was deleted because it's now empty, otherwise false.
+   */
+  public boolean updateForDelete(long threadId, long messageId, boolean mms) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+    try {
+      SnippetMessage snippet = getSnippetMessage(threadId);
+      boolean        deleted;
+
+      if (snippet == null || !snippet.isKnown() || snippet.is(messageId, mms) || snippet.messageCount == 0) {
+        deleted = update(threadId, false);
+      } else {
+        resetLastScrolled(threadId, false);
+        deleted = false;
+      }
+
+      db.setTransactionSuccessful();
+      return deleted;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Applies receipts for a message in the thread to the summary, which only has the receipt counts
+   * of the snippet message.
+   */
+  void incrementSnippetReceiptCount(long threadId, long messageId, boolean mms, @NonNull MessageDatabase.ReceiptType receiptType, int count) {
+    if (receiptType == MessageDatabase.ReceiptType.VIEWED) {
+      return;
+    }
+
+    SnippetMessage snippet = getSnippetMessage(threadId);
+
+    if (snippet == null) {
+      return;
+    }
+
+    if (!snippet.isKnown()) {
+      update(threadId, false);
+    } else if (snippet.is(messageId, mms)) {
+      String column = receiptType.getColumnName();
+
+      databaseHelper.getWritableDatabase().execSQL("UPDATE " + TABLE_NAME + " SET " + column + " = " + column + " + ? WHERE " + ID + " = ?",
+                                                   new Object[] { count, threadId });
+      notifyConversationListListeners();
+    }
+  }
+
+  private static @NonNull String buildCountUpdate(@NonNull String operator, @NonNull String row, @NonNull String threadIdColumn, @NonNull String meaningful) {
+    return "  UPDATE " + TABLE_NAME + " SET " + TOTAL_MESSAGE_COUNT + " = " + TOTAL_MESSAGE_COUNT + " " + operator + " 1, " +
+                                               MESSAGE_COUNT + " = " + MESSAGE_COUNT + " " + operator + " " + meaningful +
+           " WHERE " + ID + " = " + row + "." + threadIdColumn + ";\n";
+  }
+
+  /**
+   * Whether an sms keeps its thread in the conversation list, as 1 or 0. Mirrors
+   * {@link SmsDatabase#hasMeaningfulMessage(long)}. Every mms does.
+   */
+  private static @NonNull String meaningfulSms(@NonNull String row) {
+    long hiddenBits = SmsDatabase.Types.END_SESSION_BIT | SmsDatabase.Types.KEY_EXCHANGE_IDENTITY_UPDATE_BIT | SmsDatabase.Types.KEY_EXCHANGE_IDENTITY_VERIFIED_BIT;
+
+    return "(CASE WHEN NOT " + row + "." + SmsDatabase.TYPE + " & " + hiddenBits + " AND " + row + "." + SmsDatabase.TYPE + " != " + SmsDatabase.Types.PROFILE_CHANGE_TYPE + " THEN 1 ELSE 0 END)";
+  }
+
+  private static @NonNull String buildCountTrigger(@NonNull String name, @NonNull String event, @NonNull String table, @NonNull String condition, @NonNull String body) {
+    return "CREATE TRIGGER " + name + " AFTER " + event + " ON " + table + " " + condition + "BEGIN\n" +
+           body +
+           "END;";
+  }
+
+  private @Nullable SnippetMessage getSnippetMessage(long threadId) {
+    SQLiteDatabase db         = databaseHelper.getReadableDatabase();
+    String[]       projection = new String[] { SNIPPET_MESSAGE_ID, SNIPPET_MESSAGE_MMS, SNIPPET_DATE_RECEIVED, MESSAGE_COUNT };
+
+    try (Cursor cursor = db.query(TABLE_NAME, projection, ID_WHERE, SqlUtil.buildArgs(threadId), null, null, null)) {
+      if (cursor.moveToFirst()) {
+        return new SnippetMessage(CursorUtil.requireLong(cursor, SNIPPET_MESSAGE_ID),
+                                  CursorUtil.requireBoolean(cursor, SNIPPET_MESSAGE_MMS),
+                                  CursorUtil.requireLong(cursor, SNIPPET_DATE_RECEIVED),
+                                  CursorUtil.requireLong(cursor, MESSAGE_COUNT));
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Mirrors the selection of {@link MmsSmsDatabase#getConversationSnippet(long)}.
+   */
+  private static boolean canBeSnippet(@NonNull MessageRecord record) {
+    return record.isMms() || (record.getType() != MmsSmsColumns.Types.PROFILE_CHANGE_TYPE && record.getType() != MmsSmsColumns.Types.GV1_MIGRATION_TYPE);
+  }
+
   public @NonNull ThreadRecord getThreadRecordFor(@NonNull Recipient recipient) {
     return Objects.requireNonNull(getThreadRecord(getThreadIdFor(recipient)));
   }
@@ -1307,11 +1570,6 @@ public class ThreadDatabase extends Database {
       draftValues.put(DraftDatabase.THREAD_ID, primary.getThreadId());
       db.update(DraftDatabase.TABLE_NAME, draftValues, DraftDatabase.THREAD_ID + " = ?", SqlUtil.buildArgs(secondary.getThreadId()));
 
-      ContentValues searchValues = new ContentValues();
-      searchValues.put(SearchDatabase.THREAD_ID, primary.getThreadId());
-      db.update(SearchDatabase.SMS_FTS_TABLE_NAME, searchValues, SearchDatabase.THREAD_ID + " = ?", SqlUtil.buildArgs(secondary.getThreadId()));
-      db.update(SearchDatabase.MMS_FTS_TABLE_NAME, searchValues, SearchDatabase.THREAD_ID + " = ?", SqlUtil.buildArgs(secondary.getThreadId()));
-
       RemappedRecords.getInstance().addThread(context, secondary.getThreadId(), primary.getThreadId());
 
       return new MergeResult(primary.getThreadId(), secondary.getThreadId(), true);
@@ -1730,4 +1988,30 @@ public class ThreadDatabase extends Database {
       this.neededMerge      = neededMerge;
     }
   }
+
+  /**
+   * The message the thread's snippet was taken from. Threads that haven't been recomputed since
+   * this was tracked, or whose snippet is a draft, have an id of 0.
+   */
+  private static final class SnippetMessage {
+    private final long    id;
+    private final boolean mms;
+    private final long    dateReceived;
+    private final long    messageCount;
+
+    private SnippetMessage(long id, boolean mms, long dateReceived, long messageCount) {
+      this.id           = id;
+      this.mms          = mms;
+      this.dateReceived = dateReceived;
+      this.messageCount = messageCount;
+    }
+
+    boolean isKnown() {
+      return id > 0;
+    }
+
+    boolean is(long messageId, boolean mms) {
+      return this.id == messageId && this.mms == mms;
+    }
+  }
 }
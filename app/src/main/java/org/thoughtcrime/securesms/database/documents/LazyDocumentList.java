@@ -0,0 +1,69 @@
+package org.thoughtcrime.securesms.database.documents;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.util.JsonUtils;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A read-only list backed by a serialized {@link Document} that's only parsed the first time the
+ * list is accessed. Most messages never have their mismatches or failures looked at, so this saves
+ * parsing them for every message that's read.
+ */
+public final class LazyDocumentList<T> extends AbstractList<T> {
+
+  private static final String TAG = Log.tag(LazyDocumentList.class);
+
+  private final Class<? extends Document<T>> type;
+
+  private String  document;
+  private List<T> list;
+
+  public LazyDocumentList(@Nullable String document, @NonNull Class<? extends Document<T>> type) {
+    this.document = document;
+    this.type     = type;
+  }
+
+  @Override
+  public T get(int index) {
+    return getList().get(index);
+  }
+
+  @Override
+  public int size() {
+    return getList().size();
+  }
+
+  private synchronized @NonNull List<T> getList() {
+    if (list == null) {
+      list     = parse(document, type);
+      document = null;
+    }
+
+    return list;
+  }
+
+  private static @NonNull <T> List<T> parse(@Nullable String document, @NonNull Class<? extends Document<T>> type) {
+    if (document == null || document.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    try {
+      List<T> list = JsonUtils.fromJson(document, type).getList();
+
+      if (list != null) {
+        return Collections.unmodifiableList(list);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+
+    return Collections.emptyList();
+  }
+}
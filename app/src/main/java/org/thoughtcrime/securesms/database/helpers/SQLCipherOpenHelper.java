@@ -182,8 +182,13 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper implements SignalDatab
   private static final int STORAGE_SERVICE_REFACTOR         = 97;
   private static final int CLEAR_MMS_STORAGE_IDS            = 98;
   private static final int SERVER_GUID                      = 99;
+  private static final int ATTACHMENT_REFERENCE_COUNTS      = 100;
+  private static final int THREAD_SNIPPET_MESSAGE           = 101;
+  private static final int UNIFIED_MESSAGE_SEARCH           = 102;
+  private static final int THREAD_TOTAL_MESSAGE_COUNT       = 103;
+  private static final int THREAD_MESSAGE_COUNT_TRIGGERS    = 104;
 
-  private static final int    DATABASE_VERSION = 99;
+  private static final int    DATABASE_VERSION = 104;
   private static final String DATABASE_NAME    = "signal.db";
 
   private final Context        context;
@@ -217,6 +222,7 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper implements SignalDatab
     db.execSQL(PaymentDatabase.CREATE_TABLE);
     executeStatements(db, SearchDatabase.CREATE_TABLE);
     executeStatements(db, RemappedRecordsDatabase.CREATE_TABLE);
+    executeStatements(db, AttachmentDatabase.CREATE_REFERENCE_TABLE);
 
     executeStatements(db, RecipientDatabase.CREATE_INDEXS);
     executeStatements(db, SmsDatabase.CREATE_INDEXS);
@@ -231,6 +237,8 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper implements SignalDatab
     executeStatements(db, MentionDatabase.CREATE_INDEXES);
     executeStatements(db, PaymentDatabase.CREATE_INDEXES);
 
+    executeStatements(db, ThreadDatabase.CREATE_TRIGGERS);
+
     if (context.getDatabasePath(ClassicOpenHelper.NAME).exists()) {
       ClassicOpenHelper                      legacyHelper = new ClassicOpenHelper(context);
       android.database.sqlite.SQLiteDatabase legacyDb     = legacyHelper.getWritableDatabase();
@@ -1463,6 +1471,138 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper implements SignalDatab
         db.execSQL("ALTER TABLE mms ADD COLUMN server_guid TEXT DEFAULT NULL");
       }
 
+      if (oldVersion < ATTACHMENT_REFERENCE_COUNTS) {
+        db.execSQL("CREATE TABLE part_data_reference (_data TEXT PRIMARY KEY, reference_count INTEGER DEFAULT 0)");
+
+        db.execSQL("CREATE TRIGGER part_data_reference_ai AFTER INSERT ON part WHEN new.quote = 0 BEGIN\n" +
+                   "  INSERT OR IGNORE INTO part_data_reference (_data) SELECT new._data WHERE new._data NOT NULL;\n" +
+                   "  UPDATE part_data_reference SET reference_count = reference_count + 1 WHERE _data = new._data;\n" +
+                   "END;");
+        db.execSQL("CREATE TRIGGER part_data_reference_ad AFTER DELETE ON part WHEN old.quote = 0 BEGIN\n" +
+                   "  UPDATE part_data_reference SET reference_count = reference_count - 1 WHERE _data = old._data;\n" +
+                   "END;");
+        db.execSQL("CREATE TRIGGER part_data_reference_au AFTER UPDATE OF _data ON part WHEN new.quote = 0 AND old._data IS NOT new._data BEGIN\n" +
+                   "  UPDATE part_data_reference SET reference_count = reference_count - 1 WHERE _data = old._data;\n" +
+                   "  INSERT OR IGNORE INTO part_data_reference (_data) SELECT new._data WHERE new._data NOT NULL;\n" +
+                   "  UPDATE part_data_reference SET reference_count = reference_count + 1 WHERE _data = new._data;\n" +
+                   "END;");
+
+        db.execSQL("INSERT INTO part_data_reference (_data, reference_count) SELECT _data, COUNT(*) FROM part WHERE _data NOT NULL AND quote = 0 GROUP BY _data");
+        db.execSQL("CREATE INDEX IF NOT EXISTS part_digest_index ON part (digest)");
+      }
+
+      if (oldVersion < THREAD_SNIPPET_MESSAGE) {
+        db.execSQL("ALTER TABLE thread ADD COLUMN snippet_message_id INTEGER DEFAULT 0");
+        db.execSQL("ALTER TABLE thread ADD COLUMN snippet_message_mms INTEGER DEFAULT 0");
+        db.execSQL("ALTER TABLE thread ADD COLUMN snippet_date_received INTEGER DEFAULT 0");
+      }
+
+      if (oldVersion < UNIFIED_MESSAGE_SEARCH) {
+        db.execSQL("DROP TRIGGER IF EXISTS sms_ai");
+        db.execSQL("DROP TRIGGER IF EXISTS sms_au");
+        db.execSQL("DROP TRIGGER IF EXISTS sms_ad");
+        db.execSQL("DROP TRIGGER IF EXISTS mms_ai");
+        db.execSQL("DROP TRIGGER IF EXISTS mms_au");
+        db.execSQL("DROP TRIGGER IF EXISTS mms_ad");
+        db.execSQL("DROP TABLE IF EXISTS sms_fts");
+        db.execSQL("DROP TABLE IF EXISTS mms_fts");
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS sms_search_key_index ON sms (_id * 2)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS mms_search_key_index ON mms (_id * 2 + 1)");
+
+        db.execSQL("CREATE VIEW message_search AS " +
+                   "SELECT sms._id * 2 AS search_key, sms.body AS body, sms.thread_id AS thread_id, (SELECT recipient_ids FROM thread WHERE thread._id = sms.thread_id) AS conversation_recipient, sms.address AS message_recipient, sms.date AS date_received FROM sms " +
+                   "UNION ALL " +
+                   "SELECT mms._id * 2 + 1 AS search_key, mms.body AS body, mms.thread_id AS thread_id, (SELECT recipient_ids FROM thread WHERE thread._id = mms.thread_id) AS conversation_recipient, mms.address AS message_recipient, mms.date_received AS date_received FROM mms");
+        db.execSQL("CREATE VIRTUAL TABLE message_fts USING fts5(body, thread_id UNINDEXED, conversation_recipient UNINDEXED, message_recipient UNINDEXED, date_received UNINDEXED, content=message_search, content_rowid=search_key)");
+
+        db.execSQL("CREATE TABLE search_index_progress (sms_indexed_after INTEGER, mms_indexed_after INTEGER)");
+        db.execSQL("INSERT INTO search_index_progress (sms_indexed_after, mms_indexed_after) VALUES ((SELECT IFNULL(MAX(_id), 0) FROM sms), (SELECT IFNULL(MAX(_id), 0) FROM mms))");
+
+        db.execSQL("CREATE TRIGGER sms_search_insert AFTER INSERT ON sms WHEN new._id > IFNULL((SELECT sms_indexed_after FROM search_index_progress), 0) BEGIN\n" +
+                   "  INSERT INTO message_fts(rowid, body) VALUES (new._id * 2, new.body);\n" +
+                   "END;");
+        db.execSQL("CREATE TRIGGER sms_search_delete AFTER DELETE ON sms WHEN old._id > IFNULL((SELECT sms_indexed_after FROM search_index_progress), 0) BEGIN\n" +
+                   "  INSERT INTO message_fts(message_fts, rowid, body) VALUES ('delete', old._id * 2, old.body);\n" +
+                   "END;");
+        db.execSQL("CREATE TRIGGER sms_search_update AFTER UPDATE OF body ON sms WHEN old._id > IFNULL((SELECT sms_indexed_after FROM search_index_progress), 0) AND old.body IS NOT new.body BEGIN\n" +
+                   "  INSERT INTO message_fts(message_fts, rowid, body) VALUES ('delete', old._id * 2, old.body);\n" +
+                   "  INSERT INTO message_fts(rowid, body) VALUES (new._id * 2, new.body);\n" +
+                   "END;");
+
+        db.execSQL("CREATE TRIGGER mms_search_insert AFTER INSERT ON mms WHEN new._id > IFNULL((SELECT mms_indexed_after FROM search_index_progress), 0) BEGIN\n" +
+                   "  INSERT INTO message_fts(rowid, body) VALUES (new._id * 2 + 1, new.body);\n" +
+                   "END;");
+        db.execSQL("CREATE TRIGGER mms_search_delete AFTER DELETE ON mms WHEN old._id > IFNULL((SELECT mms_indexed_after FROM search_index_progress), 0) BEGIN\n" +
+                   "  INSERT INTO message_fts(message_fts, rowid, body) VALUES ('delete', old._id * 2 + 1, old.body);\n" +
+                   "END;");
+        db.execSQL("CREATE TRIGGER mms_search_update AFTER UPDATE OF body ON mms WHEN old._id > IFNULL((SELECT mms_indexed_after FROM search_index_progress), 0) AND old.body IS NOT new.body BEGIN\n" +
+                   "  INSERT INTO message_fts(message_fts, rowid, body) VALUES ('delete', old._id * 2 + 1, old.body);\n" +
+                   "  INSERT INTO message_fts(rowid, body) VALUES (new._id * 2 + 1, new.body);\n" +
+                   "END;");
+      }
+
+      if (oldVersion < THREAD_TOTAL_MESSAGE_COUNT) {
+        db.execSQL("ALTER TABLE thread ADD COLUMN total_message_count INTEGER DEFAULT 0");
+
+        db.execSQL("CREATE TRIGGER sms_thread_count_insert AFTER INSERT ON sms BEGIN\n" +
+                   "  UPDATE thread SET total_message_count = total_message_count + 1 WHERE _id = new.thread_id;\n" +
+                   "END;");
+        db.execSQL("CREATE TRIGGER sms_thread_count_delete AFTER DELETE ON sms BEGIN\n" +
+                   "  UPDATE thread SET total_message_count = total_message_count - 1 WHERE _id = old.thread_id;\n" +
+                   "END;");
+        db.execSQL("CREATE TRIGGER sms_thread_count_update AFTER UPDATE OF thread_id ON sms WHEN old.thread_id IS NOT new.thread_id BEGIN\n" +
+                   "  UPDATE thread SET total_message_count = total_message_count - 1 WHERE _id = old.thread_id;\n" +
+                   "  UPDATE thread SET total_message_count = total_message_count + 1 WHERE _id = new.thread_id;\n" +
+                   "END;");
+
+        db.execSQL("CREATE TRIGGER mms_thread_count_insert AFTER INSERT ON mms BEGIN\n" +
+                   "  UPDATE thread SET total_message_count = total_message_count + 1 WHERE _id = new.thread_id;\n" +
+                   "END;");
+        db.execSQL("CREATE TRIGGER mms_thread_count_delete AFTER DELETE ON mms BEGIN\n" +
+                   "  UPDATE thread SET total_message_count = total_message_count - 1 WHERE _id = old.thread_id;\n" +
+                   "END;");
+        db.execSQL("CREATE TRIGGER mms_thread_count_update AFTER UPDATE OF thread_id ON mms WHEN old.thread_id IS NOT new.thread_id BEGIN\n" +
+                   "  UPDATE thread SET total_message_count = total_message_count - 1 WHERE _id = old.thread_id;\n" +
+                   "  UPDATE thread SET total_message_count = total_message_count + 1 WHERE _id = new.thread_id;\n" +
+                   "END;");
+
+        db.execSQL("UPDATE thread SET total_message_count = (SELECT COUNT(*) FROM sms WHERE sms.thread_id = thread._id) + (SELECT COUNT(*) FROM mms WHERE mms.thread_id = thread._id)");
+      }
+
+      if (oldVersion < THREAD_MESSAGE_COUNT_TRIGGERS) {
+        db.execSQL("DROP TRIGGER IF EXISTS sms_thread_count_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS sms_thread_count_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS sms_thread_count_update");
+        db.execSQL("DROP TRIGGER IF EXISTS mms_thread_count_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS mms_thread_count_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS mms_thread_count_update");
+
+        db.execSQL("CREATE TRIGGER sms_thread_count_insert AFTER INSERT ON sms BEGIN\n" +
+                   "  UPDATE thread SET total_message_count = total_message_count + 1, message_count = message_count + (CASE WHEN NOT new.type & 4211200 AND new.type != 7 THEN 1 ELSE 0 END) WHERE _id = new.thread_id;\n" +
+                   "END;");
+        db.execSQL("CREATE TRIGGER sms_thread_count_delete AFTER DELETE ON sms BEGIN\n" +
+                   "  UPDATE thread SET total_message_count = total_message_count - 1, message_count = message_count - (CASE WHEN NOT old.type & 4211200 AND old.type != 7 THEN 1 ELSE 0 END) WHERE _id = old.thread_id;\n" +
+                   "END;");
+        db.execSQL("CREATE TRIGGER sms_thread_count_update AFTER UPDATE OF thread_id, type ON sms WHEN old.thread_id IS NOT new.thread_id OR old.type IS NOT new.type BEGIN\n" +
+                   "  UPDATE thread SET total_message_count = total_message_count - 1, message_count = message_count - (CASE WHEN NOT old.type & 4211200 AND old.type != 7 THEN 1 ELSE 0 END) WHERE _id = old.thread_id;\n" +
+                   "  UPDATE thread SET total_message_count = total_message_count + 1, message_count = message_count + (CASE WHEN NOT new.type & 4211200 AND new.type != 7 THEN 1 ELSE 0 END) WHERE _id = new.thread_id;\n" +
+                   "END;");
+
+        db.execSQL("CREATE TRIGGER mms_thread_count_insert AFTER INSERT ON mms BEGIN\n" +
+                   "  UPDATE thread SET total_message_count = total_message_count + 1, message_count = message_count + 1 WHERE _id = new.thread_id;\n" +
+                   "END;");
+        db.execSQL("CREATE TRIGGER mms_thread_count_delete AFTER DELETE ON mms BEGIN\n" +
+                   "  UPDATE thread SET total_message_count = total_message_count - 1, message_count = message_count - 1 WHERE _id = old.thread_id;\n" +
+                   "END;");
+        db.execSQL("CREATE TRIGGER mms_thread_count_update AFTER UPDATE OF thread_id ON mms WHEN old.thread_id IS NOT new.thread_id BEGIN\n" +
+                   "  UPDATE thread SET total_message_count = total_message_count - 1, message_count = message_count - 1 WHERE _id = old.thread_id;\n" +
+                   "  UPDATE thread SET total_message_count = total_message_count + 1, message_count = message_count + 1 WHERE _id = new.thread_id;\n" +
+                   "END;");
+
+        db.execSQL("UPDATE thread SET message_count = (SELECT COUNT(*) FROM sms WHERE sms.thread_id = thread._id AND (CASE WHEN NOT sms.type & 4211200 AND sms.type != 7 THEN 1 ELSE 0 END)) + (SELECT COUNT(*) FROM mms WHERE mms.thread_id = thread._id)");
+      }
+
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
@@ -18,6 +18,7 @@ import org.thoughtcrime.securesms.megaphone.MegaphoneRepository;
 import org.thoughtcrime.securesms.messages.BackgroundMessageRetriever;
 import org.thoughtcrime.securesms.messages.IncomingMessageObserver;
 import org.thoughtcrime.securesms.messages.IncomingMessageProcessor;
+import org.thoughtcrime.securesms.messages.ReceiptAggregator;
 import org.thoughtcrime.securesms.net.ContentProxySelector;
 import org.thoughtcrime.securesms.net.PipeConnectivityListener;
 import org.thoughtcrime.securesms.net.StandardUserAgentInterceptor;
@@ -77,6 +78,7 @@ public class ApplicationDependencies {
   private static volatile GroupsV2StateProcessor       groupsV2StateProcessor;
   private static volatile GroupsV2Operations           groupsV2Operations;
   private static volatile EarlyMessageCache            earlyMessageCache;
+  private static volatile ReceiptAggregator            receiptAggregator;
   private static volatile TypingStatusRepository       typingStatusRepository;
   private static volatile TypingStatusSender           typingStatusSender;
   private static volatile DatabaseObserver             databaseObserver;
@@ -319,6 +321,18 @@ public class ApplicationDependencies {
     return earlyMessageCache;
   }
 
+  public static @NonNull ReceiptAggregator getReceiptAggregator() {
+    if (receiptAggregator == null) {
+      synchronized (LOCK) {
+        if (receiptAggregator == null) {
+          receiptAggregator = provider.provideReceiptAggregator();
+        }
+      }
+    }
+
+    return receiptAggregator;
+  }
+
   public static @NonNull MessageNotifier getMessageNotifier() {
     return messageNotifier;
   }
@@ -480,6 +494,7 @@ public class ApplicationDependencies {
     @NonNull FrameRateTracker provideFrameRateTracker();
     @NonNull MegaphoneRepository provideMegaphoneRepository();
     @NonNull EarlyMessageCache provideEarlyMessageCache();
+    @NonNull ReceiptAggregator provideReceiptAggregator();
     @NonNull MessageNotifier provideMessageNotifier();
     @NonNull IncomingMessageObserver provideIncomingMessageObserver();
     @NonNull TrimThreadsByDateManager provideTrimThreadsByDateManager();
@@ -12,9 +12,12 @@ import org.signal.glide.apng.decode.APNGParser;
 import org.signal.glide.common.io.ByteBufferReader;
 import org.signal.glide.common.loader.ByteBufferLoader;
 import org.signal.glide.common.loader.Loader;
+import org.thoughtcrime.securesms.util.Hex;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class ApngBufferCacheDecoder implements ResourceDecoder<ByteBuffer, APNGDecoder> {
 
@@ -41,7 +44,29 @@ public class ApngBufferCacheDecoder implements ResourceDecoder<ByteBuffer, APNGD
       }
     };
 
-    return new FrameSeqDecoderResource(new APNGDecoder(loader, null), source.limit());
+    APNGDecoder decoder = new APNGDecoder(loader, null);
+    decoder.setFrameCacheKey(getFrameCacheKey(options.get(ApngOptions.FRAME_CACHE_KEY), source.limit()));
+
+    return new FrameSeqDecoderResource(decoder, source.limit());
+  }
+
+  /**
+   * The frame cache key is the given key, e.g. the URI, together with the size of the APNG. It's
+   * hashed so that it can be used as a file name.
+   */
+  private static @Nullable String getFrameCacheKey(@Nullable String key, int size) {
+    if (key == null) {
+      return null;
+    }
+
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[]        hash   = digest.digest(key.getBytes());
+
+      return Hex.toStringCondensed(hash) + "_" + size;
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
   }
 
   private static class FrameSeqDecoderResource implements Resource<APNGDecoder> {
@@ -16,5 +16,11 @@ public final class ApngOptions {
     messageDigest.update(Conversions.intToByteArray(value ? 1 : 0));
   });
 
+  /**
+   * Identifies the APNG being loaded, like its URI, for the shared frame cache. Animations loaded
+   * without one don't use the cache.
+   */
+  public static final Option<String> FRAME_CACHE_KEY = Option.memory("org.signal.apng_frame_cache_key");
+
   private ApngOptions() {}
 }
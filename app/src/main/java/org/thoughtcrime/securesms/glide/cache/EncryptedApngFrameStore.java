@@ -0,0 +1,166 @@
+package org.thoughtcrime.securesms.glide.cache;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import org.signal.core.util.StreamUtil;
+import org.signal.core.util.concurrent.SignalExecutors;
+import org.signal.core.util.logging.Log;
+import org.signal.glide.common.decode.FrameCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Persists composited APNG frames for the {@link FrameCache}, deflated and then encrypted the same way
+ * as the rest of the Glide disk cache (see {@link EncryptedApngCacheEncoder}).
+ * <p>
+ * Reads and writes happen on a serial executor of their own so they never hold up the decoder, and the
+ * directory is trimmed to {@link #MAX_SIZE_BYTES} by last modification time after each write.
+ */
+public final class EncryptedApngFrameStore extends EncryptedCoder implements FrameCache.DiskStore {
+
+  private static final String TAG = Log.tag(EncryptedApngFrameStore.class);
+
+  private static final String DIRECTORY      = "apng_frames";
+  private static final long   MAX_SIZE_BYTES = 64 * 1024 * 1024;
+
+  private final File        directory;
+  private final byte[]      secret;
+  private final Executor    executor;
+  private final Set<String> pendingReads;
+
+  private long knownSize = -1;
+
+  public EncryptedApngFrameStore(@NonNull Context context, @NonNull byte[] secret) {
+    this.directory    = new File(context.getCacheDir(), DIRECTORY);
+    this.secret       = secret;
+    this.executor     = SignalExecutors.newCachedSingleThreadExecutor("signal-apng-frames");
+    this.pendingReads = new HashSet<>();
+  }
+
+  @Override
+  public void read(@NonNull String key, int length, @NonNull FrameCache.DiskStore.Callback callback) {
+    synchronized (pendingReads) {
+      if (!pendingReads.add(key)) {
+        return;
+      }
+    }
+
+    executor.execute(() -> {
+      byte[] pixels = readFrame(key, length);
+
+      synchronized (pendingReads) {
+        pendingReads.remove(key);
+      }
+
+      if (pixels != null) {
+        callback.onRead(pixels);
+      }
+    });
+  }
+
+  @WorkerThread
+  private @Nullable byte[] readFrame(@NonNull String key, int length) {
+    File file = new File(directory, key);
+    if (!file.exists()) {
+      return null;
+    }
+
+    try (InputStream inputStream = new InflaterInputStream(createEncryptedInputStream(secret, file))) {
+      byte[] pixels = new byte[length];
+      StreamUtil.readFully(inputStream, pixels);
+
+      if (inputStream.read() != -1) {
+        throw new IOException("Frame is larger than expected!");
+      }
+
+      file.setLastModified(System.currentTimeMillis());
+      return pixels;
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read frame, discarding.", e);
+      file.delete();
+      return null;
+    }
+  }
+
+  @Override
+  public void write(@NonNull String key, @NonNull byte[] pixels) {
+    executor.execute(() -> {
+      File file = new File(directory, key);
+      if (file.exists() || (!directory.exists() && !directory.mkdirs())) {
+        return;
+      }
+
+      File     temp     = new File(directory, key + ".tmp");
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      try (OutputStream outputStream = new DeflaterOutputStream(createEncryptedOutputStream(secret, temp), deflater)) {
+        outputStream.write(pixels);
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to write frame.", e);
+        temp.delete();
+        return;
+      } finally {
+        deflater.end();
+      }
+
+      if (!temp.renameTo(file)) {
+        Log.w(TAG, "Failed to move frame into place.");
+        temp.delete();
+        return;
+      }
+
+      trim(file.length());
+    });
+  }
+
+  private void trim(long added) {
+    if (knownSize >= 0) {
+      knownSize += added;
+      if (knownSize <= MAX_SIZE_BYTES) {
+        return;
+      }
+    }
+
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+
+    long size = 0;
+    for (File file : files) {
+      size += file.length();
+    }
+
+    if (size > MAX_SIZE_BYTES) {
+      Arrays.sort(files, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+
+      long kept = 0;
+      for (File file : files) {
+        long fileSize = file.length();
+        if (kept >= 0 && kept + fileSize <= MAX_SIZE_BYTES * 3 / 4) {
+          kept += fileSize;
+        } else {
+          kept = -1;
+          if (file.delete()) {
+            size -= fileSize;
+          }
+        }
+      }
+    }
+
+    knownSize = size;
+  }
+}
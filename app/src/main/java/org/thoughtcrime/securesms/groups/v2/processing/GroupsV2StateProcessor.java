@@ -9,6 +9,7 @@ import androidx.annotation.WorkerThread;
 
 import com.annimon.stream.Stream;
 
+import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.signal.storageservice.protos.groups.local.DecryptedGroup;
 import org.signal.storageservice.protos.groups.local.DecryptedGroupChange;
@@ -44,9 +45,9 @@ import org.thoughtcrime.securesms.sms.IncomingGroupUpdateMessage;
 import org.thoughtcrime.securesms.sms.IncomingTextMessage;
 import org.thoughtcrime.securesms.util.FeatureFlags;
 import org.whispersystems.libsignal.util.guava.Optional;
-import org.whispersystems.signalservice.api.groupsv2.DecryptedGroupHistoryEntry;
 import org.whispersystems.signalservice.api.groupsv2.DecryptedGroupUtil;
 import org.whispersystems.signalservice.api.groupsv2.GroupsV2Api;
+import org.whispersystems.signalservice.api.groupsv2.GroupsV2AuthorizationString;
 import org.whispersystems.signalservice.api.groupsv2.InvalidGroupStateException;
 import org.whispersystems.signalservice.api.groupsv2.NotAbleToApplyGroupV2ChangeException;
 import org.whispersystems.signalservice.api.util.UuidUtil;
@@ -54,7 +55,6 @@ import org.whispersystems.signalservice.internal.push.exceptions.GroupNotFoundEx
 import org.whispersystems.signalservice.internal.push.exceptions.NotInGroupException;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -228,13 +228,26 @@ public final class GroupsV2StateProcessor {
 
       updateLocalDatabaseGroupState(inputGroupState, newLocalState);
       determineProfileSharing(inputGroupState, newLocalState);
-      if (localState != null && localState.getRevision() == GroupsV2StateProcessor.RESTORE_PLACEHOLDER_REVISION) {
-        Log.i(TAG, "Inserting single update message for restore placeholder");
-        insertUpdateMessages(timestamp, null, Collections.singleton(new LocalGroupLogEntry(newLocalState, null)));
-      } else {
-        insertUpdateMessages(timestamp, localState, advanceGroupStateResult.getProcessedLogEntries());
+
+      Set<RecipientId> learnedProfileKeys;
+
+      MessageDatabase mmsDatabase = DatabaseFactory.getMmsDatabase(context);
+      mmsDatabase.beginTransaction();
+      try {
+        if (localState != null && localState.getRevision() == GroupsV2StateProcessor.RESTORE_PLACEHOLDER_REVISION) {
+          Log.i(TAG, "Inserting single update message for restore placeholder");
+          insertUpdateMessages(timestamp, null, Collections.singleton(new LocalGroupLogEntry(newLocalState, null)));
+        } else {
+          insertUpdateMessages(timestamp, localState, advanceGroupStateResult.getProcessedLogEntries());
+        }
+        learnedProfileKeys = persistLearnedProfileKeys(inputGroupState);
+
+        mmsDatabase.setTransactionSuccessful();
+      } finally {
+        mmsDatabase.endTransaction();
       }
-      persistLearnedProfileKeys(inputGroupState);
+
+      fetchProfilesForLearnedProfileKeys(learnedProfileKeys);
 
       GlobalGroupState remainingWork = advanceGroupStateResult.getNewGlobalGroupState();
       if (remainingWork.getServerHistory().size() > 0) {
@@ -403,6 +416,18 @@ public final class GroupsV2StateProcessor {
                                       @Nullable DecryptedGroup previousGroupState,
                                       Collection<LocalGroupLogEntry> processedLogEntries)
     {
+      UpdateMessageQueue updateMessages = new UpdateMessageQueue(new UpdateMessageQueue.Inserter() {
+        @Override
+        public void insertIncoming(@NonNull List<IncomingTextMessage> messages) {
+          insertIncomingMessages(messages);
+        }
+
+        @Override
+        public void insertOutgoing(@NonNull DecryptedGroupV2Context decryptedGroupV2Context, long timestamp) {
+          insertOutgoingMessage(decryptedGroupV2Context, timestamp);
+        }
+      });
+
       for (LocalGroupLogEntry entry : processedLogEntries) {
         if (entry.getChange() != null && DecryptedGroupUtil.changeIsEmptyExceptForProfileKeyChanges(entry.getChange()) && !DecryptedGroupUtil.changeIsEmpty(entry.getChange())) {
           Log.d(TAG, "Skipping profile key changes only update message");
@@ -417,15 +442,20 @@ public final class GroupsV2StateProcessor {
             }
           }
           if (insert) {
-            storeMessage(GroupProtoUtil.createDecryptedGroupV2Context(masterKey, new GroupMutation(previousGroupState, entry.getChange(), entry.getGroup()), null), timestamp);
+            storeMessage(GroupProtoUtil.createDecryptedGroupV2Context(masterKey, new GroupMutation(previousGroupState, entry.getChange(), entry.getGroup()), null), timestamp, updateMessages);
             timestamp++;
           }
         }
         previousGroupState = entry.getGroup();
       }
+
+      updateMessages.flush();
     }
 
-    private void persistLearnedProfileKeys(@NonNull GlobalGroupState globalGroupState) {
+    /**
+     * @return The recipients whose profile keys were updated.
+     */
+    private @NonNull Set<RecipientId> persistLearnedProfileKeys(@NonNull GlobalGroupState globalGroupState) {
       final ProfileKeySet profileKeys = new ProfileKeySet();
 
       for (ServerGroupLogEntry entry : globalGroupState.getServerHistory()) {
@@ -437,8 +467,13 @@ public final class GroupsV2StateProcessor {
         }
       }
 
-      Set<RecipientId> updated = recipientDatabase.persistProfileKeySet(profileKeys);
+      return recipientDatabase.persistProfileKeySet(profileKeys);
+    }
 
+    /**
+     * Must not be called within a database transaction, as this waits on network requests.
+     */
+    private void fetchProfilesForLearnedProfileKeys(@NonNull Set<RecipientId> updated) {
       if (!updated.isEmpty()) {
         Log.i(TAG, String.format(Locale.US, "Learned %d new profile keys, fetching profiles", updated.size()));
 
@@ -477,56 +512,57 @@ public final class GroupsV2StateProcessor {
 
     private List<ServerGroupLogEntry> getFullMemberHistory(@NonNull UUID selfUuid, int logsNeededFromRevision) throws IOException {
       try {
-        Collection<DecryptedGroupHistoryEntry> groupStatesFromRevision = groupsV2Api.getGroupHistory(groupSecretParams, logsNeededFromRevision, groupsV2Authorization.getAuthorizationForToday(selfUuid, groupSecretParams));
-        ArrayList<ServerGroupLogEntry>         history                 = new ArrayList<>(groupStatesFromRevision.size());
-        boolean                                ignoreServerChanges     = SignalStore.internalValues().gv2IgnoreServerChanges();
+        GroupsV2AuthorizationString  authorization       = groupsV2Authorization.getAuthorizationForToday(selfUuid, groupSecretParams);
+        PipelinedGroupHistoryFetcher fetcher             = new PipelinedGroupHistoryFetcher(groupsV2Api, groupSecretParams, authorization, SignalExecutors.UNBOUNDED);
+        boolean                      ignoreServerChanges = SignalStore.internalValues().gv2IgnoreServerChanges();
 
         if (ignoreServerChanges) {
           Log.w(TAG, "Server change logs are ignored by setting");
         }
 
-        for (DecryptedGroupHistoryEntry entry : groupStatesFromRevision) {
-          DecryptedGroup       group  = entry.getGroup().orNull();
-          DecryptedGroupChange change = ignoreServerChanges ? null : entry.getChange().orNull();
-
-          if (group != null || change != null) {
-            history.add(new ServerGroupLogEntry(group, change));
-          }
-        }
-
-        return history;
+        return fetcher.fetch(logsNeededFromRevision, ignoreServerChanges);
       } catch (InvalidGroupStateException | VerificationFailedException e) {
         throw new IOException(e);
       }
     }
 
-    private void storeMessage(@NonNull DecryptedGroupV2Context decryptedGroupV2Context, long timestamp) {
+    private void storeMessage(@NonNull DecryptedGroupV2Context decryptedGroupV2Context, long timestamp, @NonNull UpdateMessageQueue updateMessages) {
       Optional<UUID> editor = getEditor(decryptedGroupV2Context);
 
       boolean outgoing = !editor.isPresent() || Recipient.self().requireUuid().equals(editor.get());
 
       if (outgoing) {
-        try {
-          MessageDatabase            mmsDatabase     = DatabaseFactory.getMmsDatabase(context);
-          RecipientId                recipientId     = recipientDatabase.getOrInsertFromGroupId(groupId);
-          Recipient                  recipient       = Recipient.resolved(recipientId);
-          OutgoingGroupUpdateMessage outgoingMessage = new OutgoingGroupUpdateMessage(recipient, decryptedGroupV2Context, null, timestamp, 0, false, null, Collections.emptyList(), Collections.emptyList(), Collections.emptyList());
-          long                       threadId        = DatabaseFactory.getThreadDatabase(context).getThreadIdFor(recipient);
-          long                       messageId       = mmsDatabase.insertMessageOutbox(outgoingMessage, threadId, false, null);
-
-          mmsDatabase.markAsSent(messageId, true);
-        } catch (MmsException e) {
-          Log.w(TAG, e);
-        }
+        updateMessages.addOutgoing(decryptedGroupV2Context, timestamp);
       } else {
-        MessageDatabase            smsDatabase  = DatabaseFactory.getSmsDatabase(context);
         RecipientId                sender       = RecipientId.from(editor.get(), null);
         IncomingTextMessage        incoming     = new IncomingTextMessage(sender, -1, timestamp, timestamp, "", Optional.of(groupId), 0, false, null);
         IncomingGroupUpdateMessage groupMessage = new IncomingGroupUpdateMessage(incoming, decryptedGroupV2Context);
 
-        if (!smsDatabase.insertMessageInbox(groupMessage).isPresent()) {
-          Log.w(TAG, "Could not insert update message");
-        }
+        updateMessages.addIncoming(groupMessage);
+      }
+    }
+
+    private void insertOutgoingMessage(@NonNull DecryptedGroupV2Context decryptedGroupV2Context, long timestamp) {
+      try {
+        MessageDatabase            mmsDatabase     = DatabaseFactory.getMmsDatabase(context);
+        RecipientId                recipientId     = recipientDatabase.getOrInsertFromGroupId(groupId);
+        Recipient                  recipient       = Recipient.resolved(recipientId);
+        OutgoingGroupUpdateMessage outgoingMessage = new OutgoingGroupUpdateMessage(recipient, decryptedGroupV2Context, null, timestamp, 0, false, null, Collections.emptyList(), Collections.emptyList(), Collections.emptyList());
+        long                       threadId        = DatabaseFactory.getThreadDatabase(context).getThreadIdFor(recipient);
+        long                       messageId       = mmsDatabase.insertMessageOutbox(outgoingMessage, threadId, false, null);
+
+        mmsDatabase.markAsSent(messageId, true);
+      } catch (MmsException e) {
+        Log.w(TAG, e);
+      }
+    }
+
+    private void insertIncomingMessages(@NonNull List<IncomingTextMessage> messages) {
+      MessageDatabase smsDatabase = DatabaseFactory.getSmsDatabase(context);
+      int             inserted    = smsDatabase.insertMessagesInbox(messages).size();
+
+      if (inserted < messages.size()) {
+        Log.w(TAG, "Could not insert " + (messages.size() - inserted) + " of " + messages.size() + " update messages");
       }
     }
 
@@ -0,0 +1,115 @@
+package org.thoughtcrime.securesms.groups.v2.processing;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import org.signal.core.util.logging.Log;
+import org.signal.storageservice.protos.groups.local.DecryptedGroup;
+import org.signal.storageservice.protos.groups.local.DecryptedGroupChange;
+import org.signal.zkgroup.VerificationFailedException;
+import org.signal.zkgroup.groups.GroupSecretParams;
+import org.whispersystems.signalservice.api.groupsv2.DecryptedGroupHistoryEntry;
+import org.whispersystems.signalservice.api.groupsv2.GroupsV2Api;
+import org.whispersystems.signalservice.api.groupsv2.GroupsV2AuthorizationString;
+import org.whispersystems.signalservice.api.groupsv2.InvalidGroupStateException;
+import org.whispersystems.signalservice.internal.push.PushServiceSocket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Fetches the full group history from the server, one page at a time.
+ * <p>
+ * While a page is being decrypted on the calling thread, the request for the next page is already
+ * in flight on the supplied executor, so the network round trips overlap with the zkgroup work.
+ */
+final class PipelinedGroupHistoryFetcher {
+
+  private static final String TAG = Log.tag(PipelinedGroupHistoryFetcher.class);
+
+  private final GroupsV2Api                 groupsV2Api;
+  private final GroupSecretParams           groupSecretParams;
+  private final GroupsV2AuthorizationString authorization;
+  private final ExecutorService             executor;
+
+  PipelinedGroupHistoryFetcher(@NonNull GroupsV2Api groupsV2Api,
+                               @NonNull GroupSecretParams groupSecretParams,
+                               @NonNull GroupsV2AuthorizationString authorization,
+                               @NonNull ExecutorService executor)
+  {
+    this.groupsV2Api       = groupsV2Api;
+    this.groupSecretParams = groupSecretParams;
+    this.authorization     = authorization;
+    this.executor          = executor;
+  }
+
+  /**
+   * @param ignoreServerChanges If true, only the group states are kept, see {@link org.thoughtcrime.securesms.keyvalue.InternalValues#gv2IgnoreServerChanges()}.
+   */
+  @WorkerThread
+  @NonNull List<ServerGroupLogEntry> fetch(int fromRevision, boolean ignoreServerChanges)
+      throws IOException, InvalidGroupStateException, VerificationFailedException
+  {
+    List<ServerGroupLogEntry>              history  = new ArrayList<>();
+    Future<PushServiceSocket.GroupHistory> nextPage = fetchPage(fromRevision);
+    int                                    pages    = 0;
+
+    while (nextPage != null) {
+      PushServiceSocket.GroupHistory encryptedPage = await(nextPage);
+
+      nextPage = encryptedPage.hasMore() ? fetchPage(encryptedPage.getNextPageStartGroupRevision()) : null;
+
+      List<DecryptedGroupHistoryEntry> page;
+      try {
+        page = groupsV2Api.decryptGroupHistoryPage(groupSecretParams, encryptedPage);
+      } catch (InvalidGroupStateException | VerificationFailedException | RuntimeException e) {
+        if (nextPage != null) {
+          nextPage.cancel(true);
+        }
+        throw e;
+      }
+
+      for (DecryptedGroupHistoryEntry entry : page) {
+        DecryptedGroup       group  = entry.getGroup().orNull();
+        DecryptedGroupChange change = ignoreServerChanges ? null : entry.getChange().orNull();
+
+        if (group != null || change != null) {
+          history.add(new ServerGroupLogEntry(group, change));
+        }
+      }
+
+      pages++;
+    }
+
+    Log.i(TAG, String.format(Locale.US, "Fetched %d history entries from revision %d in %d page(s)", history.size(), fromRevision, pages));
+
+    return history;
+  }
+
+  private @NonNull Future<PushServiceSocket.GroupHistory> fetchPage(int fromRevision) {
+    return executor.submit(() -> groupsV2Api.fetchGroupHistoryPage(fromRevision, authorization));
+  }
+
+  private static @NonNull PushServiceSocket.GroupHistory await(@NonNull Future<PushServiceSocket.GroupHistory> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else {
+        throw new IOException(cause);
+      }
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package org.thoughtcrime.securesms.groups.v2.processing;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.database.model.databaseprotos.DecryptedGroupV2Context;
+import org.thoughtcrime.securesms.sms.IncomingTextMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the update messages for a run of group changes. Incoming updates are held back so they
+ * can be inserted together, but are always inserted before an outgoing update, so that the updates
+ * keep their order.
+ */
+final class UpdateMessageQueue {
+
+  private final Inserter                  inserter;
+  private final List<IncomingTextMessage> pendingIncoming = new ArrayList<>();
+
+  UpdateMessageQueue(@NonNull Inserter inserter) {
+    this.inserter = inserter;
+  }
+
+  void addIncoming(@NonNull IncomingTextMessage message) {
+    pendingIncoming.add(message);
+  }
+
+  void addOutgoing(@NonNull DecryptedGroupV2Context decryptedGroupV2Context, long timestamp) {
+    flush();
+    inserter.insertOutgoing(decryptedGroupV2Context, timestamp);
+  }
+
+  /**
+   * Inserts the incoming updates that are still pending.
+   */
+  void flush() {
+    if (pendingIncoming.isEmpty()) {
+      return;
+    }
+
+    inserter.insertIncoming(new ArrayList<>(pendingIncoming));
+    pendingIncoming.clear();
+  }
+
+  interface Inserter {
+
+    void insertIncoming(@NonNull List<IncomingTextMessage> messages);
+
+    void insertOutgoing(@NonNull DecryptedGroupV2Context decryptedGroupV2Context, long timestamp);
+  }
+}
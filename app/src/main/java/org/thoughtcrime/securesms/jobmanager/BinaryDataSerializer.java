@@ -0,0 +1,408 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serializes {@link Data} into a compact tagged binary format.
+ * <p>
+ * The first byte is the format version. It is followed by one record per value: a type tag, the
+ * key, then the value. Lengths, counts, ints and longs are zigzag varints, floats and doubles are
+ * fixed width, and blobs are stored as-is. Empty maps take no space at all, so a job that only puts
+ * a blob and a couple of ids serializes to little more than the blob itself.
+ */
+public final class BinaryDataSerializer implements Data.Serializer {
+
+  private static final int VERSION = 1;
+
+  private static final int TYPE_STRING        = 1;
+  private static final int TYPE_NULL_STRING   = 2;
+  private static final int TYPE_STRING_ARRAY  = 3;
+  private static final int TYPE_INT           = 4;
+  private static final int TYPE_INT_ARRAY     = 5;
+  private static final int TYPE_LONG          = 6;
+  private static final int TYPE_LONG_ARRAY    = 7;
+  private static final int TYPE_FLOAT         = 8;
+  private static final int TYPE_FLOAT_ARRAY   = 9;
+  private static final int TYPE_DOUBLE        = 10;
+  private static final int TYPE_DOUBLE_ARRAY  = 11;
+  private static final int TYPE_BOOLEAN       = 12;
+  private static final int TYPE_BOOLEAN_ARRAY = 13;
+  private static final int TYPE_BLOB          = 14;
+
+  @Override
+  public @NonNull byte[] serialize(@NonNull Data data) {
+    Writer writer = new Writer();
+
+    writer.writeByte(VERSION);
+
+    for (Map.Entry<String, String> entry : data.strings.entrySet()) {
+      if (entry.getValue() == null) {
+        writer.writeHeader(TYPE_NULL_STRING, entry.getKey());
+      } else {
+        writer.writeHeader(TYPE_STRING, entry.getKey());
+        writer.writeString(entry.getValue());
+      }
+    }
+
+    for (Map.Entry<String, String[]> entry : data.stringArrays.entrySet()) {
+      writer.writeHeader(TYPE_STRING_ARRAY, entry.getKey());
+      writer.writeVarint(entry.getValue().length);
+      for (String value : entry.getValue()) {
+        writer.writeNullableString(value);
+      }
+    }
+
+    for (Map.Entry<String, Integer> entry : data.integers.entrySet()) {
+      writer.writeHeader(TYPE_INT, entry.getKey());
+      writer.writeVarint(zigzag(entry.getValue()));
+    }
+
+    for (Map.Entry<String, int[]> entry : data.integerArrays.entrySet()) {
+      writer.writeHeader(TYPE_INT_ARRAY, entry.getKey());
+      writer.writeVarint(entry.getValue().length);
+      for (int value : entry.getValue()) {
+        writer.writeVarint(zigzag(value));
+      }
+    }
+
+    for (Map.Entry<String, Long> entry : data.longs.entrySet()) {
+      writer.writeHeader(TYPE_LONG, entry.getKey());
+      writer.writeVarint(zigzag(entry.getValue()));
+    }
+
+    for (Map.Entry<String, long[]> entry : data.longArrays.entrySet()) {
+      writer.writeHeader(TYPE_LONG_ARRAY, entry.getKey());
+      writer.writeVarint(entry.getValue().length);
+      for (long value : entry.getValue()) {
+        writer.writeVarint(zigzag(value));
+      }
+    }
+
+    for (Map.Entry<String, Float> entry : data.floats.entrySet()) {
+      writer.writeHeader(TYPE_FLOAT, entry.getKey());
+      writer.writeFixed32(Float.floatToIntBits(entry.getValue()));
+    }
+
+    for (Map.Entry<String, float[]> entry : data.floatArrays.entrySet()) {
+      writer.writeHeader(TYPE_FLOAT_ARRAY, entry.getKey());
+      writer.writeVarint(entry.getValue().length);
+      for (float value : entry.getValue()) {
+        writer.writeFixed32(Float.floatToIntBits(value));
+      }
+    }
+
+    for (Map.Entry<String, Double> entry : data.doubles.entrySet()) {
+      writer.writeHeader(TYPE_DOUBLE, entry.getKey());
+      writer.writeFixed64(Double.doubleToLongBits(entry.getValue()));
+    }
+
+    for (Map.Entry<String, double[]> entry : data.doubleArrays.entrySet()) {
+      writer.writeHeader(TYPE_DOUBLE_ARRAY, entry.getKey());
+      writer.writeVarint(entry.getValue().length);
+      for (double value : entry.getValue()) {
+        writer.writeFixed64(Double.doubleToLongBits(value));
+      }
+    }
+
+    for (Map.Entry<String, Boolean> entry : data.booleans.entrySet()) {
+      writer.writeHeader(TYPE_BOOLEAN, entry.getKey());
+      writer.writeByte(entry.getValue() ? 1 : 0);
+    }
+
+    for (Map.Entry<String, boolean[]> entry : data.booleanArrays.entrySet()) {
+      writer.writeHeader(TYPE_BOOLEAN_ARRAY, entry.getKey());
+      writer.writeVarint(entry.getValue().length);
+      for (boolean value : entry.getValue()) {
+        writer.writeByte(value ? 1 : 0);
+      }
+    }
+
+    for (Map.Entry<String, byte[]> entry : data.blobs.entrySet()) {
+      writer.writeHeader(TYPE_BLOB, entry.getKey());
+      writer.writeBlob(entry.getValue());
+    }
+
+    return writer.toByteArray();
+  }
+
+  @Override
+  public @NonNull Data deserialize(@NonNull byte[] serialized) {
+    Reader reader = new Reader(serialized);
+
+    int version = reader.readByte();
+    if (version != VERSION) {
+      throw new IllegalArgumentException("Unknown version: " + version);
+    }
+
+    Map<String, String>    strings       = new HashMap<>();
+    Map<String, String[]>  stringArrays  = new HashMap<>();
+    Map<String, Integer>   integers      = new HashMap<>();
+    Map<String, int[]>     integerArrays = new HashMap<>();
+    Map<String, Long>      longs         = new HashMap<>();
+    Map<String, long[]>    longArrays    = new HashMap<>();
+    Map<String, Float>     floats        = new HashMap<>();
+    Map<String, float[]>   floatArrays   = new HashMap<>();
+    Map<String, Double>    doubles       = new HashMap<>();
+    Map<String, double[]>  doubleArrays  = new HashMap<>();
+    Map<String, Boolean>   booleans      = new HashMap<>();
+    Map<String, boolean[]> booleanArrays = new HashMap<>();
+    Map<String, byte[]>    blobs         = new HashMap<>();
+
+    while (reader.hasRemaining()) {
+      int    type = reader.readByte();
+      String key  = reader.readString();
+
+      switch (type) {
+        case TYPE_STRING:
+          strings.put(key, reader.readString());
+          break;
+        case TYPE_NULL_STRING:
+          strings.put(key, null);
+          break;
+        case TYPE_STRING_ARRAY: {
+          String[] values = new String[reader.readLength()];
+          for (int i = 0; i < values.length; i++) {
+            values[i] = reader.readNullableString();
+          }
+          stringArrays.put(key, values);
+          break;
+        }
+        case TYPE_INT:
+          integers.put(key, (int) unzigzag(reader.readVarint()));
+          break;
+        case TYPE_INT_ARRAY: {
+          int[] values = new int[reader.readLength()];
+          for (int i = 0; i < values.length; i++) {
+            values[i] = (int) unzigzag(reader.readVarint());
+          }
+          integerArrays.put(key, values);
+          break;
+        }
+        case TYPE_LONG:
+          longs.put(key, unzigzag(reader.readVarint()));
+          break;
+        case TYPE_LONG_ARRAY: {
+          long[] values = new long[reader.readLength()];
+          for (int i = 0; i < values.length; i++) {
+            values[i] = unzigzag(reader.readVarint());
+          }
+          longArrays.put(key, values);
+          break;
+        }
+        case TYPE_FLOAT:
+          floats.put(key, Float.intBitsToFloat(reader.readFixed32()));
+          break;
+        case TYPE_FLOAT_ARRAY: {
+          float[] values = new float[reader.readLength()];
+          for (int i = 0; i < values.length; i++) {
+            values[i] = Float.intBitsToFloat(reader.readFixed32());
+          }
+          floatArrays.put(key, values);
+          break;
+        }
+        case TYPE_DOUBLE:
+          doubles.put(key, Double.longBitsToDouble(reader.readFixed64()));
+          break;
+        case TYPE_DOUBLE_ARRAY: {
+          double[] values = new double[reader.readLength()];
+          for (int i = 0; i < values.length; i++) {
+            values[i] = Double.longBitsToDouble(reader.readFixed64());
+          }
+          doubleArrays.put(key, values);
+          break;
+        }
+        case TYPE_BOOLEAN:
+          booleans.put(key, reader.readByte() != 0);
+          break;
+        case TYPE_BOOLEAN_ARRAY: {
+          boolean[] values = new boolean[reader.readLength()];
+          for (int i = 0; i < values.length; i++) {
+            values[i] = reader.readByte() != 0;
+          }
+          booleanArrays.put(key, values);
+          break;
+        }
+        case TYPE_BLOB:
+          blobs.put(key, reader.readBlob());
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown type: " + type);
+      }
+    }
+
+    return new Data(strings, stringArrays, integers, integerArrays, longs, longArrays, floats, floatArrays, doubles, doubleArrays, booleans, booleanArrays, blobs);
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static final class Writer extends ByteArrayOutputStream {
+
+    Writer() {
+      super(64);
+    }
+
+    void writeByte(int value) {
+      write(value);
+    }
+
+    void writeHeader(int type, @NonNull String key) {
+      writeByte(type);
+      writeString(key);
+    }
+
+    void writeVarint(long value) {
+      while ((value & ~0x7FL) != 0) {
+        write((int) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      write((int) value);
+    }
+
+    void writeFixed32(int value) {
+      write(value);
+      write(value >>> 8);
+      write(value >>> 16);
+      write(value >>> 24);
+    }
+
+    void writeFixed64(long value) {
+      writeFixed32((int) value);
+      writeFixed32((int) (value >>> 32));
+    }
+
+    void writeBlob(@NonNull byte[] value) {
+      writeVarint(value.length);
+      write(value, 0, value.length);
+    }
+
+    void writeString(@NonNull String value) {
+      writeBlob(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Length plus one, so that zero can mean null.
+     */
+    void writeNullableString(@Nullable String value) {
+      if (value == null) {
+        writeVarint(0);
+      } else {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length + 1L);
+        write(bytes, 0, bytes.length);
+      }
+    }
+  }
+
+  private static final class Reader {
+
+    private final byte[] buffer;
+
+    private int position;
+
+    Reader(@NonNull byte[] buffer) {
+      this.buffer = buffer;
+    }
+
+    boolean hasRemaining() {
+      return position < buffer.length;
+    }
+
+    int readByte() {
+      requireRemaining(1);
+      return buffer[position++] & 0xFF;
+    }
+
+    long readVarint() {
+      long result = 0;
+
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = readByte();
+        result |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return result;
+        }
+      }
+
+      throw new IllegalArgumentException("Malformed varint!");
+    }
+
+    int readLength() {
+      long length = readVarint();
+
+      if (length < 0 || length > buffer.length - position) {
+        throw new IllegalArgumentException("Bad length: " + length);
+      }
+
+      return (int) length;
+    }
+
+    int readFixed32() {
+      requireRemaining(4);
+      int value = ((buffer[position]     & 0xFF))       |
+                  ((buffer[position + 1] & 0xFF) << 8)  |
+                  ((buffer[position + 2] & 0xFF) << 16) |
+                  ((buffer[position + 3] & 0xFF) << 24);
+      position += 4;
+      return value;
+    }
+
+    long readFixed64() {
+      long low  = readFixed32() & 0xFFFFFFFFL;
+      long high = readFixed32() & 0xFFFFFFFFL;
+      return low | (high << 32);
+    }
+
+    @NonNull byte[] readBlob() {
+      int    length = readLength();
+      byte[] value  = new byte[length];
+
+      System.arraycopy(buffer, position, value, 0, length);
+      position += length;
+
+      return value;
+    }
+
+    @NonNull String readString() {
+      int    length = readLength();
+      String value  = new String(buffer, position, length, StandardCharsets.UTF_8);
+
+      position += length;
+      return value;
+    }
+
+    @Nullable String readNullableString() {
+      long lengthPlusOne = readVarint();
+
+      if (lengthPlusOne == 0) {
+        return null;
+      }
+
+      long length = lengthPlusOne - 1;
+      if (length > buffer.length - position) {
+        throw new IllegalArgumentException("Bad length: " + length);
+      }
+
+      String value = new String(buffer, position, (int) length, StandardCharsets.UTF_8);
+      position += (int) length;
+      return value;
+    }
+
+    private void requireRemaining(int count) {
+      if (buffer.length - position < count) {
+        throw new IllegalArgumentException("Unexpected end of data!");
+      }
+    }
+  }
+}
@@ -18,18 +18,19 @@ public class Data {
 
   public static final Data EMPTY = new Data.Builder().build();
 
-  @JsonProperty private final Map<String, String>    strings;
-  @JsonProperty private final Map<String, String[]>  stringArrays;
-  @JsonProperty private final Map<String, Integer>   integers;
-  @JsonProperty private final Map<String, int[]>     integerArrays;
-  @JsonProperty private final Map<String, Long>      longs;
-  @JsonProperty private final Map<String, long[]>    longArrays;
-  @JsonProperty private final Map<String, Float>     floats;
-  @JsonProperty private final Map<String, float[]>   floatArrays;
-  @JsonProperty private final Map<String, Double>    doubles;
-  @JsonProperty private final Map<String, double[]>  doubleArrays;
-  @JsonProperty private final Map<String, Boolean>   booleans;
-  @JsonProperty private final Map<String, boolean[]> booleanArrays;
+  @JsonProperty final Map<String, String>    strings;
+  @JsonProperty final Map<String, String[]>  stringArrays;
+  @JsonProperty final Map<String, Integer>   integers;
+  @JsonProperty final Map<String, int[]>     integerArrays;
+  @JsonProperty final Map<String, Long>      longs;
+  @JsonProperty final Map<String, long[]>    longArrays;
+  @JsonProperty final Map<String, Float>     floats;
+  @JsonProperty final Map<String, float[]>   floatArrays;
+  @JsonProperty final Map<String, Double>    doubles;
+  @JsonProperty final Map<String, double[]>  doubleArrays;
+  @JsonProperty final Map<String, Boolean>   booleans;
+  @JsonProperty final Map<String, boolean[]> booleanArrays;
+  @JsonProperty final Map<String, byte[]>    blobs;
 
   public Data(@JsonProperty("strings")       @NonNull Map<String, String>    strings,
               @JsonProperty("stringArrays")  @NonNull Map<String, String[]>  stringArrays,
@@ -42,7 +43,8 @@ public class Data {
               @JsonProperty("doubles")       @NonNull Map<String, Double>    doubles,
               @JsonProperty("doubleArrays")  @NonNull Map<String, double[]>  doubleArrays,
               @JsonProperty("booleans")      @NonNull Map<String, Boolean>   booleans,
-              @JsonProperty("booleanArrays") @NonNull Map<String, boolean[]> booleanArrays)
+              @JsonProperty("booleanArrays") @NonNull Map<String, boolean[]> booleanArrays,
+              @JsonProperty("blobs")         @Nullable Map<String, byte[]>   blobs)
   {
     this.strings       = strings;
     this.stringArrays  = stringArrays;
@@ -56,6 +58,7 @@ public class Data {
     this.doubleArrays  = doubleArrays;
     this.booleans      = booleans;
     this.booleanArrays = booleanArrays;
+    this.blobs         = blobs != null ? blobs : new HashMap<>();
   }
 
   public boolean hasString(@NonNull String key) {
@@ -234,6 +237,16 @@ public class Data {
   }
 
 
+  public boolean hasBlob(@NonNull String key) {
+    return blobs.containsKey(key);
+  }
+
+  public byte[] getBlob(@NonNull String key) {
+    throwIfAbsent(blobs, key);
+    return blobs.get(key);
+  }
+
+
   private void throwIfAbsent(@NonNull Map map, @NonNull String key) {
     if (!map.containsKey(key)) {
       throw new IllegalStateException("Tried to retrieve a value with key '" + key + "', but it wasn't present.");
@@ -259,6 +272,7 @@ public class Data {
     private final Map<String, double[]>  doubleArrays  = new HashMap<>();
     private final Map<String, Boolean>   booleans      = new HashMap<>();
     private final Map<String, boolean[]> booleanArrays = new HashMap<>();
+    private final Map<String, byte[]>    blobs         = new HashMap<>();
 
     public Builder() { }
 
@@ -275,6 +289,7 @@ public class Data {
       doubleArrays.putAll(oldData.doubleArrays);
       booleans.putAll(oldData.booleans);
       booleanArrays.putAll(oldData.booleanArrays);
+      blobs.putAll(oldData.blobs);
     }
 
     public Builder putString(@NonNull String key, @Nullable String value) {
@@ -356,6 +371,15 @@ public class Data {
       return this;
     }
 
+    public Builder putBlob(@NonNull String key, @NonNull byte[] value) {
+      blobs.put(key, value);
+      return this;
+    }
+
+    /**
+     * Stores the value as a Base64 string. Prefer {@link #putBlob(String, byte[])}, this remains for
+     * migrations that have to produce the format older versions read.
+     */
     public Builder putBlobAsString(@NonNull String key, @NonNull byte[] value) {
       String serialized = Base64.encodeBytes(value);
       strings.put(key, serialized);
@@ -374,12 +398,13 @@ public class Data {
                       doubles,
                       doubleArrays,
                       booleans,
-                      booleanArrays);
+                      booleanArrays,
+                      blobs);
     }
   }
 
   public interface Serializer {
-    @NonNull String serialize(@NonNull Data data);
-    @NonNull Data deserialize(@NonNull String serialized);
+    @NonNull byte[] serialize(@NonNull Data data);
+    @NonNull Data deserialize(@NonNull byte[] serialized);
   }
 }
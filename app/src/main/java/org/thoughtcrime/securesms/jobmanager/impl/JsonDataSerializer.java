@@ -7,15 +7,20 @@ import org.thoughtcrime.securesms.jobmanager.Data;
 import org.thoughtcrime.securesms.util.JsonUtils;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
+/**
+ * The format jobs were stored in before {@link org.thoughtcrime.securesms.jobmanager.BinaryDataSerializer}.
+ * Only needed to read data written by older versions.
+ */
 public class JsonDataSerializer implements Data.Serializer {
 
   private static final String TAG = Log.tag(JsonDataSerializer.class);
 
   @Override
-  public @NonNull String serialize(@NonNull Data data) {
+  public @NonNull byte[] serialize(@NonNull Data data) {
     try {
-      return JsonUtils.toJson(data);
+      return JsonUtils.toJson(data).getBytes(StandardCharsets.UTF_8);
     } catch (IOException e) {
       Log.e(TAG, "Failed to serialize to JSON.", e);
       throw new AssertionError(e);
@@ -23,9 +28,9 @@ public class JsonDataSerializer implements Data.Serializer {
   }
 
   @Override
-  public @NonNull Data deserialize(@NonNull String serialized) {
+  public @NonNull Data deserialize(@NonNull byte[] serialized) {
     try {
-      return JsonUtils.fromJson(serialized, Data.class);
+      return JsonUtils.fromJson(new String(serialized, StandardCharsets.UTF_8), Data.class);
     } catch (IOException e) {
       Log.e(TAG, "Failed to deserialize JSON.", e);
       throw new AssertionError(e);
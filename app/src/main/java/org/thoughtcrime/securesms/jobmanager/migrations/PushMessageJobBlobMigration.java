@@ -0,0 +1,62 @@
+package org.thoughtcrime.securesms.jobmanager.migrations;
+
+import androidx.annotation.NonNull;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.jobmanager.Data;
+import org.thoughtcrime.securesms.jobmanager.JobMigration;
+
+/**
+ * The serialized envelope of PushDecryptJob and the serialized content of PushProcessJob used to be
+ * stored as Base64 strings. Now that job data can hold binary values directly, we move them over to
+ * blobs.
+ */
+public class PushMessageJobBlobMigration extends JobMigration {
+
+  private static final String TAG = Log.tag(PushMessageJobBlobMigration.class);
+
+  public PushMessageJobBlobMigration() {
+    super(9);
+  }
+
+  @Override
+  protected @NonNull JobData migrate(@NonNull JobData jobData) {
+    if ("PushDecryptJob".equals(jobData.getFactoryKey())) {
+      return migratePushDecryptMessageJob(jobData);
+    } else if ("PushProcessJob".equals(jobData.getFactoryKey())) {
+      return migratePushProcessMessageJob(jobData);
+    } else {
+      return jobData;
+    }
+  }
+
+  private static @NonNull JobData migratePushDecryptMessageJob(@NonNull JobData jobData) {
+    Data data = jobData.getData();
+
+    if (!data.hasString("envelope")) {
+      return jobData;
+    }
+
+    Log.i(TAG, "Migrating a PushDecryptJob.");
+
+    return jobData.withData(new Data.Builder().putBlob("envelope", data.getStringAsBlob("envelope"))
+                                              .putLong("sms_message_id", data.getLong("sms_message_id"))
+                                              .build());
+  }
+
+  private static @NonNull JobData migratePushProcessMessageJob(@NonNull JobData jobData) {
+    Data data = jobData.getData();
+
+    if (!data.hasString("message_content")) {
+      return jobData;
+    }
+
+    Log.i(TAG, "Migrating a PushProcessJob.");
+
+    return jobData.withData(new Data.Builder().putInt("message_state", data.getInt("message_state"))
+                                              .putLong("sms_message_id", data.getLong("sms_message_id"))
+                                              .putLong("timestamp", data.getLong("timestamp"))
+                                              .putBlob("message_content", data.getStringAsBlob("message_content"))
+                                              .build());
+  }
+}
@@ -15,10 +15,6 @@ import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.attachments.Attachment;
 import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
-import org.thoughtcrime.securesms.crypto.AttachmentSecret;
-import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
-import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
-import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream;
 import org.thoughtcrime.securesms.database.AttachmentDatabase;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.events.PartProgressEvent;
@@ -47,9 +43,7 @@ import org.thoughtcrime.securesms.video.VideoSourceException;
 import org.thoughtcrime.securesms.video.videoconverter.EncodingException;
 
 import java.io.ByteArrayInputStream;
-import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
@@ -224,29 +218,17 @@ public final class AttachmentCompressionJob extends BaseJob {
 
           if (transcoder.isTranscodeRequired()) {
             Log.i(TAG, "Compressing with streaming muxer");
-            AttachmentSecret attachmentSecret = AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret();
-
-            File file = DatabaseFactory.getAttachmentDatabase(context)
-                                       .newFile();
-            file.deleteOnExit();
-
-            try {
-              try (OutputStream outputStream = ModernEncryptingPartOutputStream.createFor(attachmentSecret, file, true).second) {
-                transcoder.transcode(percent -> {
-                  notification.setProgress(100, percent);
-                  eventBus.postSticky(new PartProgressEvent(attachment,
-                                                            PartProgressEvent.Type.COMPRESSION,
-                                                            100,
-                                                            percent));
-                }, outputStream, cancelationSignal);
-              }
-
-              MediaStream mediaStream = new MediaStream(ModernDecryptingPartInputStream.createFor(attachmentSecret, file, 0), MimeTypes.VIDEO_MP4, 0, 0);
-              attachmentDatabase.updateAttachmentData(attachment, mediaStream, transformProperties.isVideoEdited());
-            } finally {
-              if (!file.delete()) {
-                Log.w(TAG, "Failed to delete temp file");
-              }
+
+            try (AttachmentDatabase.DataWriter writer = attachmentDatabase.openDataWriter()) {
+              transcoder.transcode(percent -> {
+                notification.setProgress(100, percent);
+                eventBus.postSticky(new PartProgressEvent(attachment,
+                                                          PartProgressEvent.Type.COMPRESSION,
+                                                          100,
+                                                          percent));
+              }, writer.getOutputStream(), cancelationSignal);
+
+              attachmentDatabase.updateAttachmentData(attachment, writer, MimeTypes.VIDEO_MP4, transformProperties.isVideoEdited());
             }
 
             attachmentDatabase.markAttachmentAsTransformed(attachment.getAttachmentId());
@@ -37,7 +37,6 @@ import org.whispersystems.signalservice.api.push.exceptions.RangeException;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.concurrent.TimeUnit;
 
 public final class AttachmentDownloadJob extends BaseJob {
@@ -162,24 +161,40 @@ public final class AttachmentDownloadJob extends BaseJob {
       throws IOException, RetryLaterException
   {
 
-    AttachmentDatabase database       = DatabaseFactory.getAttachmentDatabase(context);
-    File               attachmentFile = database.getOrCreateTransferFile(attachmentId);
+    AttachmentDatabase database = DatabaseFactory.getAttachmentDatabase(context);
 
     try {
+      if (database.insertAttachmentsForPlaceholderFromMatchingDigest(messageId, attachmentId, attachment.getDigest(), attachment.getKey())) {
+        Log.i(TAG, "Already have an attachment with the same digest, skipping the download.");
+        return;
+      }
+    } catch (MmsException e) {
+      Log.w(TAG, "Failed to reuse an attachment with the same digest, downloading it instead.", e);
+    }
+
+    File attachmentFile = database.getOrCreateTransferFile(attachmentId);
+
+    try (AttachmentDatabase.DataWriter dataWriter = database.openDataWriter()) {
       SignalServiceMessageReceiver   messageReceiver = ApplicationDependencies.getSignalServiceMessageReceiver();
       SignalServiceAttachmentPointer pointer         = createAttachmentPointer(attachment);
-      InputStream                    stream          = messageReceiver.retrieveAttachment(pointer, attachmentFile, MAX_ATTACHMENT_SIZE, (total, progress) -> EventBus.getDefault().postSticky(new PartProgressEvent(attachment, PartProgressEvent.Type.NETWORK, total, progress)));
 
-      database.insertAttachmentsForPlaceholder(messageId, attachmentId, stream);
+      messageReceiver.retrieveAttachment(pointer, attachmentFile, MAX_ATTACHMENT_SIZE, (total, progress) -> EventBus.getDefault().postSticky(new PartProgressEvent(attachment, PartProgressEvent.Type.NETWORK, total, progress)), dataWriter.getOutputStream());
+
+      database.insertAttachmentsForPlaceholder(messageId, attachmentId, dataWriter);
     } catch (RangeException e) {
       Log.w(TAG, "Range exception, file size " + attachmentFile.length(), e);
-      if (attachmentFile.delete()) {
+      SignalServiceMessageReceiver.deleteAttachmentDownload(attachmentFile);
+      if (!attachmentFile.exists()) {
         Log.i(TAG, "Deleted temp download file to recover");
         throw new RetryLaterException(e);
       } else {
         throw new IOException("Failed to delete temp download file following range exception");
       }
-    } catch (InvalidPartException | NonSuccessfulResponseCodeException | InvalidMessageException | MmsException | MissingConfigurationException e) {
+    } catch (InvalidMessageException e) {
+      Log.w(TAG, "Downloaded attachment didn't decrypt, file size " + attachmentFile.length(), e);
+      SignalServiceMessageReceiver.deleteAttachmentDownload(attachmentFile);
+      markFailed(messageId, attachmentId);
+    } catch (InvalidPartException | NonSuccessfulResponseCodeException | MmsException | MissingConfigurationException e) {
       Log.w(TAG, "Experienced exception while trying to download an attachment.", e);
       markFailed(messageId, attachmentId);
     }
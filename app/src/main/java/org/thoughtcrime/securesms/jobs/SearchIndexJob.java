@@ -0,0 +1,100 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.SearchDatabase;
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.jobmanager.Data;
+import org.thoughtcrime.securesms.jobmanager.Job;
+
+/**
+ * Adds the messages that were there before the search index existed to it, newest first, in small
+ * batches so search keeps working and writes aren't held up while it runs. Progress is kept in the
+ * database, so an interrupted run picks up where it left off.
+ */
+public class SearchIndexJob extends BaseJob {
+
+  public static final String KEY = "SearchIndexJob";
+
+  private static final String TAG = Log.tag(SearchIndexJob.class);
+
+  private static final int BATCH_SIZE = 500;
+
+  public static void enqueueIfNecessary(@NonNull Context context) {
+    if (DatabaseFactory.getSearchDatabase(context).hasUnindexedMessages()) {
+      ApplicationDependencies.getJobManager().add(new SearchIndexJob());
+    }
+  }
+
+  private SearchIndexJob() {
+    this(new Parameters.Builder()
+                       .setQueue(KEY)
+                       .setLifespan(Parameters.IMMORTAL)
+                       .setMaxInstancesForFactory(1)
+                       .build());
+  }
+
+  private SearchIndexJob(@NonNull Parameters parameters) {
+    super(parameters);
+  }
+
+  @Override
+  public @NonNull Data serialize() {
+    return Data.EMPTY;
+  }
+
+  @Override
+  public @NonNull String getFactoryKey() {
+    return KEY;
+  }
+
+  @Override
+  protected void onRun() {
+    SearchDatabase searchDatabase = DatabaseFactory.getSearchDatabase(context);
+    int            total          = searchDatabase.getUnindexedMessageCount();
+    int            remaining      = total;
+    long           start          = System.currentTimeMillis();
+
+    Log.i(TAG, "Indexing " + total + " messages.");
+
+    while (true) {
+      if (isCanceled()) {
+        Log.w(TAG, "Canceled with about " + remaining + " messages left to index.");
+        return;
+      }
+
+      int indexed = searchDatabase.indexOldMessages(BATCH_SIZE);
+
+      if (indexed == 0) {
+        break;
+      }
+
+      remaining = Math.max(remaining - indexed, 0);
+
+      Log.d(TAG, "Indexed " + (total - remaining) + "/" + total + " messages.");
+    }
+
+    Log.i(TAG, "Indexed " + total + " messages in " + (System.currentTimeMillis() - start) + " ms.");
+  }
+
+  @Override
+  public boolean onShouldRetry(@NonNull Exception e) {
+    return false;
+  }
+
+  @Override
+  public void onFailure() {
+    Log.w(TAG, "Failed to finish indexing, will continue on the next launch.");
+  }
+
+  public static final class Factory implements Job.Factory<SearchIndexJob> {
+    @Override
+    public @NonNull SearchIndexJob create(@NonNull Parameters parameters, @NonNull Data data) {
+      return new SearchIndexJob(parameters);
+    }
+  }
+}
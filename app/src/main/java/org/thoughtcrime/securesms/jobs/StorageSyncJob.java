@@ -142,6 +142,12 @@ public class StorageSyncJob extends BaseJob {
 
   private static final String TAG = Log.tag(StorageSyncJob.class);
 
+  /**
+   * Remote-only records are read and merged in batches of this size, each batch in its own
+   * transaction, so memory use stays bounded for accounts with many contacts and groups.
+   */
+  private static final int REMOTE_READ_BATCH_SIZE = 500;
+
   public StorageSyncJob() {
     this(new Parameters.Builder().addConstraint(NetworkConstraint.KEY)
                                  .setQueue(QUEUE_KEY)
@@ -244,52 +250,71 @@ public class StorageSyncJob extends BaseJob {
       stopwatch.split("remote-id-diff");
 
       if (!idDifference.isEmpty()) {
-        Log.i(TAG, "[Remote Sync] Retrieving records for key difference.");
+        Log.i(TAG, "[Remote Sync] Retrieving records for key difference in batches of " + REMOTE_READ_BATCH_SIZE + ".");
+
+        self = freshSelf();
+
+        ContactRecordProcessor    contactProcessor = new ContactRecordProcessor(context, self);
+        GroupV1RecordProcessor    gv1Processor     = new GroupV1RecordProcessor(context);
+        GroupV2RecordProcessor    gv2Processor     = new GroupV2RecordProcessor(context);
+        List<SignalAccountRecord> remoteAccount    = new LinkedList<>();
+        int                       remoteOnlyFound  = 0;
+        int                       unknownInserts   = 0;
+
+        for (List<StorageId> batch : Util.chunk(idDifference.getRemoteOnlyIds(), REMOTE_READ_BATCH_SIZE)) {
+          List<SignalStorageRecord> remoteOnly = accountManager.readStorageRecords(storageServiceKey, batch);
+
+          remoteOnlyFound += remoteOnly.size();
+
+          List<SignalContactRecord> remoteContacts = new LinkedList<>();
+          List<SignalGroupV1Record> remoteGv1      = new LinkedList<>();
+          List<SignalGroupV2Record> remoteGv2      = new LinkedList<>();
+          List<SignalStorageRecord> remoteUnknown  = new LinkedList<>();
+
+          for (SignalStorageRecord remote : remoteOnly) {
+            if (remote.getContact().isPresent()) {
+              remoteContacts.add(remote.getContact().get());
+            } else if (remote.getGroupV1().isPresent()) {
+              remoteGv1.add(remote.getGroupV1().get());
+            } else if (remote.getGroupV2().isPresent()) {
+              remoteGv2.add(remote.getGroupV2().get());
+            } else if (remote.getAccount().isPresent()) {
+              remoteAccount.add(remote.getAccount().get());
+            } else {
+              remoteUnknown.add(remote);
+            }
+          }
 
-        List<SignalStorageRecord> remoteOnly = accountManager.readStorageRecords(storageServiceKey, idDifference.getRemoteOnlyIds());
+          db.beginTransaction();
+          try {
+            contactProcessor.process(remoteContacts, StorageSyncHelper.KEY_GENERATOR);
+            gv1Processor.process(remoteGv1, StorageSyncHelper.KEY_GENERATOR);
+            gv2Processor.process(remoteGv2, StorageSyncHelper.KEY_GENERATOR);
+            storageIdDatabase.insert(remoteUnknown);
 
-        stopwatch.split("remote-records");
+            db.setTransactionSuccessful();
+          } finally {
+            db.endTransaction();
+          }
 
-        if (remoteOnly.size() != idDifference.getRemoteOnlyIds().size()) {
-          Log.w(TAG, "[Remote Sync] Could not find all remote-only records! Requested: " + idDifference.getRemoteOnlyIds().size() + ", Found: " + remoteOnly.size() + ". These stragglers should naturally get deleted during the sync.");
+          unknownInserts += remoteUnknown.size();
         }
 
-        List<SignalContactRecord> remoteContacts = new LinkedList<>();
-        List<SignalGroupV1Record> remoteGv1      = new LinkedList<>();
-        List<SignalGroupV2Record> remoteGv2      = new LinkedList<>();
-        List<SignalAccountRecord> remoteAccount  = new LinkedList<>();
-        List<SignalStorageRecord> remoteUnknown  = new LinkedList<>();
-
-        for (SignalStorageRecord remote : remoteOnly) {
-          if (remote.getContact().isPresent()) {
-            remoteContacts.add(remote.getContact().get());
-          } else if (remote.getGroupV1().isPresent()) {
-            remoteGv1.add(remote.getGroupV1().get());
-          } else if (remote.getGroupV2().isPresent()) {
-            remoteGv2.add(remote.getGroupV2().get());
-          } else if (remote.getAccount().isPresent()) {
-            remoteAccount.add(remote.getAccount().get());
-          } else {
-            remoteUnknown.add(remote);
-          }
+        stopwatch.split("remote-records");
+
+        if (remoteOnlyFound != idDifference.getRemoteOnlyIds().size()) {
+          Log.w(TAG, "[Remote Sync] Could not find all remote-only records! Requested: " + idDifference.getRemoteOnlyIds().size() + ", Found: " + remoteOnlyFound + ". These stragglers should naturally get deleted during the sync.");
         }
 
         db.beginTransaction();
         try {
           self = freshSelf();
-
-          new ContactRecordProcessor(context, self).process(remoteContacts, StorageSyncHelper.KEY_GENERATOR);
-          new GroupV1RecordProcessor(context).process(remoteGv1, StorageSyncHelper.KEY_GENERATOR);
-          new GroupV2RecordProcessor(context).process(remoteGv2, StorageSyncHelper.KEY_GENERATOR);
-          self = freshSelf();
           new AccountRecordProcessor(context, self).process(remoteAccount, StorageSyncHelper.KEY_GENERATOR);
 
-          List<SignalStorageRecord> unknownInserts = remoteUnknown;
-          List<StorageId>           unknownDeletes = Stream.of(idDifference.getLocalOnlyIds()).filter(StorageId::isUnknown).toList();
+          List<StorageId> unknownDeletes = Stream.of(idDifference.getLocalOnlyIds()).filter(StorageId::isUnknown).toList();
 
-          Log.i(TAG, "[Remote Sync] Unknowns :: " + unknownInserts.size() + " inserts, " + unknownDeletes.size() + " deletes");
+          Log.i(TAG, "[Remote Sync] Unknowns :: " + unknownInserts + " inserts, " + unknownDeletes.size() + " deletes");
 
-          storageIdDatabase.insert(unknownInserts);
           storageIdDatabase.delete(unknownDeletes);
 
           db.setTransactionSuccessful();
@@ -308,11 +333,16 @@ public class StorageSyncJob extends BaseJob {
     if (remoteManifest != localManifest) {
       Log.i(TAG, "[Remote Sync] Saved new manifest. Now at version: " + remoteManifest.getVersion());
       SignalStore.storageService().setManifest(remoteManifest);
+    } else if (!needsForcePush && SignalStore.storageService().isSyncedWith(localManifest.getVersion(), StorageSyncHelper.hashIds(getAllLocalStorageIds(context, self)))) {
+      Log.i(TAG, "Remote manifest is unchanged and matches our local storage IDs. Nothing to do.");
+      stopwatch.stop(TAG);
+      return false;
     }
 
     Log.i(TAG, "We are up-to-date with the remote storage state.");
 
     final WriteOperationResult remoteWriteOperation;
+    final long                 localIdsHash;
 
     db.beginTransaction();
     try {
@@ -325,6 +355,8 @@ public class StorageSyncJob extends BaseJob {
 
       Log.i(TAG, "ID Difference :: " + idDifference);
 
+      localIdsHash = StorageSyncHelper.hashIds(localStorageIds);
+
       remoteWriteOperation = new WriteOperationResult(new SignalStorageManifest(remoteManifest.getVersion() + 1, localStorageIds),
                                                       remoteInserts,
                                                       remoteDeletes);
@@ -351,11 +383,19 @@ public class StorageSyncJob extends BaseJob {
       Log.i(TAG, "Saved new manifest. Now at version: " + remoteWriteOperation.getManifest().getVersion());
       SignalStore.storageService().setManifest(remoteWriteOperation.getManifest());
 
+      if (!needsForcePush) {
+        SignalStore.storageService().setSyncedIds(remoteWriteOperation.getManifest().getVersion(), localIdsHash);
+      }
+
       stopwatch.split("remote-write");
 
       needsMultiDeviceSync = true;
     } else {
       Log.i(TAG, "No remote writes needed. Still at version: " + remoteManifest.getVersion());
+
+      if (!needsForcePush) {
+        SignalStore.storageService().setSyncedIds(remoteManifest.getVersion(), localIdsHash);
+      }
     }
 
     if (needsForcePush) {
@@ -14,6 +14,8 @@ public class StorageServiceValues extends SignalStoreValues {
   private static final String LAST_SYNC_TIME        = "storage.last_sync_time";
   private static final String NEEDS_ACCOUNT_RESTORE = "storage.needs_account_restore";
   private static final String MANIFEST              = "storage.manifest";
+  private static final String SYNCED_VERSION        = "storage.synced_version";
+  private static final String SYNCED_IDS_HASH       = "storage.synced_ids_hash";
 
   StorageServiceValues(@NonNull KeyValueStore store) {
     super(store);
@@ -61,4 +63,24 @@ public class StorageServiceValues extends SignalStoreValues {
       return SignalStorageManifest.EMPTY;
     }
   }
+
+  /**
+   * Remembers that the local storage IDs with the given hash matched the manifest with the given
+   * version.
+   */
+  public void setSyncedIds(long manifestVersion, long idsHash) {
+    getStore().beginWrite()
+              .putLong(SYNCED_VERSION, manifestVersion)
+              .putLong(SYNCED_IDS_HASH, idsHash)
+              .apply();
+  }
+
+  /**
+   * @return True if the local storage IDs with the given hash are known to match the manifest with
+   *         the given version, so there's nothing to diff.
+   */
+  public boolean isSyncedWith(long manifestVersion, long idsHash) {
+    return getLong(SYNCED_VERSION, -1) == manifestVersion &&
+           getLong(SYNCED_IDS_HASH, 0) == idsHash;
+  }
 }
@@ -0,0 +1,35 @@
+package org.thoughtcrime.securesms.logsubmit;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.whispersystems.signalservice.internal.push.ConnectionMetrics;
+
+import java.util.List;
+
+final class LogSectionConnections implements LogSection {
+
+  @Override
+  public @NonNull String getTitle() {
+    return "CONNECTIONS";
+  }
+
+  @Override
+  public @NonNull CharSequence getContent(@NonNull Context context) {
+    List<ConnectionMetrics.HostMetrics> metrics = ApplicationDependencies.getSignalServiceMessageReceiver().getConnectionMetrics();
+
+    if (metrics.isEmpty()) {
+      return "None";
+    }
+
+    StringBuilder output = new StringBuilder();
+
+    for (ConnectionMetrics.HostMetrics hostMetrics : metrics) {
+      output.append(hostMetrics).append("\n");
+    }
+
+    return output;
+  }
+}
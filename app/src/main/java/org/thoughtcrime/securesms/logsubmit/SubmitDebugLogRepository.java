@@ -55,6 +55,7 @@ public class SubmitDebugLogRepository {
     add(new LogSectionSystemInfo());
     add(new LogSectionJobs());
     add(new LogSectionConstraints());
+    add(new LogSectionConnections());
     if (Build.VERSION.SDK_INT >= 28) {
       add(new LogSectionPower());
     }
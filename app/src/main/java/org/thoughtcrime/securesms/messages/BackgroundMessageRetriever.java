@@ -78,7 +78,11 @@ public class BackgroundMessageRetriever {
           }
 
           Log.i(TAG, "Performing normal message fetch.");
-          return executeBackgroundRetrieval(context, startTime, strategies);
+          boolean success = executeBackgroundRetrieval(context, startTime, strategies);
+
+          ApplicationDependencies.getReceiptAggregator().flush();
+
+          return success;
         } finally {
           WakeLockUtil.release(wakeLock, WAKE_LOCK_TAG);
           ACTIVE_LOCK.release();
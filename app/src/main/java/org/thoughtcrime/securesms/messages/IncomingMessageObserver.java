@@ -246,6 +246,10 @@ public class IncomingMessageObserver {
                 }
               });
 
+              if (!result.isPresent()) {
+                ApplicationDependencies.getReceiptAggregator().flush();
+              }
+
               if (!result.isPresent() && !networkDrained) {
                 Log.i(TAG, "Network was newly-drained. Enqueuing a job to listen for decryption draining.");
                 networkDrained = true;
@@ -146,7 +146,6 @@ import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 import java.io.IOException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -1541,17 +1540,9 @@ public final class MessageContentProcessor {
 
     log("Processing viewed reciepts for IDs: " + Util.join(message.getTimestamps(), ","));
 
-    Recipient                 sender    = Recipient.externalHighTrustPush(context, content.getSender());
-    List<SyncMessageId>       ids       = Stream.of(message.getTimestamps())
-                                                .map(t -> new SyncMessageId(sender.getId(), t))
-                                                .toList();
-    Collection<SyncMessageId> unhandled = DatabaseFactory.getMmsSmsDatabase(context)
-                                                         .incrementViewedReceiptCounts(ids, content.getTimestamp());
+    Recipient sender = Recipient.externalHighTrustPush(context, content.getSender());
 
-    for (SyncMessageId id : unhandled) {
-      warn(String.valueOf(content.getTimestamp()), "[handleViewedReceipt] Could not find matching message! timestamp: " + id.getTimetamp() + "  author: " + sender.getId());
-      ApplicationDependencies.getEarlyMessageCache().store(sender.getId(), id.getTimetamp(), content);
-    }
+    ApplicationDependencies.getReceiptAggregator().add(MessageDatabase.ReceiptType.VIEWED, sender.getId(), message.getTimestamps(), content.getTimestamp(), content);
   }
 
   @SuppressLint("DefaultLocale")
@@ -1560,12 +1551,9 @@ public final class MessageContentProcessor {
   {
     log(TAG, "Processing delivery receipts for IDs: " + Util.join(message.getTimestamps(), ", "));
 
-    Recipient           sender  = Recipient.externalHighTrustPush(context, content.getSender());
-    List<SyncMessageId> ids     = Stream.of(message.getTimestamps())
-                                        .map(t -> new SyncMessageId(sender.getId(), t))
-                                        .toList();
+    Recipient sender = Recipient.externalHighTrustPush(context, content.getSender());
 
-    DatabaseFactory.getMmsSmsDatabase(context).incrementDeliveryReceiptCounts(ids, System.currentTimeMillis());
+    ApplicationDependencies.getReceiptAggregator().add(MessageDatabase.ReceiptType.DELIVERY, sender.getId(), message.getTimestamps(), System.currentTimeMillis(), null);
   }
 
   @SuppressLint("DefaultLocale")
@@ -1579,17 +1567,9 @@ public final class MessageContentProcessor {
 
     log("Processing read receipts for IDs: " + Util.join(message.getTimestamps(), ", "));
 
-    Recipient           sender  = Recipient.externalHighTrustPush(context, content.getSender());
-    List<SyncMessageId> ids     = Stream.of(message.getTimestamps())
-                                        .map(t -> new SyncMessageId(sender.getId(), t))
-                                        .toList();
-
-    Collection<SyncMessageId> unhandled = DatabaseFactory.getMmsSmsDatabase(context).incrementReadReceiptCounts(ids, content.getTimestamp());
+    Recipient sender = Recipient.externalHighTrustPush(context, content.getSender());
 
-    for (SyncMessageId id : unhandled) {
-      warn(String.valueOf(content.getTimestamp()), "[handleReadReceipt] Could not find matching message! timestamp: " + id.getTimetamp() + "  author: " + sender.getId());
-      ApplicationDependencies.getEarlyMessageCache().store(sender.getId(), id.getTimetamp(), content);
-    }
+    ApplicationDependencies.getReceiptAggregator().add(MessageDatabase.ReceiptType.READ, sender.getId(), message.getTimestamps(), content.getTimestamp(), content);
   }
 
   private void handleTypingMessage(@NonNull SignalServiceContent content,
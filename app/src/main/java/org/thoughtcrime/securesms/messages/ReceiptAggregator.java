@@ -0,0 +1,194 @@
+package org.thoughtcrime.securesms.messages;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+
+import org.signal.core.util.concurrent.SignalExecutors;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MessageDatabase.ReceiptType;
+import org.thoughtcrime.securesms.database.MessageDatabase.SyncMessageId;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+import org.whispersystems.libsignal.util.Pair;
+import org.whispersystems.signalservice.api.messages.SignalServiceContent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Receipts tend to arrive in bursts, e.g. everyone in a group reading a message within a few
+ * seconds of each other, or a backlog of them after being offline. Rather than applying each one
+ * as it's processed, they're held for a short time and then applied together, so a message gets a
+ * single update and each thread is only refreshed once for all of the receipts it got.
+ *
+ * Receipts are applied after at most {@link #FLUSH_DELAY} ms, or right away once
+ * {@link #MAX_PENDING} of them are waiting. Whoever finishes draining a batch of messages should
+ * also {@link #flush()}, so the receipts in it don't have to wait for the delay, e.g. while the
+ * device is only briefly awake.
+ *
+ * Receipts are applied while holding the {@link IncomingMessageProcessor} lock, so that any content
+ * we keep for a message we don't have yet is in the {@link org.thoughtcrime.securesms.util.EarlyMessageCache}
+ * before that message can be processed.
+ */
+public final class ReceiptAggregator {
+
+  private static final String TAG = Log.tag(ReceiptAggregator.class);
+
+  @VisibleForTesting static final long FLUSH_DELAY = 100;
+  @VisibleForTesting static final int  MAX_PENDING = 500;
+
+  private final Context  context;
+  private final Executor executor;
+
+  private final Map<ReceiptType, List<PendingReceipt>> pending = new EnumMap<>(ReceiptType.class);
+
+  private int     pendingCount;
+  private boolean flushScheduled;
+  private long    flushAt;
+
+  public ReceiptAggregator(@NonNull Context context) {
+    this(context, SignalExecutors.newCachedSingleThreadExecutor("signal-ReceiptAggregator"));
+  }
+
+  @VisibleForTesting
+  ReceiptAggregator(@NonNull Context context, @NonNull Executor executor) {
+    this.context  = context.getApplicationContext();
+    this.executor = executor;
+  }
+
+  /**
+   * @param sender      The sender of the receipts.
+   * @param timestamps  The sent timestamps of the messages the receipts are for.
+   * @param receiptTime When the receipts were sent or received.
+   * @param content     The content the receipts came in, which is kept for later if a read or
+   *                    viewed receipt is for a message we don't have yet. Not needed for delivery
+   *                    receipts.
+   */
+  public synchronized void add(@NonNull ReceiptType receiptType,
+                               @NonNull RecipientId sender,
+                               @NonNull List<Long> timestamps,
+                               long receiptTime,
+                               @Nullable SignalServiceContent content)
+  {
+    List<PendingReceipt> receipts = pending.get(receiptType);
+
+    if (receipts == null) {
+      receipts = new ArrayList<>();
+      pending.put(receiptType, receipts);
+    }
+
+    for (long timestamp : timestamps) {
+      receipts.add(new PendingReceipt(new SyncMessageId(sender, timestamp), receiptTime, content));
+    }
+
+    pendingCount += timestamps.size();
+
+    if (!flushScheduled) {
+      flushScheduled = true;
+      flushAt        = System.currentTimeMillis() + FLUSH_DELAY;
+      executor.execute(this::flushWhenDue);
+    } else if (pendingCount >= MAX_PENDING) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * Applies all of the receipts that are waiting.
+   */
+  @WorkerThread
+  public void flush() {
+    try (IncomingMessageProcessor.Processor unused = ApplicationDependencies.getIncomingMessageProcessor().acquire()) {
+      Map<ReceiptType, List<PendingReceipt>> receiptsByType;
+
+      synchronized (this) {
+        if (pendingCount == 0) {
+          return;
+        }
+
+        receiptsByType = new EnumMap<>(pending);
+        pending.clear();
+        pendingCount = 0;
+        notifyAll();
+      }
+
+      apply(receiptsByType);
+    }
+  }
+
+  /**
+   * Waits until the scheduled flush is due, or until enough receipts are waiting, and then flushes.
+   */
+  @VisibleForTesting
+  @WorkerThread
+  void flushWhenDue() {
+    synchronized (this) {
+      long remaining = flushAt - System.currentTimeMillis();
+
+      while (pendingCount > 0 && pendingCount < MAX_PENDING && remaining > 0) {
+        try {
+          wait(remaining);
+        } catch (InterruptedException e) {
+          Log.w(TAG, "Interrupted while waiting to flush.", e);
+          break;
+        }
+
+        remaining = flushAt - System.currentTimeMillis();
+      }
+
+      flushScheduled = false;
+    }
+
+    flush();
+  }
+
+  private void apply(@NonNull Map<ReceiptType, List<PendingReceipt>> receiptsByType) {
+    MmsSmsDatabase database = DatabaseFactory.getMmsSmsDatabase(context);
+
+    for (Map.Entry<ReceiptType, List<PendingReceipt>> entry : receiptsByType.entrySet()) {
+      ReceiptType                     receiptType = entry.getKey();
+      List<PendingReceipt>            entries     = entry.getValue();
+      List<Pair<SyncMessageId, Long>> receipts    = new ArrayList<>(entries.size());
+
+      for (PendingReceipt receipt : entries) {
+        receipts.add(new Pair<>(receipt.id, receipt.receiptTime));
+      }
+
+      Collection<SyncMessageId> unhandled = database.incrementReceiptCounts(receipts, receiptType);
+
+      Log.d(TAG, "Applied " + (receipts.size() - unhandled.size()) + "/" + receipts.size() + " " + receiptType + " receipts.");
+
+      if (receiptType == ReceiptType.DELIVERY || unhandled.isEmpty()) {
+        continue;
+      }
+
+      for (PendingReceipt receipt : entries) {
+        if (receipt.content != null && unhandled.contains(receipt.id)) {
+          Log.w(TAG, "[" + receiptType + "] Could not find matching message! timestamp: " + receipt.id.getTimetamp() + "  author: " + receipt.id.getRecipientId());
+          ApplicationDependencies.getEarlyMessageCache().store(receipt.id.getRecipientId(), receipt.id.getTimetamp(), receipt.content);
+        }
+      }
+    }
+  }
+
+  private static final class PendingReceipt {
+    private final SyncMessageId        id;
+    private final long                 receiptTime;
+    private final SignalServiceContent content;
+
+    private PendingReceipt(@NonNull SyncMessageId id, long receiptTime, @Nullable SignalServiceContent content) {
+      this.id          = id;
+      this.receiptTime = receiptTime;
+      this.content     = content;
+    }
+  }
+}
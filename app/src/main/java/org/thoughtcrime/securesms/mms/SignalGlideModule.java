@@ -23,6 +23,7 @@ import com.bumptech.glide.load.resource.gif.StreamGifDecoder;
 import com.bumptech.glide.module.AppGlideModule;
 
 import org.signal.glide.apng.decode.APNGDecoder;
+import org.signal.glide.common.decode.FrameCache;
 import org.thoughtcrime.securesms.blurhash.BlurHash;
 import org.thoughtcrime.securesms.blurhash.BlurHashModelLoader;
 import org.thoughtcrime.securesms.blurhash.BlurHashResourceDecoder;
@@ -37,6 +38,7 @@ import org.thoughtcrime.securesms.glide.cache.ApngBufferCacheDecoder;
 import org.thoughtcrime.securesms.glide.cache.ApngFrameDrawableTranscoder;
 import org.thoughtcrime.securesms.glide.cache.ApngStreamCacheDecoder;
 import org.thoughtcrime.securesms.glide.cache.EncryptedApngCacheEncoder;
+import org.thoughtcrime.securesms.glide.cache.EncryptedApngFrameStore;
 import org.thoughtcrime.securesms.glide.cache.EncryptedBitmapResourceEncoder;
 import org.thoughtcrime.securesms.glide.cache.EncryptedCacheDecoder;
 import org.thoughtcrime.securesms.glide.cache.EncryptedCacheEncoder;
@@ -46,6 +48,7 @@ import org.thoughtcrime.securesms.mms.DecryptableStreamUriLoader.DecryptableUri;
 import org.thoughtcrime.securesms.stickers.StickerRemoteUri;
 import org.thoughtcrime.securesms.stickers.StickerRemoteUriLoader;
 import org.thoughtcrime.securesms.util.ConversationShortcutPhoto;
+import org.thoughtcrime.securesms.util.FeatureFlags;
 
 import java.io.File;
 import java.io.InputStream;
@@ -88,6 +91,10 @@ public class SignalGlideModule extends AppGlideModule {
     registry.prepend(File.class, APNGDecoder.class, new EncryptedCacheDecoder<>(secret, apngStreamCacheDecoder));
     registry.register(APNGDecoder.class, Drawable.class, new ApngFrameDrawableTranscoder());
 
+    if (FeatureFlags.apngFrameDiskCache()) {
+      FrameCache.getInstance().setDiskStore(new EncryptedApngFrameStore(context, secret));
+    }
+
     registry.prepend(BlurHash.class, Bitmap.class, new BlurHashResourceDecoder());
 
     registry.append(ConversationShortcutPhoto.class, Bitmap.class, new ConversationShortcutPhoto.Loader.Factory(context));
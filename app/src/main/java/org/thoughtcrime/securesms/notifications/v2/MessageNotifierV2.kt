@@ -33,6 +33,7 @@ import org.whispersystems.signalservice.internal.util.Util
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.Executor
 import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
 import kotlin.collections.MutableMap.MutableEntry
@@ -51,13 +52,18 @@ class MessageNotifierV2(context: Application) : MessageNotifier {
   @Volatile private var previousState: NotificationStateV2 = NotificationStateV2.EMPTY
 
   private val threadReminders: MutableMap<Long, Reminder> = ConcurrentHashMap()
-  private val stickyThreads: MutableMap<Long, StickyThread> = mutableMapOf()
+  private val stickyThreads: MutableMap<Long, StickyThread> = ConcurrentHashMap()
 
   private val executor = CancelableExecutor()
+  private val updateExecutor: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor()
+  private val stateCache = NotificationStateCache(context)
+  private val coalescer = NotificationUpdateCoalescer()
 
   override fun setVisibleThread(threadId: Long) {
     visibleThread = threadId
-    stickyThreads.remove(threadId)
+    if (stickyThreads.remove(threadId) != null) {
+      stateCache.invalidate(threadId)
+    }
   }
 
   override fun getVisibleThread(): Long {
@@ -106,6 +112,10 @@ class MessageNotifierV2(context: Application) : MessageNotifier {
   }
 
   /**
+   * Updates are coalesced, so a burst of them for incoming messages results in a single update
+   * once per [UPDATE_DELAY], rather than querying and notifying again for each of them.
+   *
+   * @param threadId the thread that changed, or -1 if it isn't known which threads did
    * @param signal is no longer used
    * @param reminderCount is not longer used
    */
@@ -120,6 +130,26 @@ class MessageNotifierV2(context: Application) : MessageNotifier {
       return
     }
 
+    if (!coalescer.request(threadId, defaultBubbleState)) {
+      return
+    }
+
+    updateExecutor.schedule({ updateNotificationInternal(context) }, UPDATE_DELAY, TimeUnit.MILLISECONDS)
+  }
+
+  private fun updateNotificationInternal(context: Context) {
+    val update: NotificationUpdateCoalescer.Update = coalescer.take()
+
+    if (update.allThreads) {
+      stateCache.invalidate()
+    } else {
+      stateCache.invalidate(update.threadIds)
+    }
+
+    if (!SignalStore.settings().isMessageNotificationsEnabled) {
+      return
+    }
+
     val currentLockStatus: Boolean = KeyCachingService.isLocked(context)
     val currentPrivacyPreference: NotificationPrivacyPreference = SignalStore.settings().messageNotificationsPrivacy
     val notificationConfigurationChanged: Boolean = currentLockStatus != previousLockedStatus || currentPrivacyPreference != previousPrivacyPreference
@@ -128,10 +158,11 @@ class MessageNotifierV2(context: Application) : MessageNotifier {
 
     if (notificationConfigurationChanged) {
       stickyThreads.clear()
+      stateCache.invalidate()
     }
 
     Log.internal().i(TAG, "sticky thread: $stickyThreads")
-    var state: NotificationStateV2 = NotificationStateProvider.constructNotificationState(context, stickyThreads)
+    var state: NotificationStateV2 = stateCache.getNotificationState(stickyThreads)
     Log.internal().i(TAG, "state: $state")
 
     val displayedNotifications: Set<Int>? = ServiceUtil.getNotificationManager(context).getDisplayedNotificationIds().getOrNull()
@@ -148,11 +179,14 @@ class MessageNotifierV2(context: Application) : MessageNotifier {
       if (cleanedUpThreadIds.isNotEmpty()) {
         Log.i(TAG, "Cleaned up ${cleanedUpThreadIds.size} thread(s) with dangling notifications")
         state = NotificationStateV2(state.conversations.filterNot { cleanedUpThreadIds.contains(it.threadId) })
+        stateCache.invalidate(cleanedUpThreadIds)
       }
     }
 
     val retainStickyThreadIds: Set<Long> = state.getThreadsWithMostRecentNotificationFromSelf()
-    stickyThreads.keys.retainAll { retainStickyThreadIds.contains(it) }
+    val droppedStickyThreadIds: Set<Long> = stickyThreads.keys.filterNot { retainStickyThreadIds.contains(it) }.toSet()
+    stickyThreads.keys.removeAll(droppedStickyThreadIds)
+    stateCache.invalidate(droppedStickyThreadIds)
 
     if (state.isEmpty) {
       Log.i(TAG, "State is empty, cancelling all notifications")
@@ -168,8 +202,7 @@ class MessageNotifierV2(context: Application) : MessageNotifier {
       context = ContextThemeWrapper(context, R.style.TextSecure_LightTheme),
       state = state,
       visibleThreadId = visibleThread,
-      targetThreadId = threadId,
-      defaultBubbleState = defaultBubbleState,
+      bubbleStates = update.bubbleStates,
       lastAudibleNotification = lastAudibleNotification,
       notificationConfigurationChanged = notificationConfigurationChanged,
       alertOverrides = alertOverrides,
@@ -194,6 +227,7 @@ class MessageNotifierV2(context: Application) : MessageNotifier {
       }
     }
     DatabaseFactory.getMmsSmsDatabase(context).setNotifiedTimestamp(System.currentTimeMillis(), smsIds, mmsIds)
+    stateCache.invalidate(state.conversations.filter { it.hasNewNotifications() }.map { it.threadId })
 
     Log.i(TAG, "threads: ${state.threadCount} messages: ${state.messageCount}")
   }
@@ -204,10 +238,12 @@ class MessageNotifierV2(context: Application) : MessageNotifier {
 
   override fun addStickyThread(threadId: Long, earliestTimestamp: Long) {
     stickyThreads[threadId] = StickyThread(threadId, NotificationIds.getNotificationIdForThread(threadId), earliestTimestamp)
+    stateCache.invalidate(threadId)
   }
 
   override fun removeStickyThread(threadId: Long) {
     stickyThreads.remove(threadId)
+    stateCache.invalidate(threadId)
   }
 
   private fun updateReminderTimestamps(context: Context, alertOverrides: Set<Long>, threadsThatAlerted: Set<Long>) {
@@ -265,6 +301,7 @@ class MessageNotifierV2(context: Application) : MessageNotifier {
   companion object {
     val TAG: String = Log.tag(MessageNotifierV2::class.java)
     private val REMINDER_TIMEOUT: Long = TimeUnit.MINUTES.toMillis(2)
+    private const val UPDATE_DELAY: Long = 16
 
     private fun updateBadge(context: Context, count: Int) {
       try {
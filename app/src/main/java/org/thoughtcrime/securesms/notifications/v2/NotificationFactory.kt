@@ -42,8 +42,7 @@ object NotificationFactory {
     context: Context,
     state: NotificationStateV2,
     visibleThreadId: Long,
-    targetThreadId: Long,
-    defaultBubbleState: BubbleUtil.BubbleState,
+    bubbleStates: Map<Long, BubbleUtil.BubbleState>,
     lastAudibleNotification: Long,
     notificationConfigurationChanged: Boolean,
     alertOverrides: Set<Long>,
@@ -60,8 +59,7 @@ object NotificationFactory {
         context = context,
         state = state,
         visibleThreadId = visibleThreadId,
-        targetThreadId = targetThreadId,
-        defaultBubbleState = defaultBubbleState,
+        bubbleStates = bubbleStates,
         lastAudibleNotification = lastAudibleNotification,
         alertOverrides = alertOverrides,
         nonVisibleThreadCount = nonVisibleThreadCount
@@ -71,8 +69,7 @@ object NotificationFactory {
         context = context,
         state = state,
         visibleThreadId = visibleThreadId,
-        targetThreadId = targetThreadId,
-        defaultBubbleState = defaultBubbleState,
+        bubbleStates = bubbleStates,
         lastAudibleNotification = lastAudibleNotification,
         notificationConfigurationChanged = notificationConfigurationChanged,
         alertOverrides = alertOverrides,
@@ -86,8 +83,7 @@ object NotificationFactory {
     context: Context,
     state: NotificationStateV2,
     visibleThreadId: Long,
-    targetThreadId: Long,
-    defaultBubbleState: BubbleUtil.BubbleState,
+    bubbleStates: Map<Long, BubbleUtil.BubbleState>,
     lastAudibleNotification: Long,
     alertOverrides: Set<Long>,
     nonVisibleThreadCount: Int
@@ -106,8 +102,7 @@ object NotificationFactory {
         notifyForConversation(
           context = context,
           conversation = conversation,
-          targetThreadId = targetThreadId,
-          defaultBubbleState = defaultBubbleState,
+          bubbleStates = bubbleStates,
           shouldAlert = (conversation.hasNewNotifications() || alertOverrides.contains(conversation.threadId)) && !conversation.mostRecentNotification.individualRecipient.isSelf
         )
         if (conversation.hasNewNotifications()) {
@@ -128,8 +123,7 @@ object NotificationFactory {
     context: Context,
     state: NotificationStateV2,
     visibleThreadId: Long,
-    targetThreadId: Long,
-    defaultBubbleState: BubbleUtil.BubbleState,
+    bubbleStates: Map<Long, BubbleUtil.BubbleState>,
     lastAudibleNotification: Long,
     notificationConfigurationChanged: Boolean,
     alertOverrides: Set<Long>,
@@ -150,8 +144,7 @@ object NotificationFactory {
         notifyForConversation(
           context = context,
           conversation = conversation,
-          targetThreadId = targetThreadId,
-          defaultBubbleState = defaultBubbleState,
+          bubbleStates = bubbleStates,
           shouldAlert = (conversation.hasNewNotifications() || alertOverrides.contains(conversation.threadId)) && !conversation.mostRecentNotification.individualRecipient.isSelf
         )
       }
@@ -167,8 +160,7 @@ object NotificationFactory {
   private fun notifyForConversation(
     context: Context,
     conversation: NotificationConversation,
-    targetThreadId: Long,
-    defaultBubbleState: BubbleUtil.BubbleState,
+    bubbleStates: Map<Long, BubbleUtil.BubbleState>,
     shouldAlert: Boolean
   ) {
     if (conversation.notificationItems.isEmpty()) {
@@ -202,7 +194,7 @@ object NotificationFactory {
       setLights()
       setAlarms(conversation.recipient)
       setTicker(conversation.mostRecentNotification.getStyledPrimaryText(context, true))
-      setBubbleMetadata(conversation, if (targetThreadId == conversation.threadId) defaultBubbleState else BubbleUtil.BubbleState.HIDDEN)
+      setBubbleMetadata(conversation, bubbleStates[conversation.threadId] ?: BubbleUtil.BubbleState.HIDDEN)
     }
 
     if (conversation.isOnlyContactJoinedEvent) {
@@ -0,0 +1,87 @@
+package org.thoughtcrime.securesms.notifications.v2
+
+import android.content.Context
+import androidx.annotation.VisibleForTesting
+import androidx.annotation.WorkerThread
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.notifications.v2.NotificationStateProvider.NotificationMessage
+import java.util.concurrent.TimeUnit
+
+/**
+ * Keeps the messages that make up the notification state by thread, so an update for a single
+ * thread only has to query that thread instead of every unread message.
+ *
+ * Everything is queried again when it isn't known which threads changed, and every
+ * [FULL_UPDATE_INTERVAL] regardless, to pick up changes nobody told us about.
+ *
+ * @param query Returns the notification messages of the given thread, or of every thread if it is null.
+ */
+class NotificationStateCache @VisibleForTesting constructor(
+  private val query: (stickyThreads: Map<Long, MessageNotifierV2.StickyThread>, threadId: Long?) -> List<NotificationMessage>,
+  private val clock: () -> Long = System::currentTimeMillis
+) {
+
+  constructor(context: Context) : this({ stickyThreads, threadId -> NotificationStateProvider.getNotificationMessages(context, stickyThreads, threadId) })
+
+  private val messagesByThread: MutableMap<Long, List<NotificationMessage>> = mutableMapOf()
+  private val changedThreads: MutableSet<Long> = mutableSetOf()
+
+  private var needsFullUpdate: Boolean = true
+  private var lastFullUpdate: Long = 0
+
+  @Synchronized
+  fun invalidate() {
+    needsFullUpdate = true
+  }
+
+  @Synchronized
+  fun invalidate(threadId: Long) {
+    changedThreads += threadId
+  }
+
+  @Synchronized
+  fun invalidate(threadIds: Collection<Long>) {
+    changedThreads += threadIds
+  }
+
+  @WorkerThread
+  fun getNotificationState(stickyThreads: Map<Long, MessageNotifierV2.StickyThread>): NotificationStateV2 {
+    return NotificationStateProvider.constructNotificationState(getMessagesByThread(stickyThreads).mapValues { (_, messages) -> messages.map { it.withCurrentRecipient() } }, stickyThreads)
+  }
+
+  @VisibleForTesting
+  @WorkerThread
+  @Synchronized
+  fun getMessagesByThread(stickyThreads: Map<Long, MessageNotifierV2.StickyThread>): Map<Long, List<NotificationMessage>> {
+    if (needsFullUpdate || clock() - lastFullUpdate > FULL_UPDATE_INTERVAL) {
+      messagesByThread.clear()
+      messagesByThread.putAll(query(stickyThreads, null).groupBy { it.threadId })
+
+      needsFullUpdate = false
+      lastFullUpdate = clock()
+    } else if (changedThreads.isNotEmpty()) {
+      Log.d(TAG, "Updating ${changedThreads.size} of ${messagesByThread.size} thread(s)")
+
+      for (threadId: Long in changedThreads) {
+        val messages: List<NotificationMessage> = query(stickyThreads, threadId)
+
+        if (messages.isEmpty()) {
+          messagesByThread.remove(threadId)
+        } else {
+          messagesByThread[threadId] = messages
+        }
+      }
+    }
+
+    changedThreads.clear()
+
+    return messagesByThread.toMap()
+  }
+
+  companion object {
+    private val TAG = Log.tag(NotificationStateCache::class.java)
+
+    @VisibleForTesting
+    val FULL_UPDATE_INTERVAL: Long = TimeUnit.MINUTES.toMillis(1)
+  }
+}
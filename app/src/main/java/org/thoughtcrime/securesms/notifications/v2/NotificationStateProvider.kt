@@ -18,21 +18,35 @@ object NotificationStateProvider {
 
   @WorkerThread
   fun constructNotificationState(context: Context, stickyThreads: Map<Long, MessageNotifierV2.StickyThread>): NotificationStateV2 {
+    return constructNotificationState(getNotificationMessages(context, stickyThreads).groupBy { it.threadId }, stickyThreads)
+  }
+
+  /**
+   * @param threadId Only returns the messages in this thread if set.
+   */
+  @WorkerThread
+  fun getNotificationMessages(context: Context, stickyThreads: Map<Long, MessageNotifierV2.StickyThread>, threadId: Long? = null): List<NotificationMessage> {
     val messages: MutableList<NotificationMessage> = mutableListOf()
+    val threadRecipients: MutableMap<Long, Recipient> = mutableMapOf()
 
-    DatabaseFactory.getMmsSmsDatabase(context).getMessagesForNotificationState(stickyThreads.values).use { unreadMessages ->
+    val mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context)
+    val cursor = if (threadId != null) mmsSmsDatabase.getMessagesForNotificationState(stickyThreads.values, threadId) else mmsSmsDatabase.getMessagesForNotificationState(stickyThreads.values)
+
+    cursor.use { unreadMessages ->
       if (unreadMessages.count == 0) {
-        return NotificationStateV2.EMPTY
+        return emptyList()
       }
 
       MmsSmsDatabase.readerFor(unreadMessages).use { reader ->
         var record: MessageRecord? = reader.next
         while (record != null) {
+          val messageThreadId: Long = record.threadId
+
           messages += NotificationMessage(
             messageRecord = record,
-            threadRecipient = DatabaseFactory.getThreadDatabase(context).getRecipientForThreadId(record.threadId)?.resolve() ?: Recipient.UNKNOWN,
-            threadId = record.threadId,
-            stickyThread = stickyThreads.containsKey(record.threadId),
+            threadRecipient = threadRecipients.getOrPut(messageThreadId) { DatabaseFactory.getThreadDatabase(context).getRecipientForThreadId(messageThreadId) ?: Recipient.UNKNOWN },
+            threadId = messageThreadId,
+            stickyThread = stickyThreads.containsKey(messageThreadId),
             isUnreadMessage = CursorUtil.requireInt(unreadMessages, MmsSmsColumns.READ) == 0,
             hasUnreadReactions = CursorUtil.requireInt(unreadMessages, MmsSmsColumns.REACTIONS_UNREAD) == 1,
             lastReactionRead = CursorUtil.requireLong(unreadMessages, MmsSmsColumns.REACTIONS_LAST_SEEN)
@@ -42,8 +56,17 @@ object NotificationStateProvider {
       }
     }
 
+    return messages
+  }
+
+  /**
+   * @param messagesByThread The messages of each thread, oldest first.
+   */
+  fun constructNotificationState(messagesByThread: Map<Long, List<NotificationMessage>>, stickyThreads: Map<Long, MessageNotifierV2.StickyThread>): NotificationStateV2 {
     val conversations: MutableList<NotificationConversation> = mutableListOf()
-    messages.groupBy { it.threadId }
+    messagesByThread.filterValues { it.isNotEmpty() }
+      .entries
+      .sortedBy { (_, threadMessages) -> threadMessages.first().messageRecord.dateReceived }
       .forEach { (threadId, threadMessages) ->
         var notificationItems: MutableList<NotificationItemV2> = mutableListOf()
 
@@ -72,7 +95,7 @@ object NotificationStateProvider {
     return NotificationStateV2(conversations)
   }
 
-  private data class NotificationMessage(
+  data class NotificationMessage(
     val messageRecord: MessageRecord,
     val threadRecipient: Recipient,
     val threadId: Long,
@@ -81,6 +104,13 @@ object NotificationStateProvider {
     val hasUnreadReactions: Boolean,
     val lastReactionRead: Long
   ) {
+    /**
+     * @return A copy that reflects the current settings of the thread's recipient, e.g. if it was muted since.
+     */
+    fun withCurrentRecipient(): NotificationMessage {
+      return if (threadRecipient == Recipient.UNKNOWN) this else copy(threadRecipient = threadRecipient.live().resolve())
+    }
+
     private val isUnreadIncoming: Boolean = isUnreadMessage && !messageRecord.isOutgoing
     private val unknownOrNotMutedThread: Boolean = threadRecipient == Recipient.UNKNOWN || threadRecipient.isNotMuted
 
@@ -0,0 +1,62 @@
+package org.thoughtcrime.securesms.notifications.v2
+
+import org.thoughtcrime.securesms.util.BubbleUtil.BubbleState
+
+/**
+ * Collects the notification updates requested until the next one runs, so a burst of them can be
+ * handled by a single update that covers every thread they were for.
+ */
+class NotificationUpdateCoalescer {
+
+  private val threadIds: MutableSet<Long> = mutableSetOf()
+  private val bubbleStates: MutableMap<Long, BubbleState> = mutableMapOf()
+
+  private var allThreads: Boolean = false
+  private var scheduled: Boolean = false
+
+  /**
+   * @param threadId the thread that changed, or -1 if it isn't known which threads did
+   * @return true if no update is pending yet and the caller has to schedule one
+   */
+  @Synchronized
+  fun request(threadId: Long, defaultBubbleState: BubbleState): Boolean {
+    if (threadId > 0) {
+      threadIds += threadId
+
+      if (defaultBubbleState != BubbleState.HIDDEN) {
+        bubbleStates[threadId] = defaultBubbleState
+      }
+    } else {
+      allThreads = true
+    }
+
+    if (scheduled) {
+      return false
+    }
+
+    scheduled = true
+    return true
+  }
+
+  /**
+   * @return every request made since the last call, after which new requests schedule a new update
+   */
+  @Synchronized
+  fun take(): Update {
+    val update = Update(threadIds.toSet(), allThreads, bubbleStates.toMap())
+
+    threadIds.clear()
+    bubbleStates.clear()
+    allThreads = false
+    scheduled = false
+
+    return update
+  }
+
+  /**
+   * @param threadIds the threads updates were requested for
+   * @param allThreads true if an update was requested without a thread, so any of them may have changed
+   * @param bubbleStates the bubble state requested for a thread, if it isn't [BubbleState.HIDDEN]
+   */
+  data class Update(val threadIds: Set<Long>, val allThreads: Boolean, val bubbleStates: Map<Long, BubbleState>)
+}
@@ -21,9 +21,9 @@ import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
 import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
 import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream;
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.util.IOFunction;
 import org.thoughtcrime.securesms.util.Util;
-import org.thoughtcrime.securesms.video.ByteArrayMediaDataSource;
 import org.thoughtcrime.securesms.video.EncryptedMediaDataSource;
 
 import java.io.ByteArrayInputStream;
@@ -31,8 +31,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicReference;
@@ -64,7 +62,7 @@ public class BlobProvider {
 
   private static final BlobProvider INSTANCE = new BlobProvider();
 
-  private final Map<Uri, byte[]> memoryBlobs = new HashMap<>();
+  private final MemoryBlobStore memoryBlobs = new MemoryBlobStore();
 
   private volatile boolean initialized = false;
 
@@ -91,8 +89,7 @@ public class BlobProvider {
    * Retrieve a stream for the content with the specified URI.
    * @throws IOException If the stream fails to open or the spec of the URI doesn't match.
    */
-  public synchronized @NonNull InputStream getStream(@NonNull Context context, @NonNull Uri uri) throws IOException {
-    waitUntilInitialized();
+  public @NonNull InputStream getStream(@NonNull Context context, @NonNull Uri uri) throws IOException {
     return getStream(context, uri, 0L);
   }
 
@@ -100,51 +97,36 @@ public class BlobProvider {
    * Retrieve a stream for the content with the specified URI starting from the specified position.
    * @throws IOException If the stream fails to open or the spec of the URI doesn't match.
    */
-  public synchronized @NonNull InputStream getStream(@NonNull Context context, @NonNull Uri uri, long position) throws IOException {
+  public @NonNull InputStream getStream(@NonNull Context context, @NonNull Uri uri, long position) throws IOException {
     waitUntilInitialized();
     return getBlobRepresentation(context,
                                  uri,
-                                 bytes -> {
-                                   ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-                                   if (byteArrayInputStream.skip(position) != position) {
-                                     throw new IOException("Failed to skip to position " + position + " for: " + uri);
-                                   }
-                                   return byteArrayInputStream;
-                                 },
+                                 blob -> blob.openStream(position),
                                  file -> ModernDecryptingPartInputStream.createFor(getAttachmentSecret(context),
                                                                                    file,
                                                                                    position));
   }
 
   @RequiresApi(23)
-  public synchronized @NonNull MediaDataSource getMediaDataSource(@NonNull Context context, @NonNull Uri uri) throws IOException {
+  public @NonNull MediaDataSource getMediaDataSource(@NonNull Context context, @NonNull Uri uri) throws IOException {
     waitUntilInitialized();
     return getBlobRepresentation(context,
                                  uri,
-                                 ByteArrayMediaDataSource::new,
+                                 MemoryBlobStore.MemoryBlob::openMediaDataSource,
                                  file -> EncryptedMediaDataSource.createForDiskBlob(getAttachmentSecret(context), file));
   }
 
-  private synchronized @NonNull <T> T getBlobRepresentation(@NonNull Context context,
-                                                            @NonNull Uri uri,
-                                                            @NonNull IOFunction<byte[], T> getByteRepresentation,
-                                                            @NonNull IOFunction<File, T> getFileRepresentation)
+  private @NonNull <T> T getBlobRepresentation(@NonNull Context context,
+                                               @NonNull Uri uri,
+                                               @NonNull IOFunction<MemoryBlobStore.MemoryBlob, T> getMemoryRepresentation,
+                                               @NonNull IOFunction<File, T> getFileRepresentation)
       throws IOException
   {
     if (isAuthority(uri)) {
       StorageType storageType = StorageType.decode(uri.getPathSegments().get(STORAGE_TYPE_PATH_SEGMENT));
 
       if (storageType.isMemory()) {
-        byte[] data = memoryBlobs.get(uri);
-
-        if (data != null) {
-          if (storageType == StorageType.SINGLE_USE_MEMORY) {
-            memoryBlobs.remove(uri);
-          }
-          return getByteRepresentation.apply(data);
-        } else {
-          throw new IOException("Failed to find in-memory blob for: " + uri);
-        }
+        return memoryBlobs.open(uri, storageType == StorageType.SINGLE_USE_MEMORY, getMemoryRepresentation);
       } else {
         String id        = uri.getPathSegments().get(ID_PATH_SEGMENT);
         String directory = getDirectory(storageType);
@@ -157,14 +139,14 @@ public class BlobProvider {
     }
   }
 
-  private synchronized AttachmentSecret getAttachmentSecret(@NonNull Context context) {
+  private AttachmentSecret getAttachmentSecret(@NonNull Context context) {
     return AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret();
   }
 
   /**
    * Delete the content with the specified URI.
    */
-  public synchronized void delete(@NonNull Context context, @NonNull Uri uri) {
+  public void delete(@NonNull Context context, @NonNull Uri uri) {
     waitUntilInitialized();
 
     if (!isAuthority(uri)) {
@@ -178,7 +160,7 @@ public class BlobProvider {
       StorageType storageType = StorageType.decode(uri.getPathSegments().get(STORAGE_TYPE_PATH_SEGMENT));
 
       if (storageType.isMemory()) {
-        memoryBlobs.remove(uri);
+        memoryBlobs.delete(uri);
       } else {
         String id        = uri.getPathSegments().get(ID_PATH_SEGMENT);
         String directory = getDirectory(storageType);
@@ -219,6 +201,8 @@ public class BlobProvider {
           Log.w(TAG, "Null directory listing!");
         }
 
+        memoryBlobs.deleteSpillFromPreviousSessions(context);
+
         Log.i(TAG, "Initialized.");
         initialized = true;
         notifyAll();
@@ -333,9 +317,9 @@ public class BlobProvider {
     return buildUri(blobSpec);
   }
 
-  private synchronized @NonNull Uri writeBlobSpecToMemory(@NonNull BlobSpec blobSpec, @NonNull byte[] data) {
+  private @NonNull Uri writeBlobSpecToMemory(@NonNull BlobSpec blobSpec, @NonNull byte[] data) {
     Uri uri = buildUri(blobSpec);
-    memoryBlobs.put(uri, data);
+    memoryBlobs.put(ApplicationDependencies.getApplication(), uri, data);
     return uri;
   }
 
@@ -440,7 +424,7 @@ public class BlobProvider {
     }
   }
 
-  private synchronized void waitUntilInitialized() {
+  private void waitUntilInitialized() {
     if (!initialized) {
       Log.i(TAG, "Waiting for initialization...");
       synchronized (this) {
@@ -0,0 +1,459 @@
+package org.thoughtcrime.securesms.providers;
+
+import android.content.Context;
+import android.media.MediaDataSource;
+import android.net.Uri;
+import android.os.MemoryFile;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.crypto.AttachmentSecret;
+import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
+import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
+import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream;
+import org.thoughtcrime.securesms.util.IOFunction;
+import org.thoughtcrime.securesms.video.ByteArrayMediaDataSource;
+import org.thoughtcrime.securesms.video.EncryptedMediaDataSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the data of the in-memory blobs of {@link BlobProvider}.
+ * <p>
+ * Only small blobs are kept on the Java heap. Larger ones are copied into shared memory, which the
+ * garbage collector never has to look at, and once the shared memory budget is used up they are
+ * spilled to encrypted files instead. Blobs are looked up without a global lock and each one
+ * guards its own reads, so reading one blob never waits on another.
+ */
+final class MemoryBlobStore {
+
+  private static final String TAG = Log.tag(MemoryBlobStore.class);
+
+  private static final String SPILL_DIRECTORY = "memory_blob_spill";
+
+  /**
+   * Blobs up to this size stay on the heap, a shared memory region isn't worth it for them.
+   */
+  private static final int MAX_HEAP_BLOB_SIZE = 64 * 1024;
+
+  /**
+   * Shared memory doesn't count against the heap, but it's still RAM. Past this, blobs go to disk.
+   */
+  private static final long SHARED_MEMORY_BUDGET = 64 * 1024 * 1024;
+
+  private final Map<Uri, MemoryBlob> blobs            = new ConcurrentHashMap<>();
+  private final AtomicLong           sharedMemorySize = new AtomicLong();
+  private final String               sessionPrefix    = UUID.randomUUID().toString();
+
+  void put(@NonNull Context context, @NonNull Uri uri, @NonNull byte[] data) {
+    blobs.put(uri, createBlob(context, data));
+  }
+
+  /**
+   * Opens a representation of the blob. If {@code singleUse} is set, the blob is removed from the
+   * store, and its data is freed once the returned representation is closed.
+   */
+  <T> T open(@NonNull Uri uri, boolean singleUse, @NonNull IOFunction<MemoryBlob, T> opener) throws IOException {
+    MemoryBlob blob = singleUse ? blobs.remove(uri) : blobs.get(uri);
+
+    if (blob == null) {
+      throw new IOException("Failed to find in-memory blob for: " + uri);
+    }
+
+    try {
+      return opener.apply(blob);
+    } finally {
+      if (singleUse) {
+        blob.release();
+      }
+    }
+  }
+
+  /**
+   * Removes the blob. Streams that are still open keep working, the data is freed when the last one
+   * is closed.
+   */
+  void delete(@NonNull Uri uri) {
+    MemoryBlob blob = blobs.remove(uri);
+
+    if (blob != null) {
+      blob.release();
+    }
+  }
+
+  /**
+   * Spill files of this session are named with its prefix, everything else is left over from a
+   * previous process.
+   */
+  void deleteSpillFromPreviousSessions(@NonNull Context context) {
+    File[] files = getSpillDirectory(context).listFiles();
+
+    if (files == null) {
+      return;
+    }
+
+    for (File file : files) {
+      if (!file.getName().startsWith(sessionPrefix) && !file.delete()) {
+        Log.w(TAG, "Failed to delete spill file! " + file.getName());
+      }
+    }
+  }
+
+  private @NonNull MemoryBlob createBlob(@NonNull Context context, @NonNull byte[] data) {
+    if (data.length <= MAX_HEAP_BLOB_SIZE) {
+      return new HeapBlob(data);
+    }
+
+    if (sharedMemorySize.addAndGet(data.length) <= SHARED_MEMORY_BUDGET) {
+      try {
+        return new SharedMemoryBlob(data);
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to create shared memory, spilling to disk.", e);
+      }
+    }
+
+    sharedMemorySize.addAndGet(-data.length);
+
+    try {
+      return new DiskBlob(AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
+                          new File(getSpillDirectory(context), sessionPrefix + "-" + UUID.randomUUID() + ".blob"),
+                          data);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to spill to disk, keeping on the heap.", e);
+      return new HeapBlob(data);
+    }
+  }
+
+  private static @NonNull File getSpillDirectory(@NonNull Context context) {
+    return context.getDir(SPILL_DIRECTORY, Context.MODE_PRIVATE);
+  }
+
+  /**
+   * Reference counted, the store holds one reference and every open stream or data source another.
+   */
+  abstract static class MemoryBlob {
+
+    private int references = 1;
+
+    abstract @NonNull InputStream openStream(long position) throws IOException;
+
+    @RequiresApi(23)
+    abstract @NonNull MediaDataSource openMediaDataSource() throws IOException;
+
+    /**
+     * Called once, when the last reference is released.
+     */
+    protected abstract void free();
+
+    protected final synchronized void retain() throws IOException {
+      if (references == 0) {
+        throw new IOException("Blob has already been freed.");
+      }
+      references++;
+    }
+
+    /**
+     * Takes a reference for whatever opener returns. If opening fails, the reference is released
+     * again.
+     */
+    protected final <T> T openRetained(@NonNull IOFunction<MemoryBlob, T> opener) throws IOException {
+      retain();
+
+      boolean opened = false;
+
+      try {
+        T representation = opener.apply(this);
+        opened = true;
+        return representation;
+      } finally {
+        if (!opened) {
+          release();
+        }
+      }
+    }
+
+    protected final synchronized boolean isFreed() {
+      return references == 0;
+    }
+
+    final void release() {
+      synchronized (this) {
+        if (references == 0 || --references > 0) {
+          return;
+        }
+      }
+      free();
+    }
+  }
+
+  private static final class HeapBlob extends MemoryBlob {
+
+    private final byte[] data;
+
+    private HeapBlob(@NonNull byte[] data) {
+      this.data = data;
+    }
+
+    @Override
+    @NonNull InputStream openStream(long position) throws IOException {
+      ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(data);
+      if (byteArrayInputStream.skip(position) != position) {
+        throw new IOException("Failed to skip to position " + position);
+      }
+      return byteArrayInputStream;
+    }
+
+    @RequiresApi(23)
+    @Override
+    @NonNull MediaDataSource openMediaDataSource() {
+      return new ByteArrayMediaDataSource(data);
+    }
+
+    @Override
+    protected void free() {
+    }
+  }
+
+  private final class SharedMemoryBlob extends MemoryBlob {
+
+    private final MemoryFile memoryFile;
+    private final int        size;
+
+    private SharedMemoryBlob(@NonNull byte[] data) throws IOException {
+      this.memoryFile = new MemoryFile("blob", data.length);
+      this.size       = data.length;
+
+      try {
+        memoryFile.writeBytes(data, 0, 0, data.length);
+      } catch (IOException e) {
+        memoryFile.close();
+        throw e;
+      }
+    }
+
+    @Override
+    @NonNull InputStream openStream(long position) throws IOException {
+      if (position > size) {
+        throw new IOException("Failed to skip to position " + position);
+      }
+
+      return openRetained(blob -> new ReleasingInputStream(new SharedMemoryInputStream(this, position), blob));
+    }
+
+    @RequiresApi(23)
+    @Override
+    @NonNull MediaDataSource openMediaDataSource() throws IOException {
+      return openRetained(blob -> new ReleasingMediaDataSource(new SharedMemoryMediaDataSource(this), blob));
+    }
+
+    /**
+     * The mapping behind a {@link MemoryFile} has a single position, so reads of the same blob take
+     * turns.
+     */
+    synchronized int readAt(long position, @NonNull byte[] buffer, int offset, int length) throws IOException {
+      if (isFreed()) {
+        throw new IOException("Blob has already been freed.");
+      }
+
+      if (position >= size) {
+        return -1;
+      }
+
+      int read = (int) Math.min(length, size - position);
+      return memoryFile.readBytes(buffer, (int) position, offset, read);
+    }
+
+    long size() {
+      return size;
+    }
+
+    @Override
+    protected void free() {
+      synchronized (this) {
+        memoryFile.close();
+      }
+      sharedMemorySize.addAndGet(-size);
+    }
+  }
+
+  private static final class DiskBlob extends MemoryBlob {
+
+    private final AttachmentSecret attachmentSecret;
+    private final File             file;
+
+    private DiskBlob(@NonNull AttachmentSecret attachmentSecret, @NonNull File file, @NonNull byte[] data) throws IOException {
+      this.attachmentSecret = attachmentSecret;
+      this.file             = file;
+
+      try (OutputStream outputStream = ModernEncryptingPartOutputStream.createFor(attachmentSecret, file, true).second) {
+        outputStream.write(data);
+      } catch (IOException e) {
+        free();
+        throw e;
+      }
+    }
+
+    @Override
+    @NonNull InputStream openStream(long position) throws IOException {
+      return openRetained(blob -> new ReleasingInputStream(ModernDecryptingPartInputStream.createFor(attachmentSecret, file, position), blob));
+    }
+
+    @RequiresApi(23)
+    @Override
+    @NonNull MediaDataSource openMediaDataSource() throws IOException {
+      return openRetained(blob -> new ReleasingMediaDataSource(EncryptedMediaDataSource.createForDiskBlob(attachmentSecret, file), blob));
+    }
+
+    @Override
+    protected void free() {
+      if (file.exists() && !file.delete()) {
+        Log.w(TAG, "Failed to delete spill file! " + file.getName());
+      }
+    }
+  }
+
+  private static final class SharedMemoryInputStream extends InputStream {
+
+    private final SharedMemoryBlob blob;
+
+    private long position;
+
+    private SharedMemoryInputStream(@NonNull SharedMemoryBlob blob, long position) {
+      this.blob     = blob;
+      this.position = position;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] buffer = new byte[1];
+      int    read   = read(buffer, 0, 1);
+
+      return read == -1 ? -1 : buffer[0] & 0xff;
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+
+      int read = blob.readAt(position, buffer, offset, length);
+
+      if (read > 0) {
+        position += read;
+      }
+
+      return read;
+    }
+
+    @Override
+    public long skip(long byteCount) {
+      long skipped = Math.max(0, Math.min(byteCount, blob.size() - position));
+      position += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.max(0, blob.size() - position);
+    }
+  }
+
+  @RequiresApi(23)
+  private static final class SharedMemoryMediaDataSource extends MediaDataSource {
+
+    private final SharedMemoryBlob blob;
+
+    private SharedMemoryMediaDataSource(@NonNull SharedMemoryBlob blob) {
+      this.blob = blob;
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+      return blob.readAt(position, buffer, offset, size);
+    }
+
+    @Override
+    public long getSize() {
+      return blob.size();
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * Releases the blob's reference the first time it's closed.
+   */
+  private static final class ReleasingInputStream extends FilterInputStream {
+
+    private final MemoryBlob blob;
+
+    private boolean released;
+
+    private ReleasingInputStream(@NonNull InputStream inputStream, @NonNull MemoryBlob blob) {
+      super(inputStream);
+      this.blob = blob;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (!released) {
+          released = true;
+          blob.release();
+        }
+      }
+    }
+  }
+
+  @RequiresApi(23)
+  private static final class ReleasingMediaDataSource extends MediaDataSource {
+
+    private final MediaDataSource mediaDataSource;
+    private final MemoryBlob      blob;
+
+    private boolean released;
+
+    private ReleasingMediaDataSource(@NonNull MediaDataSource mediaDataSource, @NonNull MemoryBlob blob) {
+      this.mediaDataSource = mediaDataSource;
+      this.blob            = blob;
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+      return mediaDataSource.readAt(position, buffer, offset, size);
+    }
+
+    @Override
+    public long getSize() throws IOException {
+      return mediaDataSource.getSize();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        mediaDataSource.close();
+      } finally {
+        if (!released) {
+          released = true;
+          blob.release();
+        }
+      }
+    }
+  }
+}
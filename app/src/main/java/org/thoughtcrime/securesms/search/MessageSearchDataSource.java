@@ -0,0 +1,326 @@
+package org.thoughtcrime.securesms.search;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.logging.Log;
+import org.signal.paging.PagedDataSource;
+import org.thoughtcrime.securesms.conversationlist.model.MessageResult;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MentionDatabase;
+import org.thoughtcrime.securesms.database.MentionUtil;
+import org.thoughtcrime.securesms.database.RecipientDatabase;
+import org.thoughtcrime.securesms.database.SearchDatabase;
+import org.thoughtcrime.securesms.database.SearchDatabase.MessageIds;
+import org.thoughtcrime.securesms.database.SearchDatabase.MessageOrder;
+import org.thoughtcrime.securesms.database.model.Mention;
+import org.thoughtcrime.securesms.recipients.Recipient;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+import org.thoughtcrime.securesms.util.CursorUtil;
+import org.thoughtcrime.securesms.util.Stopwatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static org.thoughtcrime.securesms.database.SearchDatabase.SNIPPET_WRAP;
+
+/**
+ * Pages through the messages matching a search, ordered by date or by relevance. Results are only
+ * built for the pages that are actually requested, and mentions are only resolved for those.
+ *
+ * When a search's query only extends the terms of the search before it (i.e. the user kept
+ * typing), and that earlier search didn't match too many messages, only the messages it matched
+ * are searched again, unless messages have changed since, see {@link #invalidateMatches()}.
+ */
+public final class MessageSearchDataSource implements PagedDataSource<MessageResult> {
+
+  private static final String TAG = Log.tag(MessageSearchDataSource.class);
+
+  /** The most matches we'll remember to narrow down the search that follows this one. */
+  private static final int MAX_REFINABLE_MATCHES = 1000;
+
+  private static final int MAX_MENTION_MATCHES = 500;
+
+  private final Context           context;
+  private final SearchDatabase    searchDatabase;
+  private final MentionDatabase   mentionDatabase;
+  private final RecipientDatabase recipientDatabase;
+  private final String            query;
+  private final List<String>      mentionQueries;
+  private final MessageOrder      order;
+  private final MessageIds        candidates;
+
+  private volatile boolean                  canceled;
+  private volatile boolean                  matchesInvalidated;
+  private volatile MessageIds               matches;
+  private volatile Map<Long, List<Mention>> mentionMatches;
+
+  /**
+   * @param query The sanitized search query.
+   * @param mentionQueries The sanitized terms to look up mentioned recipients with.
+   * @param previous The search this one replaces, if any.
+   */
+  MessageSearchDataSource(@NonNull Context context,
+                          @NonNull String query,
+                          @NonNull List<String> mentionQueries,
+                          @NonNull MessageOrder order,
+                          @Nullable MessageSearchDataSource previous)
+  {
+    this.context           = context.getApplicationContext();
+    this.searchDatabase    = DatabaseFactory.getSearchDatabase(context);
+    this.mentionDatabase   = DatabaseFactory.getMentionDatabase(context);
+    this.recipientDatabase = DatabaseFactory.getRecipientDatabase(context);
+    this.query             = query;
+    this.mentionQueries    = mentionQueries;
+    this.order             = order;
+    this.mentionMatches    = Collections.emptyMap();
+    this.candidates        = previous != null && !previous.matchesInvalidated && isRefinement(previous.query, query) ? previous.matches : null;
+  }
+
+  /**
+   * Stops any work for this search as soon as possible. Loads that are in progress or requested
+   * after this will return nothing.
+   */
+  public void cancel() {
+    canceled = true;
+  }
+
+  /**
+   * Call when messages were added, changed or deleted. This search's matches may then be missing
+   * messages, so the search that replaces it won't be narrowed down from them.
+   */
+  public void invalidateMatches() {
+    matchesInvalidated = true;
+  }
+
+  @Override
+  public int size() {
+    if (canceled || query.trim().isEmpty()) {
+      return 0;
+    }
+
+    Stopwatch stopwatch = new Stopwatch("size");
+
+    mentionMatches = queryMentionMatches();
+    stopwatch.split("mentions");
+
+    if (canceled) {
+      return 0;
+    }
+
+    MessageIds found = searchDatabase.getMatchingMessageIds(query, candidates, MAX_REFINABLE_MATCHES + 1);
+    int        size;
+
+    stopwatch.split("matches");
+
+    if (found.size() <= MAX_REFINABLE_MATCHES) {
+      Set<Long> mentionOnly = new HashSet<>();
+
+      for (long messageId : mentionMatches.keySet()) {
+        if (!found.getMmsIds().contains(messageId) && (candidates == null || candidates.getMmsIds().contains(messageId))) {
+          mentionOnly.add(messageId);
+        }
+      }
+
+      matches = found.withMmsIds(mentionOnly);
+      size    = found.size() + mentionOnly.size();
+    } else if (canceled) {
+      return 0;
+    } else {
+      size = searchDatabase.getMessageCount(query, candidates, mentionMatches.keySet());
+      stopwatch.split("count");
+    }
+
+    stopwatch.stop(TAG);
+    Log.d(TAG, "Found " + size + " results" + (candidates != null ? " within " + candidates.size() + " candidates" : ""));
+
+    return size;
+  }
+
+  @Override
+  public @NonNull List<MessageResult> load(int start, int length, @NonNull CancellationSignal cancellationSignal) {
+    if (canceled || cancellationSignal.isCanceled()) {
+      return Collections.emptyList();
+    }
+
+    Stopwatch                stopwatch      = new Stopwatch("load(" + start + ", " + length + ")");
+    Map<Long, List<Mention>> mentionMatches = this.mentionMatches;
+    List<MessageResult>      results        = new ArrayList<>(length);
+    Set<Long>                mentionOnly    = new HashSet<>();
+    List<Long>               mmsIds         = new LinkedList<>();
+
+    try (Cursor cursor = searchDatabase.queryMessages(query, order, candidates, mentionMatches.keySet(), start, length)) {
+      if (cursor == null) {
+        return Collections.emptyList();
+      }
+
+      SearchRepository.MessageModelBuilder builder = new SearchRepository.MessageModelBuilder();
+
+      while (cursor.moveToNext()) {
+        if (canceled || cancellationSignal.isCanceled()) {
+          Log.d(TAG, "Canceled after " + results.size() + " results.");
+          return Collections.emptyList();
+        }
+
+        MessageResult result = builder.build(cursor);
+
+        if (CursorUtil.requireBoolean(cursor, SearchDatabase.MENTION_MATCH)) {
+          mentionOnly.add(result.messageId);
+        } else if (result.isMms) {
+          mmsIds.add(result.messageId);
+        }
+
+        results.add(result);
+      }
+    }
+
+    stopwatch.split("messages");
+
+    Map<Long, List<Mention>> mentions = mmsIds.isEmpty() ? Collections.emptyMap() : mentionDatabase.getMentionsForMessages(mmsIds);
+
+    for (int i = 0; i < results.size(); i++) {
+      MessageResult result = results.get(i);
+
+      if (result.isMms && mentionOnly.contains(result.messageId)) {
+        results.set(i, updateMentionMatch(result, mentionMatches.get(result.messageId)));
+      } else if (result.isMms && mentions.containsKey(result.messageId)) {
+        results.set(i, updateWithDisplayNames(result, mentions.get(result.messageId)));
+      }
+    }
+
+    stopwatch.split("mentions");
+    stopwatch.stop(TAG);
+
+    return results;
+  }
+
+  private @NonNull Map<Long, List<Mention>> queryMentionMatches() {
+    Set<RecipientId> recipientIds = new HashSet<>();
+    for (String mentionQuery : mentionQueries) {
+      for (Recipient recipient : recipientDatabase.queryRecipientsForMentions(mentionQuery)) {
+        recipientIds.add(recipient.getId());
+      }
+    }
+
+    if (recipientIds.isEmpty()) {
+      return Collections.emptyMap();
+    }
+
+    return mentionDatabase.getMentionsContainingRecipients(recipientIds, MAX_MENTION_MATCHES);
+  }
+
+  private @NonNull MessageResult updateMentionMatch(@NonNull MessageResult result, @Nullable List<Mention> mentions) {
+    if (mentions == null || mentions.isEmpty()) {
+      return result;
+    }
+
+    MentionUtil.UpdatedBodyAndMentions updated        = MentionUtil.updateBodyAndMentionsWithDisplayNames(context, result.body, mentions);
+    String                             updatedBody    = updated.getBody() != null ? updated.getBody().toString() : result.body;
+    String                             updatedSnippet = makeSnippet(mentionQueries, updatedBody);
+
+    return new MessageResult(result.conversationRecipient, result.messageRecipient, updatedBody, updatedSnippet, result.threadId, result.messageId, result.receivedTimestampMs, result.isMms);
+  }
+
+  private @NonNull MessageResult updateWithDisplayNames(@NonNull MessageResult result, @NonNull List<Mention> mentions) {
+    //noinspection ConstantConditions
+    String updatedBody    = MentionUtil.updateBodyAndMentionsWithDisplayNames(context, result.body, mentions).getBody().toString();
+    String updatedSnippet = updateSnippetWithDisplayNames(result.body, result.bodySnippet, mentions);
+
+    return new MessageResult(result.conversationRecipient, result.messageRecipient, updatedBody, updatedSnippet, result.threadId, result.messageId, result.receivedTimestampMs, result.isMms);
+  }
+
+  private @NonNull String updateSnippetWithDisplayNames(@NonNull String body, @NonNull String bodySnippet, @NonNull List<Mention> mentions) {
+    String cleanSnippet = bodySnippet;
+    int    startOffset  = 0;
+
+    if (cleanSnippet.startsWith(SNIPPET_WRAP)) {
+      cleanSnippet = cleanSnippet.substring(SNIPPET_WRAP.length());
+      startOffset  = SNIPPET_WRAP.length();
+    }
+
+    if (cleanSnippet.endsWith(SNIPPET_WRAP)) {
+      cleanSnippet = cleanSnippet.substring(0, cleanSnippet.length() - SNIPPET_WRAP.length());
+    }
+
+    int startIndex = body.indexOf(cleanSnippet);
+
+    if (startIndex != -1) {
+      List<Mention> adjustMentions = new ArrayList<>(mentions.size());
+      for (Mention mention : mentions) {
+        int adjustedStart = mention.getStart() - startIndex + startOffset;
+        if (adjustedStart >= 0 && adjustedStart + mention.getLength() <= cleanSnippet.length()) {
+          adjustMentions.add(new Mention(mention.getRecipientId(), adjustedStart, mention.getLength()));
+        }
+      }
+
+      //noinspection ConstantConditions
+      return MentionUtil.updateBodyAndMentionsWithDisplayNames(context, bodySnippet, adjustMentions).getBody().toString();
+    }
+
+    return bodySnippet;
+  }
+
+  private static @NonNull String makeSnippet(@NonNull List<String> queries, @NonNull String body) {
+    if (body.length() < 50) {
+      return body;
+    }
+
+    String lowerBody = body.toLowerCase();
+    for (String query : queries) {
+      int foundIndex = lowerBody.indexOf(query.toLowerCase());
+      if (foundIndex != -1) {
+        int snippetStart = Math.max(0, Math.max(body.lastIndexOf(' ', foundIndex - 5) + 1, foundIndex - 15));
+        int lastSpace    = body.indexOf(' ', foundIndex + 30);
+        int snippetEnd   = Math.min(body.length(), lastSpace > 0 ? Math.min(lastSpace, foundIndex + 40) : foundIndex + 40);
+
+        return (snippetStart > 0 ? SNIPPET_WRAP : "") + body.substring(snippetStart, snippetEnd) + (snippetEnd < body.length() ? SNIPPET_WRAP : "");
+      }
+    }
+    return body;
+  }
+
+  /**
+   * Full-text terms are matched as prefixes and all have to match, so a query matches a subset of
+   * what an earlier one did if each of the earlier terms is a prefix of the term in the same
+   * position, regardless of any terms added after them.
+   */
+  static boolean isRefinement(@NonNull String previousQuery, @NonNull String query) {
+    List<String> previousTerms = getTerms(previousQuery);
+    List<String> terms         = getTerms(query);
+
+    if (previousTerms.isEmpty() || terms.size() < previousTerms.size()) {
+      return false;
+    }
+
+    for (int i = 0; i < previousTerms.size(); i++) {
+      if (!terms.get(i).startsWith(previousTerms.get(i))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static @NonNull List<String> getTerms(@NonNull String query) {
+    List<String> terms = new ArrayList<>();
+
+    for (String term : query.split(" ")) {
+      String trimmed = term.trim();
+
+      if (trimmed.length() > 0) {
+        terms.add(trimmed.toLowerCase(Locale.ROOT));
+      }
+    }
+
+    return terms;
+  }
+}
@@ -20,11 +20,11 @@ import org.thoughtcrime.securesms.conversationlist.model.SearchResult;
 import org.thoughtcrime.securesms.database.CursorList;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.MentionDatabase;
-import org.thoughtcrime.securesms.database.MentionUtil;
 import org.thoughtcrime.securesms.database.MessageDatabase;
 import org.thoughtcrime.securesms.database.MmsSmsColumns;
 import org.thoughtcrime.securesms.database.RecipientDatabase;
 import org.thoughtcrime.securesms.database.SearchDatabase;
+import org.thoughtcrime.securesms.database.SearchDatabase.MessageOrder;
 import org.thoughtcrime.securesms.database.ThreadDatabase;
 import org.thoughtcrime.securesms.database.model.Mention;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
@@ -33,12 +33,10 @@ import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.thoughtcrime.securesms.util.CursorUtil;
-import org.thoughtcrime.securesms.util.Util;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -47,8 +45,6 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
-import static org.thoughtcrime.securesms.database.SearchDatabase.SNIPPET_WRAP;
-
 /**
  * Manages data retrieval for search.
  */
@@ -97,6 +93,10 @@ public class SearchRepository {
     this.parallelExecutor  = SignalExecutors.BOUNDED;
   }
 
+  /**
+   * Searches contacts and conversations. Messages are paged through separately, see
+   * {@link #createMessageSearch(String, MessageOrder, MessageSearchDataSource)}.
+   */
   public void query(@NonNull String query, @NonNull Callback<SearchResult> callback) {
     if (TextUtils.isEmpty(query)) {
       callback.onResult(SearchResult.EMPTY);
@@ -106,14 +106,12 @@ public class SearchRepository {
     serialExecutor.execute(() -> {
       String cleanQuery = sanitizeQuery(query);
 
-      Future<List<Recipient>>     contacts        = parallelExecutor.submit(() -> queryContacts(cleanQuery));
-      Future<List<ThreadRecord>>  conversations   = parallelExecutor.submit(() -> queryConversations(cleanQuery));
-      Future<List<MessageResult>> messages        = parallelExecutor.submit(() -> queryMessages(cleanQuery));
-      Future<List<MessageResult>> mentionMessages = parallelExecutor.submit(() -> queryMentions(sanitizeQueryAsTokens(query)));
+      Future<List<Recipient>>    contacts      = parallelExecutor.submit(() -> queryContacts(cleanQuery));
+      Future<List<ThreadRecord>> conversations = parallelExecutor.submit(() -> queryConversations(cleanQuery));
 
       try {
         long         startTime = System.currentTimeMillis();
-        SearchResult result    = new SearchResult(cleanQuery, contacts.get(), conversations.get(), mergeMessagesAndMentions(messages.get(), mentionMessages.get()));
+        SearchResult result    = new SearchResult(cleanQuery, contacts.get(), conversations.get(), Collections.emptyList());
 
         Log.d(TAG, "Total time: " + (System.currentTimeMillis() - startTime) + " ms");
 
@@ -125,6 +123,19 @@ public class SearchRepository {
     });
   }
 
+  /**
+   * @param previous The search this one replaces, if any. It will be canceled, and if the new
+   *                 query only extends its terms, the new search is narrowed down from its matches
+   *                 unless they were invalidated, see {@link MessageSearchDataSource#invalidateMatches()}.
+   */
+  public @NonNull MessageSearchDataSource createMessageSearch(@NonNull String query, @NonNull MessageOrder order, @Nullable MessageSearchDataSource previous) {
+    if (previous != null) {
+      previous.cancel();
+    }
+
+    return new MessageSearchDataSource(context, sanitizeQuery(query), sanitizeQueryAsTokens(query), order, previous);
+  }
+
   public void query(@NonNull String query, long threadId, @NonNull Callback<List<MessageResult>> callback) {
     if (TextUtils.isEmpty(query)) {
       callback.onResult(CursorList.emptyList());
@@ -168,118 +179,12 @@ public class SearchRepository {
     }
   }
 
-  private @NonNull List<MessageResult> queryMessages(@NonNull String query) {
-    List<MessageResult> results;
-    try (Cursor cursor = searchDatabase.queryMessages(query)) {
-      results = readToList(cursor, new MessageModelBuilder());
-    }
-
-    List<Long> messageIds = new LinkedList<>();
-    for (MessageResult result : results) {
-      if (result.isMms) {
-        messageIds.add(result.messageId);
-      }
-    }
-
-    if (messageIds.isEmpty()) {
-      return results;
-    }
-
-    Map<Long, List<Mention>> mentions = DatabaseFactory.getMentionDatabase(context).getMentionsForMessages(messageIds);
-    if (mentions.isEmpty()) {
-      return results;
-    }
-
-    List<MessageResult> updatedResults = new ArrayList<>(results.size());
-    for (MessageResult result : results) {
-      if (result.isMms && mentions.containsKey(result.messageId)) {
-        List<Mention> messageMentions = mentions.get(result.messageId);
-
-        //noinspection ConstantConditions
-        String updatedBody    = MentionUtil.updateBodyAndMentionsWithDisplayNames(context, result.body, messageMentions).getBody().toString();
-        String updatedSnippet = updateSnippetWithDisplayNames(result.body, result.bodySnippet, messageMentions);
-
-        //noinspection ConstantConditions
-        updatedResults.add(new MessageResult(result.conversationRecipient, result.messageRecipient, updatedBody, updatedSnippet, result.threadId, result.messageId, result.receivedTimestampMs, result.isMms));
-      } else {
-        updatedResults.add(result);
-      }
-    }
-
-    return updatedResults;
-  }
-
-  private @NonNull String updateSnippetWithDisplayNames(@NonNull String body, @NonNull String bodySnippet, @NonNull List<Mention> mentions) {
-    String cleanSnippet = bodySnippet;
-    int    startOffset  = 0;
-
-    if (cleanSnippet.startsWith(SNIPPET_WRAP)) {
-      cleanSnippet = cleanSnippet.substring(SNIPPET_WRAP.length());
-      startOffset  = SNIPPET_WRAP.length();
-    }
-
-    if (cleanSnippet.endsWith(SNIPPET_WRAP)) {
-      cleanSnippet = cleanSnippet.substring(0, cleanSnippet.length() - SNIPPET_WRAP.length());
-    }
-
-    int startIndex = body.indexOf(cleanSnippet);
-
-    if (startIndex != -1) {
-      List<Mention> adjustMentions = new ArrayList<>(mentions.size());
-      for (Mention mention : mentions) {
-        int adjustedStart = mention.getStart() - startIndex + startOffset;
-        if (adjustedStart >= 0 && adjustedStart + mention.getLength() <= cleanSnippet.length()) {
-          adjustMentions.add(new Mention(mention.getRecipientId(), adjustedStart, mention.getLength()));
-        }
-      }
-
-      //noinspection ConstantConditions
-      return MentionUtil.updateBodyAndMentionsWithDisplayNames(context, bodySnippet, adjustMentions).getBody().toString();
-    }
-
-    return bodySnippet;
-  }
-
   private @NonNull List<MessageResult> queryMessages(@NonNull String query, long threadId) {
     try (Cursor cursor = searchDatabase.queryMessages(query, threadId)) {
       return readToList(cursor, new MessageModelBuilder());
     }
   }
 
-  private @NonNull List<MessageResult> queryMentions(@NonNull List<String> cleanQueries) {
-    Set<RecipientId> recipientIds = new HashSet<>();
-    for (String cleanQuery : cleanQueries) {
-      for (Recipient recipient : recipientDatabase.queryRecipientsForMentions(cleanQuery)) {
-        recipientIds.add(recipient.getId());
-      }
-    }
-
-    Map<Long, List<Mention>> mentionQueryResults = mentionDatabase.getMentionsContainingRecipients(recipientIds, 500);
-
-    if (mentionQueryResults.isEmpty()) {
-      return Collections.emptyList();
-    }
-
-    List<MessageResult> results = new ArrayList<>();
-
-    try (MessageDatabase.Reader reader = mmsDatabase.getMessages(mentionQueryResults.keySet())) {
-      MessageRecord record;
-      while ((record = reader.getNext()) != null) {
-        List<Mention> mentions = mentionQueryResults.get(record.getId());
-        if (Util.hasItems(mentions)) {
-          MentionUtil.UpdatedBodyAndMentions updated        = MentionUtil.updateBodyAndMentionsWithDisplayNames(context, record.getBody(), mentions);
-          String                             updatedBody    = updated.getBody() != null ? updated.getBody().toString() : record.getBody();
-          String                             updatedSnippet = makeSnippet(cleanQueries, updatedBody);
-
-          //noinspection ConstantConditions
-          results.add(new MessageResult(threadDatabase.getRecipientForThreadId(record.getThreadId()), record.getRecipient(), updatedBody, updatedSnippet, record.getThreadId(), record.getId(), record.getDateReceived(), true));
-        }
-      }
-    }
-
-    return results;
-  }
-
   private @NonNull List<MessageResult> queryMentions(@NonNull List<String> cleanQueries, long threadId) {
     Set<RecipientId> recipientIds = new HashSet<>();
     for (String cleanQuery : cleanQueries) {
@@ -307,25 +212,6 @@ public class SearchRepository {
     return results;
   }
 
-  private @NonNull String makeSnippet(@NonNull List<String> queries, @NonNull String body) {
-    if (body.length() < 50) {
-      return body;
-    }
-
-    String lowerBody = body.toLowerCase();
-    for (String query : queries) {
-      int foundIndex = lowerBody.indexOf(query.toLowerCase());
-      if (foundIndex != -1) {
-        int snippetStart = Math.max(0, Math.max(body.lastIndexOf(' ', foundIndex - 5) + 1, foundIndex - 15));
-        int lastSpace    = body.indexOf(' ', foundIndex + 30);
-        int snippetEnd   = Math.min(body.length(), lastSpace > 0 ? Math.min(lastSpace, foundIndex + 40) : foundIndex + 40);
-
-        return (snippetStart > 0 ? SNIPPET_WRAP : "") + body.substring(snippetStart, snippetEnd) + (snippetEnd < body.length() ? SNIPPET_WRAP : "");
-      }
-    }
-    return body;
-  }
-
   private @NonNull <T> List<T> readToList(@Nullable Cursor cursor, @NonNull CursorList.ModelBuilder<T> builder) {
     return readToList(cursor, builder, -1);
   }
@@ -422,7 +308,7 @@ public class SearchRepository {
     }
   }
 
-  private static class MessageModelBuilder implements CursorList.ModelBuilder<MessageResult> {
+  static class MessageModelBuilder implements CursorList.ModelBuilder<MessageResult> {
 
     @Override
     public MessageResult build(@NonNull Cursor cursor) {
@@ -258,6 +258,7 @@ public final class StickerKeyboardProvider implements MediaKeyboardProvider,
 
         glideRequests.load(new DecryptableStreamUriLoader.DecryptableUri(uri))
                      .set(ApngOptions.ANIMATE, allowApngAnimation)
+                     .set(ApngOptions.FRAME_CACHE_KEY, uri.toString())
                      .into(imageView);
       }
     }
@@ -274,6 +274,7 @@ final class StickerManagementAdapter extends SectionedRecyclerViewAdapter<String
       glideRequests.load(new DecryptableUri(stickerPack.getCover().getUri()))
                    .transition(DrawableTransitionOptions.withCrossFade())
                    .set(ApngOptions.ANIMATE, allowApngAnimation)
+                   .set(ApngOptions.FRAME_CACHE_KEY, stickerPack.getCover().getUri().toString())
                    .into(cover);
 
       if (stickerPack.isInstalled()) {
@@ -5,10 +5,12 @@ import androidx.annotation.NonNull;
 import org.signal.core.util.logging.Log;
 import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.storage.SignalRecord;
+import org.whispersystems.signalservice.api.storage.StorageId;
 
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -25,6 +27,10 @@ abstract class DefaultStorageRecordProcessor<E extends SignalRecord> implements
 
   private static final String TAG = Log.tag(DefaultStorageRecordProcessor.class);
 
+  private final Set<StorageId> matchedIds = new HashSet<>();
+
+  private int processedCount;
+
   /**
    * One type of invalid remote data this handles is two records mapping to the same local data. We
    * have to trim this bad data out, because if we don't, we'll upload an ID set that only has one
@@ -38,11 +44,16 @@ abstract class DefaultStorageRecordProcessor<E extends SignalRecord> implements
    * comparator for checking equality. Then we delegate to the subclass to tell us if two items are
    * the same based on their actual data (i.e. two contacts having the same UUID, or two groups
    * having the same MasterKey).
+   *
+   * The matched records themselves are only kept for one call, so a large set of remote records can
+   * be passed in over several calls (i.e. in batches) without holding on to all of them. To still
+   * detect duplicates across batches, only the storage IDs the matched local records end up with are
+   * kept for the lifetime of the processor.
    */
   @Override
   public void process(@NonNull Collection<E> remoteRecords, @NonNull StorageKeyGenerator keyGenerator) throws IOException {
     Set<E> matchedRecords = new TreeSet<>(this);
-    int    i              = 0;
+    int    i              = processedCount;
 
     for (E remote : remoteRecords) {
       if (isInvalid(remote)) {
@@ -53,10 +64,11 @@ abstract class DefaultStorageRecordProcessor<E extends SignalRecord> implements
         if (local.isPresent()) {
           E merged = merge(remote, local.get(), keyGenerator);
 
-          if (matchedRecords.contains(local.get())) {
+          if (matchedRecords.contains(local.get()) || matchedIds.contains(local.get().getId())) {
             warn(i, remote, "Multiple remote records map to the same local record! Ignoring this one.");
           } else {
             matchedRecords.add(local.get());
+            matchedIds.add(merged.getId());
 
             if (!merged.equals(remote)) {
               info(i, remote, "[Remote Update] " + new StorageRecordUpdate<>(remote, merged).toString());
@@ -76,6 +88,8 @@ abstract class DefaultStorageRecordProcessor<E extends SignalRecord> implements
 
       i++;
     }
+
+    processedCount = i;
   }
 
   private void info(int i, E record, String message) {
@@ -6,7 +6,6 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
-import com.annimon.stream.Collectors;
 import com.annimon.stream.Stream;
 
 import org.signal.core.util.logging.Log;
@@ -20,8 +19,6 @@ import org.thoughtcrime.securesms.keyvalue.PhoneNumberPrivacyValues;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.thoughtcrime.securesms.payments.Entropy;
 import org.thoughtcrime.securesms.recipients.Recipient;
-import org.thoughtcrime.securesms.util.Base64;
-import org.thoughtcrime.securesms.util.SetUtil;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.libsignal.util.guava.Optional;
@@ -32,12 +29,13 @@ import org.whispersystems.signalservice.api.storage.SignalStorageRecord;
 import org.whispersystems.signalservice.api.storage.StorageId;
 import org.whispersystems.signalservice.api.util.OptionalUtil;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
-import java.util.Objects;
-import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 public final class StorageSyncHelper {
@@ -50,10 +48,27 @@ public final class StorageSyncHelper {
 
   private static final long REFRESH_INTERVAL = TimeUnit.HOURS.toMillis(2);
 
+  private static final Comparator<StorageId> RAW_ID_COMPARATOR = (lhs, rhs) -> {
+    byte[] a = lhs.getRaw();
+    byte[] b = rhs.getRaw();
+
+    for (int i = 0; i < Math.min(a.length, b.length); i++) {
+      int comparison = Integer.compare(a[i] & 0xff, b[i] & 0xff);
+      if (comparison != 0) {
+        return comparison;
+      }
+    }
+
+    return Integer.compare(a.length, b.length);
+  };
+
   /**
    * Given a list of all the local and remote keys you know about, this will return a result telling
    * you which keys are exclusively remote and which are exclusively local.
    *
+   * Both lists are sorted by their raw bytes and then walked in a single merge pass, so the cost is
+   * dominated by the sort and no intermediate maps or encoded keys are built.
+   *
    * @param remoteIds All remote keys available.
    * @param localIds All local keys available.
    *
@@ -63,33 +78,83 @@ public final class StorageSyncHelper {
   public static @NonNull IdDifferenceResult findIdDifference(@NonNull Collection<StorageId> remoteIds,
                                                              @NonNull Collection<StorageId> localIds)
   {
-    Map<String, StorageId> remoteByRawId = Stream.of(remoteIds).collect(Collectors.toMap(id -> Base64.encodeBytes(id.getRaw()), id -> id));
-    Map<String, StorageId> localByRawId  = Stream.of(localIds).collect(Collectors.toMap(id -> Base64.encodeBytes(id.getRaw()), id -> id));
+    List<StorageId> remoteSorted = new ArrayList<>(remoteIds);
+    List<StorageId> localSorted  = new ArrayList<>(localIds);
+
+    Collections.sort(remoteSorted, RAW_ID_COMPARATOR);
+    Collections.sort(localSorted, RAW_ID_COMPARATOR);
 
-    boolean hasTypeMismatch = remoteByRawId.size() != remoteIds.size() || localByRawId.size() != localIds.size();
+    boolean hasTypeMismatch = removeAdjacentDuplicates(remoteSorted) | removeAdjacentDuplicates(localSorted);
 
-    Set<String> remoteOnlyRawIds = SetUtil.difference(remoteByRawId.keySet(), localByRawId.keySet());
-    Set<String> localOnlyRawIds  = SetUtil.difference(localByRawId.keySet(), remoteByRawId.keySet());
-    Set<String> sharedRawIds     = SetUtil.intersection(localByRawId.keySet(), remoteByRawId.keySet());
+    List<StorageId> remoteOnlyKeys = new LinkedList<>();
+    List<StorageId> localOnlyKeys  = new LinkedList<>();
 
-    for (String rawId : sharedRawIds) {
-      StorageId remote = Objects.requireNonNull(remoteByRawId.get(rawId));
-      StorageId local  = Objects.requireNonNull(localByRawId.get(rawId));
+    int remoteIndex = 0;
+    int localIndex  = 0;
 
-      if (remote.getType() != local.getType()) {
-        remoteOnlyRawIds.remove(rawId);
-        localOnlyRawIds.remove(rawId);
-        hasTypeMismatch = true;
-        Log.w(TAG, "Remote type " + remote.getType() + " did not match local type " + local.getType() + "!");
+    while (remoteIndex < remoteSorted.size() && localIndex < localSorted.size()) {
+      StorageId remote     = remoteSorted.get(remoteIndex);
+      StorageId local      = localSorted.get(localIndex);
+      int       comparison = RAW_ID_COMPARATOR.compare(remote, local);
+
+      if (comparison < 0) {
+        remoteOnlyKeys.add(remote);
+        remoteIndex++;
+      } else if (comparison > 0) {
+        localOnlyKeys.add(local);
+        localIndex++;
+      } else {
+        if (remote.getType() != local.getType()) {
+          hasTypeMismatch = true;
+          Log.w(TAG, "Remote type " + remote.getType() + " did not match local type " + local.getType() + "!");
+        }
+        remoteIndex++;
+        localIndex++;
       }
     }
 
-    List<StorageId> remoteOnlyKeys = Stream.of(remoteOnlyRawIds).map(remoteByRawId::get).toList();
-    List<StorageId> localOnlyKeys  = Stream.of(localOnlyRawIds).map(localByRawId::get).toList();
+    remoteOnlyKeys.addAll(remoteSorted.subList(remoteIndex, remoteSorted.size()));
+    localOnlyKeys.addAll(localSorted.subList(localIndex, localSorted.size()));
 
     return new IdDifferenceResult(remoteOnlyKeys, localOnlyKeys, hasTypeMismatch);
   }
 
+  /**
+   * An order-independent hash of a set of storage IDs and their types. It can be checked against the
+   * IDs from an earlier sync without sorting or diffing them, see {@link #findIdDifference}.
+   */
+  public static long hashIds(@NonNull Collection<StorageId> ids) {
+    long sum = 0;
+
+    for (StorageId id : ids) {
+      long hash = 0xcbf29ce484222325L ^ id.getType();
+
+      for (byte b : id.getRaw()) {
+        hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+      }
+
+      sum += hash;
+    }
+
+    return sum * 31 + ids.size();
+  }
+
+  /**
+   * @return True if any duplicates were removed.
+   */
+  private static boolean removeAdjacentDuplicates(@NonNull List<StorageId> sortedIds) {
+    boolean removed = false;
+
+    for (int i = sortedIds.size() - 1; i > 0; i--) {
+      if (RAW_ID_COMPARATOR.compare(sortedIds.get(i), sortedIds.get(i - 1)) == 0) {
+        sortedIds.remove(i);
+        removed = true;
+      }
+    }
+
+    return removed;
+  }
+
   public static @NonNull byte[] generateKey() {
     return keyGenerator.generate();
   }
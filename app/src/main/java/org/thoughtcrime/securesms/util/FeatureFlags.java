@@ -82,6 +82,8 @@ public final class FeatureFlags {
   private static final String MEDIA_QUALITY_LEVELS              = "android.mediaQuality.levels";
   private static final String GROUPS_V2_DESCRIPTION_VERSION     = "android.groupsv2.descriptionVersion";
   private static final String DEFAULT_MESSAGE_TIMER             = "android.defaultMessageTimer";
+  private static final String CONNECTION_WARM_UP                = "android.connectionWarmUp";
+  private static final String APNG_FRAME_DISK_CACHE             = "android.apngFrameDiskCache";
 
   /**
    * We will only store remote values for flags in this set. If you want a flag to be controllable
@@ -117,7 +119,9 @@ public final class FeatureFlags {
       MP4_GIF_SEND_SUPPORT,
       MEDIA_QUALITY_LEVELS,
       GROUPS_V2_DESCRIPTION_VERSION,
-      DEFAULT_MESSAGE_TIMER
+      DEFAULT_MESSAGE_TIMER,
+      CONNECTION_WARM_UP,
+      APNG_FRAME_DISK_CACHE
   );
 
   @VisibleForTesting
@@ -165,7 +169,8 @@ public final class FeatureFlags {
       MP4_GIF_SEND_SUPPORT,
       MEDIA_QUALITY_LEVELS,
       GROUPS_V2_DESCRIPTION_VERSION,
-      DEFAULT_MESSAGE_TIMER
+      DEFAULT_MESSAGE_TIMER,
+      CONNECTION_WARM_UP
   );
 
   /**
@@ -342,6 +347,16 @@ public final class FeatureFlags {
     return getBoolean(OKHTTP_AUTOMATIC_RETRY, true);
   }
 
+  /** Whether or not to open service and CDN connections ahead of time when the app comes to the foreground */
+  public static boolean connectionWarmUp() {
+    return getBoolean(CONNECTION_WARM_UP, false);
+  }
+
+  /** Whether or not to keep decoded animated sticker frames in an encrypted disk cache */
+  public static boolean apngFrameDiskCache() {
+    return getBoolean(APNG_FRAME_DISK_CACHE, false);
+  }
+
   /** The minimum memory class required for rendering animated stickers in the keyboard and such */
   public static int animatedStickerMinimumMemoryClass() {
     return getInteger(ANIMATED_STICKER_MIN_MEMORY, 193);
@@ -6,6 +6,7 @@ import android.media.MediaMetadataRetriever;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
 
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.media.MediaInput;
@@ -23,6 +24,18 @@ public final class StreamingTranscoder {
 
   private static final String TAG = Log.tag(StreamingTranscoder.class);
 
+  /**
+   * Output is only projected once this much of the input has been converted, the first keyframes
+   * make the start of a video disproportionately large.
+   */
+  private static final int   MIN_PROJECTION_PERCENT = 20;
+
+  /**
+   * How far the projected output size may be over the limit before giving up. The tail of a video
+   * is often cheaper to encode than the start, so some overshoot early on can still fit.
+   */
+  private static final float PROJECTION_TOLERANCE   = 1.15f;
+
   private final           MediaDataSource                dataSource;
   private final           long                           upperSizeLimit;
   private final           long                           inSize;
@@ -122,10 +135,26 @@ public final class StreamingTranscoder {
 
     converter.setListener(percent -> {
       progress.onProgress(percent);
-      return cancelationSignal != null && cancelationSignal.isCanceled();
+
+      if (cancelationSignal != null && cancelationSignal.isCanceled()) {
+        return true;
+      }
+
+      return limitedSizeOutputStream.isProjectedOverLimit(percent);
     });
 
-    converter.convert();
+    try {
+      converter.convert();
+    } catch (EncodingException e) {
+      if (limitedSizeOutputStream.projectedOverLimit) {
+        throw new VideoSizeException("Projected size is over the limit, stopped early");
+      }
+      throw e;
+    }
+
+    if (limitedSizeOutputStream.projectedOverLimit) {
+      throw new VideoSizeException("Projected size is over the limit, stopped early");
+    }
 
     long  outSize           = limitedSizeOutputStream.written;
     float encodeDurationSec = (System.currentTimeMillis() - startTime) / 1000f;
@@ -182,10 +211,16 @@ public final class StreamingTranscoder {
     void onProgress(int percent);
   }
 
-  private static class LimitedSizeOutputStream extends FilterOutputStream {
+  /**
+   * Enforces the size limit on every write, and projects the final size from the progress so far so
+   * a transcode that is clearly going to miss the limit can be stopped early.
+   */
+  @VisibleForTesting
+  static final class LimitedSizeOutputStream extends FilterOutputStream {
 
-    private final long sizeLimit;
-    private       long written;
+    private final long    sizeLimit;
+    private       long    written;
+    private       boolean projectedOverLimit;
 
     LimitedSizeOutputStream(@NonNull OutputStream inner, long sizeLimit) {
       super(inner);
@@ -202,6 +237,21 @@ public final class StreamingTranscoder {
       out.write(b, off, len);
     }
 
+    boolean isProjectedOverLimit(int percent) {
+      if (projectedOverLimit || percent < MIN_PROJECTION_PERCENT || percent >= 100) {
+        return projectedOverLimit;
+      }
+
+      long projected = written * 100 / percent;
+
+      if (projected > sizeLimit * PROJECTION_TOLERANCE) {
+        Log.w(TAG, String.format(Locale.US, "Projected size %d at %d%% is over the limit %d, stopping.", projected, percent, sizeLimit));
+        projectedOverLimit = true;
+      }
+
+      return projectedOverLimit;
+    }
+
     private void incWritten(int len) throws IOException {
       long newWritten = written + len;
       if (newWritten > sizeLimit) {
@@ -32,16 +32,11 @@ final class MockAppDataInitializer {
 
   private static final Set<String> IGNORED_TABLES = SetUtil.newHashSet(
       "sqlite_sequence",
-      "sms_fts",
-      "sms_fts_data",
-      "sms_fts_idx",
-      "sms_fts_docsize",
-      "sms_fts_config",
-      "mms_fts",
-      "mms_fts_data",
-      "mms_fts_idx",
-      "mms_fts_docsize",
-      "mms_fts_config"
+      "message_fts",
+      "message_fts_data",
+      "message_fts_idx",
+      "message_fts_docsize",
+      "message_fts_config"
   );
 
   public static void initialize(@NonNull Application application, @NonNull File sqlDirectory) throws IOException {
@@ -0,0 +1,177 @@
+package org.signal.glide.common.decode;
+
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class FrameCacheTest {
+
+  private static final int FRAME_SIZE = 100;
+
+  private FrameCache    cache;
+  private FakeDiskStore diskStore;
+
+  @Before
+  public void setUp() {
+    cache     = new FrameCache(FRAME_SIZE * 4);
+    diskStore = new FakeDiskStore();
+  }
+
+  @Test
+  public void get_afterPut_hits() {
+    byte[] pixels = frame(1);
+
+    cache.put("a", 1, 0, pixels, FRAME_SIZE);
+
+    assertArrayEquals(pixels, cache.get("a", 1, 0, FRAME_SIZE));
+  }
+
+  @Test
+  public void get_keepsAnimationsSampleSizesAndFramesApart() {
+    cache.put("a", 1, 0, frame(1), FRAME_SIZE);
+
+    assertNull(cache.get("b", 1, 0, FRAME_SIZE));
+    assertNull(cache.get("a", 2, 0, FRAME_SIZE));
+    assertNull(cache.get("a", 1, 1, FRAME_SIZE));
+  }
+
+  @Test
+  public void get_differentLength_misses() {
+    cache.put("a", 1, 0, frame(1), FRAME_SIZE);
+
+    assertNull(cache.get("a", 1, 0, FRAME_SIZE / 2));
+  }
+
+  @Test
+  public void put_copiesOnlyTheFrame() {
+    byte[] buffer = new byte[FRAME_SIZE * 2];
+    buffer[0] = 7;
+
+    cache.put("a", 1, 0, buffer, FRAME_SIZE);
+    buffer[0] = 8;
+
+    byte[] cached = cache.get("a", 1, 0, FRAME_SIZE);
+
+    assertEquals(FRAME_SIZE, cached.length);
+    assertEquals(7, cached[0]);
+  }
+
+  @Test
+  public void put_overMaxEntrySize_isNotCached() {
+    cache.put("a", 1, 0, new byte[FRAME_SIZE + 1], FRAME_SIZE + 1);
+
+    assertNull(cache.get("a", 1, 0, FRAME_SIZE + 1));
+  }
+
+  @Test
+  public void put_whenFull_evictsLeastRecentlyUsed() {
+    for (int i = 0; i < 4; i++) {
+      cache.put("a", 1, i, frame(i), FRAME_SIZE);
+    }
+
+    cache.get("a", 1, 0, FRAME_SIZE);
+    cache.put("a", 1, 4, frame(4), FRAME_SIZE);
+
+    assertArrayEquals(frame(0), cache.get("a", 1, 0, FRAME_SIZE));
+    assertNull(cache.get("a", 1, 1, FRAME_SIZE));
+    assertArrayEquals(frame(4), cache.get("a", 1, 4, FRAME_SIZE));
+  }
+
+  @Test
+  public void put_writesToDiskStore() {
+    cache.setDiskStore(diskStore);
+
+    cache.put("a", 1, 0, frame(1), FRAME_SIZE);
+
+    assertArrayEquals(frame(1), diskStore.frames.get("a_1_0"));
+  }
+
+  @Test
+  public void get_memoryMiss_loadsFromDiskStoreForNextTime() {
+    cache.setDiskStore(diskStore);
+    diskStore.frames.put("a_1_0", frame(1));
+
+    assertNull(cache.get("a", 1, 0, FRAME_SIZE));
+    assertArrayEquals(frame(1), cache.get("a", 1, 0, FRAME_SIZE));
+  }
+
+  @Test
+  public void get_memoryHit_doesNotReadDiskStore() {
+    cache.put("a", 1, 0, frame(1), FRAME_SIZE);
+    cache.setDiskStore(diskStore);
+
+    cache.get("a", 1, 0, FRAME_SIZE);
+
+    assertFalse(diskStore.read);
+  }
+
+  @Test
+  public void get_overMaxEntrySize_doesNotReadDiskStore() {
+    cache.setDiskStore(diskStore);
+
+    cache.get("a", 1, 0, FRAME_SIZE + 1);
+
+    assertFalse(diskStore.read);
+  }
+
+  @Test
+  public void get_afterEviction_reloadsFromDiskStore() {
+    cache.setDiskStore(diskStore);
+
+    for (int i = 0; i < 5; i++) {
+      cache.put("a", 1, i, frame(i), FRAME_SIZE);
+    }
+
+    assertNull(cache.get("a", 1, 0, FRAME_SIZE));
+    assertTrue(diskStore.read);
+    assertArrayEquals(frame(0), cache.get("a", 1, 0, FRAME_SIZE));
+  }
+
+  private static @NonNull byte[] frame(int value) {
+    byte[] pixels = new byte[FRAME_SIZE];
+    pixels[0] = (byte) value;
+    return pixels;
+  }
+
+  /**
+   * Reads synchronously, so a frame is in memory as soon as the read is requested.
+   */
+  private static final class FakeDiskStore implements FrameCache.DiskStore {
+
+    private final Map<String, byte[]> frames = new HashMap<>();
+
+    private boolean read;
+
+    @Override
+    public void read(@NonNull String key, int length, @NonNull Callback callback) {
+      read = true;
+
+      byte[] pixels = frames.get(key);
+      if (pixels != null && pixels.length == length) {
+        callback.onRead(pixels);
+      }
+    }
+
+    @Override
+    public void write(@NonNull String key, @NonNull byte[] pixels) {
+      frames.put(key, pixels);
+    }
+  }
+}
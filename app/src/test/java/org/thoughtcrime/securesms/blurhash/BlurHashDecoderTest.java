@@ -0,0 +1,137 @@
+package org.thoughtcrime.securesms.blurhash;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.linearTosRGB;
+import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.sRGBToLinear;
+import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.signPow;
+
+public final class BlurHashDecoderTest {
+
+  private static final String[] HASHES = { "LEHV6nWB2yk8pyo0adR*.7kCMdnj",
+                                           "LGF5]+Yk^6#M@-5c,1J5@[or[Q6.",
+                                           "L6PZfSi_.AyE_3t7t7R**0o#DgR4",
+                                           "KJG8_@Dgx]_4V?xuyE%NRj",
+                                           "00AQWR" };
+
+  @Test
+  public void decodePixels_matches_floating_point_decode() {
+    int[][] sizes = { { 32, 32 }, { 20, 11 }, { 7, 20 }, { 1, 1 } };
+
+    for (String hash : HASHES) {
+      for (int[] size : sizes) {
+        int[] expected = referenceDecode(hash, size[0], size[1]);
+        int[] actual   = BlurHashDecoder.decodePixels(hash, size[0], size[1], 1);
+
+        assertNotNull(actual);
+        assertEquals(expected.length, actual.length);
+
+        for (int i = 0; i < expected.length; i++) {
+          assertEquals(0xFF, actual[i] >>> 24);
+          assertChannelEquals(hash, expected[i] >> 16, actual[i] >> 16);
+          assertChannelEquals(hash, expected[i] >> 8, actual[i] >> 8);
+          assertChannelEquals(hash, expected[i], actual[i]);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void decodePixels_has_requested_size() {
+    int[][] sizes = { { 32, 32 }, { 20, 11 }, { 7, 20 }, { 1, 1 } };
+
+    for (int[] size : sizes) {
+      int[] pixels = BlurHashDecoder.decodePixels(HASHES[0], size[0], size[1], 1);
+
+      assertNotNull(pixels);
+      assertEquals(size[0] * size[1], pixels.length);
+    }
+  }
+
+  @Test
+  public void decodePixels_single_component_is_average_color() {
+    assertSolidColor("00AQWR", BlurHashDecoder.decodePixels("00AQWR", 16, 9, 1));
+  }
+
+  @Test
+  public void decodePixels_no_punch_is_average_color() {
+    for (String hash : HASHES) {
+      assertSolidColor(hash, BlurHashDecoder.decodePixels(hash, 16, 9, 0));
+    }
+  }
+
+  @Test
+  public void decodePixels_invalid_length() {
+    assertNull(BlurHashDecoder.decodePixels("LEHV6nWB2yk8pyo0adR*.7kCMdn", 32, 32, 1));
+    assertNull(BlurHashDecoder.decodePixels("LEH", 32, 32, 1));
+    assertNull(BlurHashDecoder.decodePixels(null, 32, 32, 1));
+  }
+
+  /**
+   * Asserts every pixel is the average color encoded in the hash.
+   */
+  private static void assertSolidColor(String hash, int[] pixels) {
+    int average = Base83.decode(hash, 2, 6);
+
+    assertNotNull(pixels);
+
+    for (int pixel : pixels) {
+      assertEquals(0xFF, pixel >>> 24);
+      assertChannelEquals(hash, average >> 16, pixel >> 16);
+      assertChannelEquals(hash, average >> 8, pixel >> 8);
+      assertChannelEquals(hash, average, pixel);
+    }
+  }
+
+  private static void assertChannelEquals(String hash, int expected, int actual) {
+    assertEquals(hash, expected & 0xFF, actual & 0xFF, 1);
+  }
+
+  /**
+   * The original per pixel floating point decoder.
+   */
+  private static int[] referenceDecode(String blurHash, int width, int height) {
+    int numCompEnc = Base83.decode(blurHash, 0, 1);
+    int numCompX   = (numCompEnc % 9) + 1;
+    int numCompY   = (numCompEnc / 9) + 1;
+
+    double     maxAc  = (Base83.decode(blurHash, 1, 2) + 1) / 166f;
+    double[][] colors = new double[numCompX * numCompY][];
+    for (int i = 0; i < colors.length; i++) {
+      if (i == 0) {
+        int colorEnc = Base83.decode(blurHash, 2, 6);
+        colors[i] = new double[] { sRGBToLinear(colorEnc >> 16), sRGBToLinear((colorEnc >> 8) & 255), sRGBToLinear(colorEnc & 255) };
+      } else {
+        int colorEnc = Base83.decode(blurHash, 4 + i * 2, 6 + i * 2);
+        colors[i] = new double[] { signPow(((colorEnc / (19 * 19)) - 9) / 9.0f, 2f) * maxAc,
+                                   signPow((((colorEnc / 19) % 19) - 9) / 9.0f, 2f) * maxAc,
+                                   signPow(((colorEnc % 19) - 9) / 9.0f, 2f) * maxAc };
+      }
+    }
+
+    int[] pixels = new int[width * height];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        double r = 0;
+        double g = 0;
+        double b = 0;
+
+        for (int j = 0; j < numCompY; j++) {
+          for (int i = 0; i < numCompX; i++) {
+            double   basis = Math.cos(Math.PI * x * i / width) * Math.cos(Math.PI * y * j / height);
+            double[] color = colors[j * numCompX + i];
+            r += color[0] * basis;
+            g += color[1] * basis;
+            b += color[2] * basis;
+          }
+        }
+
+        pixels[y * width + x] = 0xFF000000 | (int) (linearTosRGB(r) << 16) | (int) (linearTosRGB(g) << 8) | (int) linearTosRGB(b);
+      }
+    }
+    return pixels;
+  }
+}
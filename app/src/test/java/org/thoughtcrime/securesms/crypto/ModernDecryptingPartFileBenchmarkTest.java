@@ -0,0 +1,102 @@
+package org.thoughtcrime.securesms.crypto;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Prints how many random 4KB reads per second an encrypted 16MB file serves through a
+ * {@link ModernDecryptingPartFile}, and through a new {@link ModernDecryptingPartInputStream} per read
+ * the way the media data source used to. Both have to return the plaintext for every read.
+ */
+public final class ModernDecryptingPartFileBenchmarkTest {
+
+  private static final int LENGTH    = 16 * 1024 * 1024;
+  private static final int READ_SIZE = 4096;
+  private static final int READS     = 5_000;
+  private static final int WARMUP    = 500;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void random_4k_reads() throws Exception {
+    Random random    = new Random(42);
+    byte[] modernKey = new byte[32];
+    byte[] keyRandom = new byte[32];
+    byte[] plaintext = new byte[LENGTH];
+
+    random.nextBytes(modernKey);
+    random.nextBytes(keyRandom);
+    random.nextBytes(plaintext);
+
+    AttachmentSecret attachmentSecret = new AttachmentSecret(null, null, modernKey);
+    File             file             = folder.newFile();
+
+    ModernDecryptingPartFileTest.encrypt(attachmentSecret, keyRandom, plaintext, file, false);
+
+    long[] positions = new long[READS];
+    long   position  = random.nextInt(LENGTH - READ_SIZE);
+    for (int i = 0; i < READS; i++) {
+      // Mostly short forward hops around a playhead with the occasional seek, like an extractor.
+      position     = random.nextInt(10) == 0 ? random.nextInt(LENGTH - READ_SIZE)
+                                             : Math.min(LENGTH - READ_SIZE, position + random.nextInt(3 * READ_SIZE));
+      positions[i] = position;
+    }
+
+    byte[] buffer = new byte[READ_SIZE];
+
+    try (ModernDecryptingPartFile partFile = ModernDecryptingPartFile.createFor(attachmentSecret, keyRandom, file, LENGTH)) {
+      for (int i = 0; i < WARMUP; i++) {
+        partFile.readAt(positions[i], buffer, 0, READ_SIZE);
+        readWithNewStream(attachmentSecret, keyRandom, file, positions[i], buffer);
+      }
+
+      long start = System.nanoTime();
+      for (long p : positions) {
+        assertEquals(READ_SIZE, partFile.readAt(p, buffer, 0, READ_SIZE));
+      }
+      long seekable = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (long p : positions) {
+        readWithNewStream(attachmentSecret, keyRandom, file, p, buffer);
+      }
+      long streams = System.nanoTime() - start;
+
+      for (int i = 0; i < READS; i += 97) {
+        int p = (int) positions[i];
+
+        partFile.readAt(p, buffer, 0, READ_SIZE);
+        assertArrayEquals(Arrays.copyOfRange(plaintext, p, p + READ_SIZE), buffer);
+
+        readWithNewStream(attachmentSecret, keyRandom, file, p, buffer);
+        assertArrayEquals(Arrays.copyOfRange(plaintext, p, p + READ_SIZE), buffer);
+      }
+
+      System.out.println(String.format(Locale.US, "ModernDecryptingPartFile:             %,.0f reads/s", READS / (seekable / 1_000_000_000.0)));
+      System.out.println(String.format(Locale.US, "ModernDecryptingPartInputStream/read: %,.0f reads/s", READS / (streams / 1_000_000_000.0)));
+    }
+  }
+
+  private static void readWithNewStream(AttachmentSecret attachmentSecret, byte[] random, File file, long position, byte[] buffer) throws IOException {
+    try (InputStream inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, file, position)) {
+      int offset = 0;
+      while (offset < buffer.length) {
+        int read = inputStream.read(buffer, offset, buffer.length - offset);
+        if (read == -1) throw new IOException("Prematurely reached end of stream!");
+        offset += read;
+      }
+    }
+  }
+}
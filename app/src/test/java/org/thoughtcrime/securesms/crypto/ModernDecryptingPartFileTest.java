@@ -0,0 +1,219 @@
+package org.thoughtcrime.securesms.crypto;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public final class ModernDecryptingPartFileTest {
+
+  private static final int LENGTH = 100_003;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private AttachmentSecret attachmentSecret;
+  private byte[]           plaintext;
+  private byte[]           random;
+
+  @Before
+  public void setUp() {
+    Random random = new Random(42);
+
+    byte[] modernKey = new byte[32];
+    random.nextBytes(modernKey);
+
+    this.attachmentSecret = new AttachmentSecret(null, null, modernKey);
+    this.plaintext        = new byte[LENGTH];
+    this.random           = new byte[32];
+
+    random.nextBytes(plaintext);
+    random.nextBytes(this.random);
+  }
+
+  @Test
+  public void readAt_matchesPlaintext_forRandomRanges() throws Exception {
+    File file = encrypt(false);
+
+    try (ModernDecryptingPartFile partFile = ModernDecryptingPartFile.createFor(attachmentSecret, random, file, LENGTH)) {
+      assertRandomReads(partFile);
+    }
+  }
+
+  @Test
+  public void readAt_matchesPlaintext_whenRandomIsInline() throws Exception {
+    File file = encrypt(true);
+
+    try (ModernDecryptingPartFile partFile = ModernDecryptingPartFile.createFor(attachmentSecret, null, file, LENGTH)) {
+      assertRandomReads(partFile);
+    }
+  }
+
+  @Test
+  public void readAt_matchesDecryptingInputStream() throws Exception {
+    File file = encrypt(false);
+
+    try (ModernDecryptingPartFile partFile    = ModernDecryptingPartFile.createFor(attachmentSecret, random, file, LENGTH);
+         InputStream              inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, file, 12_345))
+    {
+      byte[] expected = new byte[50_000];
+      byte[] actual   = new byte[50_000];
+
+      readFully(inputStream, expected);
+
+      assertEquals(actual.length, partFile.readAt(12_345, actual, 0, actual.length));
+      assertArrayEquals(expected, actual);
+    }
+  }
+
+  @Test
+  public void readAt_isTruncatedAtEnd() throws Exception {
+    File file = encrypt(false);
+
+    try (ModernDecryptingPartFile partFile = ModernDecryptingPartFile.createFor(attachmentSecret, random, file, LENGTH)) {
+      byte[] buffer = new byte[100];
+
+      assertEquals(3, partFile.readAt(LENGTH - 3, buffer, 0, buffer.length));
+      assertArrayEquals(Arrays.copyOfRange(plaintext, LENGTH - 3, LENGTH), Arrays.copyOf(buffer, 3));
+      assertEquals(-1, partFile.readAt(LENGTH, buffer, 0, buffer.length));
+    }
+  }
+
+  @Test
+  public void readAt_matchesPlaintext_forSeeksAcrossMoreBlocksThanCached() throws Exception {
+    byte[] plaintext = new byte[1024 * 1024 + 5];
+    new Random(3).nextBytes(plaintext);
+
+    File file = folder.newFile();
+    encrypt(attachmentSecret, random, plaintext, file, false);
+
+    try (ModernDecryptingPartFile partFile = ModernDecryptingPartFile.createFor(attachmentSecret, random, file, plaintext.length)) {
+      Random seeks    = new Random(11);
+      byte[] buffer   = new byte[4096];
+      int    position = 0;
+
+      for (int i = 0; i < 2_000; i++) {
+        // Mostly short hops forward with the occasional seek anywhere, like a media extractor
+        position = seeks.nextInt(10) == 0 ? seeks.nextInt(plaintext.length)
+                                          : Math.min(plaintext.length - 1, position + seeks.nextInt(3 * buffer.length));
+
+        int expected = Math.min(buffer.length, plaintext.length - position);
+
+        assertEquals(expected, partFile.readAt(position, buffer, 0, buffer.length));
+        assertArrayEquals(Arrays.copyOfRange(plaintext, position, position + expected), Arrays.copyOf(buffer, expected));
+      }
+    }
+  }
+
+  @Test
+  public void readAt_stopsAtEndOfTruncatedFile() throws Exception {
+    File file = encrypt(false);
+
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+      randomAccessFile.setLength(LENGTH - 1000);
+    }
+
+    try (ModernDecryptingPartFile partFile = ModernDecryptingPartFile.createFor(attachmentSecret, random, file, LENGTH)) {
+      byte[] buffer = new byte[2000];
+
+      assertEquals(LENGTH, partFile.getLength());
+      assertEquals(500, partFile.readAt(LENGTH - 1500, buffer, 0, buffer.length));
+      assertArrayEquals(Arrays.copyOfRange(plaintext, LENGTH - 1500, LENGTH - 1000), Arrays.copyOf(buffer, 500));
+      assertEquals(-1, partFile.readAt(LENGTH - 500, buffer, 0, buffer.length));
+    }
+  }
+
+  @Test
+  public void readAt_afterClose_throws() throws Exception {
+    File                     file     = encrypt(false);
+    ModernDecryptingPartFile partFile = ModernDecryptingPartFile.createFor(attachmentSecret, random, file, LENGTH);
+
+    partFile.readAt(0, new byte[10], 0, 10);
+    partFile.close();
+
+    try {
+      partFile.readAt(0, new byte[10], 0, 10);
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void createFor_inlineRandomMissing_throws() throws Exception {
+    File file = folder.newFile();
+
+    try (OutputStream outputStream = new FileOutputStream(file)) {
+      outputStream.write(new byte[10]);
+    }
+
+    ModernDecryptingPartFile.createFor(attachmentSecret, null, file, LENGTH);
+  }
+
+  private void assertRandomReads(ModernDecryptingPartFile partFile) throws IOException {
+    Random random = new Random(7);
+
+    for (int i = 0; i < 500; i++) {
+      int    position = random.nextInt(LENGTH);
+      int    length   = random.nextInt(40_000) + 1;
+      int    offset   = random.nextInt(16);
+      byte[] buffer   = new byte[offset + length];
+      int    expected = Math.min(length, LENGTH - position);
+
+      assertEquals(expected, partFile.readAt(position, buffer, offset, length));
+      assertArrayEquals(Arrays.copyOfRange(plaintext, position, position + expected), Arrays.copyOfRange(buffer, offset, offset + expected));
+    }
+  }
+
+  private File encrypt(boolean inline) throws Exception {
+    File file = folder.newFile();
+    encrypt(attachmentSecret, random, plaintext, file, inline);
+    return file;
+  }
+
+  /**
+   * Writes the same format as {@link ModernEncryptingPartOutputStream}.
+   */
+  static void encrypt(AttachmentSecret attachmentSecret, byte[] random, byte[] plaintext, File file, boolean inline) throws Exception {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+
+    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(mac.doFinal(random), "AES"), new IvParameterSpec(new byte[16]));
+
+    try (OutputStream outputStream = new FileOutputStream(file)) {
+      if (inline) {
+        outputStream.write(random);
+      }
+      outputStream.write(cipher.doFinal(plaintext));
+    }
+  }
+
+  private static void readFully(InputStream in, byte[] buffer) throws IOException {
+    int offset = 0;
+
+    while (offset < buffer.length) {
+      int read = in.read(buffer, offset, buffer.length - offset);
+      if (read == -1) throw new IOException("Prematurely reached end of stream!");
+      offset += read;
+    }
+  }
+}
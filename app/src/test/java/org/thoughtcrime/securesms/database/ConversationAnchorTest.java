@@ -0,0 +1,143 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.ConversationAnchor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the page queries against minimal sms and mms tables, unioned and ordered the same way as
+ * {@link MmsSmsDatabase#getConversation(long, ConversationAnchor, long, long)}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class ConversationAnchorTest {
+
+  private static final long THREAD_ID = 1;
+
+  private static final List<String> CONVERSATION = Arrays.asList("mms:5",
+                                                                 "sms:5", "mms:4",
+                                                                 "sms:4",
+                                                                 "sms:3", "sms:2", "mms:2", "mms:1",
+                                                                 "sms:1", "mms:3");
+
+  private SQLiteDatabase db;
+
+  @Before
+  public void setUp() {
+    db = SQLiteDatabase.create(null);
+
+    db.execSQL("CREATE TABLE sms (_id INTEGER PRIMARY KEY, thread_id INTEGER, date INTEGER)");
+    db.execSQL("CREATE TABLE mms (_id INTEGER PRIMARY KEY, thread_id INTEGER, date_received INTEGER)");
+
+    db.execSQL("INSERT INTO sms VALUES (1, 1, 100), (2, 1, 200), (3, 1, 200), (4, 1, 300), (5, 1, 400), (6, 2, 200)");
+    db.execSQL("INSERT INTO mms VALUES (1, 1, 200), (2, 1, 200), (3, 1, 100), (4, 1, 400), (5, 1, 500), (6, 2, 400)");
+  }
+
+  @After
+  public void tearDown() {
+    db.close();
+  }
+
+  @Test
+  public void offsetOrder() {
+    assertEquals(CONVERSATION, query(null, 0, 100));
+  }
+
+  @Test
+  public void afterEveryMessage_matchesOffset() {
+    for (int i = 0; i < CONVERSATION.size(); i++) {
+      assertEquals("After " + CONVERSATION.get(i), CONVERSATION.subList(i + 1, CONVERSATION.size()), query(anchorFor(CONVERSATION.get(i)), 0, 100));
+    }
+  }
+
+  @Test
+  public void afterEveryMessage_withSkip_matchesOffset() {
+    for (int i = 0; i < CONVERSATION.size(); i++) {
+      int from = Math.min(i + 1 + 2, CONVERSATION.size());
+      int to   = Math.min(from + 3, CONVERSATION.size());
+
+      assertEquals("After " + CONVERSATION.get(i), CONVERSATION.subList(from, to), query(anchorFor(CONVERSATION.get(i)), 2, 3));
+    }
+  }
+
+  @Test
+  public void pagesOfTwo_visitEveryMessageOnce() {
+    List<String> visited = new ArrayList<>(query(null, 0, 2));
+
+    while (true) {
+      List<String> page = query(anchorFor(visited.get(visited.size() - 1)), 0, 2);
+
+      if (page.isEmpty()) {
+        break;
+      }
+
+      visited.addAll(page);
+    }
+
+    assertEquals(CONVERSATION, visited);
+  }
+
+  @Test
+  public void afterSms_mmsWithSameDateAndIdComesNext() {
+    assertEquals(Arrays.asList("mms:2", "mms:1"), query(anchorFor("sms:2"), 0, 2));
+  }
+
+  @Test
+  public void afterMms_smsWithSameDateIsSkipped() {
+    assertEquals(Arrays.asList("mms:1", "sms:1"), query(anchorFor("mms:2"), 0, 2));
+  }
+
+  private @NonNull List<String> query(@Nullable ConversationAnchor anchor, long skip, long limit) {
+    String smsSelection = "thread_id = " + THREAD_ID;
+    String mmsSelection = "thread_id = " + THREAD_ID;
+
+    if (anchor != null) {
+      smsSelection += " AND _id IN (" + anchor.buildPageQuery("sms", "date", false, THREAD_ID, skip + limit) + ")";
+      mmsSelection += " AND _id IN (" + anchor.buildPageQuery("mms", "date_received", true, THREAD_ID, skip + limit) + ")";
+    }
+
+    String query = "SELECT _id, transport_type FROM (" +
+                   "SELECT _id, date AS date_received, 'sms' AS transport_type FROM sms WHERE " + smsSelection +
+                   " UNION ALL " +
+                   "SELECT _id, date_received, 'mms' AS transport_type FROM mms WHERE " + mmsSelection +
+                   ") ORDER BY date_received DESC, transport_type DESC, _id DESC LIMIT " + skip + ", " + limit;
+
+    List<String> results = new ArrayList<>();
+
+    try (Cursor cursor = db.rawQuery(query, null)) {
+      while (cursor.moveToNext()) {
+        results.add(cursor.getString(1) + ":" + cursor.getLong(0));
+      }
+    }
+
+    return results;
+  }
+
+  private @NonNull ConversationAnchor anchorFor(@NonNull String message) {
+    String[] parts = message.split(":");
+    boolean  mms   = parts[0].equals("mms");
+    long     id    = Long.parseLong(parts[1]);
+
+    try (Cursor cursor = db.rawQuery("SELECT " + (mms ? "date_received" : "date") + " FROM " + parts[0] + " WHERE _id = " + id, null)) {
+      cursor.moveToFirst();
+      return new ConversationAnchor(cursor.getLong(0), mms, id);
+    }
+  }
+}
@@ -0,0 +1,220 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.thoughtcrime.securesms.database.MmsSmsColumns.Types;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link ThreadDatabase#CREATE_TRIGGERS} and {@link ThreadDatabase#RECOUNT_MESSAGES} against
+ * minimal thread, sms and mms tables.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class ThreadMessageCountTriggersTest {
+
+  private static final long INBOX          = Types.BASE_INBOX_TYPE | Types.SECURE_MESSAGE_BIT | Types.PUSH_MESSAGE_BIT;
+  private static final long SENDING        = Types.BASE_SENDING_TYPE | Types.SECURE_MESSAGE_BIT | Types.PUSH_MESSAGE_BIT;
+  private static final long SENT           = Types.BASE_SENT_TYPE | Types.SECURE_MESSAGE_BIT | Types.PUSH_MESSAGE_BIT;
+  private static final long END_SESSION    = INBOX | Types.END_SESSION_BIT;
+  private static final long IDENTITY       = INBOX | Types.KEY_EXCHANGE_IDENTITY_UPDATE_BIT;
+  private static final long PROFILE_CHANGE = Types.PROFILE_CHANGE_TYPE;
+
+  private SQLiteDatabase db;
+
+  @Before
+  public void setUp() {
+    db = SQLiteDatabase.create(null);
+
+    db.execSQL("CREATE TABLE thread (_id INTEGER PRIMARY KEY, message_count INTEGER DEFAULT 0, total_message_count INTEGER DEFAULT 0)");
+    db.execSQL("CREATE TABLE sms (_id INTEGER PRIMARY KEY, thread_id INTEGER, type INTEGER)");
+    db.execSQL("CREATE TABLE mms (_id INTEGER PRIMARY KEY, thread_id INTEGER)");
+
+    for (String trigger : ThreadDatabase.CREATE_TRIGGERS) {
+      db.execSQL(trigger);
+    }
+
+    db.execSQL("INSERT INTO thread (_id) VALUES (1), (2)");
+  }
+
+  @After
+  public void tearDown() {
+    db.close();
+  }
+
+  @Test
+  public void insert_countsEveryMessage() {
+    insertSms(1, 1, INBOX);
+    insertSms(2, 1, SENT);
+    insertMms(1, 1);
+
+    assertCounts(1, 3, 3);
+    assertCounts(2, 0, 0);
+  }
+
+  @Test
+  public void insert_hiddenSms_onlyCountsTowardsTotal() {
+    insertSms(1, 1, END_SESSION);
+    insertSms(2, 1, IDENTITY);
+    insertSms(3, 1, PROFILE_CHANGE);
+    insertSms(4, 1, null);
+
+    assertCounts(1, 0, 4);
+  }
+
+  @Test
+  public void delete_uncountsMessage() {
+    insertSms(1, 1, INBOX);
+    insertSms(2, 1, PROFILE_CHANGE);
+    insertMms(1, 1);
+
+    db.execSQL("DELETE FROM sms WHERE _id = 1");
+    assertCounts(1, 1, 2);
+
+    db.execSQL("DELETE FROM sms WHERE _id = 2");
+    assertCounts(1, 1, 1);
+
+    db.execSQL("DELETE FROM mms WHERE _id = 1");
+    assertCounts(1, 0, 0);
+  }
+
+  @Test
+  public void moveToOtherThread_movesCount() {
+    insertSms(1, 1, INBOX);
+    insertSms(2, 1, PROFILE_CHANGE);
+    insertMms(1, 1);
+
+    db.execSQL("UPDATE sms SET thread_id = 2");
+    db.execSQL("UPDATE mms SET thread_id = 2");
+
+    assertCounts(1, 0, 0);
+    assertCounts(2, 2, 3);
+  }
+
+  @Test
+  public void typeChange_updatesMessageCountOnly() {
+    insertSms(1, 1, SENDING);
+    insertSms(2, 1, INBOX);
+
+    db.execSQL("UPDATE sms SET type = " + SENT + " WHERE _id = 1");
+    assertCounts(1, 2, 2);
+
+    db.execSQL("UPDATE sms SET type = " + END_SESSION + " WHERE _id = 2");
+    assertCounts(1, 1, 2);
+
+    db.execSQL("UPDATE sms SET type = " + INBOX + " WHERE _id = 2");
+    assertCounts(1, 2, 2);
+  }
+
+  @Test
+  public void unrelatedUpdate_keepsCounts() {
+    insertSms(1, 1, INBOX);
+    insertMms(1, 1);
+
+    db.execSQL("UPDATE sms SET type = type, thread_id = thread_id");
+    db.execSQL("UPDATE mms SET thread_id = thread_id");
+
+    assertCounts(1, 2, 2);
+  }
+
+  @Test
+  public void recount_afterRestore() {
+    db.execSQL("DELETE FROM thread");
+
+    insertSms(1, 1, INBOX);
+    insertSms(2, 1, PROFILE_CHANGE);
+    insertSms(3, 2, END_SESSION);
+    insertMms(1, 1);
+
+    // A restore inserts the threads with whatever counts they had when they were exported, which
+    // include the expiring messages that were left out
+    db.execSQL("INSERT INTO thread (_id, message_count, total_message_count) VALUES (1, 10, 12), (2, 5, 5)");
+
+    db.execSQL(ThreadDatabase.RECOUNT_MESSAGES);
+
+    assertCounts(1, 2, 3);
+    assertCounts(2, 0, 1);
+  }
+
+  @Test
+  public void restore_threadsImportedBeforeMessages() {
+    db.execSQL("DELETE FROM thread");
+    dropTriggers();
+
+    // Same as a restore, which creates the count triggers only after all of the data is in
+    db.execSQL("INSERT INTO thread (_id, message_count, total_message_count) VALUES (1, 2, 3), (2, 0, 1)");
+
+    insertSms(1, 1, INBOX);
+    insertSms(2, 1, PROFILE_CHANGE);
+    insertSms(3, 2, END_SESSION);
+    insertMms(1, 1);
+
+    for (String trigger : ThreadDatabase.CREATE_TRIGGERS) {
+      db.execSQL(trigger);
+    }
+
+    db.execSQL(ThreadDatabase.RECOUNT_MESSAGES);
+
+    assertCounts(1, 2, 3);
+    assertCounts(2, 0, 1);
+
+    insertSms(4, 2, INBOX);
+    assertCounts(2, 1, 2);
+  }
+
+  @Test
+  public void isCountTrigger_matchesOnlyTheCountTriggers() {
+    for (String trigger : ThreadDatabase.CREATE_TRIGGERS) {
+      assertTrue(trigger, ThreadDatabase.isCountTrigger(trigger));
+    }
+
+    assertTrue(ThreadDatabase.isCountTrigger("CREATE TRIGGER sms_thread_count_insert AFTER INSERT ON sms BEGIN\n  UPDATE thread SET total_message_count = total_message_count + 1 WHERE _id = new.thread_id;\nEND;"));
+    assertFalse(ThreadDatabase.isCountTrigger("CREATE TRIGGER sms_search_insert AFTER INSERT ON sms BEGIN\n  SELECT 1;\nEND;"));
+    assertFalse(ThreadDatabase.isCountTrigger("CREATE TABLE sms_thread_count_insert (_id INTEGER PRIMARY KEY)"));
+    assertFalse(ThreadDatabase.isCountTrigger("INSERT INTO thread VALUES (?, ?, ?)"));
+  }
+
+  private void dropTriggers() {
+    List<String> names = new ArrayList<>();
+
+    try (Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'trigger'", null)) {
+      while (cursor.moveToNext()) {
+        names.add(cursor.getString(0));
+      }
+    }
+
+    for (String name : names) {
+      db.execSQL("DROP TRIGGER " + name);
+    }
+  }
+
+  private void insertSms(long id, long threadId, Long type) {
+    db.execSQL("INSERT INTO sms (_id, thread_id, type) VALUES (?, ?, ?)", new Object[] { id, threadId, type });
+  }
+
+  private void insertMms(long id, long threadId) {
+    db.execSQL("INSERT INTO mms (_id, thread_id) VALUES (?, ?)", new Object[] { id, threadId });
+  }
+
+  private void assertCounts(long threadId, int messageCount, int totalMessageCount) {
+    try (Cursor cursor = db.rawQuery("SELECT message_count, total_message_count FROM thread WHERE _id = " + threadId, null)) {
+      cursor.moveToFirst();
+      assertEquals("message_count", messageCount, cursor.getInt(0));
+      assertEquals("total_message_count", totalMessageCount, cursor.getInt(1));
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package org.thoughtcrime.securesms.database.documents;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+import org.thoughtcrime.securesms.testutil.EmptyLogger;
+import org.thoughtcrime.securesms.util.JsonUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public final class LazyDocumentListTest {
+
+  @Before
+  public void setUp() {
+    Log.initialize(new EmptyLogger());
+  }
+
+  @Test
+  public void nullDocument_isEmpty() {
+    assertTrue(new LazyDocumentList<>(null, NetworkFailureList.class).isEmpty());
+  }
+
+  @Test
+  public void emptyDocument_isEmpty() {
+    assertTrue(new LazyDocumentList<>("", NetworkFailureList.class).isEmpty());
+  }
+
+  @Test
+  public void malformedDocument_isEmpty() {
+    assertTrue(new LazyDocumentList<>("{\"l\":[", NetworkFailureList.class).isEmpty());
+    assertTrue(new LazyDocumentList<>("not json", NetworkFailureList.class).isEmpty());
+  }
+
+  @Test
+  public void documentWithoutList_isEmpty() {
+    assertTrue(new LazyDocumentList<>("{}", NetworkFailureList.class).isEmpty());
+    assertTrue(new LazyDocumentList<>("{\"l\":null}", NetworkFailureList.class).isEmpty());
+  }
+
+  @Test
+  public void validDocument_hasItsItems() throws IOException {
+    List<NetworkFailure> failures = Arrays.asList(new NetworkFailure(RecipientId.from(1)), new NetworkFailure(RecipientId.from(2)));
+    String               document = JsonUtils.toJson(new NetworkFailureList(failures));
+
+    LazyDocumentList<NetworkFailure> list = new LazyDocumentList<>(document, NetworkFailureList.class);
+
+    assertEquals(failures, list);
+    assertEquals(2, list.size());
+    assertEquals(failures.get(1), list.get(1));
+  }
+
+  @Test
+  public void validDocument_isOnlyParsedOnce() throws IOException {
+    String document = JsonUtils.toJson(new NetworkFailureList(Collections.singletonList(new NetworkFailure(RecipientId.from(1)))));
+
+    LazyDocumentList<NetworkFailure> list = new LazyDocumentList<>(document, NetworkFailureList.class);
+
+    assertSame(list.get(0), list.get(0));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void validDocument_isReadOnly() throws IOException {
+    String document = JsonUtils.toJson(new NetworkFailureList(Collections.singletonList(new NetworkFailure(RecipientId.from(1)))));
+
+    new LazyDocumentList<>(document, NetworkFailureList.class).add(new NetworkFailure(RecipientId.from(2)));
+  }
+}
@@ -0,0 +1,163 @@
+package org.thoughtcrime.securesms.groups.v2.processing;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.signal.core.util.logging.Log;
+import org.signal.storageservice.protos.groups.GroupChanges;
+import org.signal.storageservice.protos.groups.local.DecryptedGroup;
+import org.signal.storageservice.protos.groups.local.DecryptedGroupChange;
+import org.signal.zkgroup.groups.GroupSecretParams;
+import org.thoughtcrime.securesms.testutil.EmptyLogger;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.groupsv2.DecryptedGroupHistoryEntry;
+import org.whispersystems.signalservice.api.groupsv2.GroupsV2Api;
+import org.whispersystems.signalservice.api.groupsv2.GroupsV2AuthorizationString;
+import org.whispersystems.signalservice.internal.push.ContentRange;
+import org.whispersystems.signalservice.internal.push.PushServiceSocket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ GroupsV2Api.class, GroupSecretParams.class, GroupsV2AuthorizationString.class })
+public final class PipelinedGroupHistoryFetcherTest {
+
+  private GroupsV2Api                  groupsV2Api;
+  private GroupSecretParams            groupSecretParams;
+  private GroupsV2AuthorizationString  authorization;
+  private ExecutorService              executor;
+  private PipelinedGroupHistoryFetcher fetcher;
+
+  @Before
+  public void setup() {
+    Log.initialize(new EmptyLogger());
+
+    groupsV2Api       = mock(GroupsV2Api.class);
+    groupSecretParams = mock(GroupSecretParams.class);
+    authorization     = mock(GroupsV2AuthorizationString.class);
+    executor          = Executors.newSingleThreadExecutor();
+    fetcher           = new PipelinedGroupHistoryFetcher(groupsV2Api, groupSecretParams, authorization, executor);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void single_page() throws Exception {
+    PushServiceSocket.GroupHistory page = encryptedPage(null);
+    when(groupsV2Api.fetchGroupHistoryPage(5, authorization)).thenReturn(page);
+    when(groupsV2Api.decryptGroupHistoryPage(groupSecretParams, page)).thenReturn(decryptedPage(5, 7));
+
+    List<ServerGroupLogEntry> history = fetcher.fetch(5, false);
+
+    assertRevisions(history, 5, 7);
+  }
+
+  @Test
+  public void multiple_pages_are_concatenated_in_order() throws Exception {
+    PushServiceSocket.GroupHistory page1 = encryptedPage("versions 0-9/25");
+    PushServiceSocket.GroupHistory page2 = encryptedPage("versions 10-19/25");
+    PushServiceSocket.GroupHistory page3 = encryptedPage(null);
+
+    when(groupsV2Api.fetchGroupHistoryPage(0, authorization)).thenReturn(page1);
+    when(groupsV2Api.fetchGroupHistoryPage(10, authorization)).thenReturn(page2);
+    when(groupsV2Api.fetchGroupHistoryPage(20, authorization)).thenReturn(page3);
+    when(groupsV2Api.decryptGroupHistoryPage(groupSecretParams, page1)).thenReturn(decryptedPage(0, 9));
+    when(groupsV2Api.decryptGroupHistoryPage(groupSecretParams, page2)).thenReturn(decryptedPage(10, 19));
+    when(groupsV2Api.decryptGroupHistoryPage(groupSecretParams, page3)).thenReturn(decryptedPage(20, 24));
+
+    List<ServerGroupLogEntry> history = fetcher.fetch(0, false);
+
+    assertRevisions(history, 0, 24);
+  }
+
+  @Test
+  public void next_page_is_fetched_while_current_page_is_decrypted() throws Exception {
+    PushServiceSocket.GroupHistory page1             = encryptedPage("versions 0-9/15");
+    PushServiceSocket.GroupHistory page2             = encryptedPage(null);
+    CountDownLatch                 page2Requested    = new CountDownLatch(1);
+    boolean[]                      overlappedDecrypt = new boolean[1];
+
+    when(groupsV2Api.fetchGroupHistoryPage(0, authorization)).thenReturn(page1);
+    when(groupsV2Api.fetchGroupHistoryPage(10, authorization)).thenAnswer(invocation -> {
+      page2Requested.countDown();
+      return page2;
+    });
+    when(groupsV2Api.decryptGroupHistoryPage(groupSecretParams, page1)).thenAnswer(invocation -> {
+      overlappedDecrypt[0] = page2Requested.await(5, TimeUnit.SECONDS);
+      return decryptedPage(0, 9);
+    });
+    when(groupsV2Api.decryptGroupHistoryPage(groupSecretParams, page2)).thenReturn(decryptedPage(10, 14));
+
+    List<ServerGroupLogEntry> history = fetcher.fetch(0, false);
+
+    assertTrue(overlappedDecrypt[0]);
+    assertRevisions(history, 0, 14);
+  }
+
+  @Test
+  public void ignore_server_changes_keeps_only_group_states() throws Exception {
+    PushServiceSocket.GroupHistory page = encryptedPage(null);
+    when(groupsV2Api.fetchGroupHistoryPage(3, authorization)).thenReturn(page);
+    when(groupsV2Api.decryptGroupHistoryPage(groupSecretParams, page)).thenReturn(decryptedPage(3, 4));
+
+    List<ServerGroupLogEntry> history = fetcher.fetch(3, true);
+
+    assertRevisions(history, 3, 4);
+    for (ServerGroupLogEntry entry : history) {
+      assertNull(entry.getChange());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void network_failure_on_later_page_is_rethrown() throws Exception {
+    PushServiceSocket.GroupHistory page1 = encryptedPage("versions 0-9/15");
+
+    when(groupsV2Api.fetchGroupHistoryPage(0, authorization)).thenReturn(page1);
+    when(groupsV2Api.fetchGroupHistoryPage(10, authorization)).thenThrow(new IOException());
+    when(groupsV2Api.decryptGroupHistoryPage(eq(groupSecretParams), any())).thenReturn(decryptedPage(0, 9));
+
+    fetcher.fetch(0, false);
+  }
+
+  private static PushServiceSocket.GroupHistory encryptedPage(String contentRange) {
+    return new PushServiceSocket.GroupHistory(GroupChanges.getDefaultInstance(), ContentRange.parse(contentRange));
+  }
+
+  private static List<DecryptedGroupHistoryEntry> decryptedPage(int fromRevision, int toRevision) throws Exception {
+    List<DecryptedGroupHistoryEntry> entries = new ArrayList<>();
+
+    for (int revision = fromRevision; revision <= toRevision; revision++) {
+      entries.add(new DecryptedGroupHistoryEntry(Optional.of(DecryptedGroup.newBuilder().setRevision(revision).build()),
+                                                 Optional.of(DecryptedGroupChange.newBuilder().setRevision(revision).build())));
+    }
+
+    return entries;
+  }
+
+  private static void assertRevisions(List<ServerGroupLogEntry> history, int fromRevision, int toRevision) {
+    assertEquals(toRevision - fromRevision + 1, history.size());
+    for (int i = 0; i < history.size(); i++) {
+      assertEquals(fromRevision + i, history.get(i).getRevision());
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package org.thoughtcrime.securesms.groups.v2.processing;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.database.model.databaseprotos.DecryptedGroupV2Context;
+import org.thoughtcrime.securesms.sms.IncomingTextMessage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+public final class UpdateMessageQueueTest {
+
+  private final RecordingInserter  inserter = new RecordingInserter();
+  private final UpdateMessageQueue queue    = new UpdateMessageQueue(inserter);
+
+  @Test
+  public void incomingOnly_insertedTogetherOnFlush() {
+    queue.addIncoming(incoming("a"));
+    queue.addIncoming(incoming("b"));
+
+    assertEquals(Collections.emptyList(), inserter.calls);
+
+    queue.flush();
+
+    assertEquals(Collections.singletonList("incoming[a, b]"), inserter.calls);
+  }
+
+  @Test
+  public void outgoing_insertsPendingIncomingFirst() {
+    queue.addIncoming(incoming("a"));
+    queue.addIncoming(incoming("b"));
+    queue.addOutgoing(DecryptedGroupV2Context.getDefaultInstance(), 3);
+    queue.addIncoming(incoming("d"));
+    queue.flush();
+
+    assertEquals(Arrays.asList("incoming[a, b]", "outgoing@3", "incoming[d]"), inserter.calls);
+  }
+
+  @Test
+  public void outgoingOnly_neverInsertsIncoming() {
+    queue.addOutgoing(DecryptedGroupV2Context.getDefaultInstance(), 1);
+    queue.addOutgoing(DecryptedGroupV2Context.getDefaultInstance(), 2);
+    queue.flush();
+
+    assertEquals(Arrays.asList("outgoing@1", "outgoing@2"), inserter.calls);
+  }
+
+  @Test
+  public void interleaved_keepsOrder() {
+    queue.addOutgoing(DecryptedGroupV2Context.getDefaultInstance(), 1);
+    queue.addIncoming(incoming("b"));
+    queue.addOutgoing(DecryptedGroupV2Context.getDefaultInstance(), 3);
+    queue.addOutgoing(DecryptedGroupV2Context.getDefaultInstance(), 4);
+    queue.addIncoming(incoming("e"));
+    queue.addIncoming(incoming("f"));
+    queue.flush();
+
+    assertEquals(Arrays.asList("outgoing@1", "incoming[b]", "outgoing@3", "outgoing@4", "incoming[e, f]"), inserter.calls);
+  }
+
+  @Test
+  public void flushTwice_insertsIncomingOnce() {
+    queue.addIncoming(incoming("a"));
+    queue.flush();
+    queue.flush();
+
+    assertEquals(Collections.singletonList("incoming[a]"), inserter.calls);
+  }
+
+  private @NonNull IncomingTextMessage incoming(@NonNull String name) {
+    IncomingTextMessage message = mock(IncomingTextMessage.class);
+    inserter.names.put(message, name);
+    return message;
+  }
+
+  private static final class RecordingInserter implements UpdateMessageQueue.Inserter {
+
+    private final Map<IncomingTextMessage, String> names = new IdentityHashMap<>();
+    private final List<String>                     calls = new ArrayList<>();
+
+    @Override
+    public void insertIncoming(@NonNull List<IncomingTextMessage> messages) {
+      List<String> inserted = new ArrayList<>(messages.size());
+
+      for (IncomingTextMessage message : messages) {
+        inserted.add(names.get(message));
+      }
+
+      calls.add("incoming" + inserted);
+    }
+
+    @Override
+    public void insertOutgoing(@NonNull DecryptedGroupV2Context decryptedGroupV2Context, long timestamp) {
+      calls.add("outgoing@" + timestamp);
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Prints the size and serialize/deserialize throughput of the data of a PushDecryptJob with a 1KB
+ * envelope, stored the old way (JSON with the envelope as a Base64 string) and the new way (binary
+ * with the envelope as a blob). The binary form has to be the smaller of the two.
+ */
+public final class BinaryDataSerializerBenchmarkTest {
+
+  private static final int ENVELOPE_SIZE = 1024;
+  private static final int ITERATIONS    = 10_000;
+  private static final int WARMUP        = 2_000;
+
+  @Test
+  public void push_decrypt_job_data() {
+    byte[] envelope = new byte[ENVELOPE_SIZE];
+    new Random(42).nextBytes(envelope);
+
+    Data json   = new Data.Builder().putBlobAsString("envelope", envelope).putLong("sms_message_id", -1).build();
+    Data binary = new Data.Builder().putBlob("envelope", envelope).putLong("sms_message_id", -1).build();
+
+    Data.Serializer jsonSerializer   = new JsonDataSerializer();
+    Data.Serializer binarySerializer = new BinaryDataSerializer();
+
+    for (int i = 0; i < WARMUP; i++) {
+      assertArrayEquals(envelope, jsonSerializer.deserialize(jsonSerializer.serialize(json)).getStringAsBlob("envelope"));
+      assertArrayEquals(envelope, binarySerializer.deserialize(binarySerializer.serialize(binary)).getBlob("envelope"));
+    }
+
+    report("JSON + Base64", json, jsonSerializer);
+    report("Binary       ", binary, binarySerializer);
+
+    assertTrue(binarySerializer.serialize(binary).length < jsonSerializer.serialize(json).length);
+  }
+
+  private static void report(String name, Data data, Data.Serializer serializer) {
+    byte[] serialized = serializer.serialize(data);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      serializer.serialize(data);
+    }
+    long serialize = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      serializer.deserialize(serialized);
+    }
+    long deserialize = System.nanoTime() - start;
+
+    System.out.println(String.format(Locale.US, "%s: %,d bytes, %,.0f serializations/s, %,.0f deserializations/s",
+                                     name,
+                                     serialized.length,
+                                     ITERATIONS / (serialize / 1_000_000_000.0),
+                                     ITERATIONS / (deserialize / 1_000_000_000.0)));
+  }
+}
@@ -0,0 +1,190 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class BinaryDataSerializerTest {
+
+  private final BinaryDataSerializer subject = new BinaryDataSerializer();
+
+  @Test
+  public void serialize_empty() {
+    Data data = subject.deserialize(subject.serialize(Data.EMPTY));
+
+    assertFalse(data.hasString("a"));
+    assertFalse(data.hasBlob("a"));
+  }
+
+  @Test
+  public void serialize_allTypes() {
+    byte[] blob = new byte[1000];
+    for (int i = 0; i < blob.length; i++) {
+      blob[i] = (byte) i;
+    }
+
+    Data input = new Data.Builder().putString("string", "hello \u00e9\u4e2d\ud83d\ude00")
+                                   .putString("null_string", null)
+                                   .putStringArray("string_array", new String[] { "a", null, "" })
+                                   .putInt("int", Integer.MIN_VALUE)
+                                   .putIntArray("int_array", new int[] { 0, -1, 1, Integer.MAX_VALUE, Integer.MIN_VALUE })
+                                   .putLong("long", Long.MAX_VALUE)
+                                   .putLongArray("long_array", new long[] { 0, -1, Long.MIN_VALUE, Long.MAX_VALUE })
+                                   .putFloat("float", -1.5f)
+                                   .putFloatArray("float_array", new float[] { Float.NaN, Float.MIN_VALUE, Float.NEGATIVE_INFINITY })
+                                   .putDouble("double", Math.PI)
+                                   .putDoubleArray("double_array", new double[] { Double.MAX_VALUE, -0.0 })
+                                   .putBoolean("boolean", true)
+                                   .putBooleanArray("boolean_array", new boolean[] { true, false, true })
+                                   .putBlob("blob", blob)
+                                   .putBlob("empty_blob", new byte[0])
+                                   .build();
+
+    Data output = subject.deserialize(subject.serialize(input));
+
+    assertEquals("hello \u00e9\u4e2d\ud83d\ude00", output.getString("string"));
+    assertTrue(output.hasString("null_string"));
+    assertNull(output.getString("null_string"));
+    assertArrayEquals(new String[] { "a", null, "" }, output.getStringArray("string_array"));
+    assertEquals(Integer.MIN_VALUE, output.getInt("int"));
+    assertArrayEquals(new int[] { 0, -1, 1, Integer.MAX_VALUE, Integer.MIN_VALUE }, output.getIntegerArray("int_array"));
+    assertEquals(Long.MAX_VALUE, output.getLong("long"));
+    assertArrayEquals(new long[] { 0, -1, Long.MIN_VALUE, Long.MAX_VALUE }, output.getLongArray("long_array"));
+    assertEquals(-1.5f, output.getFloat("float"), 0);
+    assertArrayEquals(new float[] { Float.NaN, Float.MIN_VALUE, Float.NEGATIVE_INFINITY }, output.getFloatArray("float_array"), 0);
+    assertEquals(Math.PI, output.getDouble("double"), 0);
+    assertArrayEquals(new double[] { Double.MAX_VALUE, -0.0 }, output.getDoubleArray("double_array"), 0);
+    assertTrue(output.getBoolean("boolean"));
+    assertTrue(Arrays.equals(new boolean[] { true, false, true }, output.getBooleanArray("boolean_array")));
+    assertArrayEquals(blob, output.getBlob("blob"));
+    assertArrayEquals(new byte[0], output.getBlob("empty_blob"));
+  }
+
+  @Test
+  public void serialize_isSmallerThanJsonForBlobs() {
+    Data data = new Data.Builder().putBlob("envelope", new byte[1024])
+                                  .putLong("sms_message_id", -1)
+                                  .build();
+
+    Data legacy = new Data.Builder().putBlobAsString("envelope", new byte[1024])
+                                    .putLong("sms_message_id", -1)
+                                    .build();
+
+    assertTrue(subject.serialize(data).length < 1024 + 32);
+    assertTrue(subject.serialize(data).length < subject.serialize(legacy).length);
+  }
+
+  @Test
+  public void serialize_varintBoundaries() {
+    Data.Builder builder = new Data.Builder();
+    long[]       longs   = new long[64 * 3];
+    int[]        ints    = new int[32 * 3];
+
+    for (int i = 0; i < 64; i++) {
+      longs[i * 3]     = 1L << i;
+      longs[i * 3 + 1] = (1L << i) - 1;
+      longs[i * 3 + 2] = -(1L << i);
+
+      builder.putLong("long_" + i, -(1L << i));
+    }
+
+    for (int i = 0; i < 32; i++) {
+      ints[i * 3]     = 1 << i;
+      ints[i * 3 + 1] = (1 << i) - 1;
+      ints[i * 3 + 2] = -(1 << i);
+
+      builder.putInt("int_" + i, (1 << i) - 1);
+    }
+
+    Data output = subject.deserialize(subject.serialize(builder.putLongArray("longs", longs)
+                                                               .putIntArray("ints", ints)
+                                                               .build()));
+
+    assertArrayEquals(longs, output.getLongArray("longs"));
+    assertArrayEquals(ints, output.getIntegerArray("ints"));
+
+    for (int i = 0; i < 64; i++) {
+      assertEquals(-(1L << i), output.getLong("long_" + i));
+    }
+
+    for (int i = 0; i < 32; i++) {
+      assertEquals((1 << i) - 1, output.getInt("int_" + i));
+    }
+  }
+
+  @Test
+  public void serialize_longKeysAndValues() {
+    Random       random  = new Random(42);
+    Data.Builder builder = new Data.Builder();
+    byte[][]     blobs   = new byte[300][];
+    String[]     strings = new String[300];
+
+    for (int i = 0; i < 300; i++) {
+      blobs[i] = new byte[random.nextInt(20_000)];
+      random.nextBytes(blobs[i]);
+
+      char[] chars = new char[random.nextInt(20_000)];
+      for (int j = 0; j < chars.length; j++) {
+        chars[j] = (char) ('a' + random.nextInt(26));
+      }
+      strings[i] = new String(chars);
+
+      builder.putBlob("blob_" + i + strings[i].substring(0, Math.min(200, strings[i].length())), blobs[i]);
+      builder.putString("string_" + i, strings[i]);
+    }
+
+    Data output = subject.deserialize(subject.serialize(builder.build()));
+
+    for (int i = 0; i < 300; i++) {
+      assertArrayEquals(blobs[i], output.getBlob("blob_" + i + strings[i].substring(0, Math.min(200, strings[i].length()))));
+      assertEquals(strings[i], output.getString("string_" + i));
+    }
+  }
+
+  @Test
+  public void serialize_blobAsString_staysReadableAsBlob() {
+    byte[] envelope = new byte[1024];
+    new Random(7).nextBytes(envelope);
+
+    Data output = subject.deserialize(subject.serialize(new Data.Builder().putBlobAsString("envelope", envelope)
+                                                                          .putLong("sms_message_id", -1)
+                                                                          .build()));
+
+    assertFalse(output.hasBlob("envelope"));
+    assertArrayEquals(envelope, output.getStringAsBlob("envelope"));
+    assertEquals(-1, output.getLong("sms_message_id"));
+  }
+
+  @Test
+  public void serialize_isStableAcrossRoundTrips() {
+    Data input = new Data.Builder().putString("string", "value")
+                                   .putLong("long", 1234567890123L)
+                                   .putBlob("blob", new byte[] { 1, 2, 3 })
+                                   .putBooleanArray("booleans", new boolean[] { false, true })
+                                   .build();
+
+    byte[] once  = subject.serialize(input);
+    byte[] twice = subject.serialize(subject.deserialize(once));
+
+    assertArrayEquals(once, twice);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void deserialize_unknownVersion() {
+    subject.deserialize(new byte[] { 99 });
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void deserialize_truncated() {
+    byte[] serialized = subject.serialize(new Data.Builder().putBlob("blob", new byte[100]).build());
+
+    subject.deserialize(Arrays.copyOf(serialized, serialized.length - 1));
+  }
+}
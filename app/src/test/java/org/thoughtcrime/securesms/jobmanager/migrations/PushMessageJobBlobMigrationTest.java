@@ -0,0 +1,72 @@
+package org.thoughtcrime.securesms.jobmanager.migrations;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.jobmanager.Data;
+import org.thoughtcrime.securesms.jobmanager.JobMigration.JobData;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+public class PushMessageJobBlobMigrationTest {
+
+  private static final byte[] CONTENT = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+
+  @Test
+  public void migrate_pushDecryptJob() {
+    JobData testData = new JobData("PushDecryptJob", "__PUSH_DECRYPT_JOB__", new Data.Builder().putBlobAsString("envelope", CONTENT)
+                                                                                              .putLong("sms_message_id", 7)
+                                                                                              .build());
+
+    JobData converted = new PushMessageJobBlobMigration().migrate(testData);
+
+    assertEquals("PushDecryptJob", converted.getFactoryKey());
+    assertEquals("__PUSH_DECRYPT_JOB__", converted.getQueueKey());
+    assertFalse(converted.getData().hasString("envelope"));
+    assertArrayEquals(CONTENT, converted.getData().getBlob("envelope"));
+    assertEquals(7, converted.getData().getLong("sms_message_id"));
+  }
+
+  @Test
+  public void migrate_pushProcessJob_decrypted() {
+    JobData testData = new JobData("PushProcessJob", "__PUSH_PROCESS_JOB__1", new Data.Builder().putInt("message_state", 0)
+                                                                                               .putString("message_content", "AQIDBAUGBwg=")
+                                                                                               .putLong("sms_message_id", -1)
+                                                                                               .putLong("timestamp", 1234)
+                                                                                               .build());
+
+    JobData converted = new PushMessageJobBlobMigration().migrate(testData);
+
+    assertEquals("PushProcessJob", converted.getFactoryKey());
+    assertEquals("__PUSH_PROCESS_JOB__1", converted.getQueueKey());
+    assertFalse(converted.getData().hasString("message_content"));
+    assertArrayEquals(CONTENT, converted.getData().getBlob("message_content"));
+    assertEquals(0, converted.getData().getInt("message_state"));
+    assertEquals(-1, converted.getData().getLong("sms_message_id"));
+    assertEquals(1234, converted.getData().getLong("timestamp"));
+  }
+
+  @Test
+  public void migrate_pushProcessJob_exception_unchanged() {
+    JobData testData = new JobData("PushProcessJob", "__PUSH_PROCESS_JOB__1", new Data.Builder().putInt("message_state", 3)
+                                                                                               .putString("exception_sender", "+15555555555")
+                                                                                               .putInt("exception_device", 1)
+                                                                                               .putLong("sms_message_id", -1)
+                                                                                               .putLong("timestamp", 1234)
+                                                                                               .build());
+
+    JobData converted = new PushMessageJobBlobMigration().migrate(testData);
+
+    assertSame(testData, converted);
+  }
+
+  @Test
+  public void migrate_otherJob_unchanged() {
+    JobData testData = new JobData("SendReadReceiptJob", null, new Data.Builder().putString("envelope", "abc").build());
+
+    JobData converted = new PushMessageJobBlobMigration().migrate(testData);
+
+    assertSame(testData, converted);
+  }
+}
@@ -6,9 +6,9 @@ import com.annimon.stream.Stream;
 
 import org.junit.Test;
 import org.thoughtcrime.securesms.database.JobDatabase;
+import org.thoughtcrime.securesms.jobmanager.BinaryDataSerializer;
 import org.thoughtcrime.securesms.jobmanager.Data;
 import org.thoughtcrime.securesms.jobmanager.Job;
-import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer;
 import org.thoughtcrime.securesms.jobmanager.persistence.ConstraintSpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.DependencySpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
@@ -18,6 +18,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -30,8 +31,12 @@ import static org.thoughtcrime.securesms.testutil.TestHelpers.setOf;
 
 public class FastJobStorageTest {
 
-  private static final JsonDataSerializer serializer = new JsonDataSerializer();
-  private static final String             EMPTY_DATA = serializer.serialize(Data.EMPTY);
+  private static final BinaryDataSerializer serializer = new BinaryDataSerializer();
+  private static final byte[]               EMPTY_DATA = serializer.serialize(Data.EMPTY);
+  private static final byte[]               DATA_A     = new byte[] { 'a' };
+  private static final byte[]               DATA_ABC   = new byte[] { 'a', 'b', 'c' };
+  private static final byte[]               DATA_DEF   = new byte[] { 'd', 'e', 'f' };
+  private static final byte[]               DATA_GHI   = new byte[] { 'g', 'h', 'i' };
 
   @Test
   public void init_allStoredDataAvailable() {
@@ -151,8 +156,8 @@ public class FastJobStorageTest {
 
     FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2, fullSpec3)));
 
-    JobSpec update1 = new JobSpec("1", "g1", "q1", 2, 2, 2, 2, 2, "abc", null, true, false);
-    JobSpec update2 = new JobSpec("2", "g2", "q2", 3, 3, 3, 3, 3, "def", "ghi", true, false);
+    JobSpec update1 = new JobSpec("1", "g1", "q1", 2, 2, 2, 2, 2, DATA_ABC, null, true, false);
+    JobSpec update2 = new JobSpec("2", "g2", "q2", 3, 3, 3, 3, 3, DATA_DEF, DATA_GHI, true, false);
 
     subject.init();
     subject.updateJobs(Arrays.asList(update1, update2));
@@ -191,9 +196,9 @@ public class FastJobStorageTest {
     FastJobStorage subject  = new FastJobStorage(database);
 
     subject.init();
-    subject.updateJobAfterRetry("id1", true, 1, 10, "a");
+    subject.updateJobAfterRetry("id1", true, 1, 10, DATA_A);
 
-    verify(database).updateJobAfterRetry("id1", true, 1, 10, "a");
+    verify(database).updateJobAfterRetry("id1", true, 1, 10, DATA_A);
   }
 
   @Test
@@ -202,9 +207,9 @@ public class FastJobStorageTest {
     FastJobStorage subject  = new FastJobStorage(database);
 
     subject.init();
-    subject.updateJobAfterRetry("id1", true, 1, 10, "a");
+    subject.updateJobAfterRetry("id1", true, 1, 10, DATA_A);
 
-    verify(database, times(0)).updateJobAfterRetry("id1", true, 1, 10, "a");
+    verify(database, times(0)).updateJobAfterRetry("id1", true, 1, 10, DATA_A);
   }
 
   @Test
@@ -216,7 +221,7 @@ public class FastJobStorageTest {
     FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Collections.singletonList(fullSpec)));
 
     subject.init();
-    subject.updateJobAfterRetry("1", false, 1, 10, "a");
+    subject.updateJobAfterRetry("1", false, 1, 10, DATA_A);
 
     JobSpec job = subject.getJobSpec("1");
 
@@ -224,7 +229,7 @@ public class FastJobStorageTest {
     assertFalse(job.isRunning());
     assertEquals(1, job.getRunAttempt());
     assertEquals(10, job.getNextRunAttemptTime());
-    assertEquals("a", job.getSerializedData());
+    assertArrayEquals(DATA_A, job.getSerializedData());
   }
 
   @Test
@@ -0,0 +1,72 @@
+package org.thoughtcrime.securesms.jobs;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.SearchDatabase;
+import org.thoughtcrime.securesms.jobmanager.Data;
+import org.thoughtcrime.securesms.jobmanager.Job;
+import org.thoughtcrime.securesms.testutil.EmptyLogger;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(DatabaseFactory.class)
+public final class SearchIndexJobTest {
+
+  private final SearchDatabase searchDatabase = mock(SearchDatabase.class);
+
+  @Before
+  public void setUp() {
+    Log.initialize(new EmptyLogger());
+
+    mockStatic(DatabaseFactory.class);
+    when(DatabaseFactory.getSearchDatabase(any())).thenReturn(searchDatabase);
+  }
+
+  @Test
+  public void run_indexesUntilNothingIsLeft_countingOnlyOnce() {
+    when(searchDatabase.getUnindexedMessageCount()).thenReturn(1200);
+    when(searchDatabase.indexOldMessages(anyInt())).thenReturn(500, 500, 200, 0);
+
+    createJob().onRun();
+
+    verify(searchDatabase, times(1)).getUnindexedMessageCount();
+    verify(searchDatabase, times(4)).indexOldMessages(500);
+  }
+
+  @Test
+  public void run_whenCountIsStale_stillIndexesEverything() {
+    when(searchDatabase.getUnindexedMessageCount()).thenReturn(100);
+    when(searchDatabase.indexOldMessages(anyInt())).thenReturn(500, 500, 0);
+
+    createJob().onRun();
+
+    verify(searchDatabase, times(1)).getUnindexedMessageCount();
+    verify(searchDatabase, times(3)).indexOldMessages(500);
+  }
+
+  @Test
+  public void run_withNothingToIndex_stopsAfterOneBatch() {
+    when(searchDatabase.getUnindexedMessageCount()).thenReturn(0);
+    when(searchDatabase.indexOldMessages(anyInt())).thenReturn(0);
+
+    createJob().onRun();
+
+    verify(searchDatabase, times(1)).indexOldMessages(500);
+  }
+
+  private static SearchIndexJob createJob() {
+    return new SearchIndexJob.Factory().create(new Job.Parameters.Builder().build(), Data.EMPTY);
+  }
+}
@@ -0,0 +1,221 @@
+package org.thoughtcrime.securesms.messages;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MessageDatabase.ReceiptType;
+import org.thoughtcrime.securesms.database.MessageDatabase.SyncMessageId;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+import org.thoughtcrime.securesms.testutil.EmptyLogger;
+import org.thoughtcrime.securesms.util.EarlyMessageCache;
+import org.whispersystems.libsignal.util.Pair;
+import org.whispersystems.signalservice.api.messages.SignalServiceContent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ ApplicationDependencies.class, DatabaseFactory.class, SignalServiceContent.class })
+public final class ReceiptAggregatorTest {
+
+  private static final RecipientId SENDER = RecipientId.from(1);
+
+  /** Receipts for messages with a timestamp at or above this are for messages we don't have. */
+  private static final long UNKNOWN_MESSAGE = 1000;
+
+  private final MmsSmsDatabase                     database          = mock(MmsSmsDatabase.class);
+  private final IncomingMessageProcessor           messageProcessor  = mock(IncomingMessageProcessor.class);
+  private final IncomingMessageProcessor.Processor processor         = mock(IncomingMessageProcessor.Processor.class);
+  private final EarlyMessageCache                  earlyMessageCache = new EarlyMessageCache();
+  private final List<Runnable>                     scheduled         = new ArrayList<>();
+  private final Map<ReceiptType, List<String>>     applied           = new EnumMap<>(ReceiptType.class);
+
+  private ReceiptAggregator testSubject;
+
+  @Before
+  public void setUp() {
+    Log.initialize(new EmptyLogger());
+
+    mockStatic(ApplicationDependencies.class);
+    when(ApplicationDependencies.getIncomingMessageProcessor()).thenReturn(messageProcessor);
+    when(ApplicationDependencies.getEarlyMessageCache()).thenReturn(earlyMessageCache);
+    when(messageProcessor.acquire()).thenReturn(processor);
+
+    mockStatic(DatabaseFactory.class);
+    when(DatabaseFactory.getMmsSmsDatabase(any())).thenReturn(database);
+    when(database.incrementReceiptCounts(any(), any())).thenAnswer(invocation -> {
+      List<Pair<SyncMessageId, Long>> receipts    = invocation.getArgument(0);
+      ReceiptType                     receiptType = invocation.getArgument(1);
+      List<String>                    entries     = new ArrayList<>();
+      Set<SyncMessageId>              unhandled   = new HashSet<>();
+
+      for (Pair<SyncMessageId, Long> receipt : receipts) {
+        entries.add(receipt.first().getTimetamp() + "@" + receipt.second());
+
+        if (receipt.first().getTimetamp() >= UNKNOWN_MESSAGE) {
+          unhandled.add(receipt.first());
+        }
+      }
+
+      assertFalse("Applied twice in one flush", applied.containsKey(receiptType));
+      applied.put(receiptType, entries);
+
+      return unhandled;
+    });
+
+    testSubject = new ReceiptAggregator(mock(Context.class), scheduled::add);
+  }
+
+  @Test
+  public void add_schedulesOneFlushUntilItRuns() {
+    testSubject.add(ReceiptType.DELIVERY, SENDER, Collections.singletonList(1L), 10, null);
+    testSubject.add(ReceiptType.READ, SENDER, Collections.singletonList(2L), 20, null);
+
+    assertEquals(1, scheduled.size());
+    assertTrue(applied.isEmpty());
+
+    testSubject.flush();
+    scheduled.remove(0).run();
+
+    testSubject.add(ReceiptType.DELIVERY, SENDER, Collections.singletonList(3L), 30, null);
+
+    assertEquals(1, scheduled.size());
+  }
+
+  @Test
+  public void flush_appliesEachTypeOnceWithItsReceiptTimes() {
+    testSubject.add(ReceiptType.DELIVERY, SENDER, Arrays.asList(1L, 2L), 10, null);
+    testSubject.add(ReceiptType.READ, SENDER, Collections.singletonList(1L), 20, null);
+    testSubject.add(ReceiptType.DELIVERY, SENDER, Collections.singletonList(3L), 30, null);
+
+    testSubject.flush();
+
+    assertEquals(Arrays.asList("1@10", "2@10", "3@30"), applied.get(ReceiptType.DELIVERY));
+    assertEquals(Collections.singletonList("1@20"), applied.get(ReceiptType.READ));
+    assertFalse(applied.containsKey(ReceiptType.VIEWED));
+  }
+
+  @Test
+  public void flush_withNothingPending_appliesNothing() {
+    testSubject.flush();
+
+    verify(database, never()).incrementReceiptCounts(any(), any());
+  }
+
+  @Test
+  public void flush_twice_appliesReceiptsOnce() {
+    testSubject.add(ReceiptType.READ, SENDER, Collections.singletonList(1L), 10, null);
+
+    testSubject.flush();
+    applied.clear();
+    testSubject.flush();
+
+    assertTrue(applied.isEmpty());
+  }
+
+  @Test
+  public void flush_appliesWhileHoldingProcessorLock() {
+    testSubject.add(ReceiptType.READ, SENDER, Collections.singletonList(1L), 10, null);
+
+    testSubject.flush();
+
+    InOrder inOrder = inOrder(messageProcessor, database, processor);
+    inOrder.verify(messageProcessor).acquire();
+    inOrder.verify(database).incrementReceiptCounts(any(), any());
+    inOrder.verify(processor).close();
+  }
+
+  @Test
+  public void flush_keepsContentOfUnhandledReadAndViewedReceipts() {
+    SignalServiceContent readContent   = content();
+    SignalServiceContent viewedContent = content();
+
+    testSubject.add(ReceiptType.READ, SENDER, Arrays.asList(1L, UNKNOWN_MESSAGE), 10, readContent);
+    testSubject.add(ReceiptType.VIEWED, SENDER, Collections.singletonList(UNKNOWN_MESSAGE + 1), 10, viewedContent);
+
+    testSubject.flush();
+
+    assertFalse(earlyMessageCache.retrieve(SENDER, 1L).isPresent());
+    assertEquals(Collections.singletonList(readContent), earlyMessageCache.retrieve(SENDER, UNKNOWN_MESSAGE).get());
+    assertEquals(Collections.singletonList(viewedContent), earlyMessageCache.retrieve(SENDER, UNKNOWN_MESSAGE + 1).get());
+  }
+
+  @Test
+  public void flush_dropsUnhandledDeliveryReceipts() {
+    testSubject.add(ReceiptType.DELIVERY, SENDER, Collections.singletonList(UNKNOWN_MESSAGE), 10, content());
+
+    testSubject.flush();
+
+    assertFalse(earlyMessageCache.retrieve(SENDER, UNKNOWN_MESSAGE).isPresent());
+  }
+
+  @Test
+  public void scheduledFlush_afterFlush_returnsWithoutWaiting() {
+    testSubject.add(ReceiptType.READ, SENDER, Collections.singletonList(1L), 10, null);
+    testSubject.flush();
+
+    long start = System.currentTimeMillis();
+    scheduled.remove(0).run();
+
+    assertTrue(System.currentTimeMillis() - start < ReceiptAggregator.FLUSH_DELAY);
+    assertEquals(1, applied.size());
+  }
+
+  @Test
+  public void scheduledFlush_appliesPendingReceipts() {
+    testSubject.add(ReceiptType.READ, SENDER, Collections.singletonList(1L), 10, null);
+
+    scheduled.remove(0).run();
+
+    assertEquals(Collections.singletonList("1@10"), applied.get(ReceiptType.READ));
+  }
+
+  @Test
+  public void scheduledFlush_withTooManyPending_appliesRightAway() {
+    List<Long> timestamps = new ArrayList<>();
+
+    for (long i = 0; i < ReceiptAggregator.MAX_PENDING; i++) {
+      timestamps.add(i);
+    }
+
+    testSubject.add(ReceiptType.DELIVERY, SENDER, timestamps, 10, null);
+
+    long start = System.currentTimeMillis();
+    scheduled.remove(0).run();
+
+    assertTrue(System.currentTimeMillis() - start < ReceiptAggregator.FLUSH_DELAY);
+    assertEquals(ReceiptAggregator.MAX_PENDING, applied.get(ReceiptType.DELIVERY).size());
+  }
+
+  private static @NonNull SignalServiceContent content() {
+    return mock(SignalServiceContent.class);
+  }
+}
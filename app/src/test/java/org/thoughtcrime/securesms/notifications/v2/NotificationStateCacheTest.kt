@@ -0,0 +1,144 @@
+package org.thoughtcrime.securesms.notifications.v2
+
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import org.mockito.Mockito.mock
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.database.model.MessageRecord
+import org.thoughtcrime.securesms.notifications.v2.NotificationStateProvider.NotificationMessage
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.testutil.EmptyLogger
+
+class NotificationStateCacheTest {
+
+  private val database: MutableMap<Long, List<NotificationMessage>> = mutableMapOf()
+  private val queries: MutableList<Long?> = mutableListOf()
+  private var now: Long = 1000
+
+  private val testSubject = NotificationStateCache(
+    query = { _, threadId ->
+      queries += threadId
+      if (threadId == null) database.values.flatten() else database[threadId] ?: emptyList()
+    },
+    clock = { now }
+  )
+
+  @Before
+  fun setUp() {
+    Log.initialize(EmptyLogger())
+  }
+
+  @Test
+  fun `Given a new cache, when I get the messages, then I expect them all to be queried`() {
+    database[1] = listOf(message(1))
+    database[2] = listOf(message(2), message(2))
+
+    assertEquals(database, testSubject.getMessagesByThread(emptyMap()))
+    assertEquals(listOf<Long?>(null), queries)
+  }
+
+  @Test
+  fun `Given nothing was invalidated, when I get the messages again, then I expect no query`() {
+    database[1] = listOf(message(1))
+    testSubject.getMessagesByThread(emptyMap())
+    database[1] = listOf(message(1), message(1))
+
+    assertEquals(1, testSubject.getMessagesByThread(emptyMap())[1L]!!.size)
+    assertEquals(listOf<Long?>(null), queries)
+  }
+
+  @Test
+  fun `Given a thread was invalidated, when I get the messages, then I expect only that thread to be queried`() {
+    database[1] = listOf(message(1))
+    database[2] = listOf(message(2))
+    testSubject.getMessagesByThread(emptyMap())
+
+    database[1] = listOf(message(1), message(1))
+    database[2] = listOf(message(2), message(2))
+    testSubject.invalidate(1)
+
+    val messagesByThread = testSubject.getMessagesByThread(emptyMap())
+
+    assertEquals(2, messagesByThread[1L]!!.size)
+    assertEquals(1, messagesByThread[2L]!!.size)
+    assertEquals(listOf<Long?>(null, 1L), queries)
+  }
+
+  @Test
+  fun `Given a new thread was invalidated, when I get the messages, then I expect it to be added`() {
+    database[1] = listOf(message(1))
+    testSubject.getMessagesByThread(emptyMap())
+
+    database[2] = listOf(message(2))
+    testSubject.invalidate(listOf(2L))
+
+    assertEquals(database, testSubject.getMessagesByThread(emptyMap()))
+  }
+
+  @Test
+  fun `Given an invalidated thread has no messages left, when I get the messages, then I expect it to be removed`() {
+    database[1] = listOf(message(1))
+    database[2] = listOf(message(2))
+    testSubject.getMessagesByThread(emptyMap())
+
+    database.remove(2)
+    testSubject.invalidate(2)
+
+    assertEquals(setOf(1L), testSubject.getMessagesByThread(emptyMap()).keys)
+  }
+
+  @Test
+  fun `Given everything was invalidated, when I get the messages, then I expect them all to be queried again`() {
+    database[1] = listOf(message(1))
+    database[2] = listOf(message(2))
+    testSubject.getMessagesByThread(emptyMap())
+
+    database.remove(2)
+    testSubject.invalidate(1)
+    testSubject.invalidate()
+
+    assertEquals(database, testSubject.getMessagesByThread(emptyMap()))
+    assertEquals(listOf<Long?>(null, null), queries)
+  }
+
+  @Test
+  fun `Given the full update interval has passed, when I get the messages, then I expect them all to be queried again`() {
+    database[1] = listOf(message(1))
+    testSubject.getMessagesByThread(emptyMap())
+
+    now += NotificationStateCache.FULL_UPDATE_INTERVAL
+    testSubject.getMessagesByThread(emptyMap())
+    assertEquals(listOf<Long?>(null), queries)
+
+    now += 1
+    database[2] = listOf(message(2))
+
+    assertEquals(database, testSubject.getMessagesByThread(emptyMap()))
+    assertEquals(listOf<Long?>(null, null), queries)
+  }
+
+  @Test
+  fun `Given the cache changes later, when I hold on to earlier messages, then I expect them to stay the same`() {
+    database[1] = listOf(message(1))
+    val earlier = testSubject.getMessagesByThread(emptyMap())
+
+    database[2] = listOf(message(2))
+    testSubject.invalidate(2)
+    testSubject.getMessagesByThread(emptyMap())
+
+    assertEquals(setOf(1L), earlier.keys)
+  }
+
+  private fun message(threadId: Long): NotificationMessage {
+    return NotificationMessage(
+      messageRecord = mock(MessageRecord::class.java),
+      threadRecipient = Recipient.UNKNOWN,
+      threadId = threadId,
+      stickyThread = false,
+      isUnreadMessage = true,
+      hasUnreadReactions = false,
+      lastReactionRead = 0
+    )
+  }
+}
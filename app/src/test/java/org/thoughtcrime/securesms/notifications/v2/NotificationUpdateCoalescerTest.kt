@@ -0,0 +1,69 @@
+package org.thoughtcrime.securesms.notifications.v2
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.thoughtcrime.securesms.util.BubbleUtil.BubbleState
+
+class NotificationUpdateCoalescerTest {
+
+  private val testSubject = NotificationUpdateCoalescer()
+
+  @Test
+  fun `Given no pending update, when I request one, then I expect to schedule it`() {
+    assertTrue(testSubject.request(1, BubbleState.HIDDEN))
+  }
+
+  @Test
+  fun `Given a pending update, when I request more, then I expect not to schedule them`() {
+    testSubject.request(1, BubbleState.HIDDEN)
+
+    assertFalse(testSubject.request(2, BubbleState.HIDDEN))
+    assertFalse(testSubject.request(-1, BubbleState.HIDDEN))
+  }
+
+  @Test
+  fun `Given a taken update, when I request another, then I expect to schedule it`() {
+    testSubject.request(1, BubbleState.HIDDEN)
+    testSubject.take()
+
+    assertTrue(testSubject.request(1, BubbleState.HIDDEN))
+  }
+
+  @Test
+  fun `Given requests for several threads, when I take the update, then I expect all of them`() {
+    testSubject.request(1, BubbleState.HIDDEN)
+    testSubject.request(2, BubbleState.HIDDEN)
+    testSubject.request(1, BubbleState.HIDDEN)
+
+    assertEquals(NotificationUpdateCoalescer.Update(setOf(1L, 2L), false, emptyMap()), testSubject.take())
+  }
+
+  @Test
+  fun `Given a request without a thread, when I take the update, then I expect it to cover all threads`() {
+    testSubject.request(1, BubbleState.HIDDEN)
+    testSubject.request(-1, BubbleState.HIDDEN)
+    testSubject.request(2, BubbleState.HIDDEN)
+
+    assertEquals(NotificationUpdateCoalescer.Update(setOf(1L, 2L), true, emptyMap()), testSubject.take())
+  }
+
+  @Test
+  fun `Given bubble requests for different threads, when I take the update, then I expect the bubble state of each`() {
+    testSubject.request(1, BubbleState.SHOWN)
+    testSubject.request(2, BubbleState.HIDDEN)
+    testSubject.request(3, BubbleState.SHOWN)
+
+    assertEquals(mapOf(1L to BubbleState.SHOWN, 3L to BubbleState.SHOWN), testSubject.take().bubbleStates)
+  }
+
+  @Test
+  fun `Given a taken update, when I take another, then I expect it to be empty`() {
+    testSubject.request(-1, BubbleState.HIDDEN)
+    testSubject.request(1, BubbleState.SHOWN)
+    testSubject.take()
+
+    assertEquals(NotificationUpdateCoalescer.Update(emptySet(), false, emptyMap()), testSubject.take())
+  }
+}
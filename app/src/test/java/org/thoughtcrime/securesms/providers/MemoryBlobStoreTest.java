@@ -0,0 +1,148 @@
+package org.thoughtcrime.securesms.providers;
+
+import android.content.Context;
+import android.media.MediaDataSource;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+import org.signal.core.util.StreamUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+public final class MemoryBlobStoreTest {
+
+  @Test
+  public void release_freesAfterLastReference() throws IOException {
+    TestBlob blob           = new TestBlob();
+    Object   representation = blob.openRetained(b -> "open");
+
+    assertEquals("open", representation);
+
+    blob.release();
+    assertEquals(0, blob.freed);
+
+    blob.release();
+    assertEquals(1, blob.freed);
+
+    blob.release();
+    assertEquals(1, blob.freed);
+  }
+
+  @Test
+  public void openRetained_releasesWhenOpenerThrowsIOException() throws IOException {
+    TestBlob blob = new TestBlob();
+
+    try {
+      blob.openRetained(b -> { throw new IOException(); });
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+
+    blob.release();
+    assertEquals(1, blob.freed);
+  }
+
+  @Test
+  public void openRetained_releasesWhenOpenerThrowsRuntimeException() throws IOException {
+    TestBlob blob = new TestBlob();
+
+    try {
+      blob.openRetained(b -> { throw new IllegalStateException(); });
+      fail();
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+
+    blob.release();
+    assertEquals(1, blob.freed);
+  }
+
+  @Test
+  public void openRetained_afterFree_throws() {
+    TestBlob blob = new TestBlob();
+
+    blob.release();
+
+    try {
+      blob.openRetained(b -> {
+        fail();
+        return null;
+      });
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+
+    assertEquals(1, blob.freed);
+  }
+
+  @Test
+  public void open_singleUse_removesBlob() throws IOException {
+    MemoryBlobStore store = new MemoryBlobStore();
+    Uri             uri   = mock(Uri.class);
+    byte[]          data  = new byte[] { 1, 2, 3, 4, 5 };
+
+    store.put(mock(Context.class), uri, data);
+
+    try (InputStream inputStream = store.open(uri, true, blob -> blob.openStream(2))) {
+      assertArrayEquals(new byte[] { 3, 4, 5 }, StreamUtil.readFully(inputStream));
+    }
+
+    try {
+      store.open(uri, true, blob -> blob.openStream(0));
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void open_afterDelete_throws() throws IOException {
+    MemoryBlobStore store = new MemoryBlobStore();
+    Uri             uri   = mock(Uri.class);
+
+    store.put(mock(Context.class), uri, new byte[10]);
+
+    try (InputStream inputStream = store.open(uri, false, blob -> blob.openStream(0))) {
+      assertEquals(10, StreamUtil.readFully(inputStream).length);
+    }
+
+    store.delete(uri);
+
+    try {
+      store.open(uri, false, blob -> blob.openStream(0));
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  private static final class TestBlob extends MemoryBlobStore.MemoryBlob {
+
+    private int freed;
+
+    @Override
+    @NonNull InputStream openStream(long position) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    @NonNull MediaDataSource openMediaDataSource() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected void free() {
+      freed++;
+    }
+  }
+}
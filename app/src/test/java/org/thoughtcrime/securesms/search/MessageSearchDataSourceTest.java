@@ -0,0 +1,54 @@
+package org.thoughtcrime.securesms.search;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class MessageSearchDataSourceTest {
+
+  @Test
+  public void isRefinement_whenLastTermIsExtended_isTrue() {
+    assertTrue(MessageSearchDataSource.isRefinement("hel", "hello"));
+  }
+
+  @Test
+  public void isRefinement_whenTermIsAdded_isTrue() {
+    assertTrue(MessageSearchDataSource.isRefinement("hello", "hello wor"));
+  }
+
+  @Test
+  public void isRefinement_whenEarlierTermIsExtended_isTrue() {
+    assertTrue(MessageSearchDataSource.isRefinement("he wo", "hel  wor"));
+  }
+
+  @Test
+  public void isRefinement_ignoresCase() {
+    assertTrue(MessageSearchDataSource.isRefinement("Hel", "hELLO"));
+  }
+
+  @Test
+  public void isRefinement_whenTermIsRemoved_isFalse() {
+    assertFalse(MessageSearchDataSource.isRefinement("hello world", "hello"));
+  }
+
+  @Test
+  public void isRefinement_whenTermIsShortened_isFalse() {
+    assertFalse(MessageSearchDataSource.isRefinement("hello", "hel"));
+  }
+
+  @Test
+  public void isRefinement_whenTermIsChanged_isFalse() {
+    assertFalse(MessageSearchDataSource.isRefinement("hello", "help"));
+  }
+
+  @Test
+  public void isRefinement_whenTermsAreReordered_isFalse() {
+    assertFalse(MessageSearchDataSource.isRefinement("hello world", "world hello"));
+  }
+
+  @Test
+  public void isRefinement_whenPreviousQueryIsEmpty_isFalse() {
+    assertFalse(MessageSearchDataSource.isRefinement(" ", "hello"));
+  }
+}
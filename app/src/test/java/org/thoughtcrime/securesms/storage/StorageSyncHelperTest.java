@@ -140,6 +140,39 @@ public final class StorageSyncHelperTest {
     assertTrue(result.hasTypeMismatches());
   }
 
+  @Test
+  public void findIdDifference_unsortedInput() {
+    IdDifferenceResult result = StorageSyncHelper.findIdDifference(keyListOf(300, 1, 200, 2), keyListOf(2, 400, 300, 3));
+    assertContentsEqual(keyListOf(1, 200), result.getRemoteOnlyIds());
+    assertContentsEqual(keyListOf(3, 400), result.getLocalOnlyIds());
+    assertFalse(result.hasTypeMismatches());
+  }
+
+  @Test
+  public void findIdDifference_duplicateIds() {
+    IdDifferenceResult result = StorageSyncHelper.findIdDifference(keyListOf(1, 2, 2, 3), keyListOf(3, 4));
+    assertContentsEqual(keyListOf(1, 2), result.getRemoteOnlyIds());
+    assertContentsEqual(keyListOf(4), result.getLocalOnlyIds());
+    assertTrue(result.hasTypeMismatches());
+  }
+
+  @Test
+  public void hashIds_ignoresOrder() {
+    assertEquals(StorageSyncHelper.hashIds(keyListOf(1, 2, 3)), StorageSyncHelper.hashIds(keyListOf(3, 1, 2)));
+  }
+
+  @Test
+  public void hashIds_differentIds() {
+    assertNotEquals(StorageSyncHelper.hashIds(keyListOf(1, 2, 3)), StorageSyncHelper.hashIds(keyListOf(1, 2, 4)));
+    assertNotEquals(StorageSyncHelper.hashIds(keyListOf(1, 2, 3)), StorageSyncHelper.hashIds(keyListOf(1, 2)));
+  }
+
+  @Test
+  public void hashIds_differentTypes() {
+    assertNotEquals(StorageSyncHelper.hashIds(keyListOf(new HashMap<Integer, Integer>() {{ put(100, 1); }})),
+                    StorageSyncHelper.hashIds(keyListOf(new HashMap<Integer, Integer>() {{ put(100, 2); }})));
+  }
+
   @Test
   public void ContactUpdate_equals_sameProfileKeys() {
     byte[] profileKey     = new byte[32];
@@ -0,0 +1,91 @@
+package org.thoughtcrime.securesms.video;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class StreamingTranscoderTest {
+
+  @Test
+  public void limitedSizeOutputStream_writesUpToLimit() throws IOException {
+    ByteArrayOutputStream                       inner  = new ByteArrayOutputStream();
+    StreamingTranscoder.LimitedSizeOutputStream output = new StreamingTranscoder.LimitedSizeOutputStream(inner, 10);
+
+    output.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 }, 0, 9);
+    output.write(10);
+
+    assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }, inner.toByteArray());
+  }
+
+  @Test
+  public void limitedSizeOutputStream_overLimit_throwsWithoutWriting() throws IOException {
+    ByteArrayOutputStream                       inner  = new ByteArrayOutputStream();
+    StreamingTranscoder.LimitedSizeOutputStream output = new StreamingTranscoder.LimitedSizeOutputStream(inner, 10);
+
+    output.write(new byte[8], 0, 8);
+
+    try {
+      output.write(new byte[3], 0, 3);
+      fail();
+    } catch (VideoSizeException e) {
+      // Expected
+    }
+
+    try {
+      output.write(0);
+      output.write(0);
+      output.write(0);
+      fail();
+    } catch (VideoSizeException e) {
+      // Expected
+    }
+
+    assertEquals(10, inner.size());
+  }
+
+  @Test
+  public void isProjectedOverLimit_notBeforeMinimumProgress() throws IOException {
+    StreamingTranscoder.LimitedSizeOutputStream output = new StreamingTranscoder.LimitedSizeOutputStream(new ByteArrayOutputStream(), 1000);
+
+    output.write(new byte[500], 0, 500);
+
+    assertFalse(output.isProjectedOverLimit(1));
+    assertFalse(output.isProjectedOverLimit(19));
+  }
+
+  @Test
+  public void isProjectedOverLimit_withinTolerance() throws IOException {
+    StreamingTranscoder.LimitedSizeOutputStream output = new StreamingTranscoder.LimitedSizeOutputStream(new ByteArrayOutputStream(), 1000);
+
+    output.write(new byte[570], 0, 570);
+
+    assertFalse(output.isProjectedOverLimit(50));
+  }
+
+  @Test
+  public void isProjectedOverLimit_overTolerance_staysOver() throws IOException {
+    StreamingTranscoder.LimitedSizeOutputStream output = new StreamingTranscoder.LimitedSizeOutputStream(new ByteArrayOutputStream(), 1000);
+
+    output.write(new byte[300], 0, 300);
+
+    assertTrue(output.isProjectedOverLimit(25));
+    assertTrue(output.isProjectedOverLimit(90));
+    assertTrue(output.isProjectedOverLimit(100));
+  }
+
+  @Test
+  public void isProjectedOverLimit_notAtEnd() throws IOException {
+    StreamingTranscoder.LimitedSizeOutputStream output = new StreamingTranscoder.LimitedSizeOutputStream(new ByteArrayOutputStream(), 1000);
+
+    output.write(new byte[1000], 0, 1000);
+
+    assertFalse(output.isProjectedOverLimit(100));
+  }
+}
@@ -10,6 +10,7 @@ import org.signal.zkgroup.profiles.ClientZkProfileOperations;
 import org.signal.zkgroup.profiles.ProfileKey;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.crypto.AttachmentCipherDecryptingOutputStream;
 import org.whispersystems.signalservice.api.crypto.AttachmentCipherInputStream;
 import org.whispersystems.signalservice.api.crypto.ProfileCipherInputStream;
 import org.whispersystems.signalservice.api.crypto.UnidentifiedAccess;
@@ -27,6 +28,7 @@ import org.whispersystems.signalservice.api.util.SleepTimer;
 import org.whispersystems.signalservice.api.util.UuidUtil;
 import org.whispersystems.signalservice.api.websocket.ConnectivityListener;
 import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
+import org.whispersystems.signalservice.internal.push.ConnectionMetrics;
 import org.whispersystems.signalservice.internal.push.PushServiceSocket;
 import org.whispersystems.signalservice.internal.push.SignalServiceEnvelopeEntity;
 import org.whispersystems.signalservice.internal.push.SignalServiceMessagesResult;
@@ -42,6 +44,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
@@ -191,6 +194,43 @@ public class SignalServiceMessageReceiver {
     return AttachmentCipherInputStream.createForAttachment(destination, pointer.getSize().or(0), pointer.getKey(), pointer.getDigest().get());
   }
 
+  /**
+   * Retrieves an attachment and decrypts it into plaintextOutput as it arrives, computing the MAC and
+   * digest in the same pass. The ciphertext is still kept in the destination file so that an
+   * interrupted download can resume, any part of it already on disk is replayed through the decryptor
+   * first.
+   *
+   * The plaintext written to plaintextOutput must be discarded unless this returns normally.
+   *
+   * @param pointer The {@link SignalServiceAttachmentPointer}
+   *                received in a {@link SignalServiceDataMessage}.
+   * @param destination The download destination for this attachment's ciphertext.
+   * @param listener An optional listener (may be null) to receive callbacks on download progress.
+   * @param plaintextOutput Receives the decrypted attachment, truncated to its plaintext length.
+   *
+   * @throws IOException
+   * @throws InvalidMessageException If the MAC or digest don't match, or the plaintext couldn't be
+   *                                 written. Retrying won't help without discarding destination.
+   */
+  public void retrieveAttachment(SignalServiceAttachmentPointer pointer, File destination, long maxSizeBytes, ProgressListener listener, OutputStream plaintextOutput)
+      throws IOException, InvalidMessageException, MissingConfigurationException
+  {
+    if (!pointer.getDigest().isPresent()) throw new InvalidMessageException("No attachment digest!");
+
+    AttachmentCipherDecryptingOutputStream decryptingStream = new AttachmentCipherDecryptingOutputStream(plaintextOutput, pointer.getKey(), pointer.getDigest().get(), pointer.getSize().or(0));
+
+    socket.retrieveAttachment(pointer.getCdnNumber(), pointer.getRemoteId(), destination, maxSizeBytes, listener, decryptingStream);
+    decryptingStream.finish();
+  }
+
+  /**
+   * Deletes a destination of {@link #retrieveAttachment} that won't be resumed, along with the state
+   * kept next to it.
+   */
+  public static void deleteAttachmentDownload(File destination) {
+    PushServiceSocket.deleteAttachmentDownload(destination);
+  }
+
   public InputStream retrieveSticker(byte[] packId, byte[] packKey, int stickerId)
       throws IOException, InvalidMessageException
   {
@@ -311,6 +351,18 @@ public class SignalServiceMessageReceiver {
     socket.setSoTimeoutMillis(soTimeoutMillis);
   }
 
+  /**
+   * Opens connections to the service and the CDNs ahead of the first request, if there aren't idle
+   * ones already. Connections are shared with every other socket made from the same configuration.
+   */
+  public void warmUpConnections() {
+    socket.warmUpConnections();
+  }
+
+  public List<ConnectionMetrics.HostMetrics> getConnectionMetrics() {
+    return socket.getConnectionMetrics();
+  }
+
   public interface MessageReceivedCallback {
     public void onMessage(SignalServiceEnvelope envelope);
   }
@@ -0,0 +1,206 @@
+package org.whispersystems.signalservice.api.crypto;
+
+import org.whispersystems.libsignal.InvalidMacException;
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.signalservice.internal.util.Util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Decrypts a push attachment while its ciphertext is being written, so a download can be decrypted as
+ * it arrives instead of being read back off disk afterwards.
+ * <p>
+ * The MAC and digest are computed over the same bytes on the way through. The trailing MAC is held
+ * back and only checked in {@link #finish()}, so plaintext already written to the wrapped stream must
+ * not be used unless finish() returns normally.
+ */
+public class AttachmentCipherDecryptingOutputStream extends FilterOutputStream {
+
+  private static final int BLOCK_SIZE      = 16;
+  private static final int CIPHER_KEY_SIZE = 32;
+  private static final int MAC_KEY_SIZE    = 32;
+
+  private final Cipher        cipher;
+  private final Mac           mac;
+  private final MessageDigest messageDigest;
+  private final byte[]        cipherKey;
+  private final byte[]        theirDigest;
+  private final byte[]        iv;
+  private final byte[]        tail;
+
+  private int     ivLength;
+  private int     tailLength;
+  private long    processedLength;
+  private long    remainingPlaintext;
+  private byte[]  plaintextBuffer = new byte[0];
+  private boolean finished;
+
+  /**
+   * @param plaintextLength The length of the attachment without padding, or 0 if unknown.
+   */
+  public AttachmentCipherDecryptingOutputStream(OutputStream plaintextOutput, byte[] combinedKeyMaterial, byte[] digest, long plaintextLength)
+      throws InvalidMessageException
+  {
+    super(plaintextOutput);
+
+    if (digest == null) {
+      throw new InvalidMessageException(new InvalidMacException("Missing digest!"));
+    }
+
+    try {
+      byte[][] parts = Util.split(combinedKeyMaterial, CIPHER_KEY_SIZE, MAC_KEY_SIZE);
+
+      this.mac = Mac.getInstance("HmacSHA256");
+      this.mac.init(new SecretKeySpec(parts[1], "HmacSHA256"));
+
+      this.cipher             = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      this.messageDigest      = MessageDigest.getInstance("SHA256");
+      this.cipherKey          = parts[0];
+      this.theirDigest        = digest;
+      this.iv                 = new byte[BLOCK_SIZE];
+      this.tail               = new byte[mac.getMacLength()];
+      this.remainingPlaintext = plaintextLength > 0 ? plaintextLength : Long.MAX_VALUE;
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] buffer) throws IOException {
+    write(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException {
+    if (finished) {
+      throw new IOException("Already finished!");
+    }
+
+    if (tailLength + length <= tail.length) {
+      System.arraycopy(buffer, offset, tail, tailLength, length);
+      tailLength += length;
+      return;
+    }
+
+    int releasable      = tailLength + length - tail.length;
+    int releaseFromTail = Math.min(tailLength, releasable);
+
+    if (releaseFromTail > 0) {
+      process(tail, 0, releaseFromTail);
+      System.arraycopy(tail, releaseFromTail, tail, 0, tailLength - releaseFromTail);
+      tailLength -= releaseFromTail;
+    }
+
+    int releaseFromBuffer = releasable - releaseFromTail;
+
+    process(buffer, offset, releaseFromBuffer);
+    System.arraycopy(buffer, offset + releaseFromBuffer, tail, tailLength, length - releaseFromBuffer);
+    tailLength += length - releaseFromBuffer;
+  }
+
+  /**
+   * Verifies the MAC and digest over everything written so far and writes the final plaintext block.
+   */
+  public void finish() throws IOException, InvalidMessageException {
+    if (finished) {
+      return;
+    }
+    finished = true;
+
+    if (tailLength < tail.length || processedLength <= BLOCK_SIZE) {
+      throw new InvalidMessageException("Message shorter than crypto overhead!");
+    }
+
+    byte[] ourMac = mac.doFinal();
+
+    if (!MessageDigest.isEqual(ourMac, tail)) {
+      throw new InvalidMessageException(new InvalidMacException("MAC doesn't match!"));
+    }
+
+    byte[] ourDigest = messageDigest.digest(tail);
+
+    if (!MessageDigest.isEqual(ourDigest, theirDigest)) {
+      throw new InvalidMessageException(new InvalidMacException("Digest doesn't match!"));
+    }
+
+    try {
+      byte[] plaintext = cipher.doFinal();
+      writePlaintext(plaintext, plaintext.length);
+    } catch (IllegalBlockSizeException | BadPaddingException e) {
+      throw new InvalidMessageException(e);
+    }
+
+    out.flush();
+  }
+
+  private void process(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) {
+      return;
+    }
+
+    mac.update(buffer, offset, length);
+    messageDigest.update(buffer, offset, length);
+    processedLength += length;
+
+    if (ivLength < BLOCK_SIZE) {
+      int ivRead = Math.min(BLOCK_SIZE - ivLength, length);
+
+      System.arraycopy(buffer, offset, iv, ivLength, ivRead);
+      ivLength += ivRead;
+      offset   += ivRead;
+      length   -= ivRead;
+
+      if (ivLength == BLOCK_SIZE) {
+        try {
+          cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+          throw new AssertionError(e);
+        }
+      }
+
+      if (length == 0) {
+        return;
+      }
+    }
+
+    int outputSize = cipher.getOutputSize(length);
+    if (plaintextBuffer.length < outputSize) {
+      plaintextBuffer = new byte[outputSize];
+    }
+
+    try {
+      writePlaintext(plaintextBuffer, cipher.update(buffer, offset, length, plaintextBuffer, 0));
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private void writePlaintext(byte[] plaintext, int length) throws IOException {
+    int writable = (int) Math.min(length, remainingPlaintext);
+
+    if (writable > 0) {
+      out.write(plaintext, 0, writable);
+      remainingPlaintext -= writable;
+    }
+  }
+}
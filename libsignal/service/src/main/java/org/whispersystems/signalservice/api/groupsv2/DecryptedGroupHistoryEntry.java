@@ -12,7 +12,7 @@ public final class DecryptedGroupHistoryEntry {
   private final Optional<DecryptedGroup>       group;
   private final Optional<DecryptedGroupChange> change;
 
-  DecryptedGroupHistoryEntry(Optional<DecryptedGroup> group, Optional<DecryptedGroupChange> change)
+  public DecryptedGroupHistoryEntry(Optional<DecryptedGroup> group, Optional<DecryptedGroupChange> change)
       throws InvalidGroupStateException
   {
     if (group.isPresent() && change.isPresent() && group.get().getRevision() != change.get().getRevision()) {
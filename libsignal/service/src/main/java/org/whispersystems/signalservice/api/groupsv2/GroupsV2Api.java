@@ -99,19 +99,44 @@ public final class GroupsV2Api {
                                                           GroupsV2AuthorizationString authorization)
       throws IOException, InvalidGroupStateException, VerificationFailedException
   {
-    List<GroupChanges.GroupChangeState> changesList = new LinkedList<>();
-    PushServiceSocket.GroupHistory      group;
+    List<PushServiceSocket.GroupHistory> pages = new LinkedList<>();
+    PushServiceSocket.GroupHistory       group;
 
     do {
-      group = socket.getGroupsV2GroupHistory(fromRevision, authorization);
+      group = fetchGroupHistoryPage(fromRevision, authorization);
 
-      changesList.addAll(group.getGroupChanges().getGroupChangesList());
+      pages.add(group);
 
       if (group.hasMore()) {
         fromRevision = group.getNextPageStartGroupRevision();
       }
     } while (group.hasMore());
 
+    ArrayList<DecryptedGroupHistoryEntry> result = new ArrayList<>();
+
+    for (PushServiceSocket.GroupHistory page : pages) {
+      result.addAll(decryptGroupHistoryPage(groupSecretParams, page));
+    }
+
+    return result;
+  }
+
+  /**
+   * Fetches a single page of encrypted group history. Together with {@link #decryptGroupHistoryPage} this
+   * allows a caller to fetch the next page while the current one is being decrypted.
+   */
+  public PushServiceSocket.GroupHistory fetchGroupHistoryPage(int fromRevision,
+                                                              GroupsV2AuthorizationString authorization)
+      throws IOException
+  {
+    return socket.getGroupsV2GroupHistory(fromRevision, authorization);
+  }
+
+  public List<DecryptedGroupHistoryEntry> decryptGroupHistoryPage(GroupSecretParams groupSecretParams,
+                                                                  PushServiceSocket.GroupHistory page)
+      throws InvalidGroupStateException, VerificationFailedException
+  {
+    List<GroupChanges.GroupChangeState>   changesList     = page.getGroupChanges().getGroupChangesList();
     ArrayList<DecryptedGroupHistoryEntry> result          = new ArrayList<>(changesList.size());
     GroupsV2Operations.GroupOperations    groupOperations = groupsOperations.forGroup(groupSecretParams);
 
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2021 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.internal.push;
+
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.util.Tls12SocketFactory;
+import org.whispersystems.signalservice.api.util.TlsProxySocketFactory;
+import org.whispersystems.signalservice.internal.configuration.SignalProxy;
+import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
+import org.whispersystems.signalservice.internal.configuration.SignalUrl;
+import org.whispersystems.signalservice.internal.util.BlacklistingTrustManager;
+import org.whispersystems.signalservice.internal.util.Util;
+
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import okhttp3.ConnectionPool;
+import okhttp3.ConnectionSpec;
+import okhttp3.Dispatcher;
+import okhttp3.Dns;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+
+/**
+ * Owns the OkHttp clients that {@link PushServiceSocket}s talk to the servers with.
+ * <p>
+ * There is one manager per {@link SignalServiceConfiguration}, so every socket made from the same
+ * configuration gets the same client for the same URL. Clients are grouped into client sets, one per
+ * kind of server, and all clients of a set share one {@link ConnectionPool} and {@link Dispatcher}.
+ * OkHttp only reuses a connection for a client with the same TLS setup, so sharing the clients is
+ * what lets the account manager, the message sender and the message receiver reuse each other's
+ * connections instead of each paying for their own handshakes.
+ * <p>
+ * Identified and unidentified service requests are separate client sets on purpose: sealed sender
+ * requests must not go over a connection that also carries authenticated requests.
+ */
+final class ConnectionManager {
+
+  static final String SERVICE              = "service";
+  static final String SERVICE_UNIDENTIFIED = "service-unidentified";
+  static final String CONTACT_DISCOVERY    = "contact-discovery";
+  static final String KEY_BACKUP           = "key-backup";
+  static final String STORAGE              = "storage";
+
+  private static final int  MAX_IDLE_CONNECTIONS = 5;
+  private static final long KEEP_ALIVE_SECONDS   = 45;
+
+  private static final Map<SignalServiceConfiguration, ConnectionManager> MANAGERS = new WeakHashMap<>();
+
+  private final List<Interceptor>      interceptors;
+  private final Optional<Dns>          dns;
+  private final Optional<SignalProxy>  proxy;
+  private final ConnectionMetrics      metrics    = new ConnectionMetrics();
+  private final Map<String, ClientSet> clientSets = new HashMap<>();
+
+  static ConnectionManager forConfiguration(SignalServiceConfiguration configuration) {
+    synchronized (MANAGERS) {
+      ConnectionManager manager = MANAGERS.get(configuration);
+
+      if (manager == null) {
+        manager = new ConnectionManager(configuration.getNetworkInterceptors(), configuration.getDns(), configuration.getSignalProxy());
+        MANAGERS.put(configuration, manager);
+      }
+
+      return manager;
+    }
+  }
+
+  ConnectionManager(List<Interceptor> interceptors, Optional<Dns> dns, Optional<SignalProxy> proxy) {
+    this.interceptors = interceptors;
+    this.dns          = dns;
+    this.proxy        = proxy;
+  }
+
+  static String cdn(int cdnNumber) {
+    return "cdn-" + cdnNumber;
+  }
+
+  ConnectionMetrics getMetrics() {
+    return metrics;
+  }
+
+  synchronized OkHttpClient getClient(String clientSetName, SignalUrl url) {
+    ClientSet    clientSet = getClientSet(clientSetName);
+    OkHttpClient client    = clientSet.clients.get(url);
+
+    if (client == null) {
+      client = configure(clientSetName, createBuilder(url)).build();
+      clientSet.clients.put(url, client);
+    }
+
+    return client;
+  }
+
+  /**
+   * Attaches the builder to the shared connection pool and dispatcher of a client set.
+   */
+  synchronized OkHttpClient.Builder configure(String clientSetName, OkHttpClient.Builder builder) {
+    ClientSet clientSet = getClientSet(clientSetName);
+
+    return builder.connectionPool(clientSet.connectionPool)
+                  .dispatcher(clientSet.dispatcher)
+                  .eventListenerFactory(metrics);
+  }
+
+  synchronized ConnectionPool getConnectionPool(String clientSetName) {
+    return getClientSet(clientSetName).connectionPool;
+  }
+
+  private ClientSet getClientSet(String name) {
+    ClientSet clientSet = clientSets.get(name);
+
+    if (clientSet == null) {
+      clientSet = new ClientSet();
+      clientSets.put(name, clientSet);
+    }
+
+    return clientSet;
+  }
+
+  private OkHttpClient.Builder createBuilder(SignalUrl url) {
+    try {
+      TrustManager[] trustManagers = BlacklistingTrustManager.createFor(url.getTrustStore());
+
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(null, trustManagers, null);
+
+      OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                                                     .sslSocketFactory(new Tls12SocketFactory(context.getSocketFactory()), (X509TrustManager)trustManagers[0])
+                                                     .connectionSpecs(url.getConnectionSpecs().or(Util.immutableList(ConnectionSpec.RESTRICTED_TLS)))
+                                                     .dns(dns.or(Dns.SYSTEM));
+
+      if (proxy.isPresent()) {
+        builder.socketFactory(new TlsProxySocketFactory(proxy.get().getHost(), proxy.get().getPort(), dns));
+      }
+
+      for (Interceptor interceptor : interceptors) {
+        builder.addInterceptor(interceptor);
+      }
+
+      return builder;
+    } catch (NoSuchAlgorithmException | KeyManagementException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static final class ClientSet {
+    private final ConnectionPool               connectionPool = new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+    private final Dispatcher                   dispatcher     = new Dispatcher();
+    private final Map<SignalUrl, OkHttpClient> clients        = new HashMap<>();
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2021 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.internal.push;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+
+/**
+ * Collects per-host connection statistics from the OkHttp clients it's installed on: how long TLS
+ * handshakes take, how long requests wait for the first byte of the response, and how often a
+ * request could reuse an open connection instead of making a new one.
+ */
+public final class ConnectionMetrics implements EventListener.Factory {
+
+  private final Map<String, HostStats> hosts = new LinkedHashMap<>();
+
+  @Override
+  public EventListener create(Call call) {
+    return new CallListener();
+  }
+
+  /**
+   * @return A snapshot of the statistics of every host a request has been made to so far.
+   */
+  public List<HostMetrics> getHostMetrics() {
+    synchronized (hosts) {
+      List<HostMetrics> metrics = new ArrayList<>(hosts.size());
+
+      for (Map.Entry<String, HostStats> entry : hosts.entrySet()) {
+        metrics.add(entry.getValue().toMetrics(entry.getKey()));
+      }
+
+      return metrics;
+    }
+  }
+
+  private HostStats getStats(Call call) {
+    String host = call.request().url().host();
+
+    synchronized (hosts) {
+      HostStats stats = hosts.get(host);
+
+      if (stats == null) {
+        stats = new HostStats();
+        hosts.put(host, stats);
+      }
+
+      return stats;
+    }
+  }
+
+  private final class CallListener extends EventListener {
+
+    private boolean connecting;
+    private long    secureConnectStart;
+    private long    requestHeadersStart;
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+      connecting = true;
+    }
+
+    @Override
+    public void secureConnectStart(Call call) {
+      secureConnectStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectEnd(Call call, Handshake handshake) {
+      HostStats stats = getStats(call);
+
+      synchronized (stats) {
+        stats.handshakes++;
+        stats.handshakeNanos += System.nanoTime() - secureConnectStart;
+      }
+    }
+
+    @Override
+    public void connectFailed(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol, IOException ioe) {
+      connecting = false;
+    }
+
+    @Override
+    public void connectionAcquired(Call call, Connection connection) {
+      HostStats stats = getStats(call);
+
+      synchronized (stats) {
+        stats.connections++;
+        if (!connecting) {
+          stats.reusedConnections++;
+        }
+      }
+
+      connecting = false;
+    }
+
+    @Override
+    public void requestHeadersStart(Call call) {
+      requestHeadersStart = System.nanoTime();
+    }
+
+    @Override
+    public void responseHeadersStart(Call call) {
+      HostStats stats = getStats(call);
+
+      synchronized (stats) {
+        stats.responses++;
+        stats.timeToFirstByteNanos += System.nanoTime() - requestHeadersStart;
+      }
+    }
+  }
+
+  private static final class HostStats {
+    private long connections;
+    private long reusedConnections;
+    private long handshakes;
+    private long handshakeNanos;
+    private long responses;
+    private long timeToFirstByteNanos;
+
+    synchronized HostMetrics toMetrics(String host) {
+      return new HostMetrics(host,
+                             connections,
+                             reusedConnections,
+                             handshakes,
+                             handshakes > 0 ? handshakeNanos / handshakes / 1_000_000 : 0,
+                             responses > 0 ? timeToFirstByteNanos / responses / 1_000_000 : 0);
+    }
+  }
+
+  public static final class HostMetrics {
+
+    private final String host;
+    private final long   connections;
+    private final long   reusedConnections;
+    private final long   handshakes;
+    private final long   averageHandshakeMillis;
+    private final long   averageTimeToFirstByteMillis;
+
+    private HostMetrics(String host, long connections, long reusedConnections, long handshakes, long averageHandshakeMillis, long averageTimeToFirstByteMillis) {
+      this.host                         = host;
+      this.connections                  = connections;
+      this.reusedConnections            = reusedConnections;
+      this.handshakes                   = handshakes;
+      this.averageHandshakeMillis       = averageHandshakeMillis;
+      this.averageTimeToFirstByteMillis = averageTimeToFirstByteMillis;
+    }
+
+    public String getHost() {
+      return host;
+    }
+
+    /**
+     * @return How many times a request got a connection, new or reused.
+     */
+    public long getConnections() {
+      return connections;
+    }
+
+    public long getReusedConnections() {
+      return reusedConnections;
+    }
+
+    public float getReuseRate() {
+      return connections > 0 ? (float) reusedConnections / connections : 0;
+    }
+
+    public long getHandshakes() {
+      return handshakes;
+    }
+
+    public long getAverageHandshakeMillis() {
+      return averageHandshakeMillis;
+    }
+
+    public long getAverageTimeToFirstByteMillis() {
+      return averageTimeToFirstByteMillis;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US, "%s: %d connections, %.0f%% reused, %d handshakes (avg %d ms), avg TTFB %d ms",
+                           host, connections, getReuseRate() * 100, handshakes, averageHandshakeMillis, averageTimeToFirstByteMillis);
+    }
+  }
+}
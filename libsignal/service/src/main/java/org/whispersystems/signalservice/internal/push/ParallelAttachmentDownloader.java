@@ -0,0 +1,700 @@
+/*
+ * Copyright (C) 2021 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.internal.push;
+
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachment.ProgressListener;
+import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException;
+import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
+import org.whispersystems.signalservice.api.push.exceptions.RangeException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Downloads a CDN object with several concurrent Range requests.
+ * <p>
+ * Each chunk is written straight to its place in the destination file, which is preallocated to the
+ * full size as soon as the first response tells us what that is. Chunk sizes adapt to the throughput
+ * measured so far, so that each request takes about {@link #TARGET_CHUNK_MILLIS}: small enough to
+ * spread a download over all connections, large enough that high latency links don't spend most of
+ * their time waiting on round trips.
+ * <p>
+ * Which ranges of the file are complete is kept in a small file next to it, so an interrupted
+ * download resumes with only the missing ranges. It's written before the file is preallocated and
+ * after every chunk, so even if the process dies it never claims more than what's on disk. A
+ * destination without that file is assumed to be a partial download made one request at a time, and
+ * is resumed from its end.
+ * <p>
+ * Consumers that need the bytes in order, like a decrypting stream, can be given a tee. It's fed the
+ * complete prefix of the file as that grows, starting with whatever a previous attempt left on disk.
+ * A tee that fails is not a network problem, so its failure is reported as an
+ * {@link InvalidMessageException} rather than something worth retrying.
+ */
+final class ParallelAttachmentDownloader {
+
+  private static final String TAG = ParallelAttachmentDownloader.class.getSimpleName();
+
+  private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+  static final int DEFAULT_PARALLELISM = 4;
+
+  static final long INITIAL_CHUNK_SIZE  = 256 * 1024;
+  static final long MIN_CHUNK_SIZE      = 64 * 1024;
+  static final long MAX_CHUNK_SIZE      = 8 * 1024 * 1024;
+  static final long TARGET_CHUNK_MILLIS = 2000;
+
+  private static final int BUFFER_SIZE = 32768;
+
+  private final OkHttpClient     client;
+  private final String           url;
+  private final Optional<String> hostHeader;
+  private final int              parallelism;
+  private final ExecutorService  executor;
+  private final Set<Call>        connections;
+
+  /**
+   * @param connections In-flight calls are added to this set while they run, so they can be canceled
+   *                    from outside. Access to it is synchronized on the set itself.
+   */
+  ParallelAttachmentDownloader(OkHttpClient client,
+                               String url,
+                               Optional<String> hostHeader,
+                               int parallelism,
+                               ExecutorService executor,
+                               Set<Call> connections)
+  {
+    this.client      = client;
+    this.url         = url;
+    this.hostHeader  = hostHeader;
+    this.parallelism = Math.max(1, parallelism);
+    this.executor    = executor;
+    this.connections = connections;
+  }
+
+  static File getStateFile(File destination) {
+    return new File(destination.getPath() + ".ranges");
+  }
+
+  /**
+   * Deletes a destination along with the state kept next to it, for downloads that won't be resumed.
+   */
+  static void delete(File destination) {
+    File stateFile = getStateFile(destination);
+
+    for (File file : new File[] { destination, stateFile, DownloadState.getTempFile(stateFile) }) {
+      if (file.exists() && !file.delete()) {
+        Log.w(TAG, "Failed to delete " + file.getName());
+      }
+    }
+  }
+
+  /**
+   * Downloads into destination, resuming whatever is already there. On success, destination holds the
+   * complete object and tee, if present, has been written all of it in order.
+   *
+   * @throws InvalidMessageException If the tee failed to take the downloaded bytes.
+   */
+  void download(File destination, long maxSizeBytes, ProgressListener listener, OutputStream tee)
+      throws PushNetworkException, NonSuccessfulResponseCodeException, InvalidMessageException
+  {
+    File          stateFile = getStateFile(destination);
+    DownloadState state     = DownloadState.read(stateFile, destination);
+
+    try (RandomAccessFile file = new RandomAccessFile(destination, "rw")) {
+      Download download = new Download(file.getChannel(), state, stateFile, maxSizeBytes, listener, tee);
+
+      try {
+        download.run();
+      } finally {
+        if (state.isComplete()) {
+          if (stateFile.exists() && !stateFile.delete()) {
+            Log.w(TAG, "Failed to delete download state.");
+          }
+        } else {
+          state.write(stateFile);
+        }
+      }
+    } catch (TeeException e) {
+      throw new InvalidMessageException(e.getCause());
+    } catch (NonSuccessfulResponseCodeException | PushNetworkException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new PushNetworkException(e);
+    }
+  }
+
+  private final class Download {
+
+    private final FileChannel      channel;
+    private final DownloadState    state;
+    private final File             stateFile;
+    private final long             maxSizeBytes;
+    private final ProgressListener listener;
+    private final OutputStream     tee;
+    private final ReentrantLock    drainLock = new ReentrantLock();
+    private final Set<Call>        calls     = new HashSet<>();
+    private final List<long[]>     pending   = new LinkedList<>();
+
+    private volatile long drained;
+
+    private boolean     failed;
+    private IOException failure;
+
+    private Download(FileChannel channel, DownloadState state, File stateFile, long maxSizeBytes, ProgressListener listener, OutputStream tee) {
+      this.channel      = channel;
+      this.state        = state;
+      this.stateFile    = stateFile;
+      this.maxSizeBytes = maxSizeBytes;
+      this.listener     = listener;
+      this.tee          = tee;
+    }
+
+    void run() throws IOException {
+      drain();
+
+      long chunkSize = INITIAL_CHUNK_SIZE;
+
+      if (!state.hasTotalLength()) {
+        long offset    = state.getContiguousLength();
+        long startTime = System.nanoTime();
+        long read      = probe(offset);
+
+        chunkSize = adaptChunkSize(read, System.nanoTime() - startTime);
+      }
+
+      if (state.isComplete()) {
+        drain();
+        return;
+      }
+
+      if (state.getTotalLength() > maxSizeBytes) {
+        throw new PushNetworkException("Response exceeds max size!");
+      }
+
+      state.write(stateFile);
+
+      pending.addAll(state.getMissingRanges());
+
+      long remaining = state.getTotalLength() - state.getCompletedLength();
+      int  workers   = (int) Math.max(1, Math.min(parallelism, (remaining + MIN_CHUNK_SIZE - 1) / MIN_CHUNK_SIZE));
+      long firstSize = Math.max(MIN_CHUNK_SIZE, Math.min(chunkSize, (remaining + workers - 1) / workers));
+
+      Log.i(TAG, "Downloading " + remaining + " of " + state.getTotalLength() + " bytes with " + workers + " connection(s).");
+
+      List<Future<Void>> futures = new ArrayList<>(workers - 1);
+
+      for (int i = 1; i < workers; i++) {
+        futures.add(executor.submit(() -> {
+          runWorker(firstSize);
+          return null;
+        }));
+      }
+
+      try {
+        runWorker(firstSize);
+      } catch (IOException e) {
+        // Recorded by the worker
+      }
+
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          cancelAll(e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause()));
+        } catch (InterruptedException e) {
+          cancelAll(new PushNetworkException(e));
+        }
+      }
+
+      synchronized (this) {
+        if (failure != null) {
+          throw failure;
+        }
+      }
+
+      if (!state.isComplete()) {
+        throw new PushNetworkException("Download ended with missing ranges.");
+      }
+
+      drain();
+    }
+
+    /**
+     * The first request of a download without state. Its response tells us the total size, or, if the
+     * server ignores the range, contains the whole object.
+     */
+    private long probe(long offset) throws IOException {
+      Call call = newCall(offset, offset + INITIAL_CHUNK_SIZE);
+
+      try (Response response = call.execute()) {
+        ResponseBody body = response.body();
+
+        if (response.code() == 416) {
+          throw new RangeException(offset);
+        } else if (!response.isSuccessful()) {
+          throw new NonSuccessfulResponseCodeException(response.code(), "Response: " + response);
+        } else if (body == null) {
+          throw new PushNetworkException("No response body!");
+        }
+
+        if (response.code() != 206) {
+          Log.w(TAG, "Range request was ignored, downloading everything over one connection.");
+
+          if (body.contentLength() > maxSizeBytes) {
+            throw new PushNetworkException("Response exceeds max size!");
+          }
+
+          state.clear();
+
+          if (body.contentLength() >= 0) {
+            state.setTotalLength(body.contentLength());
+          }
+
+          long read = write(body.byteStream(), 0, maxSizeBytes);
+
+          channel.truncate(read);
+          state.setTotalLength(read);
+          return read;
+        }
+
+        Matcher matcher = CONTENT_RANGE.matcher(String.valueOf(response.header("Content-Range")));
+
+        if (!matcher.matches() || Long.parseLong(matcher.group(1)) != offset) {
+          throw new PushNetworkException("Bad Content-Range: " + response.header("Content-Range"));
+        }
+
+        long totalLength = Long.parseLong(matcher.group(3));
+
+        if (totalLength > maxSizeBytes) {
+          throw new PushNetworkException("Response exceeds max size!");
+        }
+
+        state.setTotalLength(totalLength);
+        state.write(stateFile);
+        channel.truncate(totalLength);
+
+        if (totalLength > 0 && channel.size() < totalLength) {
+          channel.write(ByteBuffer.wrap(new byte[1]), totalLength - 1);
+        }
+
+        return write(body.byteStream(), offset, Math.min(totalLength, offset + INITIAL_CHUNK_SIZE));
+      } catch (NonSuccessfulResponseCodeException | PushNetworkException | TeeException e) {
+        throw e;
+      } catch (IOException e) {
+        throw new PushNetworkException(e);
+      } finally {
+        removeCall(call);
+      }
+    }
+
+    private void runWorker(long chunkSize) throws IOException {
+      try {
+        long[] range;
+
+        while ((range = nextChunk(chunkSize)) != null) {
+          long startTime = System.nanoTime();
+          long read      = fetch(range[0], range[1]);
+
+          state.write(stateFile);
+
+          chunkSize = adaptChunkSize(read, System.nanoTime() - startTime);
+        }
+      } catch (IOException e) {
+        cancelAll(e);
+        throw e;
+      }
+    }
+
+    private long fetch(long start, long end) throws IOException {
+      Call call = newCall(start, end);
+
+      try (Response response = call.execute()) {
+        ResponseBody body = response.body();
+
+        if (response.code() == 416) {
+          throw new RangeException(start);
+        } else if (!response.isSuccessful()) {
+          throw new NonSuccessfulResponseCodeException(response.code(), "Response: " + response);
+        } else if (response.code() != 206) {
+          throw new PushNetworkException("Range request was ignored!");
+        } else if (body == null) {
+          throw new PushNetworkException("No response body!");
+        }
+
+        long read = write(body.byteStream(), start, end);
+
+        if (start + read != end) {
+          throw new PushNetworkException("Range ended early at " + (start + read) + ", expected " + end);
+        }
+
+        return read;
+      } catch (NonSuccessfulResponseCodeException | PushNetworkException | TeeException e) {
+        throw e;
+      } catch (IOException e) {
+        throw new PushNetworkException(e);
+      } finally {
+        removeCall(call);
+      }
+    }
+
+    /**
+     * Copies in to the file at position, recording every write as complete as soon as it's done.
+     *
+     * @return The number of bytes written.
+     */
+    private long write(InputStream in, long position, long limit) throws IOException {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      long   start  = position;
+      int    read;
+
+      while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+        if (position + read > limit) {
+          throw new PushNetworkException("Response exceeded the requested range!");
+        }
+
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+        while (byteBuffer.hasRemaining()) {
+          channel.write(byteBuffer, position + byteBuffer.position());
+        }
+
+        state.addCompleted(position, position + read);
+        position += read;
+
+        if (listener != null) {
+          listener.onAttachmentProgress(state.hasTotalLength() ? state.getTotalLength() : limit, state.getCompletedLength());
+        }
+
+        drain();
+      }
+
+      return position - start;
+    }
+
+    /**
+     * Feeds the tee everything from where it left off to the end of the complete prefix. Only one
+     * thread drains at a time, the others carry on downloading.
+     */
+    private void drain() throws IOException {
+      if (tee == null) {
+        return;
+      }
+
+      do {
+        if (!drainLock.tryLock()) {
+          return;
+        }
+
+        try {
+          ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+          long       end    = state.getContiguousLength();
+
+          while (drained < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - drained));
+
+            int read = channel.read(buffer, drained);
+
+            if (read <= 0) {
+              throw new IOException("Failed to read back " + drained);
+            }
+
+            try {
+              tee.write(buffer.array(), 0, read);
+            } catch (IOException e) {
+              throw new TeeException(e);
+            }
+
+            drained += read;
+          }
+        } finally {
+          drainLock.unlock();
+        }
+      } while (drained < state.getContiguousLength());
+    }
+
+    private synchronized long[] nextChunk(long size) {
+      if (failed || pending.isEmpty()) {
+        return null;
+      }
+
+      long[] gap   = pending.get(0);
+      long   start = gap[0];
+      long   end   = Math.min(gap[1], start + size);
+
+      if (end == gap[1]) {
+        pending.remove(0);
+      } else {
+        gap[0] = end;
+      }
+
+      return new long[] { start, end };
+    }
+
+    private Call newCall(long start, long end) throws PushNetworkException {
+      Request.Builder request = new Request.Builder().url(url)
+                                                     .get()
+                                                     .addHeader("Range", "bytes=" + start + "-" + (end - 1));
+
+      if (hostHeader.isPresent()) {
+        request.addHeader("Host", hostHeader.get());
+      }
+
+      Call call = client.newCall(request.build());
+
+      synchronized (this) {
+        if (failed) {
+          throw new PushNetworkException("Download was canceled.");
+        }
+        calls.add(call);
+      }
+
+      synchronized (connections) {
+        connections.add(call);
+      }
+
+      return call;
+    }
+
+    private void removeCall(Call call) {
+      synchronized (this) {
+        calls.remove(call);
+      }
+
+      synchronized (connections) {
+        connections.remove(call);
+      }
+    }
+
+    /**
+     * Stops the other workers once one of them has failed, the download can't finish anyway. The
+     * first failure is the one reported, the others are usually just the cancelation.
+     */
+    private synchronized void cancelAll(IOException cause) {
+      if (failure == null) {
+        failure = cause;
+      }
+
+      failed = true;
+
+      for (Call call : calls) {
+        call.cancel();
+      }
+    }
+  }
+
+  /**
+   * Marks a failure of the tee, so that it isn't mistaken for a network error on the way out.
+   */
+  private static final class TeeException extends IOException {
+    private TeeException(IOException cause) {
+      super(cause);
+    }
+  }
+
+  static long adaptChunkSize(long bytes, long elapsedNanos) {
+    double bytesPerMilli = bytes / Math.max(1, elapsedNanos / 1_000_000.0);
+    long   size          = (long) (bytesPerMilli * TARGET_CHUNK_MILLIS);
+
+    return Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, size));
+  }
+
+  /**
+   * The total length, once known, and the ranges of the file that have been written. Ranges are kept
+   * merged, keyed by their start and mapping to their exclusive end.
+   */
+  static final class DownloadState {
+
+    private static final int VERSION = 1;
+
+    private final TreeMap<Long, Long> completed = new TreeMap<>();
+
+    private long totalLength = -1;
+    private long completedLength;
+
+    static DownloadState read(File stateFile, File destination) {
+      DownloadState state = new DownloadState();
+
+      if (stateFile.exists()) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(stateFile))) {
+          if (in.readInt() != VERSION) {
+            throw new IOException("Unknown version");
+          }
+
+          long totalLength = in.readLong();
+          int  count       = in.readInt();
+
+          for (int i = 0; i < count; i++) {
+            state.addCompleted(in.readLong(), in.readLong());
+          }
+
+          if (totalLength >= 0 && destination.length() == totalLength) {
+            state.totalLength = totalLength;
+            return state;
+          }
+
+          Log.w(TAG, "Download state doesn't match the file, starting over.");
+        } catch (IOException e) {
+          Log.w(TAG, "Failed to read download state, starting over.", e);
+        }
+
+        state.clear();
+
+        if (destination.exists() && !destination.delete()) {
+          Log.w(TAG, "Failed to delete the partial download.");
+        }
+
+        if (!stateFile.delete()) {
+          Log.w(TAG, "Failed to delete download state.");
+        }
+
+        return state;
+      }
+
+      if (destination.length() > 0) {
+        state.addCompleted(0, destination.length());
+      }
+
+      return state;
+    }
+
+    static File getTempFile(File stateFile) {
+      return new File(stateFile.getPath() + ".tmp");
+    }
+
+    /**
+     * Replaces the state file. Workers call this as they finish chunks, so the whole write is done
+     * under the lock, they'd otherwise share the temporary file.
+     */
+    synchronized void write(File stateFile) {
+      File temp = getTempFile(stateFile);
+
+      try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+        out.writeInt(VERSION);
+        out.writeLong(totalLength);
+        out.writeInt(completed.size());
+
+        for (Map.Entry<Long, Long> range : completed.entrySet()) {
+          out.writeLong(range.getKey());
+          out.writeLong(range.getValue());
+        }
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to write download state.", e);
+        return;
+      }
+
+      if (!temp.renameTo(stateFile)) {
+        Log.w(TAG, "Failed to replace download state.");
+      }
+    }
+
+    synchronized void addCompleted(long start, long end) {
+      if (end <= start) {
+        return;
+      }
+
+      Map.Entry<Long, Long> before = completed.floorEntry(start);
+
+      if (before != null && before.getValue() >= start) {
+        start = before.getKey();
+        end   = Math.max(end, before.getValue());
+        completedLength -= before.getValue() - before.getKey();
+        completed.remove(before.getKey());
+      }
+
+      Map.Entry<Long, Long> after;
+
+      while ((after = completed.ceilingEntry(start)) != null && after.getKey() <= end) {
+        end = Math.max(end, after.getValue());
+        completedLength -= after.getValue() - after.getKey();
+        completed.remove(after.getKey());
+      }
+
+      completed.put(start, end);
+      completedLength += end - start;
+    }
+
+    synchronized void clear() {
+      completed.clear();
+      completedLength = 0;
+      totalLength     = -1;
+    }
+
+    synchronized boolean hasTotalLength() {
+      return totalLength >= 0;
+    }
+
+    synchronized long getTotalLength() {
+      return totalLength;
+    }
+
+    synchronized void setTotalLength(long totalLength) {
+      this.totalLength = totalLength;
+    }
+
+    synchronized long getCompletedLength() {
+      return completedLength;
+    }
+
+    synchronized long getContiguousLength() {
+      Long end = completed.get(0L);
+      return end != null ? end : 0;
+    }
+
+    synchronized boolean isComplete() {
+      return totalLength >= 0 && getContiguousLength() >= totalLength;
+    }
+
+    synchronized List<long[]> getMissingRanges() {
+      List<long[]> missing  = new LinkedList<>();
+      long         position = 0;
+
+      for (Map.Entry<Long, Long> range : completed.entrySet()) {
+        if (range.getKey() > position) {
+          missing.add(new long[] { position, Math.min(range.getKey(), totalLength) });
+        }
+        position = Math.max(position, range.getValue());
+      }
+
+      if (position < totalLength) {
+        missing.add(new long[] { position, totalLength });
+      }
+
+      return missing;
+    }
+  }
+}
@@ -26,6 +26,7 @@ import org.signal.zkgroup.profiles.ProfileKeyCredentialRequestContext;
 import org.signal.zkgroup.profiles.ProfileKeyCredentialResponse;
 import org.signal.zkgroup.profiles.ProfileKeyVersion;
 import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.ecc.ECPublicKey;
 import org.whispersystems.libsignal.logging.Log;
 import org.whispersystems.libsignal.state.PreKeyBundle;
@@ -72,11 +73,8 @@ import org.whispersystems.signalservice.api.push.exceptions.UsernameMalformedExc
 import org.whispersystems.signalservice.api.push.exceptions.UsernameTakenException;
 import org.whispersystems.signalservice.api.storage.StorageAuthResponse;
 import org.whispersystems.signalservice.api.util.CredentialsProvider;
-import org.whispersystems.signalservice.api.util.Tls12SocketFactory;
-import org.whispersystems.signalservice.api.util.TlsProxySocketFactory;
 import org.whispersystems.signalservice.api.util.UuidUtil;
 import org.whispersystems.signalservice.internal.configuration.SignalCdnUrl;
-import org.whispersystems.signalservice.internal.configuration.SignalProxy;
 import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
 import org.whispersystems.signalservice.internal.configuration.SignalUrl;
 import org.whispersystems.signalservice.internal.contacts.entities.DiscoveryRequest;
@@ -101,7 +99,6 @@ import org.whispersystems.signalservice.internal.storage.protos.ReadOperation;
 import org.whispersystems.signalservice.internal.storage.protos.StorageItems;
 import org.whispersystems.signalservice.internal.storage.protos.StorageManifest;
 import org.whispersystems.signalservice.internal.storage.protos.WriteOperation;
-import org.whispersystems.signalservice.internal.util.BlacklistingTrustManager;
 import org.whispersystems.signalservice.internal.util.Hex;
 import org.whispersystems.signalservice.internal.util.JsonUtil;
 import org.whispersystems.signalservice.internal.util.Util;
@@ -119,8 +116,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Collections;
 import java.util.HashMap;
@@ -131,21 +126,17 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import okhttp3.Call;
 import okhttp3.Callback;
-import okhttp3.ConnectionPool;
-import okhttp3.ConnectionSpec;
 import okhttp3.Credentials;
-import okhttp3.Dns;
 import okhttp3.HttpUrl;
-import okhttp3.Interceptor;
 import okhttp3.MediaType;
 import okhttp3.MultipartBody;
 import okhttp3.OkHttpClient;
@@ -236,11 +227,30 @@ public class PushServiceSocket {
 
   private static final int MAX_FOLLOW_UPS = 20;
 
+  private static final int  ATTACHMENT_THREADS             = 2 * ParallelAttachmentDownloader.DEFAULT_PARALLELISM;
+  private static final int  UPLOAD_ENCRYPTION_THREADS      = 4;
+  private static final long ATTACHMENT_THREAD_IDLE_SECONDS = 30;
+
+  /**
+   * Runs the extra connections of parallel downloads. It's shared by every socket and bounded, and
+   * its threads exit once they've been idle for a while, so sockets that are replaced don't leave
+   * threads behind.
+   */
+  private static final ExecutorService ATTACHMENT_EXECUTOR = createAttachmentExecutor("signal-attachment-transfer-", ATTACHMENT_THREADS);
+
+  /**
+   * Runs the encryption of pipelined uploads. An upload streams its request body from its encryptor,
+   * so the encryptor gets threads of its own rather than queueing behind download connections while
+   * the request sits open. The app runs at most four jobs at once, so every upload gets a thread.
+   */
+  private static final ExecutorService UPLOAD_ENCRYPTION_EXECUTOR = createAttachmentExecutor("signal-upload-encryption-", UPLOAD_ENCRYPTION_THREADS);
+
   private       long      soTimeoutMillis = TimeUnit.SECONDS.toMillis(30);
   private final Set<Call> connections     = new HashSet<>();
 
   private final ServiceConnectionHolder[]        serviceClients;
   private final Map<Integer, ConnectionHolder[]> cdnClientsMap;
+  private final ConnectionManager                connectionManager;
   private final ConnectionHolder[]               contactDiscoveryClients;
   private final ConnectionHolder[]               keyBackupServiceClients;
   private final ConnectionHolder[]               storageClients;
@@ -260,11 +270,12 @@ public class PushServiceSocket {
     this.credentialsProvider       = credentialsProvider;
     this.signalAgent               = signalAgent;
     this.automaticNetworkRetry     = automaticNetworkRetry;
-    this.serviceClients            = createServiceConnectionHolders(configuration.getSignalServiceUrls(), configuration.getNetworkInterceptors(), configuration.getDns(), configuration.getSignalProxy());
-    this.cdnClientsMap             = createCdnClientsMap(configuration.getSignalCdnUrlMap(), configuration.getNetworkInterceptors(), configuration.getDns(), configuration.getSignalProxy());
-    this.contactDiscoveryClients   = createConnectionHolders(configuration.getSignalContactDiscoveryUrls(), configuration.getNetworkInterceptors(), configuration.getDns(), configuration.getSignalProxy());
-    this.keyBackupServiceClients   = createConnectionHolders(configuration.getSignalKeyBackupServiceUrls(), configuration.getNetworkInterceptors(), configuration.getDns(), configuration.getSignalProxy());
-    this.storageClients            = createConnectionHolders(configuration.getSignalStorageUrls(), configuration.getNetworkInterceptors(), configuration.getDns(), configuration.getSignalProxy());
+    this.connectionManager         = ConnectionManager.forConfiguration(configuration);
+    this.serviceClients            = createServiceConnectionHolders(connectionManager, configuration.getSignalServiceUrls());
+    this.cdnClientsMap             = createCdnClientsMap(connectionManager, configuration.getSignalCdnUrlMap());
+    this.contactDiscoveryClients   = createConnectionHolders(connectionManager, ConnectionManager.CONTACT_DISCOVERY, configuration.getSignalContactDiscoveryUrls());
+    this.keyBackupServiceClients   = createConnectionHolders(connectionManager, ConnectionManager.KEY_BACKUP, configuration.getSignalKeyBackupServiceUrls());
+    this.storageClients            = createConnectionHolders(connectionManager, ConnectionManager.STORAGE, configuration.getSignalStorageUrls());
     this.random                    = new SecureRandom();
     this.clientZkProfileOperations = clientZkProfileOperations;
   }
@@ -593,6 +604,32 @@ public class PushServiceSocket {
 
   public void retrieveAttachment(int cdnNumber, SignalServiceAttachmentRemoteId cdnPath, File destination, long maxSizeBytes, ProgressListener listener)
       throws IOException, MissingConfigurationException
+  {
+    try {
+      retrieveAttachment(cdnNumber, cdnPath, destination, maxSizeBytes, listener, null);
+    } catch (InvalidMessageException e) {
+      throw new AssertionError("Only a tee can fail that way", e);
+    }
+  }
+
+  /**
+   * Deletes a partial download along with the state kept next to it for resuming.
+   */
+  public static void deleteAttachmentDownload(File destination) {
+    ParallelAttachmentDownloader.delete(destination);
+  }
+
+  /**
+   * Like {@link #retrieveAttachment(int, SignalServiceAttachmentRemoteId, File, long, ProgressListener)}, but the
+   * downloaded bytes are also written to {@code tee}, if present, in order. That includes any part of the
+   * destination left over from a previous attempt.
+   * <p>
+   * The attachment is fetched with several concurrent range requests, see {@link ParallelAttachmentDownloader}.
+   *
+   * @throws InvalidMessageException If {@code tee} failed, it's not retried like a network error.
+   */
+  public void retrieveAttachment(int cdnNumber, SignalServiceAttachmentRemoteId cdnPath, File destination, long maxSizeBytes, ProgressListener listener, OutputStream tee)
+      throws IOException, MissingConfigurationException, InvalidMessageException
   {
     final String path;
     if (cdnPath.getV2().isPresent()) {
@@ -600,7 +637,24 @@ public class PushServiceSocket {
     } else {
       path = String.format(Locale.US, ATTACHMENT_KEY_DOWNLOAD_PATH, cdnPath.getV3().get());
     }
-    downloadFromCdn(destination, cdnNumber, path, maxSizeBytes, listener);
+
+    ConnectionHolder[] cdnNumberClients = cdnClientsMap.get(cdnNumber);
+    if (cdnNumberClients == null) {
+      throw new MissingConfigurationException("Attempted to download from unsupported CDN number: " + cdnNumber + ", Our configuration supports: " + cdnClientsMap.keySet());
+    }
+    ConnectionHolder connectionHolder = getRandom(cdnNumberClients, random);
+    OkHttpClient     okHttpClient     = connectionHolder.getClient()
+                                                        .newBuilder()
+                                                        .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
+                                                        .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
+                                                        .build();
+
+    new ParallelAttachmentDownloader(okHttpClient,
+                                     connectionHolder.getUrl() + "/" + path,
+                                     connectionHolder.getHostHeader(),
+                                     ParallelAttachmentDownloader.DEFAULT_PARALLELISM,
+                                     ATTACHMENT_EXECUTOR,
+                                     connections).download(destination, maxSizeBytes, listener, tee);
   }
 
   public byte[] retrieveSticker(byte[] packId, int stickerId)
@@ -936,6 +990,49 @@ public class PushServiceSocket {
     this.soTimeoutMillis = soTimeoutMillis;
   }
 
+  /**
+   * Opens a connection to the service and to the CDNs, unless one is already idle in the pool, so
+   * that the TLS handshake is out of the way before the first real request. Meant to be called when
+   * the app comes to the foreground. Failures are only logged, the next request just connects itself.
+   */
+  public void warmUpConnections() {
+    warmUpConnection(ConnectionManager.SERVICE, getRandom(serviceClients, random));
+    warmUpConnection(ConnectionManager.cdn(0), getRandom(cdnClientsMap.get(0), random));
+    warmUpConnection(ConnectionManager.cdn(2), getRandom(cdnClientsMap.get(2), random));
+  }
+
+  /**
+   * @return Handshake, time to first byte and connection reuse statistics per host, shared by all
+   *         sockets made from the same configuration.
+   */
+  public List<ConnectionMetrics.HostMetrics> getConnectionMetrics() {
+    return connectionManager.getMetrics().getHostMetrics();
+  }
+
+  private void warmUpConnection(String clientSetName, ConnectionHolder connectionHolder) {
+    if (connectionManager.getConnectionPool(clientSetName).idleConnectionCount() > 0) {
+      return;
+    }
+
+    OkHttpClient okHttpClient = connectionHolder.getClient()
+                                                .newBuilder()
+                                                .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
+                                                .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
+                                                .build();
+
+    Request.Builder request = new Request.Builder().url(connectionHolder.getUrl() + "/").head();
+
+    if (connectionHolder.getHostHeader().isPresent()) {
+      request.addHeader("Host", connectionHolder.getHostHeader().get());
+    }
+
+    try (Response response = okHttpClient.newCall(request.build()).execute()) {
+      Log.i(TAG, "Warmed up " + clientSetName + " connection: " + response.code());
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to warm up " + clientSetName + " connection.", e);
+    }
+  }
+
   public void cancelInFlightRequests() {
     synchronized (connections) {
       Log.w(TAG, "Canceling: " + connections.size());
@@ -1227,108 +1324,29 @@ public class PushServiceSocket {
                                                         .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
                                                         .build();
 
-    ResumeInfo           resumeInfo = getResumeInfo(resumableUrl, length);
-    DigestingRequestBody file       = new DigestingRequestBody(data, outputStreamFactory, contentType, length, progressListener, cancelationSignal, resumeInfo.contentStart);
-
-    if (resumeInfo.contentStart == length) {
-      Log.w(TAG, "Resume start point == content length");
-      try (NowhereBufferedSink buffer = new NowhereBufferedSink()) {
-        file.writeTo(buffer);
-      }
-      return file.getTransmittedDigest();
-    }
-
-    Request.Builder request = new Request.Builder().url(buildConfiguredUrl(connectionHolder, resumableUrl))
-                                                   .put(file)
-                                                   .addHeader("Content-Range", resumeInfo.contentRange);
-
-    if (connectionHolder.getHostHeader().isPresent()) {
-      request.header("host", connectionHolder.getHostHeader().get());
-    }
-
-    Call call = okHttpClient.newCall(request.build());
-
-    synchronized (connections) {
-      connections.add(call);
-    }
-
-    try {
-      Response response;
-
-      try {
-        response = call.execute();
-      } catch (IOException e) {
-        throw new PushNetworkException(e);
-      }
-
-      if (response.isSuccessful()) return file.getTransmittedDigest();
-      else                         throw new NonSuccessfulResponseCodeException(response.code(), "Response: " + response);
-    } finally {
-      synchronized (connections) {
-        connections.remove(call);
-      }
-    }
+    return new ResumableUploadPipeline(okHttpClient,
+                                       buildConfiguredUrl(connectionHolder, resumableUrl),
+                                       connectionHolder.getHostHeader(),
+                                       UPLOAD_ENCRYPTION_EXECUTOR,
+                                       connections).upload(data, outputStreamFactory, contentType, length, progressListener, cancelationSignal);
   }
 
-  private ResumeInfo getResumeInfo(String resumableUrl, long contentLength) throws IOException {
-    ConnectionHolder connectionHolder = getRandom(cdnClientsMap.get(2), random);
-    OkHttpClient     okHttpClient     = connectionHolder.getClient()
-                                                        .newBuilder()
-                                                        .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .build();
-
-    final long   offset;
-    final String contentRange;
+  private static ExecutorService createAttachmentExecutor(String threadPrefix, int threads) {
+    AtomicInteger      threadCount = new AtomicInteger();
+    ThreadPoolExecutor executor    = new ThreadPoolExecutor(threads,
+                                                            threads,
+                                                            ATTACHMENT_THREAD_IDLE_SECONDS,
+                                                            TimeUnit.SECONDS,
+                                                            new LinkedBlockingQueue<>(),
+                                                            runnable -> {
+                                                              Thread thread = new Thread(runnable, threadPrefix + threadCount.incrementAndGet());
+                                                              thread.setDaemon(true);
+                                                              return thread;
+                                                            });
 
-    Request.Builder request = new Request.Builder().url(buildConfiguredUrl(connectionHolder, resumableUrl))
-                                                   .put(RequestBody.create(null, ""))
-                                                   .addHeader("Content-Range", String.format(Locale.US, "bytes */%d", contentLength));
+    executor.allowCoreThreadTimeOut(true);
 
-    if (connectionHolder.getHostHeader().isPresent()) {
-      request.header("host", connectionHolder.getHostHeader().get());
-    }
-
-    Call call = okHttpClient.newCall(request.build());
-
-    synchronized (connections) {
-      connections.add(call);
-    }
-
-    try {
-      Response response;
-
-      try {
-        response = call.execute();
-      } catch (IOException e) {
-        throw new PushNetworkException(e);
-      }
-
-      if (response.isSuccessful()) {
-        offset       = contentLength;
-        contentRange = null;
-      } else if (response.code() == 308) {
-        String rangeCompleted = response.header("Range");
-
-        if (rangeCompleted == null) {
-          offset = 0;
-        } else {
-          offset = Long.parseLong(rangeCompleted.split("-")[1]) + 1;
-        }
-
-        contentRange = String.format(Locale.US, "bytes %d-%d/%d", offset, contentLength - 1, contentLength);
-      } else if (response.code() == 404) {
-        throw new ResumeLocationInvalidException();
-      } else {
-        throw new NonSuccessfulResponseCodeException(response.code(), "Response: " + response);
-      }
-    } finally {
-      synchronized (connections) {
-        connections.remove(call);
-      }
-    }
-
-    return new ResumeInfo(contentRange, offset);
+    return executor;
   }
 
   private static HttpUrl buildConfiguredUrl(ConnectionHolder connectionHolder, String url) throws IOException {
@@ -1792,31 +1810,26 @@ public class PushServiceSocket {
     return new CallingResponse.Error(requestId, new IOException("Redirect limit exceeded"));
   }
 
-  private ServiceConnectionHolder[] createServiceConnectionHolders(SignalUrl[] urls,
-                                                                   List<Interceptor> interceptors,
-                                                                   Optional<Dns> dns,
-                                                                   Optional<SignalProxy> proxy)
-  {
+  private static ServiceConnectionHolder[] createServiceConnectionHolders(ConnectionManager connectionManager, SignalUrl[] urls) {
     List<ServiceConnectionHolder> serviceConnectionHolders = new LinkedList<>();
 
     for (SignalUrl url : urls) {
-      serviceConnectionHolders.add(new ServiceConnectionHolder(createConnectionClient(url, interceptors, dns, proxy),
-                                                               createConnectionClient(url, interceptors, dns, proxy),
+      serviceConnectionHolders.add(new ServiceConnectionHolder(connectionManager.getClient(ConnectionManager.SERVICE, url),
+                                                               connectionManager.getClient(ConnectionManager.SERVICE_UNIDENTIFIED, url),
                                                                url.getUrl(), url.getHostHeader()));
     }
 
     return serviceConnectionHolders.toArray(new ServiceConnectionHolder[0]);
   }
 
-  private static Map<Integer, ConnectionHolder[]> createCdnClientsMap(final Map<Integer, SignalCdnUrl[]> signalCdnUrlMap,
-                                                                      final List<Interceptor> interceptors,
-                                                                      final Optional<Dns> dns,
-                                                                      final Optional<SignalProxy> proxy) {
+  private static Map<Integer, ConnectionHolder[]> createCdnClientsMap(final ConnectionManager connectionManager,
+                                                                      final Map<Integer, SignalCdnUrl[]> signalCdnUrlMap)
+  {
     validateConfiguration(signalCdnUrlMap);
     final Map<Integer, ConnectionHolder[]> result = new HashMap<>();
     for (Map.Entry<Integer, SignalCdnUrl[]> entry : signalCdnUrlMap.entrySet()) {
       result.put(entry.getKey(),
-                 createConnectionHolders(entry.getValue(), interceptors, dns, proxy));
+                 createConnectionHolders(connectionManager, ConnectionManager.cdn(entry.getKey()), entry.getValue()));
     }
     return Collections.unmodifiableMap(result);
   }
@@ -1827,48 +1840,16 @@ public class PushServiceSocket {
     }
   }
 
-  private static ConnectionHolder[] createConnectionHolders(SignalUrl[] urls, List<Interceptor> interceptors, Optional<Dns> dns, Optional<SignalProxy> proxy) {
+  private static ConnectionHolder[] createConnectionHolders(ConnectionManager connectionManager, String clientSetName, SignalUrl[] urls) {
     List<ConnectionHolder> connectionHolders = new LinkedList<>();
 
     for (SignalUrl url : urls) {
-      connectionHolders.add(new ConnectionHolder(createConnectionClient(url, interceptors, dns, proxy), url.getUrl(), url.getHostHeader()));
+      connectionHolders.add(new ConnectionHolder(connectionManager.getClient(clientSetName, url), url.getUrl(), url.getHostHeader()));
     }
 
     return connectionHolders.toArray(new ConnectionHolder[0]);
   }
 
-  private static OkHttpClient createConnectionClient(SignalUrl url, List<Interceptor> interceptors, Optional<Dns> dns, Optional<SignalProxy> proxy) {
-    try {
-      TrustManager[] trustManagers = BlacklistingTrustManager.createFor(url.getTrustStore());
-
-      SSLContext context = SSLContext.getInstance("TLS");
-      context.init(null, trustManagers, null);
-
-      OkHttpClient.Builder builder = new OkHttpClient.Builder()
-                                                     .sslSocketFactory(new Tls12SocketFactory(context.getSocketFactory()), (X509TrustManager)trustManagers[0])
-                                                     .connectionSpecs(url.getConnectionSpecs().or(Util.immutableList(ConnectionSpec.RESTRICTED_TLS)))
-                                                     .dns(dns.or(Dns.SYSTEM));
-
-      if (proxy.isPresent()) {
-        builder.socketFactory(new TlsProxySocketFactory(proxy.get().getHost(), proxy.get().getPort(), dns));
-      }
-
-      builder.sslSocketFactory(new Tls12SocketFactory(context.getSocketFactory()), (X509TrustManager)trustManagers[0])
-             .connectionSpecs(url.getConnectionSpecs().or(Util.immutableList(ConnectionSpec.RESTRICTED_TLS)))
-             .build();
-
-      builder.connectionPool(new ConnectionPool(5, 45, TimeUnit.SECONDS));
-
-      for (Interceptor interceptor : interceptors) {
-        builder.addInterceptor(interceptor);
-      }
-
-      return builder.build();
-    } catch (NoSuchAlgorithmException | KeyManagementException e) {
-      throw new AssertionError(e);
-    }
-  }
-
   private String getAuthorizationHeader(CredentialsProvider credentialsProvider) {
     try {
       String identifier = credentialsProvider.getUuid() != null ? credentialsProvider.getUuid().toString() : credentialsProvider.getE164();
@@ -2220,14 +2201,4 @@ public class PushServiceSocket {
       return contentRange.get().getRangeEnd() + 1;
     }
   }
-
-  private final class ResumeInfo {
-    private final String contentRange;
-    private final long   contentStart;
-
-    private ResumeInfo(String contentRange, long offset) {
-      this.contentRange = contentRange;
-      this.contentStart = offset;
-    }
-  }
 }
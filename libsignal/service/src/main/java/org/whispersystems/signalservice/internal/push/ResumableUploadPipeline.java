@@ -0,0 +1,526 @@
+/*
+ * Copyright (C) 2021 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.internal.push;
+
+import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.crypto.DigestingOutputStream;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachment.ProgressListener;
+import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException;
+import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
+import org.whispersystems.signalservice.api.push.exceptions.ResumeLocationInvalidException;
+import org.whispersystems.signalservice.internal.push.http.CancelationSignal;
+import org.whispersystems.signalservice.internal.push.http.OutputStreamFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+
+/**
+ * Uploads to a resumable upload URL while the data is still being encrypted.
+ * <p>
+ * A worker encrypts ahead into a bounded queue of fixed-size blocks, and the calling thread sends
+ * them as soon as they're ready, so encryption and network I/O overlap instead of taking turns. The
+ * resumable protocol needs the bytes in order, so requests go one after another; how many blocks a
+ * request carries adapts to the measured throughput, aiming for {@link #TARGET_REQUEST_MILLIS} per
+ * request.
+ * <p>
+ * Blocks are kept until the server acknowledges them. When a connection drops, the pipeline asks
+ * the server how far it got and resends from there out of the kept blocks, without encrypting
+ * anything again.
+ */
+final class ResumableUploadPipeline {
+
+  private static final String TAG = ResumableUploadPipeline.class.getSimpleName();
+
+  /**
+   * Resumable uploads want every request but the last to be a multiple of 256KiB.
+   */
+  static final int BLOCK_SIZE = 256 * 1024;
+
+  static final int  QUEUE_BLOCKS          = 8;
+  static final int  MIN_REQUEST_BLOCKS    = 1;
+  static final int  MAX_REQUEST_BLOCKS    = 16;
+  static final int  INITIAL_REQUEST_BLOCKS = 2;
+  static final long TARGET_REQUEST_MILLIS = 2000;
+  static final int  MAX_RETRIES           = 3;
+
+  private final OkHttpClient     client;
+  private final HttpUrl          url;
+  private final Optional<String> hostHeader;
+  private final ExecutorService  executor;
+  private final Set<Call>        connections;
+
+  /**
+   * @param connections In-flight calls are added to this set while they run, so they can be canceled
+   *                    from outside. Access to it is synchronized on the set itself.
+   */
+  ResumableUploadPipeline(OkHttpClient client, HttpUrl url, Optional<String> hostHeader, ExecutorService executor, Set<Call> connections) {
+    this.client      = client;
+    this.url         = url;
+    this.hostHeader  = hostHeader;
+    this.executor    = executor;
+    this.connections = connections;
+  }
+
+  /**
+   * Encrypts and uploads data, picking up wherever the server already is.
+   *
+   * @param length The length of the encrypted data.
+   * @return The digest of the encrypted data.
+   */
+  byte[] upload(InputStream data,
+                OutputStreamFactory outputStreamFactory,
+                String contentType,
+                long length,
+                ProgressListener progressListener,
+                CancelationSignal cancelationSignal)
+      throws IOException
+  {
+    Metrics   metrics   = new Metrics();
+    Encryptor encryptor = new Encryptor(data, outputStreamFactory, cancelationSignal, metrics);
+    long      startTime = System.nanoTime();
+
+    Future<?> encryption = executor.submit(encryptor);
+
+    try {
+      long acknowledged = queryAcknowledged(length);
+
+      if (acknowledged > 0) {
+        Log.i(TAG, "Resuming upload at " + acknowledged + " of " + length);
+      }
+
+      Deque<Block> kept          = new ArrayDeque<>();
+      int          requestBlocks = INITIAL_REQUEST_BLOCKS;
+      int          failures      = 0;
+
+      while (acknowledged < length) {
+        long requestStart = System.nanoTime();
+        long requestEnd   = Math.min(length, acknowledged + (long) requestBlocks * BLOCK_SIZE);
+
+        try {
+          long sent = requestEnd - acknowledged;
+
+          acknowledged  = send(encryptor, kept, acknowledged, requestEnd, length, contentType, progressListener, cancelationSignal);
+          failures      = 0;
+          requestBlocks = adaptRequestBlocks(sent, System.nanoTime() - requestStart);
+
+          metrics.requests++;
+        } catch (PushNetworkException e) {
+          if (cancelationSignal != null && cancelationSignal.isCanceled()) {
+            throw e;
+          }
+
+          if (++failures > MAX_RETRIES) {
+            throw e;
+          }
+
+          Log.w(TAG, "Upload request failed, asking the server where to resume. Attempt " + failures, e);
+          metrics.retries++;
+
+          requestBlocks = Math.max(MIN_REQUEST_BLOCKS, requestBlocks / 2);
+          acknowledged  = queryAcknowledged(length);
+        }
+
+        release(kept, acknowledged);
+      }
+
+      byte[] digest = encryptor.awaitDigest();
+
+      metrics.log(length, System.nanoTime() - startTime);
+
+      return digest;
+    } finally {
+      encryptor.stop();
+      encryption.cancel(true);
+    }
+  }
+
+  /**
+   * Sends [start, end) and returns how far the server has acknowledged afterwards.
+   */
+  private long send(Encryptor encryptor,
+                    Deque<Block> kept,
+                    long start,
+                    long end,
+                    long length,
+                    String contentType,
+                    ProgressListener progressListener,
+                    CancelationSignal cancelationSignal)
+      throws IOException
+  {
+    RequestBody body = new RequestBody() {
+      @Override
+      public MediaType contentType() {
+        return MediaType.parse(contentType);
+      }
+
+      @Override
+      public long contentLength() {
+        return end - start;
+      }
+
+      @Override
+      public void writeTo(BufferedSink sink) throws IOException {
+        long position = start;
+
+        release(kept, start);
+
+        for (Block block : kept) {
+          position = block.writeTo(sink, position, end);
+        }
+
+        while (position < end) {
+          if (cancelationSignal != null && cancelationSignal.isCanceled()) {
+            throw new IOException("Canceled!");
+          }
+
+          Block block = encryptor.take();
+
+          // On a resumed upload, everything up to start is already on the server
+          if (block.end() <= start) {
+            continue;
+          }
+
+          kept.addLast(block);
+
+          position = block.writeTo(sink, position, end);
+
+          if (progressListener != null) {
+            progressListener.onAttachmentProgress(length, position);
+          }
+        }
+      }
+    };
+
+    String contentRange = String.format(Locale.US, "bytes %d-%d/%d", start, end - 1, length);
+
+    try (Response response = execute(body, contentRange)) {
+      if (response.isSuccessful()) {
+        return length;
+      } else if (response.code() == 308) {
+        return parseAcknowledged(response, length);
+      } else if (response.code() == 404) {
+        throw new ResumeLocationInvalidException();
+      } else {
+        throw new NonSuccessfulResponseCodeException(response.code(), "Response: " + response);
+      }
+    }
+  }
+
+  /**
+   * Asks the server how much of the upload it already has.
+   */
+  private long queryAcknowledged(long length) throws IOException {
+    try (Response response = execute(RequestBody.create(null, ""), String.format(Locale.US, "bytes */%d", length))) {
+      if (response.isSuccessful()) {
+        return length;
+      } else if (response.code() == 308) {
+        return parseAcknowledged(response, length);
+      } else if (response.code() == 404) {
+        throw new ResumeLocationInvalidException();
+      } else {
+        throw new NonSuccessfulResponseCodeException(response.code(), "Response: " + response);
+      }
+    }
+  }
+
+  private Response execute(RequestBody body, String contentRange) throws PushNetworkException {
+    Request.Builder request = new Request.Builder().url(url)
+                                                   .put(body)
+                                                   .addHeader("Content-Range", contentRange);
+
+    if (hostHeader.isPresent()) {
+      request.header("host", hostHeader.get());
+    }
+
+    Call call = client.newCall(request.build());
+
+    synchronized (connections) {
+      connections.add(call);
+    }
+
+    try {
+      return call.execute();
+    } catch (IOException e) {
+      throw new PushNetworkException(e);
+    } finally {
+      synchronized (connections) {
+        connections.remove(call);
+      }
+    }
+  }
+
+  private static long parseAcknowledged(Response response, long length) throws PushNetworkException {
+    String range = response.header("Range");
+
+    if (range == null) {
+      return 0;
+    }
+
+    try {
+      return Math.min(length, Long.parseLong(range.split("-")[1]) + 1);
+    } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+      throw new PushNetworkException("Bad Range header: " + range);
+    }
+  }
+
+  private static void release(Deque<Block> kept, long acknowledged) {
+    while (!kept.isEmpty() && kept.peekFirst().end() <= acknowledged) {
+      kept.removeFirst();
+    }
+  }
+
+  static int adaptRequestBlocks(long bytes, long elapsedNanos) {
+    double bytesPerMilli = bytes / Math.max(1, elapsedNanos / 1_000_000.0);
+    long   blocks        = (long) (bytesPerMilli * TARGET_REQUEST_MILLIS / BLOCK_SIZE);
+
+    return (int) Math.max(MIN_REQUEST_BLOCKS, Math.min(MAX_REQUEST_BLOCKS, blocks));
+  }
+
+  /**
+   * A run of encrypted bytes at an offset of the upload.
+   */
+  private static final class Block {
+
+    private final long   offset;
+    private final byte[] data;
+    private final int    length;
+
+    private Block(long offset, byte[] data, int length) {
+      this.offset = offset;
+      this.data   = data;
+      this.length = length;
+    }
+
+    long end() {
+      return offset + length;
+    }
+
+    /**
+     * Writes the part of this block that falls in [position, end).
+     *
+     * @return The position after what was written.
+     */
+    long writeTo(BufferedSink sink, long position, long end) throws IOException {
+      long from = Math.max(position, offset);
+      long to   = Math.min(end, end());
+
+      if (from >= to) {
+        return position;
+      }
+
+      sink.write(data, (int) (from - offset), (int) (to - from));
+      return to;
+    }
+  }
+
+  /**
+   * Encrypts the data into blocks and hands them over through a bounded queue, waiting whenever the
+   * queue is full.
+   */
+  private static final class Encryptor extends OutputStream implements Runnable {
+
+    private static final Block END = new Block(-1, new byte[0], 0);
+
+    private final InputStream         data;
+    private final OutputStreamFactory outputStreamFactory;
+    private final CancelationSignal   cancelationSignal;
+    private final Metrics             metrics;
+    private final BlockingQueue<Block> queue = new ArrayBlockingQueue<>(QUEUE_BLOCKS);
+
+    private byte[] current = new byte[BLOCK_SIZE];
+    private int    currentLength;
+    private long   offset;
+
+    private volatile boolean     stopped;
+    private volatile byte[]      digest;
+    private volatile IOException failure;
+
+    private Encryptor(InputStream data, OutputStreamFactory outputStreamFactory, CancelationSignal cancelationSignal, Metrics metrics) {
+      this.data                = data;
+      this.outputStreamFactory = outputStreamFactory;
+      this.cancelationSignal   = cancelationSignal;
+      this.metrics             = metrics;
+    }
+
+    @Override
+    public void run() {
+      try {
+        DigestingOutputStream outputStream = outputStreamFactory.createFor(this);
+        byte[]                buffer       = new byte[8192];
+        int                   read;
+
+        while ((read = data.read(buffer, 0, buffer.length)) != -1) {
+          if (stopped || (cancelationSignal != null && cancelationSignal.isCanceled())) {
+            throw new IOException("Canceled!");
+          }
+
+          outputStream.write(buffer, 0, read);
+        }
+
+        outputStream.flush();
+        digest = outputStream.getTransmittedDigest();
+
+        emit();
+      } catch (IOException e) {
+        failure = e;
+      } finally {
+        put(END);
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+      while (length > 0) {
+        int count = Math.min(length, current.length - currentLength);
+
+        System.arraycopy(buffer, offset, current, currentLength, count);
+        currentLength += count;
+        offset        += count;
+        length        -= count;
+
+        if (currentLength == current.length) {
+          emit();
+        }
+      }
+    }
+
+    private void emit() throws IOException {
+      if (currentLength == 0) {
+        return;
+      }
+
+      Block block = new Block(offset, current, currentLength);
+
+      offset       += currentLength;
+      current       = new byte[BLOCK_SIZE];
+      currentLength = 0;
+
+      if (!put(block)) {
+        throw new IOException("Canceled!");
+      }
+    }
+
+    private boolean put(Block block) {
+      long start = System.nanoTime();
+
+      try {
+        while (!stopped) {
+          if (queue.offer(block, 100, TimeUnit.MILLISECONDS)) {
+            return true;
+          }
+        }
+        return false;
+      } catch (InterruptedException e) {
+        return false;
+      } finally {
+        metrics.encryptorWaitNanos += System.nanoTime() - start;
+      }
+    }
+
+    /**
+     * Takes the next block, waiting for it to be encrypted if need be.
+     */
+    Block take() throws IOException {
+      long start = System.nanoTime();
+
+      try {
+        Block block = queue.take();
+
+        if (block == END) {
+          queue.offer(END);
+
+          if (failure != null) throw failure;
+          else                 throw new IOException("Encrypted data is shorter than expected!");
+        }
+
+        return block;
+      } catch (InterruptedException e) {
+        throw new PushNetworkException(e);
+      } finally {
+        metrics.uploaderWaitNanos += System.nanoTime() - start;
+      }
+    }
+
+    /**
+     * Waits for the encryption to finish, skipping whatever blocks the server didn't need.
+     */
+    byte[] awaitDigest() throws IOException {
+      while (true) {
+        Block block;
+
+        try {
+          block = queue.take();
+        } catch (InterruptedException e) {
+          throw new PushNetworkException(e);
+        }
+
+        if (block == END) {
+          queue.offer(END);
+
+          if (failure != null) throw failure;
+          else                 return digest;
+        }
+      }
+    }
+
+    void stop() {
+      stopped = true;
+      queue.clear();
+    }
+  }
+
+  /**
+   * Where the time went. If the uploader mostly waits, encryption is the bottleneck. If the encryptor
+   * mostly waits, the network is.
+   */
+  static final class Metrics {
+
+    private int  requests;
+    private int  retries;
+    private long uploaderWaitNanos;
+
+    private volatile long encryptorWaitNanos;
+
+    void log(long length, long elapsedNanos) {
+      long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+
+      Log.i(TAG, String.format(Locale.US, "Uploaded %d bytes in %d ms (%.1f KiB/s), %d request(s), %d retries, waited %d ms for encryption, encryption waited %d ms for the network.",
+                               length,
+                               elapsedMillis,
+                               length / 1024.0 / Math.max(0.001, elapsedMillis / 1000.0),
+                               requests,
+                               retries,
+                               TimeUnit.NANOSECONDS.toMillis(uploaderWaitNanos),
+                               TimeUnit.NANOSECONDS.toMillis(encryptorWaitNanos)));
+    }
+  }
+}
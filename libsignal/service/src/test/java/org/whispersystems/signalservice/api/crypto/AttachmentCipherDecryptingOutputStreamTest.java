@@ -0,0 +1,132 @@
+package org.whispersystems.signalservice.api.crypto;
+
+import org.conscrypt.Conscrypt;
+import org.junit.Test;
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.signalservice.internal.util.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.Security;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+public final class AttachmentCipherDecryptingOutputStreamTest {
+
+  static {
+    Security.insertProviderAt(Conscrypt.newProvider(), 1);
+  }
+
+  @Test
+  public void decrypt_in_chunks_of_any_size() throws IOException, InvalidMessageException {
+    int[] plaintextLengths = { 0, 1, 15, 16, 17, 31, 32, 33, 10_000 };
+    int[] chunkSizes       = { 1, 7, 16, 32, 33, 4096, Integer.MAX_VALUE };
+
+    for (int plaintextLength : plaintextLengths) {
+      byte[]   key       = Util.getSecretBytes(64);
+      byte[]   plaintext = Util.getSecretBytes(plaintextLength);
+      byte[][] encrypted = encrypt(plaintext, key);
+
+      for (int chunkSize : chunkSizes) {
+        assertArrayEquals("length " + plaintextLength + ", chunk " + chunkSize, plaintext, decrypt(encrypted[0], key, encrypted[1], plaintextLength, chunkSize));
+      }
+    }
+  }
+
+  @Test
+  public void decrypt_truncates_padding() throws IOException, InvalidMessageException {
+    byte[]   key       = Util.getSecretBytes(64);
+    byte[]   plaintext = Util.getSecretBytes(1000);
+    byte[]   padded    = Arrays.copyOf(plaintext, 1500);
+    byte[][] encrypted = encrypt(padded, key);
+
+    assertArrayEquals(plaintext, decrypt(encrypted[0], key, encrypted[1], plaintext.length, 100));
+    assertArrayEquals(padded, decrypt(encrypted[0], key, encrypted[1], 0, 100));
+  }
+
+  @Test(expected = InvalidMessageException.class)
+  public void decrypt_fail_on_bad_mac() throws IOException, InvalidMessageException {
+    byte[]   key       = Util.getSecretBytes(64);
+    byte[][] encrypted = encrypt("Uncle Ben".getBytes(), key);
+
+    encrypted[0][encrypted[0].length - 1] += 1;
+
+    decrypt(encrypted[0], key, encrypted[1], 0, 5);
+  }
+
+  @Test(expected = InvalidMessageException.class)
+  public void decrypt_fail_on_bad_ciphertext() throws IOException, InvalidMessageException {
+    byte[]   key       = Util.getSecretBytes(64);
+    byte[][] encrypted = encrypt("Uncle Ben".getBytes(), key);
+
+    encrypted[0][20] += 1;
+
+    decrypt(encrypted[0], key, encrypted[1], 0, 5);
+  }
+
+  @Test(expected = InvalidMessageException.class)
+  public void decrypt_fail_on_bad_digest() throws IOException, InvalidMessageException {
+    byte[]   key       = Util.getSecretBytes(64);
+    byte[][] encrypted = encrypt("Gwen Stacy".getBytes(), key);
+
+    encrypted[1][0] += 1;
+
+    decrypt(encrypted[0], key, encrypted[1], 0, 5);
+  }
+
+  @Test(expected = InvalidMessageException.class)
+  public void decrypt_fail_on_bad_key() throws IOException, InvalidMessageException {
+    byte[][] encrypted = encrypt("Gwen Stacy".getBytes(), Util.getSecretBytes(64));
+
+    decrypt(encrypted[0], new byte[64], encrypted[1], 0, 5);
+  }
+
+  @Test(expected = InvalidMessageException.class)
+  public void decrypt_fail_on_null_digest() throws InvalidMessageException {
+    new AttachmentCipherDecryptingOutputStream(new ByteArrayOutputStream(), Util.getSecretBytes(64), null, 0);
+  }
+
+  @Test
+  public void decrypt_fail_on_truncated_ciphertext() throws IOException {
+    byte[]   key       = Util.getSecretBytes(64);
+    byte[][] encrypted = encrypt(Util.getSecretBytes(100), key);
+
+    for (int length : new int[] { 0, 31, 32, 48, encrypted[0].length - 1 }) {
+      try {
+        decrypt(Arrays.copyOf(encrypted[0], length), key, encrypted[1], 0, 16);
+        fail("length " + length);
+      } catch (InvalidMessageException e) {
+        // expected
+      }
+    }
+  }
+
+  private static byte[] decrypt(byte[] ciphertext, byte[] key, byte[] digest, long plaintextLength, int chunkSize)
+      throws IOException, InvalidMessageException
+  {
+    ByteArrayOutputStream                  plaintext = new ByteArrayOutputStream();
+    AttachmentCipherDecryptingOutputStream stream    = new AttachmentCipherDecryptingOutputStream(plaintext, key, digest, plaintextLength);
+
+    for (int offset = 0; offset < ciphertext.length; offset += chunkSize) {
+      stream.write(ciphertext, offset, Math.min(chunkSize, ciphertext.length - offset));
+    }
+
+    stream.finish();
+    stream.close();
+
+    return plaintext.toByteArray();
+  }
+
+  private static byte[][] encrypt(byte[] data, byte[] keyMaterial) throws IOException {
+    ByteArrayOutputStream        outputStream  = new ByteArrayOutputStream();
+    AttachmentCipherOutputStream encryptStream = new AttachmentCipherOutputStream(keyMaterial, null, outputStream);
+
+    encryptStream.write(data);
+    encryptStream.flush();
+    encryptStream.close();
+
+    return new byte[][] { outputStream.toByteArray(), encryptStream.getTransmittedDigest() };
+  }
+}
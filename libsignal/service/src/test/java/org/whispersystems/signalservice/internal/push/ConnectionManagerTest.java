@@ -0,0 +1,142 @@
+package org.whispersystems.signalservice.internal.push;
+
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.whispersystems.libsignal.util.guava.Optional;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs requests against a local TLS server to check that clients of the same client set share
+ * connections, and that the metrics see it.
+ */
+public final class ConnectionManagerTest {
+
+  private HttpsServer       server;
+  private SSLContext        sslContext;
+  private X509TrustManager  trustManager;
+  private ConnectionManager connectionManager;
+
+  @Before
+  public void setUp() throws Exception {
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    try (InputStream in = getClass().getResourceAsStream("/localhost.jks")) {
+      keyStore.load(in, "whisper".toCharArray());
+    }
+
+    KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keyManagerFactory.init(keyStore, "whisper".toCharArray());
+
+    TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trustManagerFactory.init(keyStore);
+
+    sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+    trustManager = (X509TrustManager) trustManagerFactory.getTrustManagers()[0];
+
+    server = HttpsServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+    server.createContext("/", exchange -> {
+      byte[] body = "ok".getBytes();
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    server.start();
+
+    connectionManager = new ConnectionManager(Collections.emptyList(), Optional.absent(), Optional.absent());
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  @Test
+  public void requests_reuseConnectionOfClientSet() throws IOException {
+    OkHttpClient client = connectionManager.configure(ConnectionManager.SERVICE, newBuilder()).build();
+
+    for (int i = 0; i < 5; i++) {
+      OkHttpClient requestClient = client.newBuilder()
+                                         .readTimeout(30, TimeUnit.SECONDS)
+                                         .build();
+      get(requestClient);
+    }
+
+    ConnectionMetrics.HostMetrics metrics = getLocalhostMetrics();
+
+    assertEquals(5, metrics.getConnections());
+    assertEquals(4, metrics.getReusedConnections());
+    assertEquals(1, metrics.getHandshakes());
+    assertEquals(0.8f, metrics.getReuseRate(), 0.001f);
+  }
+
+  @Test
+  public void requests_doNotShareConnectionsAcrossClientSets() throws IOException {
+    OkHttpClient.Builder builder = newBuilder();
+
+    get(connectionManager.configure(ConnectionManager.SERVICE, builder).build());
+    get(connectionManager.configure(ConnectionManager.SERVICE_UNIDENTIFIED, builder).build());
+    get(connectionManager.configure(ConnectionManager.SERVICE, builder).build());
+
+    ConnectionMetrics.HostMetrics metrics = getLocalhostMetrics();
+
+    assertEquals(3, metrics.getConnections());
+    assertEquals(1, metrics.getReusedConnections());
+    assertEquals(2, metrics.getHandshakes());
+  }
+
+  @Test
+  public void idleConnection_keptInSharedPool() throws IOException {
+    get(connectionManager.configure(ConnectionManager.cdn(2), newBuilder()).build());
+
+    assertEquals(1, connectionManager.getConnectionPool(ConnectionManager.cdn(2)).idleConnectionCount());
+    assertEquals(0, connectionManager.getConnectionPool(ConnectionManager.cdn(0)).idleConnectionCount());
+  }
+
+  private OkHttpClient.Builder newBuilder() {
+    return new OkHttpClient.Builder().sslSocketFactory(sslContext.getSocketFactory(), trustManager);
+  }
+
+  private void get(OkHttpClient client) throws IOException {
+    Request request = new Request.Builder().url("https://localhost:" + server.getAddress().getPort() + "/").build();
+
+    try (Response response = client.newCall(request).execute()) {
+      assertEquals(200, response.code());
+      assertEquals("ok", response.body().string());
+    }
+  }
+
+  private ConnectionMetrics.HostMetrics getLocalhostMetrics() {
+    List<ConnectionMetrics.HostMetrics> metrics = connectionManager.getMetrics().getHostMetrics();
+
+    assertEquals(1, metrics.size());
+    assertEquals("localhost", metrics.get(0).getHost());
+
+    return metrics.get(0);
+  }
+}
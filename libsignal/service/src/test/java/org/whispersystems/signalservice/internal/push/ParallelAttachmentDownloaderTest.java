@@ -0,0 +1,310 @@
+package org.whispersystems.signalservice.internal.push;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.OkHttpClient;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class ParallelAttachmentDownloaderTest {
+
+  private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+  private static final byte[] CONTENT = new byte[3 * 1024 * 1024 + 123];
+
+  static {
+    new Random(7).nextBytes(CONTENT);
+  }
+
+  private final List<long[]>  requestedRanges = new CopyOnWriteArrayList<>();
+  private final AtomicInteger failOnRequest   = new AtomicInteger(-1);
+  private final AtomicInteger requestCount    = new AtomicInteger();
+
+  private HttpServer      server;
+  private ExecutorService executor;
+  private File            destination;
+  private boolean         ignoreRange;
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/attachments/", this::handle);
+    server.start();
+
+    executor    = Executors.newCachedThreadPool();
+    destination = File.createTempFile("transfer", ".mms");
+    destination.delete();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+    executor.shutdownNow();
+    destination.delete();
+    ParallelAttachmentDownloader.getStateFile(destination).delete();
+  }
+
+  @Test
+  public void download_inParallel() throws Exception {
+    ByteArrayOutputStream tee      = new ByteArrayOutputStream();
+    AtomicLong            progress = new AtomicLong();
+
+    newDownloader().download(destination, Long.MAX_VALUE, (total, current) -> {
+      assertEquals(CONTENT.length, total);
+      progress.accumulateAndGet(current, Math::max);
+    }, tee);
+
+    assertArrayEquals(CONTENT, Files.readAllBytes(destination.toPath()));
+    assertArrayEquals(CONTENT, tee.toByteArray());
+    assertEquals(CONTENT.length, progress.get());
+    assertTrue(requestedRanges.size() > 1);
+    assertFalse(ParallelAttachmentDownloader.getStateFile(destination).exists());
+  }
+
+  @Test
+  public void download_resumesOnlyMissingRanges() throws Exception {
+    failOnRequest.set(2);
+
+    try {
+      newDownloader().download(destination, Long.MAX_VALUE, null, null);
+      fail();
+    } catch (PushNetworkException e) {
+      // Expected
+    }
+
+    assertTrue(ParallelAttachmentDownloader.getStateFile(destination).exists());
+    assertEquals(CONTENT.length, destination.length());
+
+    requestedRanges.clear();
+
+    ByteArrayOutputStream tee = new ByteArrayOutputStream();
+    newDownloader().download(destination, Long.MAX_VALUE, null, tee);
+
+    long resumed = 0;
+    for (long[] range : requestedRanges) {
+      resumed += range[1] - range[0] + 1;
+    }
+
+    assertTrue(resumed < CONTENT.length);
+    assertArrayEquals(CONTENT, Files.readAllBytes(destination.toPath()));
+    assertArrayEquals(CONTENT, tee.toByteArray());
+    assertFalse(ParallelAttachmentDownloader.getStateFile(destination).exists());
+  }
+
+  @Test
+  public void download_resumesSequentialPartialFile() throws Exception {
+    try (OutputStream out = new FileOutputStream(destination)) {
+      out.write(CONTENT, 0, 100_000);
+    }
+
+    ByteArrayOutputStream tee = new ByteArrayOutputStream();
+    newDownloader().download(destination, Long.MAX_VALUE, null, tee);
+
+    assertEquals(100_000, requestedRanges.get(0)[0]);
+    assertArrayEquals(CONTENT, Files.readAllBytes(destination.toPath()));
+    assertArrayEquals(CONTENT, tee.toByteArray());
+  }
+
+  @Test
+  public void download_serverIgnoresRange() throws Exception {
+    ignoreRange = true;
+
+    ByteArrayOutputStream tee = new ByteArrayOutputStream();
+    newDownloader().download(destination, Long.MAX_VALUE, null, tee);
+
+    assertEquals(1, requestCount.get());
+    assertArrayEquals(CONTENT, Files.readAllBytes(destination.toPath()));
+    assertArrayEquals(CONTENT, tee.toByteArray());
+  }
+
+  @Test
+  public void download_stateOnDiskNeverClaimsMissingBytes() throws Exception {
+    File          stateFile = ParallelAttachmentDownloader.getStateFile(destination);
+    File          stateCopy = File.createTempFile("transfer", ".ranges");
+    File          fileCopy  = File.createTempFile("transfer", ".mms");
+    AtomicBoolean copied    = new AtomicBoolean();
+
+    try {
+      // What a process killed right after the first write would leave behind
+      newDownloader().download(destination, Long.MAX_VALUE, (total, current) -> {
+        if (copied.compareAndSet(false, true)) {
+          try {
+            Files.copy(destination.toPath(), fileCopy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.copy(stateFile.toPath(), stateCopy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+          } catch (IOException e) {
+            throw new AssertionError(e);
+          }
+        }
+      }, null);
+
+      ParallelAttachmentDownloader.DownloadState state = ParallelAttachmentDownloader.DownloadState.read(stateCopy, fileCopy);
+
+      assertEquals(CONTENT.length, state.getTotalLength());
+      assertFalse(state.isComplete());
+
+      byte[] copy = Files.readAllBytes(fileCopy.toPath());
+      for (long[] missing : state.getMissingRanges()) {
+        Arrays.fill(copy, (int) missing[0], (int) missing[1], (byte) 0);
+      }
+
+      byte[] expected = CONTENT.clone();
+      for (long[] missing : state.getMissingRanges()) {
+        Arrays.fill(expected, (int) missing[0], (int) missing[1], (byte) 0);
+      }
+
+      assertArrayEquals(expected, copy);
+    } finally {
+      stateCopy.delete();
+      fileCopy.delete();
+    }
+  }
+
+  @Test
+  public void delete_removesDestinationAndState() throws Exception {
+    failOnRequest.set(2);
+
+    try {
+      newDownloader().download(destination, Long.MAX_VALUE, null, null);
+      fail();
+    } catch (PushNetworkException e) {
+      // Expected
+    }
+
+    assertTrue(ParallelAttachmentDownloader.getStateFile(destination).exists());
+
+    ParallelAttachmentDownloader.delete(destination);
+
+    assertFalse(destination.exists());
+    assertFalse(ParallelAttachmentDownloader.getStateFile(destination).exists());
+  }
+
+  @Test
+  public void download_teeFailureIsNotANetworkError() throws Exception {
+    OutputStream tee = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("Bad MAC");
+      }
+    };
+
+    try {
+      newDownloader().download(destination, Long.MAX_VALUE, null, tee);
+      fail();
+    } catch (InvalidMessageException e) {
+      assertEquals("Bad MAC", e.getCause().getMessage());
+    }
+  }
+
+  @Test(expected = PushNetworkException.class)
+  public void download_exceedsMaxSize() throws Exception {
+    newDownloader().download(destination, CONTENT.length - 1, null, null);
+  }
+
+  @Test
+  public void adaptChunkSize_clamped() {
+    assertEquals(ParallelAttachmentDownloader.MIN_CHUNK_SIZE, ParallelAttachmentDownloader.adaptChunkSize(1, 1_000_000_000));
+    assertEquals(ParallelAttachmentDownloader.MAX_CHUNK_SIZE, ParallelAttachmentDownloader.adaptChunkSize(100_000_000, 1_000_000));
+    assertEquals(2_000_000, ParallelAttachmentDownloader.adaptChunkSize(1_000_000, 1_000_000_000));
+  }
+
+  @Test
+  public void downloadState_mergesRanges() {
+    ParallelAttachmentDownloader.DownloadState state = new ParallelAttachmentDownloader.DownloadState();
+    state.setTotalLength(100);
+
+    state.addCompleted(10, 20);
+    state.addCompleted(30, 40);
+    state.addCompleted(15, 35);
+    state.addCompleted(50, 60);
+
+    assertEquals(40, state.getCompletedLength());
+    assertEquals(0, state.getContiguousLength());
+
+    List<long[]> missing = state.getMissingRanges();
+    assertEquals(3, missing.size());
+    assertArrayEquals(new long[] { 0, 10 }, missing.get(0));
+    assertArrayEquals(new long[] { 40, 50 }, missing.get(1));
+    assertArrayEquals(new long[] { 60, 100 }, missing.get(2));
+
+    state.addCompleted(0, 100);
+
+    assertEquals(100, state.getCompletedLength());
+    assertTrue(state.isComplete());
+  }
+
+  private ParallelAttachmentDownloader newDownloader() {
+    String url = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/attachments/abc";
+    return new ParallelAttachmentDownloader(new OkHttpClient(), url, Optional.absent(), 4, executor, new HashSet<>());
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    int     request = requestCount.getAndIncrement();
+    Matcher range   = RANGE.matcher(String.valueOf(exchange.getRequestHeaders().getFirst("Range")));
+
+    try (OutputStream body = exchange.getResponseBody()) {
+      if (ignoreRange || !range.matches()) {
+        exchange.sendResponseHeaders(200, CONTENT.length);
+        body.write(CONTENT);
+        return;
+      }
+
+      long start = Long.parseLong(range.group(1));
+      long end   = Math.min(Long.parseLong(range.group(2)), CONTENT.length - 1);
+
+      requestedRanges.add(new long[] { start, end });
+
+      if (start >= CONTENT.length) {
+        exchange.sendResponseHeaders(416, -1);
+        return;
+      }
+
+      byte[] chunk = Arrays.copyOfRange(CONTENT, (int) start, (int) end + 1);
+
+      exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + CONTENT.length);
+      exchange.sendResponseHeaders(206, chunk.length);
+
+      if (request == failOnRequest.get()) {
+        body.write(chunk, 0, chunk.length / 2);
+        body.flush();
+        throw new IOException("Dropping connection");
+      }
+
+      body.write(chunk);
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package org.whispersystems.signalservice.internal.push;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.crypto.DigestingOutputStream;
+import org.whispersystems.signalservice.api.push.exceptions.ResumeLocationInvalidException;
+import org.whispersystems.signalservice.internal.push.http.NoCipherOutputStreamFactory;
+import org.whispersystems.signalservice.internal.push.http.OutputStreamFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uploads against a local stub of the resumable upload protocol: an empty PUT asks how much the
+ * server has, and a PUT with a Content-Range appends to what it has.
+ */
+public final class ResumableUploadPipelineTest {
+
+  private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+  private static final byte[] CONTENT = new byte[5 * ResumableUploadPipeline.BLOCK_SIZE + 77];
+
+  static {
+    new Random(11).nextBytes(CONTENT);
+  }
+
+  private final ByteArrayOutputStream received         = new ByteArrayOutputStream();
+  private final List<long[]>          uploadedRanges   = new CopyOnWriteArrayList<>();
+  private final AtomicInteger         uploadRequests   = new AtomicInteger();
+  private final AtomicInteger         dropOnRequest    = new AtomicInteger(-1);
+  private final AtomicInteger         factoryCalls     = new AtomicInteger();
+
+  private HttpServer      server;
+  private ExecutorService executor;
+  private boolean         gone;
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/upload", this::handle);
+    server.start();
+
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void upload_inChunks() throws Exception {
+    AtomicLong progress = new AtomicLong();
+
+    byte[] digest = newPipeline().upload(new ByteArrayInputStream(CONTENT), countingFactory(), "application/octet-stream", CONTENT.length, (total, current) -> {
+      assertEquals(CONTENT.length, total);
+      progress.accumulateAndGet(current, Math::max);
+    }, null);
+
+    assertArrayEquals(CONTENT, received.toByteArray());
+    assertArrayEquals(sha256(CONTENT), digest);
+    assertEquals(CONTENT.length, progress.get());
+    assertTrue(uploadRequests.get() > 1);
+  }
+
+  @Test
+  public void upload_resumesAfterDroppedConnectionWithoutEncryptingAgain() throws Exception {
+    dropOnRequest.set(1);
+
+    byte[] digest = newPipeline().upload(new ByteArrayInputStream(CONTENT), countingFactory(), "application/octet-stream", CONTENT.length, null, null);
+
+    assertArrayEquals(CONTENT, received.toByteArray());
+    assertArrayEquals(sha256(CONTENT), digest);
+    assertEquals(1, factoryCalls.get());
+
+    long[] dropped = uploadedRanges.get(1);
+    long[] resumed = uploadedRanges.get(2);
+
+    assertTrue(resumed[0] > dropped[0]);
+    assertTrue(resumed[0] <= dropped[1]);
+  }
+
+  @Test
+  public void upload_startsAtServerOffset() throws Exception {
+    received.write(CONTENT, 0, 300_000);
+
+    byte[] digest = newPipeline().upload(new ByteArrayInputStream(CONTENT), countingFactory(), "application/octet-stream", CONTENT.length, null, null);
+
+    assertEquals(300_000, uploadedRanges.get(0)[0]);
+    assertArrayEquals(CONTENT, received.toByteArray());
+    assertArrayEquals(sha256(CONTENT), digest);
+  }
+
+  @Test
+  public void upload_alreadyComplete() throws Exception {
+    received.write(CONTENT);
+
+    byte[] digest = newPipeline().upload(new ByteArrayInputStream(CONTENT), countingFactory(), "application/octet-stream", CONTENT.length, null, null);
+
+    assertEquals(0, uploadRequests.get());
+    assertArrayEquals(sha256(CONTENT), digest);
+  }
+
+  @Test(expected = ResumeLocationInvalidException.class)
+  public void upload_locationGone() throws Exception {
+    gone = true;
+    newPipeline().upload(new ByteArrayInputStream(CONTENT), countingFactory(), "application/octet-stream", CONTENT.length, null, null);
+  }
+
+  @Test
+  public void adaptRequestBlocks_clamped() {
+    assertEquals(ResumableUploadPipeline.MIN_REQUEST_BLOCKS, ResumableUploadPipeline.adaptRequestBlocks(1, 1_000_000_000));
+    assertEquals(ResumableUploadPipeline.MAX_REQUEST_BLOCKS, ResumableUploadPipeline.adaptRequestBlocks(100_000_000, 1_000_000));
+    assertEquals(4, ResumableUploadPipeline.adaptRequestBlocks(ResumableUploadPipeline.BLOCK_SIZE * 2, 1_000_000_000));
+  }
+
+  private ResumableUploadPipeline newPipeline() {
+    HttpUrl url = HttpUrl.get("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/upload");
+    // Keep OkHttp from silently replaying the dropped request, so the pipeline's own resume is what runs
+    OkHttpClient client = new OkHttpClient.Builder().retryOnConnectionFailure(false).build();
+
+    return new ResumableUploadPipeline(client, url, Optional.absent(), executor, new HashSet<>());
+  }
+
+  private OutputStreamFactory countingFactory() {
+    return new OutputStreamFactory() {
+      @Override
+      public DigestingOutputStream createFor(OutputStream wrap) {
+        factoryCalls.incrementAndGet();
+        return new NoCipherOutputStreamFactory().createFor(wrap);
+      }
+    };
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    if (gone) {
+      exchange.sendResponseHeaders(404, -1);
+      exchange.close();
+      return;
+    }
+
+    Matcher range = CONTENT_RANGE.matcher(exchange.getRequestHeaders().getFirst("Content-Range"));
+
+    if (range.matches()) {
+      int  request = uploadRequests.getAndIncrement();
+      long start   = Long.parseLong(range.group(1));
+      long end     = Long.parseLong(range.group(2)) + 1;
+
+      uploadedRanges.add(new long[] { start, end });
+
+      if (start > received.size()) {
+        exchange.sendResponseHeaders(400, -1);
+        exchange.close();
+        return;
+      }
+
+      byte[] body = readFully(exchange.getRequestBody(), request == dropOnRequest.get() ? (end - start) / 2 : end - start);
+      int    skip = (int) (received.size() - start);
+
+      if (skip < body.length) {
+        received.write(body, skip, body.length - skip);
+      }
+
+      if (request == dropOnRequest.get()) {
+        throw new IOException("Dropping connection");
+      }
+    }
+
+    if (received.size() == CONTENT.length) {
+      exchange.sendResponseHeaders(200, -1);
+    } else {
+      if (received.size() > 0) {
+        exchange.getResponseHeaders().add("Range", "bytes=0-" + (received.size() - 1));
+      }
+      exchange.sendResponseHeaders(308, -1);
+    }
+
+    exchange.close();
+  }
+
+  private static byte[] readFully(InputStream in, long length) throws IOException {
+    ByteArrayOutputStream out    = new ByteArrayOutputStream();
+    byte[]                buffer = new byte[8192];
+
+    while (out.size() < length) {
+      int read = in.read(buffer, 0, (int) Math.min(buffer.length, length - out.size()));
+      if (read == -1) break;
+      out.write(buffer, 0, read);
+    }
+
+    return out.toByteArray();
+  }
+
+  private static byte[] sha256(byte[] data) throws Exception {
+    return MessageDigest.getInstance("SHA-256").digest(data);
+  }
+}
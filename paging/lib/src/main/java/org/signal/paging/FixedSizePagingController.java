@@ -29,6 +29,7 @@ class FixedSizePagingController<E> implements PagingController {
   private final PagingConfig             config;
   private final MutableLiveData<List<E>> liveData;
   private final DataStatus               loadState;
+  private final PageAnchors<?, E>        anchors;
 
   private List<E> data;
 
@@ -44,6 +45,7 @@ class FixedSizePagingController<E> implements PagingController {
     this.liveData   = liveData;
     this.loadState  = DataStatus.obtain(size);
     this.data       = new CompressedList<>(loadState.size());
+    this.anchors    = dataSource instanceof KeysetPagedDataSource ? new PageAnchors<>((KeysetPagedDataSource<?, E>) dataSource, config.pageSize()) : null;
   }
 
   /**
@@ -96,7 +98,8 @@ class FixedSizePagingController<E> implements PagingController {
         return;
       }
 
-      List<E> loaded = dataSource.load(loadStart, loadEnd - loadStart, () -> invalidated);
+      List<E> loaded = anchors != null ? anchors.load(loadStart, loadEnd - loadStart, () -> invalidated)
+                                       : dataSource.load(loadStart, loadEnd - loadStart, () -> invalidated);
 
       if (invalidated) {
         Log.w(TAG, buildLog(aroundIndex, "Invalidated! Just after data was loaded."));
@@ -0,0 +1,33 @@
+package org.signal.paging;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.util.List;
+
+/**
+ * A {@link PagedDataSource} that can also load a range relative to an item it has already loaded,
+ * so that a page far from the start doesn't have to be found by skipping over everything in front
+ * of it.
+ */
+public interface KeysetPagedDataSource<Key, T> extends PagedDataSource<T> {
+
+  /**
+   * @param after The key of an item that was loaded earlier in the same invalidation cycle.
+   * @param skip How many items after {@code after} to skip before the first item of the results.
+   * @param length The total number of items you should return.
+   * @param cancellationSignal An object that you can check to see if the load operation was canceled.
+   *
+   * @return The same as {@link #load(int, int, CancellationSignal)} would for the range that starts
+   *         {@code skip + 1} items after {@code after}.
+   */
+  @WorkerThread
+  @NonNull List<T> load(@NonNull Key after, int skip, int length, @NonNull CancellationSignal cancellationSignal);
+
+  /**
+   * @return The key to load later pages after this item, or null if the item can't be used as an
+   *         anchor (i.e. it isn't backed by the underlying data set).
+   */
+  @Nullable Key getKey(@NonNull T item);
+}
@@ -0,0 +1,54 @@
+package org.signal.paging;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Remembers the keys of the items at the end of each page loaded from a
+ * {@link KeysetPagedDataSource}, and loads later pages after the closest one instead of at an
+ * offset from the start of the data set.
+ *
+ * Indexes are only meaningful within one invalidation cycle, so there should be one of these per
+ * {@link FixedSizePagingController}. Not thread-safe; all loads are expected to happen on the
+ * controller's fetch executor.
+ */
+final class PageAnchors<Key, E> {
+
+  private final KeysetPagedDataSource<Key, E> dataSource;
+  private final int                           pageSize;
+  private final TreeMap<Integer, Key>         anchors;
+
+  PageAnchors(@NonNull KeysetPagedDataSource<Key, E> dataSource, int pageSize) {
+    this.dataSource = dataSource;
+    this.pageSize   = pageSize;
+    this.anchors    = new TreeMap<>();
+  }
+
+  @NonNull List<E> load(int start, int length, @NonNull PagedDataSource.CancellationSignal cancellationSignal) {
+    Map.Entry<Integer, Key> anchor = anchors.floorEntry(start - 1);
+    List<E>                 loaded;
+
+    if (anchor != null) {
+      loaded = dataSource.load(anchor.getValue(), start - 1 - anchor.getKey(), length, cancellationSignal);
+    } else {
+      loaded = dataSource.load(start, length, cancellationSignal);
+    }
+
+    for (int i = 0; i < loaded.size(); i++) {
+      int index = start + i;
+
+      if ((index + 1) % pageSize == 0 || i == loaded.size() - 1) {
+        Key key = dataSource.getKey(loaded.get(i));
+
+        if (key != null) {
+          anchors.put(index, key);
+        }
+      }
+    }
+
+    return loaded;
+  }
+}
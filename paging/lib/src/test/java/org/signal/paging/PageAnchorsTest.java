@@ -0,0 +1,148 @@
+package org.signal.paging;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public final class PageAnchorsTest {
+
+  private static final PagedDataSource.CancellationSignal NOT_CANCELED = () -> false;
+
+  @Test
+  public void firstPage_loadsAtOffset() {
+    TestDataSource                dataSource = new TestDataSource(100);
+    PageAnchors<Integer, Integer> anchors    = new PageAnchors<>(dataSource, 10);
+
+    assertEquals(range(0, 10), anchors.load(0, 10, NOT_CANCELED));
+    assertEquals(Collections.singletonList("offset(0, 10)"), dataSource.calls);
+  }
+
+  @Test
+  public void nextPage_loadsAfterEndOfPreviousPage() {
+    TestDataSource                dataSource = new TestDataSource(100);
+    PageAnchors<Integer, Integer> anchors    = new PageAnchors<>(dataSource, 10);
+
+    anchors.load(0, 10, NOT_CANCELED);
+
+    assertEquals(range(10, 20), anchors.load(10, 10, NOT_CANCELED));
+    assertEquals(Arrays.asList("offset(0, 10)", "after(9, 0, 10)"), dataSource.calls);
+  }
+
+  @Test
+  public void laterPages_reuseClosestAnchor() {
+    TestDataSource                dataSource = new TestDataSource(100);
+    PageAnchors<Integer, Integer> anchors    = new PageAnchors<>(dataSource, 10);
+
+    anchors.load(0, 10, NOT_CANCELED);
+
+    assertEquals(range(30, 40), anchors.load(30, 10, NOT_CANCELED));
+    assertEquals(range(20, 30), anchors.load(20, 10, NOT_CANCELED));
+    assertEquals(range(40, 50), anchors.load(40, 10, NOT_CANCELED));
+    assertEquals(range(35, 45), anchors.load(35, 10, NOT_CANCELED));
+
+    assertEquals(Arrays.asList("offset(0, 10)", "after(9, 20, 10)", "after(9, 10, 10)", "after(39, 0, 10)", "after(29, 5, 10)"), dataSource.calls);
+  }
+
+  @Test
+  public void loadBeforeFirstAnchor_loadsAtOffset() {
+    TestDataSource                dataSource = new TestDataSource(100);
+    PageAnchors<Integer, Integer> anchors    = new PageAnchors<>(dataSource, 10);
+
+    anchors.load(50, 10, NOT_CANCELED);
+
+    assertEquals(range(0, 10), anchors.load(0, 10, NOT_CANCELED));
+    assertEquals(range(40, 50), anchors.load(40, 10, NOT_CANCELED));
+    assertEquals(Arrays.asList("offset(50, 10)", "offset(0, 10)", "after(9, 30, 10)"), dataSource.calls);
+  }
+
+  @Test
+  public void largeLoad_anchorsAtEveryPageBoundary() {
+    TestDataSource                dataSource = new TestDataSource(100);
+    PageAnchors<Integer, Integer> anchors    = new PageAnchors<>(dataSource, 10);
+
+    anchors.load(0, 30, NOT_CANCELED);
+
+    assertEquals(range(25, 30), anchors.load(25, 5, NOT_CANCELED));
+    assertEquals(Arrays.asList("offset(0, 30)", "after(19, 5, 5)"), dataSource.calls);
+  }
+
+  @Test
+  public void shortPage_anchorsAtLastLoadedItem() {
+    TestDataSource                dataSource = new TestDataSource(25);
+    PageAnchors<Integer, Integer> anchors    = new PageAnchors<>(dataSource, 10);
+
+    assertEquals(range(20, 25), anchors.load(20, 10, NOT_CANCELED));
+    assertEquals(Collections.emptyList(), anchors.load(25, 10, NOT_CANCELED));
+    assertEquals(Arrays.asList("offset(20, 10)", "after(24, 0, 10)"), dataSource.calls);
+  }
+
+  @Test
+  public void itemWithoutKey_isNotUsedAsAnchor() {
+    TestDataSource                dataSource = new TestDataSource(100, 9);
+    PageAnchors<Integer, Integer> anchors    = new PageAnchors<>(dataSource, 10);
+
+    anchors.load(0, 10, NOT_CANCELED);
+
+    assertEquals(range(10, 20), anchors.load(10, 10, NOT_CANCELED));
+    assertEquals(Arrays.asList("offset(0, 10)", "offset(10, 10)"), dataSource.calls);
+  }
+
+  private static @NonNull List<Integer> range(int start, int end) {
+    List<Integer> range = new ArrayList<>(end - start);
+
+    for (int i = start; i < end; i++) {
+      range.add(i);
+    }
+
+    return range;
+  }
+
+  /**
+   * The items are their own indexes and keys.
+   */
+  private static final class TestDataSource implements KeysetPagedDataSource<Integer, Integer> {
+
+    private final int          size;
+    private final Set<Integer> withoutKey;
+    private final List<String> calls = new ArrayList<>();
+
+    TestDataSource(int size, Integer... withoutKey) {
+      this.size       = size;
+      this.withoutKey = new HashSet<>(Arrays.asList(withoutKey));
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public @NonNull List<Integer> load(int start, int length, @NonNull CancellationSignal cancellationSignal) {
+      calls.add("offset(" + start + ", " + length + ")");
+      return range(Math.min(start, size), Math.min(start + length, size));
+    }
+
+    @Override
+    public @NonNull List<Integer> load(@NonNull Integer after, int skip, int length, @NonNull CancellationSignal cancellationSignal) {
+      calls.add("after(" + after + ", " + skip + ", " + length + ")");
+
+      int start = after + 1 + skip;
+      return range(Math.min(start, size), Math.min(start + length, size));
+    }
+
+    @Override
+    public @Nullable Integer getKey(@NonNull Integer item) {
+      return withoutKey.contains(item) ? null : item;
+    }
+  }
+}
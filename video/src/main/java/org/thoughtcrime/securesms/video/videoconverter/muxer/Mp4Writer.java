@@ -22,23 +22,15 @@ package org.thoughtcrime.securesms.video.videoconverter.muxer;
 import androidx.annotation.NonNull;
 
 import org.mp4parser.Box;
-import org.mp4parser.boxes.iso14496.part12.ChunkOffsetBox;
-import org.mp4parser.boxes.iso14496.part12.CompositionTimeToSample;
 import org.mp4parser.boxes.iso14496.part12.FileTypeBox;
 import org.mp4parser.boxes.iso14496.part12.MediaHeaderBox;
 import org.mp4parser.boxes.iso14496.part12.MovieBox;
 import org.mp4parser.boxes.iso14496.part12.MovieHeaderBox;
-import org.mp4parser.boxes.iso14496.part12.SampleSizeBox;
 import org.mp4parser.boxes.iso14496.part12.SampleTableBox;
-import org.mp4parser.boxes.iso14496.part12.SampleToChunkBox;
-import org.mp4parser.boxes.iso14496.part12.SyncSampleBox;
-import org.mp4parser.boxes.iso14496.part12.TimeToSampleBox;
 import org.mp4parser.boxes.iso14496.part12.TrackBox;
 import org.mp4parser.boxes.iso14496.part12.TrackHeaderBox;
 import org.mp4parser.streaming.StreamingSample;
 import org.mp4parser.streaming.StreamingTrack;
-import org.mp4parser.streaming.extensions.CompositionTimeSampleExtension;
-import org.mp4parser.streaming.extensions.CompositionTimeTrackExtension;
 import org.mp4parser.streaming.extensions.SampleFlagsSampleExtension;
 import org.mp4parser.streaming.extensions.TrackIdTrackExtension;
 import org.mp4parser.streaming.output.SampleSink;
@@ -50,7 +42,9 @@ import org.signal.core.util.logging.Log;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -61,49 +55,26 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
-
-import static org.mp4parser.tools.CastUtils.l2i;
 
 /**
  * Creates an MP4 file with ftyp, mdat+, moov order.
  * A very special property of this variant is that it written sequentially. You can start transferring the
  * data while the <code>sink</code> receives it. (in contrast to typical implementations which need random
  * access to write length fields at the beginning of the file)
+ * <p>
+ * Each chunk is written as soon as it is complete and it is this track's turn in the interleave. When the
+ * sink is a {@link GatheringByteChannel} the mdat header and all of the chunk's sample buffers are handed
+ * to it in a single vectored write, without copying the sample data.
  */
 final class Mp4Writer extends DefaultBoxes implements SampleSink {
 
   private static final String TAG = "Mp4Writer";
 
-  private final WritableByteChannel  sink;
-  private final List<StreamingTrack> source;
-  private final Date                 creationTime = new Date();
-
-
-  /**
-   * Contains the start time of the next segment in line that will be created.
-   */
-  private final Map<StreamingTrack, Long>                  nextChunkCreateStartTime = new ConcurrentHashMap<>();
-  /**
-   * Contains the start time of the next segment in line that will be written.
-   */
-  private final Map<StreamingTrack, Long>                  nextChunkWriteStartTime  = new ConcurrentHashMap<>();
-  /**
-   * Contains the next sample's start time.
-   */
-  private final Map<StreamingTrack, Long>                  nextSampleStartTime      = new HashMap<>();
-  /**
-   * Buffers the samples per track until there are enough samples to form a Segment.
-   */
-  private final Map<StreamingTrack, List<StreamingSample>> sampleBuffers            = new HashMap<>();
-  private final Map<StreamingTrack, TrackBox>              trackBoxes               = new HashMap<>();
-  /**
-   * Buffers segments until it's time for a segment to be written.
-   */
-  private final Map<StreamingTrack, Queue<ChunkContainer>> chunkBuffers             = new ConcurrentHashMap<>();
-  private final Map<StreamingTrack, Long>                  chunkNumbers             = new HashMap<>();
-  private final Map<StreamingTrack, Long>                  sampleNumbers            = new HashMap<>();
-  private       long                                       bytesWritten             = 0;
+  private final WritableByteChannel        sink;
+  private final List<StreamingTrack>       source;
+  private final Date                       creationTime = new Date();
+  private final Map<StreamingTrack, Track> tracks       = new HashMap<>();
+  private       long                       bytesWritten = 0;
 
   Mp4Writer(final @NonNull List<StreamingTrack> source, final @NonNull WritableByteChannel sink) throws IOException {
     this.source = new ArrayList<>(source);
@@ -112,13 +83,7 @@ final class Mp4Writer extends DefaultBoxes implements SampleSink {
     final HashSet<Long> trackIds = new HashSet<>();
     for (StreamingTrack streamingTrack : source) {
       streamingTrack.setSampleSink(this);
-      chunkNumbers.put(streamingTrack, 1L);
-      sampleNumbers.put(streamingTrack, 1L);
-      nextSampleStartTime.put(streamingTrack, 0L);
-      nextChunkCreateStartTime.put(streamingTrack, 0L);
-      nextChunkWriteStartTime.put(streamingTrack, 0L);
-      sampleBuffers.put(streamingTrack, new ArrayList<>());
-      chunkBuffers.put(streamingTrack, new LinkedList<>());
+      tracks.put(streamingTrack, new Track());
       if (streamingTrack.getTrackExtension(TrackIdTrackExtension.class) != null) {
         final TrackIdTrackExtension trackIdTrackExtension = streamingTrack.getTrackExtension(TrackIdTrackExtension.class);
         if (trackIds.contains(trackIdTrackExtension.getTrackId())) {
@@ -161,17 +126,21 @@ final class Mp4Writer extends DefaultBoxes implements SampleSink {
 
     // update durations
     for (StreamingTrack streamingTrack : source) {
-      final TrackBox       tb   = trackBoxes.get(streamingTrack);
-      final MediaHeaderBox mdhd = Path.getPath(tb, "mdia[0]/mdhd[0]");
+      final Track          track = track(streamingTrack);
+      final TrackBox       tb    = track.trackBox;
+      final MediaHeaderBox mdhd  = Path.getPath(tb, "mdia[0]/mdhd[0]");
       mdhd.setCreationTime(creationTime);
       mdhd.setModificationTime(creationTime);
-      mdhd.setDuration(Objects.requireNonNull(nextSampleStartTime.get(streamingTrack)));
+      mdhd.setDuration(track.nextSampleStartTime);
       mdhd.setTimescale(streamingTrack.getTimescale());
       mdhd.setLanguage(streamingTrack.getLanguage());
+
+      final SampleTableBox stbl = Objects.requireNonNull(Path.getPath(tb, "mdia[0]/minf[0]/stbl[0]"));
+      track.sampleTable.writeTo(stbl);
       movieBox.addBox(tb);
 
       final TrackHeaderBox tkhd     = Path.getPath(tb, "tkhd[0]");
-      final double         duration = (double) Objects.requireNonNull(nextSampleStartTime.get(streamingTrack)) / streamingTrack.getTimescale();
+      final double         duration = (double) track.nextSampleStartTime / streamingTrack.getTimescale();
       tkhd.setDuration((long) (mvhd.getTimescale() * duration));
     }
 
@@ -182,8 +151,8 @@ final class Mp4Writer extends DefaultBoxes implements SampleSink {
   private void sortTracks() {
     Collections.sort(source, (o1, o2) -> {
       // compare times and account for timestamps!
-      final long a = Objects.requireNonNull(nextChunkWriteStartTime.get(o1)) * o2.getTimescale();
-      final long b = Objects.requireNonNull(nextChunkWriteStartTime.get(o2)) * o1.getTimescale();
+      final long a = track(o1).nextChunkWriteStartTime * o2.getTimescale();
+      final long b = track(o2).nextChunkWriteStartTime * o1.getTimescale();
       return (int) Math.signum(a - b);
     });
   }
@@ -200,7 +169,7 @@ final class Mp4Writer extends DefaultBoxes implements SampleSink {
     long   maxTrackId = 0;
     double duration   = 0;
     for (StreamingTrack streamingTrack : source) {
-      duration   = Math.max((double) Objects.requireNonNull(nextSampleStartTime.get(streamingTrack)) / streamingTrack.getTimescale(), duration);
+      duration   = Math.max((double) track(streamingTrack).nextSampleStartTime / streamingTrack.getTimescale(), duration);
       timescales = Mp4Arrays.copyOfAndAppend(timescales, streamingTrack.getTimescale());
       maxTrackId = Math.max(streamingTrack.getTrackExtension(TrackIdTrackExtension.class).getTrackId(), maxTrackId);
     }
@@ -220,6 +189,10 @@ final class Mp4Writer extends DefaultBoxes implements SampleSink {
     }
   }
 
+  private @NonNull Track track(final @NonNull StreamingTrack streamingTrack) {
+    return Objects.requireNonNull(tracks.get(streamingTrack));
+  }
+
   /**
    * Tests if the currently received samples for a given track
    * are already a 'chunk' as we want to have it. The next
@@ -227,21 +200,16 @@ final class Mp4Writer extends DefaultBoxes implements SampleSink {
    * will be added to the fragment buffer later.
    *
    * @param streamingTrack track to test
-   * @param next           the lastest samples
+   * @param track          the muxing state of the track
    * @return true if a chunk is to b e created.
    */
-  private boolean isChunkReady(StreamingTrack streamingTrack, StreamingSample next) {
-    final long ts   = Objects.requireNonNull(nextSampleStartTime.get(streamingTrack));
-    final long cfst = Objects.requireNonNull(nextChunkCreateStartTime.get(streamingTrack));
-
-    return (ts >= cfst + 2 * streamingTrack.getTimescale());
+  private boolean isChunkReady(StreamingTrack streamingTrack, Track track) {
+    return (track.nextSampleStartTime >= track.nextChunkCreateStartTime + 2 * streamingTrack.getTimescale());
     // chunk interleave of 2 seconds
   }
 
   private void writeChunkContainer(ChunkContainer chunkContainer) throws IOException {
-    final TrackBox       tb   = trackBoxes.get(chunkContainer.streamingTrack);
-    final ChunkOffsetBox stco = Objects.requireNonNull(Path.getPath(tb, "mdia[0]/minf[0]/stbl[0]/stco[0]"));
-    stco.setChunkOffsets(Mp4Arrays.copyOfAndAppend(stco.getChunkOffsets(), bytesWritten + 8));
+    track(chunkContainer.streamingTrack).sampleTable.addChunkOffset(bytesWritten + 8);
     write(sink, chunkContainer.mdat);
   }
 
@@ -249,121 +217,67 @@ final class Mp4Writer extends DefaultBoxes implements SampleSink {
           final @NonNull StreamingSample streamingSample,
           final @NonNull StreamingTrack streamingTrack) throws IOException
   {
+    final Track track = track(streamingTrack);
 
-    TrackBox tb = trackBoxes.get(streamingTrack);
-    if (tb == null) {
-      tb = new TrackBox();
+    if (track.trackBox == null) {
+      final TrackBox tb = new TrackBox();
       tb.addBox(createTkhd(streamingTrack));
       tb.addBox(createMdia(streamingTrack));
-      trackBoxes.put(streamingTrack, tb);
+      track.trackBox = tb;
     }
 
-    if (isChunkReady(streamingTrack, streamingSample)) {
+    if (isChunkReady(streamingTrack, track)) {
 
       final ChunkContainer chunkContainer = createChunkContainer(streamingTrack);
       //System.err.println("Creating fragment for " + streamingTrack);
-      Objects.requireNonNull(sampleBuffers.get(streamingTrack)).clear();
-      nextChunkCreateStartTime.put(streamingTrack, Objects.requireNonNull(nextChunkCreateStartTime.get(streamingTrack)) + chunkContainer.duration);
-      final Queue<ChunkContainer> chunkQueue = Objects.requireNonNull(chunkBuffers.get(streamingTrack));
-      chunkQueue.add(chunkContainer);
+      track.nextChunkCreateStartTime += chunkContainer.duration;
+      track.chunkQueue.add(chunkContainer);
       if (source.get(0) == streamingTrack) {
 
         Queue<ChunkContainer> tracksFragmentQueue;
         StreamingTrack        currentStreamingTrack;
         // This will write AT LEAST the currently created fragment and possibly a few more
-        while (!(tracksFragmentQueue = chunkBuffers.get((currentStreamingTrack = this.source.get(0)))).isEmpty()) {
+        while (!(tracksFragmentQueue = track((currentStreamingTrack = this.source.get(0))).chunkQueue).isEmpty()) {
           final ChunkContainer currentFragmentContainer = tracksFragmentQueue.remove();
           writeChunkContainer(currentFragmentContainer);
           Log.d(TAG, "write chunk " + currentStreamingTrack.getHandler() + ". duration " + (double) currentFragmentContainer.duration / currentStreamingTrack.getTimescale());
-          final long ts = Objects.requireNonNull(nextChunkWriteStartTime.get(currentStreamingTrack)) + currentFragmentContainer.duration;
-          nextChunkWriteStartTime.put(currentStreamingTrack, ts);
-          Log.d(TAG, currentStreamingTrack.getHandler() + " track advanced to " + (double) ts / currentStreamingTrack.getTimescale());
+          final Track currentTrack = track(currentStreamingTrack);
+          currentTrack.nextChunkWriteStartTime += currentFragmentContainer.duration;
+          Log.d(TAG, currentStreamingTrack.getHandler() + " track advanced to " + (double) currentTrack.nextChunkWriteStartTime / currentStreamingTrack.getTimescale());
           sortTracks();
         }
       } else {
-        Log.d(TAG, streamingTrack.getHandler() + " track delayed, queue size is " + chunkQueue.size());
+        Log.d(TAG, streamingTrack.getHandler() + " track delayed, queue size is " + track.chunkQueue.size());
       }
     }
 
-    Objects.requireNonNull(sampleBuffers.get(streamingTrack)).add(streamingSample);
-    nextSampleStartTime.put(streamingTrack, Objects.requireNonNull(nextSampleStartTime.get(streamingTrack)) + streamingSample.getDuration());
-
+    track.samples.add(streamingSample);
+    track.nextSampleStartTime += streamingSample.getDuration();
   }
 
   private ChunkContainer createChunkContainer(final @NonNull StreamingTrack streamingTrack) {
+    final Track                 track       = track(streamingTrack);
+    final List<StreamingSample> samples     = track.samples;
+    final long                  chunkNumber = track.chunkNumber++;
+
+    // The mdat takes ownership of the buffered samples, the next chunk starts a fresh list of similar size
+    track.samples = new ArrayList<>(samples.size());
 
-    final List<StreamingSample> samples     = Objects.requireNonNull(sampleBuffers.get(streamingTrack));
-    final long                  chunkNumber = Objects.requireNonNull(chunkNumbers.get(streamingTrack));
-    chunkNumbers.put(streamingTrack, chunkNumber + 1);
     final ChunkContainer cc = new ChunkContainer();
     cc.streamingTrack = streamingTrack;
     cc.mdat           = new Mdat(samples);
-    cc.duration       = Objects.requireNonNull(nextSampleStartTime.get(streamingTrack)) - Objects.requireNonNull(nextChunkCreateStartTime.get(streamingTrack));
-    final TrackBox         tb   = trackBoxes.get(streamingTrack);
-    final SampleTableBox   stbl = Objects.requireNonNull(Path.getPath(tb, "mdia[0]/minf[0]/stbl[0]"));
-    final SampleToChunkBox stsc = Objects.requireNonNull(Path.getPath(stbl, "stsc[0]"));
-    if (stsc.getEntries().isEmpty()) {
-      final List<SampleToChunkBox.Entry> entries = new ArrayList<>();
-      stsc.setEntries(entries);
-      entries.add(new SampleToChunkBox.Entry(chunkNumber, samples.size(), 1));
-    } else {
-      final SampleToChunkBox.Entry e = stsc.getEntries().get(stsc.getEntries().size() - 1);
-      if (e.getSamplesPerChunk() != samples.size()) {
-        stsc.getEntries().add(new SampleToChunkBox.Entry(chunkNumber, samples.size(), 1));
-      }
-    }
-    long sampleNumber = Objects.requireNonNull(sampleNumbers.get(streamingTrack));
-
-    final SampleSizeBox     stsz = Objects.requireNonNull(Path.getPath(stbl, "stsz[0]"));
-    final TimeToSampleBox   stts = Objects.requireNonNull(Path.getPath(stbl, "stts[0]"));
-    SyncSampleBox           stss = Path.getPath(stbl, "stss[0]");
-    CompositionTimeToSample ctts = Path.getPath(stbl, "ctts[0]");
-    if (streamingTrack.getTrackExtension(CompositionTimeTrackExtension.class) != null) {
-      if (ctts == null) {
-        ctts = new CompositionTimeToSample();
-        ctts.setEntries(new ArrayList<>());
-
-        final ArrayList<Box> bs = new ArrayList<>(stbl.getBoxes());
-        bs.add(bs.indexOf(stts), ctts);
-      }
-    }
-
-    final long[] sampleSizes = new long[samples.size()];
-    int          i           = 0;
-    for (StreamingSample sample : samples) {
-      sampleSizes[i++] = sample.getContent().limit();
+    cc.duration       = track.nextSampleStartTime - track.nextChunkCreateStartTime;
 
-      if (ctts != null) {
-        ctts.getEntries().add(new CompositionTimeToSample.Entry(1, l2i(sample.getSampleExtension(CompositionTimeSampleExtension.class).getCompositionTimeOffset())));
-      }
+    final SampleTable sampleTable = track.sampleTable;
+    sampleTable.addChunk(chunkNumber, samples.size());
 
-      if (stts.getEntries().isEmpty()) {
-        final ArrayList<TimeToSampleBox.Entry> entries = new ArrayList<>(stts.getEntries());
-        entries.add(new TimeToSampleBox.Entry(1, sample.getDuration()));
-        stts.setEntries(entries);
-      } else {
-        final TimeToSampleBox.Entry sttsEntry = stts.getEntries().get(stts.getEntries().size() - 1);
-        if (sttsEntry.getDelta() == sample.getDuration()) {
-          sttsEntry.setCount(sttsEntry.getCount() + 1);
-        } else {
-          stts.getEntries().add(new TimeToSampleBox.Entry(1, sample.getDuration()));
-        }
-      }
+    for (StreamingSample sample : samples) {
       final SampleFlagsSampleExtension sampleFlagsSampleExtension = sample.getSampleExtension(SampleFlagsSampleExtension.class);
-      if (sampleFlagsSampleExtension != null && sampleFlagsSampleExtension.isSyncSample()) {
-        if (stss == null) {
-          stss = new SyncSampleBox();
-          stbl.addBox(stss);
-        }
-        stss.setSampleNumber(Mp4Arrays.copyOfAndAppend(stss.getSampleNumber(), sampleNumber));
-      }
-      sampleNumber++;
+      final boolean                    isSync                     = sampleFlagsSampleExtension != null && sampleFlagsSampleExtension.isSyncSample();
 
+      sampleTable.addSample(sample.getContent().limit(), sample.getDuration(), isSync);
     }
-    stsz.setSampleSizes(Mp4Arrays.copyOfAndAppend(stsz.getSampleSizes(), sampleSizes));
 
-    sampleNumbers.put(streamingTrack, sampleNumber);
-    samples.clear();
     Log.d(TAG, "chunk container created for " + streamingTrack.getHandler() + ". mdat size: " + cc.mdat.size + ". chunk duration is " + (double) cc.duration / streamingTrack.getTimescale());
     return cc;
   }
@@ -378,12 +292,12 @@ final class Mp4Writer extends DefaultBoxes implements SampleSink {
     return mdhd;
   }
 
-  private class Mdat implements Box {
-    final ArrayList<StreamingSample> samples;
-    long size;
+  private static class Mdat implements Box {
+    List<StreamingSample> samples;
+    long                  size;
 
     Mdat(final @NonNull List<StreamingSample> samples) {
-      this.samples = new ArrayList<>(samples);
+      this.samples = samples;
       size         = 8;
       for (StreamingSample sample : samples) {
         size += sample.getContent().limit();
@@ -402,23 +316,72 @@ final class Mp4Writer extends DefaultBoxes implements SampleSink {
 
     @Override
     public void getBox(WritableByteChannel writableByteChannel) throws IOException {
-      writableByteChannel.write(ByteBuffer.wrap(new byte[]{
+      final ByteBuffer header = ByteBuffer.wrap(new byte[]{
               (byte) ((size & 0xff000000) >> 24),
               (byte) ((size & 0xff0000) >> 16),
               (byte) ((size & 0xff00) >> 8),
               (byte) ((size & 0xff)),
               109, 100, 97, 116, // mdat
 
-      }));
-      for (StreamingSample sample : samples) {
-        writableByteChannel.write((ByteBuffer) sample.getContent().rewind());
+      });
+
+      if (writableByteChannel instanceof GatheringByteChannel) {
+        final ByteBuffer[] buffers = new ByteBuffer[samples.size() + 1];
+        buffers[0] = header;
+        for (int i = 0; i < samples.size(); i++) {
+          buffers[i + 1] = (ByteBuffer) samples.get(i).getContent().rewind();
+        }
+
+        final GatheringByteChannel gatheringByteChannel = (GatheringByteChannel) writableByteChannel;
+        long                       remaining            = size;
+        while (remaining > 0) {
+          remaining -= gatheringByteChannel.write(buffers);
+        }
+      } else {
+        writableByteChannel.write(header);
+        for (StreamingSample sample : samples) {
+          writableByteChannel.write((ByteBuffer) sample.getContent().rewind());
+        }
       }
+
+      // Written chunks are never read again, release the sample data as early as possible
+      samples = Collections.emptyList();
     }
   }
 
-  private class ChunkContainer {
+  private static class ChunkContainer {
     Mdat           mdat;
     StreamingTrack streamingTrack;
     long           duration;
   }
+
+  /**
+   * Muxing state of a single track.
+   */
+  private static class Track {
+    private final SampleTable           sampleTable = new SampleTable();
+    private final Queue<ChunkContainer> chunkQueue  = new ArrayDeque<>();
+
+    /**
+     * Buffers the samples until there are enough samples to form a chunk.
+     */
+    private List<StreamingSample> samples     = new ArrayList<>();
+    private TrackBox              trackBox;
+    private long                  chunkNumber = 1;
+
+    /**
+     * Contains the start time of the next chunk in line that will be created.
+     */
+    private long nextChunkCreateStartTime;
+
+    /**
+     * Contains the start time of the next chunk in line that will be written.
+     */
+    private long nextChunkWriteStartTime;
+
+    /**
+     * Contains the next sample's start time.
+     */
+    private long nextSampleStartTime;
+  }
 }
@@ -0,0 +1,99 @@
+package org.thoughtcrime.securesms.video.videoconverter.muxer;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A {@link GatheringByteChannel} on top of an {@link OutputStream}.
+ * <p>
+ * Unlike {@link java.nio.channels.Channels#newChannel(OutputStream)}, heap buffers are written straight from
+ * their backing array instead of being copied through a temporary buffer. Small buffers of a gathering write
+ * are coalesced, so the stream sees a few large writes per mdat rather than one write per sample.
+ */
+final class OutputStreamChannel implements GatheringByteChannel {
+
+  private static final int COALESCE_BUFFER_SIZE = 64 * 1024;
+
+  private final OutputStream outputStream;
+  private final byte[]       coalesceBuffer = new byte[COALESCE_BUFFER_SIZE];
+
+  private int     coalesced;
+  private boolean open = true;
+
+  OutputStreamChannel(@NonNull OutputStream outputStream) {
+    this.outputStream = outputStream;
+  }
+
+  @Override
+  public int write(@NonNull ByteBuffer src) throws IOException {
+    return (int) write(new ByteBuffer[] { src }, 0, 1);
+  }
+
+  @Override
+  public long write(@NonNull ByteBuffer[] srcs) throws IOException {
+    return write(srcs, 0, srcs.length);
+  }
+
+  @Override
+  public long write(@NonNull ByteBuffer[] srcs, int offset, int length) throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+
+    long written = 0;
+    for (int i = offset; i < offset + length; i++) {
+      written += append(srcs[i]);
+    }
+    flushCoalesced();
+    return written;
+  }
+
+  private int append(@NonNull ByteBuffer src) throws IOException {
+    final int remaining = src.remaining();
+
+    if (remaining > coalesceBuffer.length - coalesced) {
+      flushCoalesced();
+    }
+
+    if (remaining >= coalesceBuffer.length && src.hasArray()) {
+      outputStream.write(src.array(), src.arrayOffset() + src.position(), remaining);
+      src.position(src.limit());
+    } else {
+      while (src.hasRemaining()) {
+        final int count = Math.min(src.remaining(), coalesceBuffer.length - coalesced);
+        src.get(coalesceBuffer, coalesced, count);
+        coalesced += count;
+        if (coalesced == coalesceBuffer.length) {
+          flushCoalesced();
+        }
+      }
+    }
+
+    return remaining;
+  }
+
+  private void flushCoalesced() throws IOException {
+    if (coalesced > 0) {
+      outputStream.write(coalesceBuffer, 0, coalesced);
+      coalesced = 0;
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (open) {
+      open = false;
+      outputStream.close();
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package org.thoughtcrime.securesms.video.videoconverter.muxer;
+
+import androidx.annotation.NonNull;
+
+import org.mp4parser.boxes.iso14496.part12.ChunkOffsetBox;
+import org.mp4parser.boxes.iso14496.part12.SampleSizeBox;
+import org.mp4parser.boxes.iso14496.part12.SampleTableBox;
+import org.mp4parser.boxes.iso14496.part12.SampleToChunkBox;
+import org.mp4parser.boxes.iso14496.part12.SyncSampleBox;
+import org.mp4parser.boxes.iso14496.part12.TimeToSampleBox;
+import org.mp4parser.tools.Path;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Accumulates the sample table of a single track in growable primitive arrays while muxing, and
+ * copies it into the stbl boxes once, when the moov box is created.
+ * <p>
+ * Appending to the mp4parser boxes directly copies the whole table for every chunk and for every
+ * sync sample, which is quadratic over the length of the video.
+ */
+final class SampleTable {
+
+  private static final int INITIAL_SAMPLE_CAPACITY = 2048;
+  private static final int INITIAL_CHUNK_CAPACITY  = 64;
+
+  private long[] sampleSizes  = new long[INITIAL_SAMPLE_CAPACITY];
+  private int    sampleCount;
+
+  private long[] syncSamples  = new long[INITIAL_CHUNK_CAPACITY];
+  private int    syncSampleCount;
+
+  private long[] chunkOffsets = new long[INITIAL_CHUNK_CAPACITY];
+  private int    chunkCount;
+
+  private long[] sttsCounts   = new long[INITIAL_CHUNK_CAPACITY];
+  private long[] sttsDeltas   = new long[INITIAL_CHUNK_CAPACITY];
+  private int    sttsCount;
+
+  private long[] stscFirstChunks     = new long[INITIAL_CHUNK_CAPACITY];
+  private long[] stscSamplesPerChunk = new long[INITIAL_CHUNK_CAPACITY];
+  private int    stscCount;
+
+  void addSample(long size, long duration, boolean isSync) {
+    if (sampleCount == sampleSizes.length) {
+      sampleSizes = Arrays.copyOf(sampleSizes, sampleCount * 2);
+    }
+    sampleSizes[sampleCount++] = size;
+
+    if (sttsCount > 0 && sttsDeltas[sttsCount - 1] == duration) {
+      sttsCounts[sttsCount - 1]++;
+    } else {
+      if (sttsCount == sttsCounts.length) {
+        sttsCounts = Arrays.copyOf(sttsCounts, sttsCount * 2);
+        sttsDeltas = Arrays.copyOf(sttsDeltas, sttsCount * 2);
+      }
+      sttsCounts[sttsCount] = 1;
+      sttsDeltas[sttsCount] = duration;
+      sttsCount++;
+    }
+
+    if (isSync) {
+      if (syncSampleCount == syncSamples.length) {
+        syncSamples = Arrays.copyOf(syncSamples, syncSampleCount * 2);
+      }
+      syncSamples[syncSampleCount++] = sampleCount;
+    }
+  }
+
+  void addChunk(long chunkNumber, int samplesInChunk) {
+    if (stscCount == 0 || stscSamplesPerChunk[stscCount - 1] != samplesInChunk) {
+      if (stscCount == stscFirstChunks.length) {
+        stscFirstChunks     = Arrays.copyOf(stscFirstChunks, stscCount * 2);
+        stscSamplesPerChunk = Arrays.copyOf(stscSamplesPerChunk, stscCount * 2);
+      }
+      stscFirstChunks[stscCount]     = chunkNumber;
+      stscSamplesPerChunk[stscCount] = samplesInChunk;
+      stscCount++;
+    }
+  }
+
+  void addChunkOffset(long offset) {
+    if (chunkCount == chunkOffsets.length) {
+      chunkOffsets = Arrays.copyOf(chunkOffsets, chunkCount * 2);
+    }
+    chunkOffsets[chunkCount++] = offset;
+  }
+
+  void writeTo(final @NonNull SampleTableBox stbl) {
+    final SampleToChunkBox             stsc        = Objects.requireNonNull(Path.getPath(stbl, "stsc[0]"));
+    final List<SampleToChunkBox.Entry> stscEntries = new ArrayList<>(stscCount);
+    for (int i = 0; i < stscCount; i++) {
+      stscEntries.add(new SampleToChunkBox.Entry(stscFirstChunks[i], stscSamplesPerChunk[i], 1));
+    }
+    stsc.setEntries(stscEntries);
+
+    final TimeToSampleBox             stts        = Objects.requireNonNull(Path.getPath(stbl, "stts[0]"));
+    final List<TimeToSampleBox.Entry> sttsEntries = new ArrayList<>(sttsCount);
+    for (int i = 0; i < sttsCount; i++) {
+      sttsEntries.add(new TimeToSampleBox.Entry(sttsCounts[i], sttsDeltas[i]));
+    }
+    stts.setEntries(sttsEntries);
+
+    final SampleSizeBox stsz = Objects.requireNonNull(Path.getPath(stbl, "stsz[0]"));
+    stsz.setSampleSizes(Arrays.copyOf(sampleSizes, sampleCount));
+
+    final ChunkOffsetBox stco = Objects.requireNonNull(Path.getPath(stbl, "stco[0]"));
+    stco.setChunkOffsets(Arrays.copyOf(chunkOffsets, chunkCount));
+
+    if (syncSampleCount > 0) {
+      SyncSampleBox stss = Path.getPath(stbl, "stss[0]");
+      if (stss == null) {
+        stss = new SyncSampleBox();
+        stbl.addBox(stss);
+      }
+      stss.setSampleNumber(Arrays.copyOf(syncSamples, syncSampleCount));
+    }
+  }
+}
@@ -11,18 +11,26 @@ import org.thoughtcrime.securesms.video.videoconverter.Muxer;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
 import java.util.ArrayList;
 import java.util.List;
 
 public final class StreamingMuxer implements Muxer {
 
-  private final OutputStream          outputStream;
+  private final GatheringByteChannel  channel;
   private final List<MediaCodecTrack> tracks = new ArrayList<>();
   private       Mp4Writer             mp4Writer;
 
   public StreamingMuxer(OutputStream outputStream) {
-    this.outputStream = outputStream;
+    this(new OutputStreamChannel(outputStream));
+  }
+
+  /**
+   * Each chunk is handed to the channel as a single vectored write of the sample buffers, e.g. pass a
+   * {@link java.nio.channels.FileChannel} to write samples to disk without copying them.
+   */
+  public StreamingMuxer(@NonNull GatheringByteChannel channel) {
+    this.channel = channel;
   }
 
   @Override
@@ -31,7 +39,7 @@ public final class StreamingMuxer implements Muxer {
     for (MediaCodecTrack track : tracks) {
       source.add((StreamingTrack) track);
     }
-    mp4Writer = new Mp4Writer(source, Channels.newChannel(outputStream));
+    mp4Writer = new Mp4Writer(source, channel);
   }
 
   @Override